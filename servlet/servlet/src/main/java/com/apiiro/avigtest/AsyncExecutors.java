@@ -0,0 +1,84 @@
+package com.apiiro.avigtest;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Creates the executors that asynchronous requests run on. The kind of
+ * executor is one of
+ * <ul>
+ * <li><code>virtual</code>, a new virtual thread for each task, which needs a
+ * Java 21 runtime. The platform threads are used instead on older runtimes.</li>
+ * <li><code>fixed</code>, a fixed pool of daemon threads.</li>
+ * </ul>
+ * Virtual threads are looked up by reflection so the application still
+ * builds and runs on older runtimes.
+ *
+ */
+public class AsyncExecutors {
+
+	private static final Logger log = Logger.getLogger(AsyncExecutors.class
+			.getName());
+
+	public static final String VIRTUAL = "virtual";
+	public static final String FIXED = "fixed";
+
+	/**
+	 * @param name
+	 *            Prefix of the thread names
+	 * @param kind
+	 *            {@link #VIRTUAL} or {@link #FIXED}
+	 * @param threads
+	 *            Size of a fixed pool
+	 * @return A new executor, which the caller must shut down
+	 */
+	public static ExecutorService create(String name, String kind, int threads) {
+		if (VIRTUAL.equals(kind)) {
+			ExecutorService executor = newVirtualThreadExecutor();
+			if (executor != null) {
+				return executor;
+			}
+			log.warning("Virtual threads aren't available on this runtime, "
+					+ name + " uses " + threads + " platform threads");
+		} else if (!FIXED.equals(kind)) {
+			throw new IllegalArgumentException("Unknown executor " + kind
+					+ " for " + name);
+		}
+		return Executors.newFixedThreadPool(threads, daemonThreads(name));
+	}
+
+	/**
+	 * @return An executor starting a virtual thread per task, or null if the
+	 *         runtime doesn't have them
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (NoSuchMethodException e) {
+			return null;
+		} catch (Exception e) {
+			throw new IllegalStateException(
+					"Unable to create a virtual thread executor", e);
+		}
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,47 @@
+package com.apiiro.avigtest;
+
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.apiiro.avigtest.bean.LinkChecks;
+
+/**
+ * Starts the background jobs that nothing else would start, the
+ * {@link LinkChecks}, when the application is deployed and stops them with
+ * it. Application scoped beans are only created when first used, so the
+ * jobs are looked up through the <code>BeanManager</code> resource and
+ * started here. It must be declared after the Weld listener.
+ *
+ */
+public class BackgroundJobsListener implements ServletContextListener {
+
+	private LinkChecks linkChecks;
+
+	public void contextInitialized(ServletContextEvent event) {
+		linkChecks = lookupLinkChecks();
+		linkChecks.start();
+	}
+
+	public void contextDestroyed(ServletContextEvent event) {
+		if (linkChecks != null) {
+			linkChecks.stop();
+		}
+	}
+
+	LinkChecks lookupLinkChecks() {
+		try {
+			BeanManager manager = (BeanManager) new InitialContext()
+					.lookup("java:comp/env/BeanManager");
+			Bean<?> bean = manager.resolve(manager.getBeans(LinkChecks.class));
+			return (LinkChecks) manager.getReference(bean, LinkChecks.class,
+					manager.createCreationalContext(bean));
+		} catch (NamingException e) {
+			throw new IllegalStateException("Unable to find the bean manager",
+					e);
+		}
+	}
+}
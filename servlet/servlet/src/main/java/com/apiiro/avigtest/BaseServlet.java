@@ -1,29 +1,276 @@
 package com.apiiro.avigtest;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Base for servlets that answer with the text returned by
+ * {@link #work(HttpServletRequest)}. Servlets that stream their response
+ * extend {@link StreamingBaseServlet} instead. Either way the response is
+ * written through a {@link ResponseSink}, so it is compressed when the
+ * client accepts it and large responses aren't held in memory.
+ * <p/>
+ * With the <code>async</code> init parameter set and the servlet marked
+ * <code>async-supported</code> in web.xml, the response is written on the
+ * servlet's executor instead, so the container thread is released while the
+ * work is done. Subclasses that can wait for their results without blocking
+ * override {@link #workAsync} instead.
+ * A request that isn't answered within <code>async.timeoutMillis</code> gets
+ * a 503, or is cut short if its response had already started. The work
+ * writes through a {@link GuardedResponse} that the timeout closes, so work
+ * still running then fails on its next write rather than writing to a
+ * response the container has taken back. The executor and timeout default
+ * to the <code>async.*</code> settings in bookmarks.properties and can be
+ * set per servlet with init parameters of the same names.
+ */
 public abstract class BaseServlet extends HttpServlet {
+
+        private static final Logger log = Logger.getLogger(BaseServlet.class.getName());
+
+        private boolean async;
+        private long timeoutMillis;
+        private ExecutorService executor;
+
+        @Override
+        public void init() throws ServletException {
+            async = Boolean.parseBoolean(getParameter("async", "false"));
+            if (async) {
+                timeoutMillis = Long.parseLong(getParameter("async.timeoutMillis", "30000"));
+                executor = AsyncExecutors.create(getServletName(),
+                        getParameter("async.executor", AsyncExecutors.VIRTUAL),
+                        Integer.parseInt(getParameter("async.threads", "16")));
+            }
+        }
+
+        @Override
+        public void destroy() {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+
         @Override
         @Deprecated
         protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-            response.getWriter().println(this.work(request));
-            response.setContentType("text/html");
-            response.getWriter().close();
+            handle(request, response);
         }
 
         @Override
         protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-            response.getWriter().println(this.work(request));
-            response.setContentType("text/html");
-            response.getWriter().close();
+            handle(request, response);
         }
 
-        abstract protected String work(HttpServletRequest request);
+        /**
+         * @return The text of the response
+         */
+        protected abstract String work(HttpServletRequest request);
 
-}
+        /**
+         * Writes the response to the sink, overridden by
+         * {@link StreamingBaseServlet}
+         */
+        void writeTo(HttpServletRequest request, ResponseSink sink) throws IOException {
+            sink.println(work(request));
+        }
+
+        /**
+         * @return Content type of the responses
+         */
+        protected String getContentType() {
+            return "text/html";
+        }
+
+        /**
+         * Starts the work for a request answered asynchronously. Called on the
+         * container thread, so it must not block. Returns null by default, which
+         * writes the response with the work method on the servlet's executor.
+         *
+         * @return Stage completed with the text of the response, or null
+         */
+        protected CompletionStage<String> workAsync(HttpServletRequest request) {
+            return null;
+        }
+
+        /**
+         * @return Executor asynchronous work runs on, null unless the servlet is
+         *         asynchronous
+         */
+        protected Executor getExecutor() {
+            return executor;
+        }
+
+        private void handle(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            if (async && request.isAsyncSupported()) {
+                handleAsync(request, response);
+            } else {
+                write(request, response);
+            }
+        }
+
+        private void handleAsync(final HttpServletRequest request, final HttpServletResponse response) {
+            final AsyncContext context = request.startAsync(request, response);
+            context.setTimeout(timeoutMillis);
+            // whichever of the work, the timeout or an error closes the guarded
+            // response first completes the request
+            final GuardedResponse guarded = new GuardedResponse(response);
+            final AtomicReference<CompletionStage<String>> work = new AtomicReference<CompletionStage<String>>();
 
+            context.addListener(new AsyncListener() {
 
+                public void onTimeout(AsyncEvent event) {
+                    if (!guarded.close()) {
+                        return;
+                    }
+                    cancel(work.get());
+                    log.warning(getServletName() + " timed out after " + timeoutMillis + "ms");
+                    try {
+                        if (!response.isCommitted()) {
+                            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                        }
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "Unable to answer " + getServletName() + " request", e);
+                    } finally {
+                        context.complete();
+                    }
+                }
+
+                public void onError(AsyncEvent event) {
+                    if (guarded.close()) {
+                        cancel(work.get());
+                        context.complete();
+                    }
+                }
+
+                public void onComplete(AsyncEvent event) {
+                }
+
+                public void onStartAsync(AsyncEvent event) {
+                }
+            });
+
+            CompletionStage<String> stage;
+            try {
+                stage = workAsync(request);
+            } catch (RuntimeException e) {
+                CompletableFuture<String> failed = new CompletableFuture<String>();
+                failed.completeExceptionally(e);
+                stage = failed;
+            }
+            if (stage == null) {
+                work.set(CompletableFuture.supplyAsync(new Supplier<String>() {
+
+                    public String get() {
+                        // skipped if the request timed out while this was queued
+                        if (guarded.isClosed()) {
+                            return null;
+                        }
+                        try {
+                            write(request, guarded);
+                        } catch (Exception e) {
+                            fail(guarded, e);
+                        } finally {
+                            if (guarded.close()) {
+                                context.complete();
+                            }
+                        }
+                        return null;
+                    }
+                }, executor));
+                return;
+            }
+            work.set(stage);
+            stage.whenComplete(new BiConsumer<String, Throwable>() {
+
+                public void accept(String text, Throwable failure) {
+                    if (guarded.isClosed()) {
+                        return;
+                    }
+                    try {
+                        if (failure == null) {
+                            respond(request, guarded, text);
+                        } else {
+                            fail(guarded, failure);
+                        }
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "Unable to answer " + getServletName() + " request", e);
+                    } finally {
+                        if (guarded.close()) {
+                            context.complete();
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Cancels work that is no longer wanted, which stops it from starting if
+         * it is still waiting for a thread. Work that has started isn't
+         * interrupted, it fails when it next writes to the closed response.
+         */
+        private static void cancel(CompletionStage<String> stage) {
+            try {
+                if (stage != null) {
+                    stage.toCompletableFuture().cancel(true);
+                }
+            } catch (UnsupportedOperationException e) {
+                // a stage that can't be cancelled runs to completion and is ignored
+            }
+        }
+
+        private void write(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            ResponseSink sink = new ResponseSink(request, response, getContentType());
+            try {
+                writeTo(request, sink);
+                sink.close();
+            } finally {
+                sink.abort();
+            }
+        }
+
+        private void respond(HttpServletRequest request, HttpServletResponse response, String text) throws IOException {
+            ResponseSink sink = new ResponseSink(request, response, getContentType());
+            try {
+                sink.println(text);
+                sink.close();
+            } finally {
+                sink.abort();
+            }
+        }
+
+        private void fail(HttpServletResponse response, Throwable failure) {
+            log.log(Level.SEVERE, getServletName() + " failed", failure);
+            if (!response.isCommitted()) {
+                try {
+                    response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, "Unable to answer " + getServletName() + " request", e);
+                }
+            }
+        }
+
+        /**
+         * @return The servlet's init parameter, or the application setting of
+         *         the same name if it isn't set
+         */
+        private String getParameter(String name, String defaultValue) {
+            String value = getInitParameter(name);
+            return value != null ? value.trim() : Settings.getString(name, defaultValue);
+        }
+
+}
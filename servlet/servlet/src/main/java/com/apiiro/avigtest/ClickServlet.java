@@ -0,0 +1,76 @@
+package com.apiiro.avigtest;
+
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.enterprise.inject.spi.Bean;
+import javax.enterprise.inject.spi.BeanManager;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.apiiro.avigtest.bean.ClickCounters;
+
+/**
+ * Counts a click on a bookmark and redirects to its link, the listing links
+ * go through <code>go?id=</code> the bookmark's id. Clicks are counted in
+ * memory by the {@link ClickCounters}, so a redirect only goes to the
+ * database the first time a bookmark's URL is looked up.
+ * <p/>
+ * The servlet containers don't inject beans into servlets, so the counters
+ * are looked up through the <code>BeanManager</code> resource set up in
+ * jetty-env.xml and context.xml.
+ *
+ */
+public class ClickServlet extends HttpServlet {
+
+	private static final long serialVersionUID = 1L;
+
+	private ClickCounters clickCounters;
+
+	@Override
+	public void init() throws ServletException {
+		try {
+			BeanManager manager = (BeanManager) new InitialContext()
+					.lookup("java:comp/env/BeanManager");
+			Bean<?> bean = manager.resolve(manager
+					.getBeans(ClickCounters.class));
+			clickCounters = (ClickCounters) manager.getReference(bean,
+					ClickCounters.class, manager.createCreationalContext(bean));
+		} catch (NamingException e) {
+			throw new ServletException("Unable to find the bean manager", e);
+		}
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request,
+			HttpServletResponse response) throws ServletException, IOException {
+		Long id;
+		try {
+			id = Long.valueOf(request.getParameter("id"));
+		} catch (NumberFormatException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		String url = clickCounters.getUrl(id);
+		if (url == null || !isWebLink(url)) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		clickCounters.click(id);
+		// never cached, so every click reaches the server
+		response.setHeader("Cache-Control", "no-store");
+		response.sendRedirect(url);
+	}
+
+	/**
+	 * @return Whether the URL is one it is safe to redirect to
+	 */
+	static boolean isWebLink(String url) {
+		String lower = url.toLowerCase(Locale.ENGLISH);
+		return lower.startsWith("http://") || lower.startsWith("https://");
+	}
+}
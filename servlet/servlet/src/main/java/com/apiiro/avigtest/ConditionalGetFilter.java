@@ -0,0 +1,134 @@
+package com.apiiro.avigtest;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import com.apiiro.avigtest.bean.ListingCache;
+
+/**
+ * Answers conditional GETs of the listing pages with a 304 when nothing they
+ * show has changed, before the request reaches JSF or the database.
+ * <p/>
+ * A listing page depends on the version of the {@link ListingCache}, the
+ * query string and the user's session, since the page shows who is logged
+ * in. Any POST may change the session, so the filter records the time of the
+ * last POST in the session and the ETag is built from the listing version,
+ * the session id, that time and the query string. Last-Modified is the later
+ * of the listing and session changes. Responses are marked private so shared
+ * caches don't keep them.
+ * <p/>
+ * The filter never starts a session. Requests without one are passed on
+ * without validators, a session started while answering them is newer than
+ * anything the client could have been sent, so its creation time stands in
+ * for the last POST.
+ * <p/>
+ * The filter should be mapped to every JSF request so it sees the POSTs, the
+ * <code>paths</code> init parameter lists the pages it validates.
+ *
+ */
+public class ConditionalGetFilter implements Filter {
+
+	private static final String CHANGED_AT = ConditionalGetFilter.class
+			.getName()
+			+ ".changedAt";
+
+	private Set<String> paths;
+
+	public void init(FilterConfig config) throws ServletException {
+		String value = config.getInitParameter("paths");
+		paths = new HashSet<String>(Arrays.asList((value == null ? ""
+				: value.trim()).split("\\s*,\\s*")));
+	}
+
+	public void doFilter(ServletRequest req, ServletResponse resp,
+			FilterChain chain) throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) req;
+		HttpServletResponse response = (HttpServletResponse) resp;
+
+		HttpSession session = request.getSession(false);
+		if (session == null) {
+			// nothing to validate against, and a session isn't worth
+			// starting for it
+		} else if ("POST".equals(request.getMethod())) {
+			session.setAttribute(CHANGED_AT, System.currentTimeMillis());
+		} else if ("GET".equals(request.getMethod())
+				&& paths.contains(request.getServletPath())) {
+			Long changedAt = (Long) session.getAttribute(CHANGED_AT);
+			long sessionChanged = changedAt == null ? session
+					.getCreationTime() : changedAt;
+			long lastModified = Math.max(ListingCache.getLastModified(),
+					sessionChanged);
+			String etag = etag(request, session, sessionChanged);
+
+			if (notModified(request, etag, lastModified)) {
+				response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+				response.setHeader("ETag", etag);
+				return;
+			}
+			response.setHeader("ETag", etag);
+			response.setDateHeader("Last-Modified", lastModified);
+			response.setHeader("Cache-Control", "private, no-cache");
+		}
+		chain.doFilter(req, resp);
+	}
+
+	public void destroy() {
+	}
+
+	private static String etag(HttpServletRequest request,
+			HttpSession session, long sessionChanged) {
+		String query = request.getQueryString();
+		int hash = (session.getId() + "\n" + sessionChanged + "\n" + (query == null ? ""
+				: query)).hashCode();
+		// weak since the JSF view state differs each time the page is rendered
+		return "W/\"" + ListingCache.getVersion() + "-"
+				+ Integer.toHexString(hash) + "\"";
+	}
+
+	/**
+	 * Checks If-None-Match when the client sent it and If-Modified-Since
+	 * otherwise, as HTTP/1.1 requires
+	 */
+	private static boolean notModified(HttpServletRequest request,
+			String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			String opaque = opaque(etag);
+			for (String candidate : ifNoneMatch.split(",")) {
+				candidate = candidate.trim();
+				if (candidate.equals("*") || opaque(candidate).equals(opaque)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		long ifModifiedSince;
+		try {
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+		// HTTP dates only go down to the second
+		return ifModifiedSince != -1
+				&& ifModifiedSince >= lastModified / 1000 * 1000;
+	}
+
+	/**
+	 * @return The tag without the weak marker, GETs use the weak comparison
+	 */
+	private static String opaque(String etag) {
+		return etag.startsWith("W/") ? etag.substring(2) : etag;
+	}
+}
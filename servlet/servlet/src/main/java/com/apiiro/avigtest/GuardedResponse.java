@@ -0,0 +1,150 @@
+package com.apiiro.avigtest;
+
+import java.io.IOException;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response handed to work that answers an asynchronous request, which can be
+ * closed to take the response away from it. Once closed, headers set through
+ * it are ignored and writes fail with an IOException, so work that is still
+ * running when its request times out can't touch a response that has been
+ * answered and handed back to the container.
+ * <p/>
+ * Everything done through it holds its lock, so closing waits for a write in
+ * progress to finish.
+ *
+ */
+class GuardedResponse extends HttpServletResponseWrapper {
+
+	private boolean closed;
+	private ServletOutputStream out;
+
+	GuardedResponse(HttpServletResponse response) {
+		super(response);
+	}
+
+	/**
+	 * Takes the response away from the work
+	 *
+	 * @return False if it was already closed
+	 */
+	synchronized boolean close() {
+		if (closed) {
+			return false;
+		}
+		closed = true;
+		return true;
+	}
+
+	synchronized boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public synchronized void setContentType(String type) {
+		if (!closed) {
+			super.setContentType(type);
+		}
+	}
+
+	@Override
+	public synchronized void setContentLength(int length) {
+		if (!closed) {
+			super.setContentLength(length);
+		}
+	}
+
+	@Override
+	public synchronized void setHeader(String name, String value) {
+		if (!closed) {
+			super.setHeader(name, value);
+		}
+	}
+
+	@Override
+	public synchronized void addHeader(String name, String value) {
+		if (!closed) {
+			super.addHeader(name, value);
+		}
+	}
+
+	@Override
+	public synchronized void setStatus(int status) {
+		if (!closed) {
+			super.setStatus(status);
+		}
+	}
+
+	@Override
+	public synchronized void sendError(int status) throws IOException {
+		checkOpen();
+		super.sendError(status);
+	}
+
+	@Override
+	public synchronized void sendError(int status, String message)
+			throws IOException {
+		checkOpen();
+		super.sendError(status, message);
+	}
+
+	@Override
+	public synchronized void flushBuffer() throws IOException {
+		checkOpen();
+		super.flushBuffer();
+	}
+
+	@Override
+	public synchronized ServletOutputStream getOutputStream()
+			throws IOException {
+		checkOpen();
+		if (out == null) {
+			final ServletOutputStream target = super.getOutputStream();
+			out = new ServletOutputStream() {
+
+				@Override
+				public void write(int b) throws IOException {
+					synchronized (GuardedResponse.this) {
+						checkOpen();
+						target.write(b);
+					}
+				}
+
+				@Override
+				public void write(byte[] b, int off, int len)
+						throws IOException {
+					synchronized (GuardedResponse.this) {
+						checkOpen();
+						target.write(b, off, len);
+					}
+				}
+
+				@Override
+				public void flush() throws IOException {
+					synchronized (GuardedResponse.this) {
+						checkOpen();
+						target.flush();
+					}
+				}
+
+				@Override
+				public void close() throws IOException {
+					synchronized (GuardedResponse.this) {
+						checkOpen();
+						target.close();
+					}
+				}
+			};
+		}
+		return out;
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("The request was answered without this work");
+		}
+	}
+}
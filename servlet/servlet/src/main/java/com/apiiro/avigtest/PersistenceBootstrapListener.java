@@ -0,0 +1,22 @@
+package com.apiiro.avigtest;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.apiiro.avigtest.bean.DataRepositoryProducer;
+
+/**
+ * Starts the persistence unit when the application is deployed so the first
+ * requests don't race to build it, and shuts it down with the application.
+ *
+ */
+public class PersistenceBootstrapListener implements ServletContextListener {
+
+	public void contextInitialized(ServletContextEvent event) {
+		DataRepositoryProducer.start();
+	}
+
+	public void contextDestroyed(ServletContextEvent event) {
+		DataRepositoryProducer.stop();
+	}
+}
@@ -0,0 +1,282 @@
+package com.apiiro.avigtest;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Writes a response body through a fixed size buffer, so a large response is
+ * sent in chunks as it is written rather than built up in memory first.
+ * Buffers are taken from a shared pool and handed back when the sink is
+ * closed.
+ * <p/>
+ * The content type is set when the sink is created, before anything is
+ * written. Text is encoded as UTF-8. When the client accepts gzip the body is
+ * compressed, unless the whole body fits in {@link #MIN_COMPRESSED_SIZE}
+ * bytes when it is closed, in which case it is sent as is with its length.
+ * Bodies larger than the buffer go out with chunked transfer encoding since
+ * their length isn't known up front.
+ * <p/>
+ * A sink is used by one thread and must be closed, or aborted if writing the
+ * response fails.
+ *
+ */
+public class ResponseSink implements Closeable {
+
+	static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Bodies up to this size aren't worth compressing
+	 */
+	static final int MIN_COMPRESSED_SIZE = 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final BlockingQueue<byte[]> pool = new ArrayBlockingQueue<byte[]>(
+			Settings.getInt("response.bufferPoolSize", 64));
+
+	private final HttpServletResponse response;
+	private final boolean gzipAccepted;
+	private final CharsetEncoder encoder = UTF8.newEncoder().onMalformedInput(
+			CodingErrorAction.REPLACE).onUnmappableCharacter(
+			CodingErrorAction.REPLACE);
+
+	private byte[] buffer;
+	private int count;
+	private OutputStream out;
+	private boolean closed;
+
+	/**
+	 * @param request
+	 *            Request being answered, for its Accept-Encoding
+	 * @param response
+	 *            Response to write to, nothing must have been written yet
+	 * @param contentType
+	 *            Content type of the body, the charset is always UTF-8
+	 */
+	public ResponseSink(HttpServletRequest request,
+			HttpServletResponse response, String contentType) {
+		this.response = response;
+		this.gzipAccepted = acceptsGzip(request.getHeader("Accept-Encoding"));
+		response.setContentType(contentType + ";charset=UTF-8");
+		response.addHeader("Vary", "Accept-Encoding");
+		buffer = take();
+	}
+
+	/**
+	 * Writes text encoded as UTF-8. Surrogate pairs mustn't be split across
+	 * calls.
+	 */
+	public ResponseSink write(CharSequence text) throws IOException {
+		ensureOpen();
+		CharBuffer in = CharBuffer.wrap(text);
+		encoder.reset();
+		while (true) {
+			ByteBuffer bytes = ByteBuffer.wrap(buffer, count, buffer.length
+					- count);
+			CoderResult result = encoder.encode(in, bytes, true);
+			count = bytes.position();
+			if (result.isOverflow()) {
+				spill();
+			} else if (result.isUnderflow()) {
+				break;
+			} else {
+				result.throwException();
+			}
+		}
+		while (true) {
+			ByteBuffer bytes = ByteBuffer.wrap(buffer, count, buffer.length
+					- count);
+			CoderResult result = encoder.flush(bytes);
+			count = bytes.position();
+			if (!result.isOverflow()) {
+				return this;
+			}
+			spill();
+		}
+	}
+
+	/**
+	 * Writes text followed by a line break
+	 */
+	public ResponseSink println(CharSequence text) throws IOException {
+		return write(text).write("\n");
+	}
+
+	public ResponseSink write(byte[] bytes, int offset, int length)
+			throws IOException {
+		ensureOpen();
+		while (length > 0) {
+			if (count == buffer.length) {
+				spill();
+			}
+			int n = Math.min(length, buffer.length - count);
+			System.arraycopy(bytes, offset, buffer, count, n);
+			count += n;
+			offset += n;
+			length -= n;
+		}
+		return this;
+	}
+
+	/**
+	 * Sends what has been written so far to the client
+	 */
+	public void flush() throws IOException {
+		ensureOpen();
+		spill();
+		out.flush();
+	}
+
+	/**
+	 * Finishes the body and returns the buffer to the pool
+	 */
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		try {
+			if (out == null) {
+				// the whole body is still in the buffer so its length is known
+				boolean compress = compress(count);
+				if (!compress) {
+					response.setContentLength(count);
+				}
+				open(compress);
+			}
+			out.write(buffer, 0, count);
+			count = 0;
+			out.close();
+		} finally {
+			release();
+		}
+	}
+
+	/**
+	 * Returns the buffer to the pool without sending anything more, for when
+	 * the response failed. Nothing is sent at all if the buffer was never
+	 * filled, so the container can still send an error. A compressed body
+	 * isn't finished, so the client can't take it for a complete one, but
+	 * the compressor's native memory is freed straight away.
+	 */
+	public void abort() {
+		if (!closed && out instanceof GzipStream) {
+			((GzipStream) out).end();
+		}
+		release();
+	}
+
+	/**
+	 * Writes out the buffer, opening the response stream first if this is the
+	 * first time. The body is compressed if the client accepts it since its
+	 * final size isn't known yet.
+	 */
+	private void spill() throws IOException {
+		if (out == null) {
+			open(gzipAccepted);
+		}
+		out.write(buffer, 0, count);
+		count = 0;
+	}
+
+	private void open(boolean compress) throws IOException {
+		if (compress) {
+			response.setHeader("Content-Encoding", "gzip");
+			out = new GzipStream(response.getOutputStream());
+		} else {
+			out = response.getOutputStream();
+		}
+	}
+
+	private boolean compress(int size) {
+		return gzipAccepted && size > MIN_COMPRESSED_SIZE;
+	}
+
+	private void ensureOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Response sink is closed");
+		}
+	}
+
+	private void release() {
+		if (!closed) {
+			closed = true;
+			pool.offer(buffer);
+			buffer = null;
+		}
+	}
+
+	private static byte[] take() {
+		byte[] buffer = pool.poll();
+		return buffer != null ? buffer : new byte[BUFFER_SIZE];
+	}
+
+	/**
+	 * Compressed body that can be given up on without writing the rest of it
+	 */
+	private static final class GzipStream extends GZIPOutputStream {
+
+		GzipStream(OutputStream out) throws IOException {
+			super(out, BUFFER_SIZE);
+		}
+
+		/**
+		 * Frees the deflater, leaving the body unfinished
+		 */
+		void end() {
+			def.end();
+		}
+	}
+
+	/**
+	 * @param header
+	 *            Accept-Encoding header or null
+	 * @return Whether gzip is accepted, explicitly or through <code>*</code>,
+	 *         with a non zero quality
+	 */
+	static boolean acceptsGzip(String header) {
+		if (header == null) {
+			return false;
+		}
+		Boolean wildcard = null;
+		for (String coding : header.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase(Locale.ENGLISH);
+			boolean accepted = quality(parts) > 0;
+			if (name.equals("gzip") || name.equals("x-gzip")) {
+				return accepted;
+			}
+			if (name.equals("*")) {
+				wildcard = accepted;
+			}
+		}
+		return wildcard != null && wildcard;
+	}
+
+	private static double quality(String[] parts) {
+		for (int i = 1; i < parts.length; i++) {
+			String parameter = parts[i].trim();
+			if (parameter.startsWith("q=")) {
+				try {
+					return Double.parseDouble(parameter.substring(2));
+				} catch (NumberFormatException e) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+}
@@ -0,0 +1,77 @@
+package com.apiiro.avigtest;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Simple utility for reading the application settings. Values are read from
+ * the <code>bookmarks.properties</code> file on the classpath and can be
+ * overridden with a system property of the same name. If the file is missing
+ * or can't be read, a warning is logged once and the defaults are used.
+ *
+ */
+public class Settings {
+
+	private static final Logger log = Logger.getLogger(Settings.class
+			.getName());
+
+	private static final String RESOURCE = "/bookmarks.properties";
+
+	private static final Properties properties = load();
+
+	public static String getString(String key, String defaultValue) {
+		String value = System.getProperty(key);
+		if (value == null) {
+			value = properties.getProperty(key);
+		}
+		return value == null || value.trim().length() == 0 ? defaultValue
+				: value.trim();
+	}
+
+	public static int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	public static long getLong(String key, long defaultValue) {
+		String value = getString(key, null);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	private static Properties load() {
+		Properties result = new Properties();
+		InputStream in = Settings.class.getResourceAsStream(RESOURCE);
+		if (in == null) {
+			log.warning("Settings file " + RESOURCE
+					+ " not found, using the defaults");
+			return result;
+		}
+		try {
+			result.load(in);
+		} catch (IOException e) {
+			log.log(Level.WARNING, "Couldn't read settings file " + RESOURCE
+					+ ", using the defaults", e);
+			result.clear();
+		} catch (IllegalArgumentException e) {
+			log.log(Level.WARNING, "Couldn't parse settings file " + RESOURCE
+					+ ", using the defaults", e);
+			result.clear();
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				log.log(Level.FINE, "Couldn't close settings file " + RESOURCE,
+						e);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,36 @@
+package com.apiiro.avigtest;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Base for servlets with large responses, which write them to the
+ * {@link ResponseSink} as they are produced with
+ * {@link #work(HttpServletRequest, ResponseSink)} rather than returning them
+ * as one string. Everything else, including answering asynchronously, works
+ * as for a {@link BaseServlet}.
+ */
+public abstract class StreamingBaseServlet extends BaseServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Writes the response as it is produced
+         */
+        protected abstract void work(HttpServletRequest request, ResponseSink sink) throws IOException;
+
+        /**
+         * Not used, the response is written by
+         * {@link #work(HttpServletRequest, ResponseSink)}
+         */
+        @Override
+        protected final String work(HttpServletRequest request) {
+            throw new IllegalStateException(getClass().getName() + " streams its response");
+        }
+
+        @Override
+        final void writeTo(HttpServletRequest request, ResponseSink sink) throws IOException {
+            work(request, sink);
+        }
+}
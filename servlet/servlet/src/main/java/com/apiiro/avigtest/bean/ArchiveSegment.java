@@ -0,0 +1,545 @@
+package com.apiiro.avigtest.bean;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.apiiro.avigtest.model.BookmarkRow;
+import com.apiiro.avigtest.model.BookmarkRow.TagRef;
+
+/**
+ * An immutable file of archived bookmarks, written by the
+ * {@link BookmarkArchive} and read through a memory mapping.
+ * <p/>
+ * The rows are kept in listing order, newest first. The file holds a header,
+ * a deflated index and deflated blocks of {@link #BLOCK_ROWS} rows of text.
+ * The index is stored a column at a time, the ids, the times, the user of
+ * each row and the tags of each row as numbers into the user and tag
+ * dictionaries that follow, and the positions of the text blocks. It is read
+ * into memory when the segment is opened, along with the rows of each user
+ * and each tag, so a listing page is found without touching the text. The
+ * text blocks also store the URLs, titles and descriptions a column at a
+ * time and are only inflated when a row on them is shown, a few at a time
+ * being kept.
+ *
+ */
+public final class ArchiveSegment {
+
+	static final int BLOCK_ROWS = 256;
+
+	private static final int MAGIC = 0x424b4152;
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 16;
+	private static final int CACHED_BLOCKS = 8;
+
+	private static final int[] NO_ROWS = new int[0];
+
+	private final File file;
+	private final ByteBuffer text;
+
+	private final long[] ids;
+	private final long[] addedOn;
+	private final int[] users;
+	private final int[] tagOffsets;
+	private final int[] tags;
+	private final String[] usernames;
+	private final TagRef[] tagRefs;
+	private final long[] blockOffsets;
+	private final int[] blockLengths;
+
+	/**
+	 * Rows in id order, for finding a row by id
+	 */
+	private final long[] sortedIds;
+	private final int[] sortedRows;
+
+	private final Map<String, int[]> rowsByUser = new HashMap<String, int[]>();
+	private final Map<String, int[]> rowsByTag = new HashMap<String, int[]>();
+
+	private final BoundedLruCache<Integer, String[][]> blocks = new BoundedLruCache<Integer, String[][]>(
+			CACHED_BLOCKS);
+
+	private ArchiveSegment(File file, ByteBuffer text, int rows,
+			DataInputStream index) throws IOException {
+		this.file = file;
+		this.text = text;
+		ids = readLongs(index, rows);
+		addedOn = readLongs(index, rows);
+		users = readInts(index, rows);
+		tagOffsets = readInts(index, rows + 1);
+		tags = readInts(index, tagOffsets[rows]);
+		usernames = new String[index.readInt()];
+		for (int i = 0; i < usernames.length; i++) {
+			usernames[i] = index.readUTF();
+		}
+		tagRefs = new TagRef[index.readInt()];
+		for (int i = 0; i < tagRefs.length; i++) {
+			String slug = index.readUTF();
+			tagRefs[i] = new TagRef(index.readUTF(), slug);
+		}
+		int blockCount = index.readInt();
+		blockOffsets = readLongs(index, blockCount);
+		blockLengths = readInts(index, blockCount);
+
+		Integer[] order = new Integer[rows];
+		for (int i = 0; i < rows; i++) {
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+
+			public int compare(Integer a, Integer b) {
+				return ids[a] < ids[b] ? -1 : ids[a] == ids[b] ? 0 : 1;
+			}
+		});
+		sortedIds = new long[rows];
+		sortedRows = new int[rows];
+		for (int i = 0; i < rows; i++) {
+			sortedRows[i] = order[i];
+			sortedIds[i] = ids[order[i]];
+		}
+		indexRows();
+	}
+
+	/**
+	 * Maps the segment file and reads its index
+	 */
+	public static ArchiveSegment open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		ByteBuffer map;
+		try {
+			// the mapping stays valid once the file is closed
+			map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					raf.length());
+		} finally {
+			raf.close();
+		}
+		if (map.getInt() != MAGIC || map.getInt() != VERSION) {
+			throw new IOException(file + " isn't an archive segment");
+		}
+		int rows = map.getInt();
+		int indexLength = map.getInt();
+		byte[] compressed = new byte[indexLength];
+		map.get(compressed);
+		((Buffer) map).position(HEADER_BYTES + indexLength);
+		ByteBuffer text = map.slice();
+
+		DataInputStream index = new DataInputStream(new InflaterInputStream(
+				new ByteArrayInputStream(compressed)));
+		try {
+			return new ArchiveSegment(file, text, rows, index);
+		} finally {
+			index.close();
+		}
+	}
+
+	/**
+	 * Writes the rows to a new segment file, by way of a temporary file so a
+	 * crash never leaves part of a segment behind
+	 *
+	 * @param file
+	 *            File to write
+	 * @param rows
+	 *            Rows to store, in any order
+	 */
+	public static void write(File file, List<BookmarkRow> rows)
+			throws IOException {
+		List<BookmarkRow> sorted = new ArrayList<BookmarkRow>(rows);
+		Collections.sort(sorted, BookmarkArchive.NEWEST_FIRST);
+
+		List<byte[]> textBlocks = new ArrayList<byte[]>();
+		for (int start = 0; start < sorted.size(); start += BLOCK_ROWS) {
+			List<BookmarkRow> block = sorted.subList(start, Math.min(start
+					+ BLOCK_ROWS, sorted.size()));
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = deflating(bytes);
+			for (BookmarkRow row : block) {
+				out.writeUTF(row.getUrl());
+			}
+			for (BookmarkRow row : block) {
+				out.writeUTF(row.getTitle());
+			}
+			for (BookmarkRow row : block) {
+				out.writeUTF(row.getDescription());
+			}
+			out.close();
+			textBlocks.add(bytes.toByteArray());
+		}
+
+		ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+		DataOutputStream index = deflating(indexBytes);
+		Map<String, Integer> userNumbers = new HashMap<String, Integer>();
+		List<String> userList = new ArrayList<String>();
+		Map<String, Integer> tagNumbers = new HashMap<String, Integer>();
+		List<TagRef> tagList = new ArrayList<TagRef>();
+		for (BookmarkRow row : sorted) {
+			index.writeLong(row.getId());
+		}
+		for (BookmarkRow row : sorted) {
+			index.writeLong(row.getAddedOn().getTime());
+		}
+		for (BookmarkRow row : sorted) {
+			String username = row.getUsername();
+			if (username == null) {
+				index.writeInt(-1);
+				continue;
+			}
+			Integer number = userNumbers.get(username);
+			if (number == null) {
+				number = userList.size();
+				userNumbers.put(username, number);
+				userList.add(username);
+			}
+			index.writeInt(number);
+		}
+		int offset = 0;
+		for (BookmarkRow row : sorted) {
+			index.writeInt(offset);
+			offset += row.getTags().size();
+		}
+		index.writeInt(offset);
+		for (BookmarkRow row : sorted) {
+			for (TagRef tag : row.getTags()) {
+				Integer number = tagNumbers.get(tag.getSlug());
+				if (number == null) {
+					number = tagList.size();
+					tagNumbers.put(tag.getSlug(), number);
+					tagList.add(tag);
+				}
+				index.writeInt(number);
+			}
+		}
+		index.writeInt(userList.size());
+		for (String username : userList) {
+			index.writeUTF(username);
+		}
+		index.writeInt(tagList.size());
+		for (TagRef tag : tagList) {
+			index.writeUTF(tag.getSlug());
+			index.writeUTF(tag.getName());
+		}
+		index.writeInt(textBlocks.size());
+		long blockOffset = 0;
+		for (byte[] block : textBlocks) {
+			index.writeLong(blockOffset);
+			blockOffset += block.length;
+		}
+		for (byte[] block : textBlocks) {
+			index.writeInt(block.length);
+		}
+		index.close();
+
+		File temp = new File(file.getPath() + ".tmp");
+		FileOutputStream stream = new FileOutputStream(temp);
+		try {
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(stream));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(sorted.size());
+			out.writeInt(indexBytes.size());
+			indexBytes.writeTo(out);
+			for (byte[] block : textBlocks) {
+				out.write(block);
+			}
+			out.flush();
+			stream.getFD().sync();
+		} finally {
+			stream.close();
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * Reads a page of the listing from the segment, with the same meaning as
+	 * a page of {@link BookmarkDao#getBookmarkRows}
+	 *
+	 * @return The rows of the page, newest first
+	 */
+	public List<BookmarkRow> page(String tag, String username,
+			PageCursor cursor, int count) {
+		int[] rows = filter(tag, username);
+		int from;
+		int to;
+		if (cursor == null) {
+			from = 0;
+			to = count;
+		} else {
+			long time = cursor.getAddedOn().getTime();
+			long id = cursor.getId();
+			if (cursor.isBefore()) {
+				// the newer rows closest to the cursor
+				to = firstNotNewer(rows, time, id);
+				from = to - count;
+			} else {
+				from = firstOlder(rows, time, id);
+				to = from + count;
+			}
+		}
+		from = Math.max(0, from);
+		to = Math.min(to, rows == null ? ids.length : rows.length);
+		List<BookmarkRow> page = new ArrayList<BookmarkRow>(Math.max(0, to
+				- from));
+		for (int i = from; i < to; i++) {
+			page.add(row(rows == null ? i : rows[i]));
+		}
+		return page;
+	}
+
+	/**
+	 * @return The row of the bookmark or null if it isn't in the segment
+	 */
+	public BookmarkRow find(long id) {
+		int position = Arrays.binarySearch(sortedIds, id);
+		return position < 0 ? null : row(sortedRows[position]);
+	}
+
+	public boolean contains(long id) {
+		return Arrays.binarySearch(sortedIds, id) >= 0;
+	}
+
+	/**
+	 * @return Whether the segment has a row newer than the time and id
+	 */
+	public boolean hasNewerThan(long time, long id) {
+		return ids.length > 0 && compare(0, time, id) > 0;
+	}
+
+	/**
+	 * Hands every row to the visitor, newest first
+	 */
+	public void forEach(BookmarkArchive.RowVisitor visitor) {
+		for (int i = 0; i < ids.length; i++) {
+			visitor.visit(row(i));
+		}
+	}
+
+	/**
+	 * Adds the number of rows of each user and each tag to the counts
+	 */
+	public void addCounts(Map<String, Long> byUser, Map<String, Long> byTag) {
+		add(byUser, rowsByUser);
+		add(byTag, rowsByTag);
+	}
+
+	private static void add(Map<String, Long> counts, Map<String, int[]> rows) {
+		for (Map.Entry<String, int[]> entry : rows.entrySet()) {
+			Long count = counts.get(entry.getKey());
+			counts.put(entry.getKey(), (count == null ? 0 : count)
+					+ entry.getValue().length);
+		}
+	}
+
+	private BookmarkRow row(int row) {
+		String[][] block = block(row / BLOCK_ROWS);
+		int inBlock = row % BLOCK_ROWS;
+		List<TagRef> rowTags = new ArrayList<TagRef>(tagOffsets[row + 1]
+				- tagOffsets[row]);
+		for (int i = tagOffsets[row]; i < tagOffsets[row + 1]; i++) {
+			rowTags.add(tagRefs[tags[i]]);
+		}
+		return new BookmarkRow(ids[row], block[0][inBlock], block[1][inBlock],
+				block[2][inBlock], new Date(addedOn[row]), users[row] < 0 ? null
+						: usernames[users[row]], rowTags);
+	}
+
+	/**
+	 * @return The URLs, titles and descriptions of the rows on the block
+	 */
+	private String[][] block(int number) {
+		String[][] block = blocks.get(number);
+		if (block != null) {
+			return block;
+		}
+		byte[] compressed = new byte[blockLengths[number]];
+		ByteBuffer view = text.duplicate();
+		((Buffer) view).position((int) blockOffsets[number]);
+		view.get(compressed);
+		int rows = Math.min(BLOCK_ROWS, ids.length - number * BLOCK_ROWS);
+		block = new String[3][rows];
+		try {
+			DataInputStream in = new DataInputStream(new InflaterInputStream(
+					new ByteArrayInputStream(compressed)));
+			try {
+				for (String[] column : block) {
+					for (int i = 0; i < rows; i++) {
+						column[i] = in.readUTF();
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Damaged block " + number
+					+ " in " + file, e);
+		}
+		blocks.put(number, block);
+		return block;
+	}
+
+	/**
+	 * @return The rows matching the filters in listing order, or null for all
+	 *         of them
+	 */
+	private int[] filter(String tag, String username) {
+		int[] byTag = tag == null ? null : rows(rowsByTag, tag);
+		int[] byUser = username == null ? null : rows(rowsByUser, username);
+		if (byTag == null || byUser == null) {
+			return byTag == null ? byUser : byTag;
+		}
+		int[] both = new int[Math.min(byTag.length, byUser.length)];
+		int count = 0;
+		for (int i = 0, j = 0; i < byTag.length && j < byUser.length;) {
+			if (byTag[i] == byUser[j]) {
+				both[count++] = byTag[i];
+				i++;
+				j++;
+			} else if (byTag[i] < byUser[j]) {
+				i++;
+			} else {
+				j++;
+			}
+		}
+		return Arrays.copyOf(both, count);
+	}
+
+	private static int[] rows(Map<String, int[]> index, String key) {
+		int[] rows = index.get(key);
+		return rows == null ? NO_ROWS : rows;
+	}
+
+	/**
+	 * @return Position of the first of the rows older than the time and id
+	 */
+	private int firstOlder(int[] rows, long time, long id) {
+		int low = 0;
+		int high = rows == null ? ids.length : rows.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (compare(rows == null ? middle : rows[middle], time, id) >= 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return Position of the first of the rows that isn't newer than the
+	 *         time and id
+	 */
+	private int firstNotNewer(int[] rows, long time, long id) {
+		int low = 0;
+		int high = rows == null ? ids.length : rows.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (compare(rows == null ? middle : rows[middle], time, id) > 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * @return Positive if the row is newer than the time and id, 0 if it is
+	 *         the same and negative if it is older
+	 */
+	private int compare(int row, long time, long id) {
+		if (addedOn[row] != time) {
+			return addedOn[row] > time ? 1 : -1;
+		}
+		return ids[row] == id ? 0 : ids[row] > id ? 1 : -1;
+	}
+
+	private void indexRows() {
+		Map<String, List<Integer>> byUser = new HashMap<String, List<Integer>>();
+		Map<String, List<Integer>> byTag = new HashMap<String, List<Integer>>();
+		for (int row = 0; row < ids.length; row++) {
+			if (users[row] >= 0) {
+				append(byUser, usernames[users[row]], row);
+			}
+			for (int i = tagOffsets[row]; i < tagOffsets[row + 1]; i++) {
+				append(byTag, tagRefs[tags[i]].getSlug(), row);
+			}
+		}
+		toArrays(byUser, rowsByUser);
+		toArrays(byTag, rowsByTag);
+	}
+
+	private static void append(Map<String, List<Integer>> index, String key,
+			int row) {
+		List<Integer> rows = index.get(key);
+		if (rows == null) {
+			rows = new ArrayList<Integer>();
+			index.put(key, rows);
+		}
+		rows.add(row);
+	}
+
+	private static void toArrays(Map<String, List<Integer>> lists,
+			Map<String, int[]> arrays) {
+		for (Map.Entry<String, List<Integer>> entry : lists.entrySet()) {
+			int[] rows = new int[entry.getValue().size()];
+			for (int i = 0; i < rows.length; i++) {
+				rows[i] = entry.getValue().get(i);
+			}
+			arrays.put(entry.getKey(), rows);
+		}
+	}
+
+	private static DataOutputStream deflating(ByteArrayOutputStream bytes) {
+		return new DataOutputStream(new BufferedOutputStream(
+				new DeflaterOutputStream(bytes)));
+	}
+
+	private static long[] readLongs(DataInputStream in, int count)
+			throws IOException {
+		long[] values = new long[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = in.readLong();
+		}
+		return values;
+	}
+
+	private static int[] readInts(DataInputStream in, int count)
+			throws IOException {
+		int[] values = new int[count];
+		for (int i = 0; i < count; i++) {
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+}
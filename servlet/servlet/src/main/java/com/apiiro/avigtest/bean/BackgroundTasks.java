@@ -0,0 +1,85 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * Application wide scheduler for the periodic housekeeping jobs, such as
+ * reconciling the in memory counters with the database. Jobs run on daemon
+ * threads and are stopped when the application shuts down.
+ *
+ */
+@ApplicationScoped
+public class BackgroundTasks {
+
+	private static final Logger log = Logger.getLogger(BackgroundTasks.class
+			.getName());
+
+	private static final int THREADS = 2;
+
+	private final ScheduledExecutorService scheduler = Executors
+			.newScheduledThreadPool(THREADS, new ThreadFactory() {
+
+				private final AtomicInteger count = new AtomicInteger();
+
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "bookmarks-background-"
+							+ count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	/**
+	 * Runs a task repeatedly with a fixed delay between runs. A task that
+	 * fails is logged and run again next time rather than cancelled.
+	 *
+	 * @param name
+	 *            Name of the task used when logging failures
+	 * @param task
+	 *            Task to run
+	 * @param delay
+	 *            Delay before the first run and between runs
+	 * @param unit
+	 *            Unit of the delay
+	 * @return Future that can be used to cancel the task
+	 */
+	public ScheduledFuture<?> scheduleWithFixedDelay(final String name,
+			final Runnable task, long delay, TimeUnit unit) {
+		return scheduler.scheduleWithFixedDelay(new Runnable() {
+
+			public void run() {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					log.log(Level.WARNING, "Background task " + name
+							+ " failed", e);
+				}
+			}
+		}, delay, delay, unit);
+	}
+
+	/**
+	 * Runs a task once in the background
+	 *
+	 * @param task
+	 *            Task to run
+	 */
+	public void execute(Runnable task) {
+		scheduler.execute(task);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		scheduler.shutdownNow();
+	}
+}
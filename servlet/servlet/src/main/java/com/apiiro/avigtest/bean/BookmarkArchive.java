@@ -0,0 +1,496 @@
+package com.apiiro.avigtest.bean;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.TemporalType;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+import com.apiiro.avigtest.Settings;
+import com.apiiro.avigtest.model.Bookmark;
+import com.apiiro.avigtest.model.BookmarkRow;
+import com.apiiro.avigtest.model.DatabaseIdentity;
+
+/**
+ * Archive of the bookmarks older than <code>archive.ageDays</code>, moved out
+ * of the BOOKMARKS table into {@link ArchiveSegment} files in
+ * <code>archive.dir</code> so the live table only holds the recent bookmarks
+ * most pages show.
+ * <p/>
+ * Every <code>archive.runHours</code> the old bookmarks are read as
+ * {@link BookmarkRow}s, <code>archive.segmentSize</code> at a time, written
+ * to a new segment which is opened and added to the archive, and then deleted
+ * from the database. Bookmarks already in a segment, left behind by a run
+ * that stopped before deleting them, are only deleted. The archive keeps what
+ * the listing shows, the click count and link status aren't kept.
+ * <p/>
+ * The directory holds the archive of one database, whose
+ * {@link DatabaseIdentity} is written to <code>database.id</code> with the
+ * first segment. Segments found with another identity, or none, are left
+ * alone and not used, and nothing more is archived to that directory, so an
+ * archive can't be mixed with a database that was created again. Archiving
+ * only runs against a persistent database (see
+ * {@link DataRepositoryProducer#isPersistent()}), the in memory one is
+ * created again on every start.
+ * <p/>
+ * The {@link BookmarkDao} merges the archive into a listing page that reaches
+ * past the newest archived bookmark and looks up archived bookmarks by id,
+ * and the {@link BookmarkSearchIndex} and {@link BookmarkCounters} include
+ * them. Archived bookmarks can't be loaded as entities.
+ *
+ */
+@ApplicationScoped
+public class BookmarkArchive {
+
+	private static final Logger log = Logger.getLogger(BookmarkArchive.class
+			.getName());
+
+	private static final String SEGMENT_SUFFIX = ".bka";
+
+	private static final String IDENTITY_FILE = "database.id";
+
+	/**
+	 * Ids per query when reading the rows to archive
+	 */
+	private static final int ROWS_PER_QUERY = 1000;
+
+	private static final String DELETE_TAGS = "delete from BOOKMARK_TAGS_XREF where bookmarks_id = ?";
+	private static final String DELETE_BOOKMARK = "delete from BOOKMARKS where id = ?";
+
+	/**
+	 * Listing order, newest first
+	 */
+	static final Comparator<BookmarkRow> NEWEST_FIRST = new Comparator<BookmarkRow>() {
+
+		public int compare(BookmarkRow a, BookmarkRow b) {
+			int result = b.getAddedOn().compareTo(a.getAddedOn());
+			return result != 0 ? result : b.getId().compareTo(a.getId());
+		}
+	};
+
+	/**
+	 * Visits the archived rows
+	 */
+	public interface RowVisitor {
+
+		void visit(BookmarkRow row);
+	}
+
+	@Inject
+	private EntityManagerFactory entityManagerFactory;
+
+	@Inject
+	private BackgroundTasks backgroundTasks;
+
+	private final File directory;
+	private final int ageDays;
+	private final int segmentSize;
+
+	/**
+	 * Segments oldest first, replaced as a whole when one is added
+	 */
+	private volatile List<ArchiveSegment> segments;
+
+	/**
+	 * Whether the directory holds the archive of another database
+	 */
+	private volatile boolean foreign;
+
+	public BookmarkArchive() {
+		this(new File(Settings.getString("archive.dir", "archive")), Settings
+				.getInt("archive.ageDays", 365), Settings.getInt(
+				"archive.segmentSize", 50000));
+	}
+
+	/**
+	 * @param directory
+	 *            Directory of the segment files
+	 * @param ageDays
+	 *            Age in days at which bookmarks are archived, 0 to never
+	 *            archive them
+	 * @param segmentSize
+	 *            Most bookmarks in a segment
+	 */
+	BookmarkArchive(File directory, int ageDays, int segmentSize) {
+		this.directory = directory;
+		this.ageDays = ageDays;
+		this.segmentSize = segmentSize;
+	}
+
+	@PostConstruct
+	public void scheduleArchival() {
+		if (ageDays <= 0 || !DataRepositoryProducer.isPersistent()) {
+			return;
+		}
+		long hours = Settings.getLong("archive.runHours", 24);
+		backgroundTasks.scheduleWithFixedDelay("archive bookmarks",
+				new Runnable() {
+
+					public void run() {
+						archiveOlderThan(new Date(System.currentTimeMillis()
+								- TimeUnit.DAYS.toMillis(ageDays)));
+					}
+				}, hours, TimeUnit.HOURS);
+	}
+
+	/**
+	 * @return Number of archived bookmarks
+	 */
+	public long size() {
+		long size = 0;
+		for (ArchiveSegment segment : segments()) {
+			size += segment.size();
+		}
+		return size;
+	}
+
+	/**
+	 * @return Whether an archived bookmark is newer than the time and id, if
+	 *         not a listing page older than them has nothing archived on it
+	 */
+	public boolean hasNewerThan(Date addedOn, long id) {
+		for (ArchiveSegment segment : segments()) {
+			if (segment.hasNewerThan(addedOn.getTime(), id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads a page of the archived bookmarks, see
+	 * {@link BookmarkDao#getBookmarkRows(String, PageCursor, Integer, String)}
+	 *
+	 * @return The rows of the page, newest first
+	 */
+	public List<BookmarkRow> getRows(String tag, String username,
+			PageCursor cursor, int count) {
+		List<BookmarkRow> page = new ArrayList<BookmarkRow>();
+		boolean newer = cursor != null && cursor.isBefore();
+		for (ArchiveSegment segment : segments()) {
+			page = merge(page, segment.page(tag, username, cursor, count),
+					count, newer);
+		}
+		return page;
+	}
+
+	/**
+	 * @return The archived rows of the bookmarks with the ids, by id
+	 */
+	public Map<Long, BookmarkRow> getRowsById(Collection<Long> ids) {
+		Map<Long, BookmarkRow> rows = new HashMap<Long, BookmarkRow>();
+		List<ArchiveSegment> all = segments();
+		if (all.isEmpty()) {
+			return rows;
+		}
+		for (Long id : ids) {
+			for (ArchiveSegment segment : all) {
+				BookmarkRow row = segment.find(id);
+				if (row != null) {
+					rows.put(id, row);
+					break;
+				}
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * @return URL of the archived bookmark or null if it isn't archived
+	 */
+	public String getUrl(long id) {
+		BookmarkRow row = getRowsById(Collections.singleton(id)).get(id);
+		return row == null ? null : row.getUrl();
+	}
+
+	public boolean contains(long id) {
+		for (ArchiveSegment segment : segments()) {
+			if (segment.contains(id)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Hands every archived row to the visitor
+	 */
+	public void forEach(RowVisitor visitor) {
+		for (ArchiveSegment segment : segments()) {
+			segment.forEach(visitor);
+		}
+	}
+
+	/**
+	 * Adds the number of archived bookmarks of each user and each tag to the
+	 * counts
+	 */
+	public void addCounts(Map<String, Long> byUser, Map<String, Long> byTag) {
+		for (ArchiveSegment segment : segments()) {
+			segment.addCounts(byUser, byTag);
+		}
+	}
+
+	/**
+	 * Moves the bookmarks added before the cutoff from the database to new
+	 * segments
+	 *
+	 * @param cutoff
+	 *            Time before which bookmarks are archived
+	 * @return Number of bookmarks archived
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized int archiveOlderThan(Date cutoff) {
+		segments();
+		if (foreign) {
+			throw new IllegalStateException(directory
+					+ " holds the archive of another database");
+		}
+		int archived = 0;
+		long started = System.nanoTime();
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			while (true) {
+				List<Long> ids = em
+						.createQuery(
+								"select b.id from Bookmark b where b.addedOn < :cutoff order by b.id")
+						.setParameter("cutoff", cutoff, TemporalType.TIMESTAMP)
+						.setMaxResults(segmentSize).getResultList();
+				if (ids.isEmpty()) {
+					break;
+				}
+				List<Long> fresh = new ArrayList<Long>(ids.size());
+				for (Long id : ids) {
+					if (!contains(id)) {
+						fresh.add(id);
+					}
+				}
+				if (!fresh.isEmpty()) {
+					List<BookmarkRow> rows = new ArrayList<BookmarkRow>(fresh
+							.size());
+					for (int i = 0; i < fresh.size(); i += ROWS_PER_QUERY) {
+						rows.addAll(BookmarkDao.queryRows(em, fresh.subList(i,
+								Math.min(i + ROWS_PER_QUERY, fresh.size()))));
+					}
+					addSegment(rows, fresh.get(0), fresh.get(fresh.size() - 1));
+				}
+				delete(ids);
+				em.clear();
+				archived += fresh.size();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to write a segment to "
+					+ directory, e);
+		} finally {
+			em.close();
+			if (archived > 0) {
+				entityManagerFactory.getCache().evict(Bookmark.class);
+				ListingCache.invalidate();
+			}
+		}
+		if (archived > 0) {
+			log.info(String.format("Archived %d bookmarks in %.1fs", archived,
+					(System.nanoTime() - started) / 1e9));
+		}
+		return archived;
+	}
+
+	private void addSegment(List<BookmarkRow> rows, long firstId, long lastId)
+			throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create " + directory);
+		}
+		File identity = new File(directory, IDENTITY_FILE);
+		if (!identity.exists()) {
+			Files.write(identity.toPath(), databaseIdentity().getBytes("UTF-8"));
+		}
+		File file = new File(directory, "segment-" + firstId + "-" + lastId
+				+ SEGMENT_SUFFIX);
+		ArchiveSegment.write(file, rows);
+		List<ArchiveSegment> added = new ArrayList<ArchiveSegment>(segments);
+		added.add(ArchiveSegment.open(file));
+		segments = Collections.unmodifiableList(added);
+	}
+
+	/**
+	 * Deletes the bookmarks and their tag assignments in one transaction
+	 */
+	private void delete(final List<Long> ids) {
+		EntityManager em = entityManagerFactory.createEntityManager();
+		EntityTransaction transaction = em.getTransaction();
+		try {
+			transaction.begin();
+			((Session) em.getDelegate()).doWork(new Work() {
+
+				public void execute(Connection connection) throws SQLException {
+					for (String sql : new String[] { DELETE_TAGS,
+							DELETE_BOOKMARK }) {
+						PreparedStatement delete = connection
+								.prepareStatement(sql);
+						try {
+							for (Long id : ids) {
+								delete.setLong(1, id);
+								delete.addBatch();
+							}
+							delete.executeBatch();
+						} finally {
+							delete.close();
+						}
+					}
+				}
+			});
+			transaction.commit();
+		} catch (RuntimeException e) {
+			if (transaction.isActive()) {
+				transaction.rollback();
+			}
+			throw e;
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * @return The segments, opening the ones in the directory on first use
+	 */
+	private List<ArchiveSegment> segments() {
+		List<ArchiveSegment> opened = segments;
+		if (opened != null) {
+			return opened;
+		}
+		synchronized (this) {
+			if (segments == null) {
+				segments = open();
+			}
+			return segments;
+		}
+	}
+
+	private List<ArchiveSegment> open() {
+		File[] files = directory.listFiles(new FilenameFilter() {
+
+			public boolean accept(File dir, String name) {
+				return name.startsWith("segment-")
+						&& name.endsWith(SEGMENT_SUFFIX);
+			}
+		});
+		if (files == null || files.length == 0) {
+			return Collections.emptyList();
+		}
+		String identity = readIdentity();
+		if (!databaseIdentity().equals(identity)) {
+			log.warning(directory + " holds the archive of "
+					+ (identity == null ? "an unknown" : "another")
+					+ " database, its segments aren't used");
+			foreign = true;
+			return Collections.emptyList();
+		}
+		Arrays.sort(files);
+		List<ArchiveSegment> opened = new ArrayList<ArchiveSegment>();
+		for (File file : files) {
+			try {
+				opened.add(ArchiveSegment.open(file));
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to open " + file, e);
+			}
+		}
+		return Collections.unmodifiableList(opened);
+	}
+
+	/**
+	 * @return The identity written to the directory, or null if there isn't
+	 *         one
+	 */
+	private String readIdentity() {
+		File file = new File(directory, IDENTITY_FILE);
+		if (!file.exists()) {
+			return null;
+		}
+		try {
+			return new String(Files.readAllBytes(file.toPath()), "UTF-8")
+					.trim();
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to read " + file, e);
+		}
+	}
+
+	/**
+	 * @return The identity of the database, giving it one if it has none
+	 */
+	private String databaseIdentity() {
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			DatabaseIdentity identity = em.find(DatabaseIdentity.class,
+					DatabaseIdentity.ID);
+			if (identity == null) {
+				identity = new DatabaseIdentity(UUID.randomUUID().toString());
+				em.getTransaction().begin();
+				em.persist(identity);
+				em.getTransaction().commit();
+			}
+			return identity.getUuid();
+		} finally {
+			if (em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
+			}
+			em.close();
+		}
+	}
+
+	/**
+	 * Merges two listing pages, leaving out rows on both
+	 *
+	 * @param count
+	 *            Number of rows to keep
+	 * @param newer
+	 *            Whether the pages are newer than a cursor, keeping the
+	 *            oldest rows rather than the newest
+	 * @return The rows of the merged page, newest first
+	 */
+	static List<BookmarkRow> merge(List<BookmarkRow> page,
+			List<BookmarkRow> other, int count, boolean newer) {
+		if (other.isEmpty()) {
+			return page;
+		}
+		Map<Long, BookmarkRow> byId = new LinkedHashMap<Long, BookmarkRow>();
+		for (BookmarkRow row : page) {
+			byId.put(row.getId(), row);
+		}
+		for (BookmarkRow row : other) {
+			if (!byId.containsKey(row.getId())) {
+				byId.put(row.getId(), row);
+			}
+		}
+		List<BookmarkRow> merged = new ArrayList<BookmarkRow>(byId.values());
+		Collections.sort(merged, NEWEST_FIRST);
+		int from = newer ? Math.max(0, merged.size() - count) : 0;
+		return new ArrayList<BookmarkRow>(merged.subList(from, Math.min(from
+				+ count, merged.size())));
+	}
+}
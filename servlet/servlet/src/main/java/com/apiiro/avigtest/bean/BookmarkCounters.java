@@ -0,0 +1,221 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import com.apiiro.avigtest.Settings;
+import com.apiiro.avigtest.model.Bookmark;
+import com.apiiro.avigtest.model.Tag;
+
+/**
+ * Holds the total, per user and per tag bookmark counts so the views can show
+ * them without counting the bookmarks table on every request.
+ * <p/>
+ * The counts are loaded from the database on first use and incremented by
+ * the {@link BookmarkDao} as bookmarks are saved. Since increments racing with
+ * a reload can be missed or counted twice, the counts are reconciled with the
+ * database in the background every <code>counters.reconcileSeconds</code>.
+ * A reconcile that corrects the counts moves the {@link ListingCache} to a
+ * new version, as the listing pages show them.
+ *
+ */
+@ApplicationScoped
+public class BookmarkCounters {
+
+	@Inject
+	private EntityManagerFactory entityManagerFactory;
+
+	@Inject
+	private BackgroundTasks backgroundTasks;
+
+	@Inject
+	private BookmarkArchive archive;
+
+	private final AtomicLong total = new AtomicLong();
+	private volatile ConcurrentMap<String, AtomicLong> byUser;
+	private volatile ConcurrentMap<String, AtomicLong> byTag;
+
+	@PostConstruct
+	public void scheduleReconcile() {
+		long seconds = Settings.getLong("counters.reconcileSeconds", 300);
+		backgroundTasks.scheduleWithFixedDelay("reconcile counters",
+				new Runnable() {
+
+					public void run() {
+						reconcile();
+					}
+				}, seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * @return Total number of bookmarks
+	 */
+	public long getTotal() {
+		ensureLoaded();
+		return total.get();
+	}
+
+	/**
+	 * @param username
+	 *            Username of the user
+	 * @return Number of bookmarks posted by the user
+	 */
+	public long getUserCount(String username) {
+		ensureLoaded();
+		return get(byUser, username);
+	}
+
+	/**
+	 * @param slug
+	 *            Slug of the tag
+	 * @return Number of bookmarks tagged with the tag
+	 */
+	public long getTagCount(String slug) {
+		ensureLoaded();
+		return get(byTag, slug);
+	}
+
+	/**
+	 * Updates the counts for a newly saved bookmark
+	 *
+	 * @param bookmark
+	 *            Bookmark that was saved
+	 */
+	public void bookmarkAdded(Bookmark bookmark) {
+		if (byUser == null) {
+			// not loaded yet, the bookmark is counted when it is
+			return;
+		}
+		total.incrementAndGet();
+		if (bookmark.getUser() != null) {
+			increment(byUser, bookmark.getUser().getUsername());
+		}
+		for (Tag tag : bookmark.getTags()) {
+			increment(byTag, tag.getSlug());
+		}
+	}
+
+	/**
+	 * Reloads all the counts from the database and adds those of the
+	 * {@link BookmarkArchive}, invalidating the {@link ListingCache} if they
+	 * were wrong
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized void reconcile() {
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			Long count = (Long) em.createQuery(
+					"select count(b) from Bookmark b").getSingleResult();
+			ConcurrentMap<String, AtomicLong> users = toCounts(em
+					.createQuery(
+							"select u.username, count(b) from Bookmark b join b.user u group by u.username")
+					.getResultList());
+			ConcurrentMap<String, AtomicLong> tags = toCounts(em
+					.createQuery(
+							"select t.slug, count(b) from Bookmark b join b.tags t group by t.slug")
+					.getResultList());
+			addArchived(users, tags);
+			long reconciled = count + archive.size();
+			boolean changed = byUser != null
+					&& (total.get() != reconciled
+							|| !sameCounts(byUser, users) || !sameCounts(byTag,
+							tags));
+			total.set(reconciled);
+			byTag = tags;
+			byUser = users;
+			if (changed) {
+				ListingCache.invalidate();
+			}
+		} finally {
+			em.close();
+		}
+	}
+
+	private void addArchived(ConcurrentMap<String, AtomicLong> users,
+			ConcurrentMap<String, AtomicLong> tags) {
+		Map<String, Long> archivedUsers = new HashMap<String, Long>();
+		Map<String, Long> archivedTags = new HashMap<String, Long>();
+		archive.addCounts(archivedUsers, archivedTags);
+		add(users, archivedUsers);
+		add(tags, archivedTags);
+	}
+
+	private static void add(ConcurrentMap<String, AtomicLong> counts,
+			Map<String, Long> extra) {
+		for (Map.Entry<String, Long> entry : extra.entrySet()) {
+			AtomicLong count = counts.putIfAbsent(entry.getKey(),
+					new AtomicLong(entry.getValue()));
+			if (count != null) {
+				count.addAndGet(entry.getValue());
+			}
+		}
+	}
+
+	private void ensureLoaded() {
+		if (byUser == null) {
+			synchronized (this) {
+				if (byUser == null) {
+					reconcile();
+				}
+			}
+		}
+	}
+
+	private static ConcurrentMap<String, AtomicLong> toCounts(
+			List<Object[]> rows) {
+		ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+		for (Object[] row : rows) {
+			if (row[0] != null) {
+				counts.put((String) row[0], new AtomicLong((Long) row[1]));
+			}
+		}
+		return counts;
+	}
+
+	private static boolean sameCounts(Map<String, AtomicLong> a,
+			Map<String, AtomicLong> b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (Map.Entry<String, AtomicLong> entry : a.entrySet()) {
+			AtomicLong other = b.get(entry.getKey());
+			if (other == null || other.get() != entry.getValue().get()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static long get(ConcurrentMap<String, AtomicLong> counts,
+			String key) {
+		AtomicLong count = key == null ? null : counts.get(key);
+		return count == null ? 0 : count.get();
+	}
+
+	private static void increment(ConcurrentMap<String, AtomicLong> counts,
+			String key) {
+		if (key == null) {
+			return;
+		}
+		AtomicLong count = counts.get(key);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = counts.putIfAbsent(key, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+	}
+}
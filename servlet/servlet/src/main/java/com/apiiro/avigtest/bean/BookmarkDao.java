@@ -1,13 +1,26 @@
 package com.apiiro.avigtest.bean;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
 import javax.persistence.Query;
+import javax.persistence.TemporalType;
 
 import com.apiiro.avigtest.model.Bookmark;
+import com.apiiro.avigtest.model.BookmarkRow;
+import com.apiiro.avigtest.model.BookmarkRow.TagRef;
 import com.apiiro.avigtest.model.Tag;
 import com.apiiro.avigtest.model.User;
 
@@ -21,13 +34,43 @@ import com.apiiro.avigtest.model.User;
 @RequestScoped
 public class BookmarkDao {
 
+	private static final int MAX_TAG_INSERT_ATTEMPTS = 3;
+
 	@DataRepository
 	@Inject
 	private EntityManager entityManager;
 
+	@Inject
+	private EntityManagerFactory entityManagerFactory;
+
+	@Inject
+	private TagIndex tagIndex;
+
+	@Inject
+	private BookmarkCounters bookmarkCounters;
+
+	@Inject
+	private BookmarkSearchIndex searchIndex;
+
+	@Inject
+	private UserIdCache userIdCache;
+
+	@Inject
+	private ChangeEventBus changeEventBus;
+
+	@Inject
+	private BookmarkArchive archive;
+
+	@Inject
+	private UserTimelines userTimelines;
+
 	/**
 	 * Attempts to login and locates the {@link User} instance for this logged
-	 * in user.
+	 * in user. The username is matched ignoring case.
+	 * <p/>
+	 * Users that have logged in before are found by id through the
+	 * {@link UserIdCache}, which is served from the second level cache, and
+	 * others with a query on the indexed username key.
 	 * 
 	 * @param username
 	 *            Username to login with
@@ -37,46 +80,97 @@ public class BookmarkDao {
 	 */
 	@SuppressWarnings("unchecked")
 	public User login(String username, String password) {
-		String ql = "select u from User u where upper(u.username) = upper(:username) and u.password = :password";
-		List<User> results = entityManager.createQuery(ql).setParameter(
-				"username", username).setParameter("password", password)
-				.getResultList();
-
-		return results.size() == 0 ? null : results.get(0);
+		String key = User.keyOf(username);
+		if (key == null || password == null) {
+			return null;
+		}
+		Long id = userIdCache.get(key);
+		if (id != null) {
+			User user = entityManager.find(User.class, id);
+			if (user != null && key.equals(user.getUsernameKey())) {
+				return password.equals(user.getPassword()) ? user : null;
+			}
+			// renamed or deleted since it was cached
+			userIdCache.remove(key);
+		}
+		List<User> results = entityManager.createNamedQuery("User.login")
+				.setParameter("usernameKey", key).setParameter("password",
+						password).getResultList();
+		if (results.size() == 0) {
+			return null;
+		}
+		User user = results.get(0);
+		userIdCache.put(user);
+		return user;
 	}
 
 	/**
 	 * Fetches the list of bookmarks to be displayed. The list can be filtered
-	 * by user or tag, and can be paginated with the first result and count
-	 * parameters.
+	 * by user or tag, and is paginated with a {@link PageCursor} so the
+	 * database seeks straight to the page on <code>(addedOn, id)</code> instead
+	 * of scanning and skipping all the earlier rows.
+	 * <p/>
+	 * The page is loaded in two steps, first the ids on the page are selected
+	 * and then the bookmarks are fetched along with their user and tags using
+	 * {@link #getBookmarksById(List)}, so rendering the page doesn't lazy load
+	 * each row's associations one at a time. Bookmarks moved to the
+	 * {@link BookmarkArchive} aren't entities any more and are only listed by
+	 * {@link #getBookmarkRows(String, PageCursor, Integer, String)}.
 	 * 
 	 * @param tag
 	 *            Tag to show or null
-	 * @param firstResult
-	 *            Index of the first result to show
+	 * @param cursor
+	 *            Position to read from or null for the first page
 	 * @param count
 	 *            Number of bookmarks to fetch
 	 * @param username
 	 *            Username of user to show or null
-	 * @return List of bookmarks
+	 * @return List of bookmarks, newest first
 	 */
-	@SuppressWarnings("unchecked")
-	public List<Bookmark> getBookmarks(String tag, Integer firstResult,
+	public List<Bookmark> getBookmarks(String tag, PageCursor cursor,
 			Integer count, String username) {
-		String ql = "select distinct b from Bookmark b join b.tags t where 1=1";
+		return getBookmarksById(getBookmarkIds(tag, cursor, count, username));
+	}
+
+	/**
+	 * Selects the ids of the bookmarks on a page of the listing. Takes the
+	 * same parameters as {@link #getBookmarks(String, PageCursor, Integer, String)}
+	 * 
+	 * @return List of bookmark ids, newest first
+	 */
+	public List<Long> getBookmarkIds(String tag, PageCursor cursor,
+			Integer count, String username) {
+		return getBookmarkIds(entityManager, tag, cursor, count, username);
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Long> getBookmarkIds(EntityManager em, String tag,
+			PageCursor cursor, Integer count, String username) {
 		boolean hasTag = (tag != null && tag.length() != 0);
 		boolean hasUser = (username != null && username.length() != 0);
-		if (hasTag) {
-			ql = ql + " and t.slug = :tag ";
-		}
+		boolean reverse = cursor != null && cursor.isBefore();
+		int max = pageSize(count);
 
-		if (hasUser) {
-			ql = ql + " and b.user.username = :username ";
+		if (hasUser && !hasTag) {
+			// a user's newest bookmarks are served from their timeline
+			List<Long> ids = userTimelines.getBookmarkIds(username, cursor, max);
+			if (ids != null) {
+				return ids;
+			}
 		}
 
-		// build query
-		ql = ql + " order by b.addedOn desc";
-		Query qry = entityManager.createQuery(ql);
+		// pick the named query for the filters, see Bookmark, reading
+		// backwards from the cursor for the newer rows
+		String name = "Bookmark.pageIds";
+		if (hasTag) {
+			name = name + (hasUser ? "ByTagAndUser" : "ByTag");
+		} else if (hasUser) {
+			name = name + "ByUser";
+		}
+		if (cursor != null) {
+			name = name + (reverse ? ".newer" : ".older");
+		}
+		Query qry = em.createNamedQuery(name);
 
 		if (hasTag) {
 			qry.setParameter("tag", tag);
@@ -85,16 +179,223 @@ public class BookmarkDao {
 		if (hasUser) {
 			qry.setParameter("username", username);
 		}
-		if (firstResult != null) {
-			qry.setFirstResult(firstResult.intValue());
+		if (cursor != null) {
+			qry.setParameter("addedOn", cursor.getAddedOn(),
+					TemporalType.TIMESTAMP);
+			qry.setParameter("id", cursor.getId());
+		}
+		qry.setMaxResults(max);
+		List<Object[]> rows = qry.getResultList();
+		List<Long> ids = new ArrayList<Long>(rows.size());
+		for (Object[] row : rows) {
+			ids.add((Long) row[0]);
+		}
+		if (reverse) {
+			Collections.reverse(ids);
+		}
+		return ids;
+	}
+
+	/**
+	 * @return Number of rows on a page of the listing
+	 */
+	private static int pageSize(Integer count) {
+		return count == null ? 10 : Math.max(count.intValue(), 5);
+	}
+
+	/**
+	 * Read only version of
+	 * {@link #getBookmarks(String, PageCursor, Integer, String)} for
+	 * rendering the listing. Takes the same parameters.
+	 * <p/>
+	 * The rows are built with constructor expressions in a short lived entity
+	 * manager, so no entities are loaded, snapshotted for dirty checking or
+	 * kept in the conversation's persistence context. A page reaching past
+	 * the newest bookmark in the {@link BookmarkArchive} has the archived
+	 * bookmarks merged into it.
+	 * 
+	 * @return List of bookmark rows, newest first
+	 */
+	public List<BookmarkRow> getBookmarkRows(String tag, PageCursor cursor,
+			Integer count, String username) {
+		EntityManager em = entityManagerFactory.createEntityManager();
+		List<BookmarkRow> rows;
+		try {
+			rows = getBookmarkRowsById(em, getBookmarkIds(em, tag, cursor,
+					count, username));
+		} finally {
+			em.close();
+		}
+		int max = pageSize(count);
+		boolean newer = cursor != null && cursor.isBefore();
+		// rows newer than the page's oldest row or than a newer page's
+		// cursor can't be archived, unless the table ran out of rows first
+		boolean reachesArchive;
+		if (newer) {
+			reachesArchive = archive.hasNewerThan(cursor.getAddedOn(), cursor
+					.getId());
+		} else if (rows.size() < max) {
+			reachesArchive = archive.size() > 0;
+		} else {
+			BookmarkRow oldest = rows.get(rows.size() - 1);
+			reachesArchive = archive.hasNewerThan(oldest.getAddedOn(), oldest
+					.getId());
+		}
+		if (reachesArchive) {
+			rows = BookmarkArchive.merge(rows, archive.getRows(
+					emptyToNull(tag), emptyToNull(username), cursor, max), max,
+					newer);
+		}
+		return rows;
+	}
+
+	private static String emptyToNull(String value) {
+		return value == null || value.length() == 0 ? null : value;
+	}
+
+	/**
+	 * Searches the bookmark title, description and URL for the words in the
+	 * query using the {@link BookmarkSearchIndex}. Words ending in
+	 * <code>*</code> match any word starting with them.
+	 * 
+	 * @param query
+	 *            Words to search for
+	 * @param count
+	 *            Maximum number of bookmarks to return
+	 * @return List of matching bookmark rows, best match first
+	 */
+	public List<BookmarkRow> search(String query, int count) {
+		return getBookmarkRowsById(searchIndex.search(query, count));
+	}
+
+	/**
+	 * @param ids
+	 *            Ids of the bookmarks
+	 * @return Rows for the bookmarks in the order of the ids, leaving out any
+	 *         that don't exist
+	 */
+	public List<BookmarkRow> getBookmarkRowsById(List<Long> ids) {
+		if (ids.isEmpty()) {
+			return new ArrayList<BookmarkRow>();
+		}
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			return getBookmarkRowsById(em, ids);
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * Builds the rows for the bookmarks with the given ids from the database,
+	 * and from the {@link BookmarkArchive} for any that aren't in it.
+	 */
+	private List<BookmarkRow> getBookmarkRowsById(EntityManager em,
+			List<Long> ids) {
+		List<BookmarkRow> rows = queryRows(em, ids);
+		if (rows.size() == ids.size()) {
+			return rows;
+		}
+		Map<Long, BookmarkRow> byId = new HashMap<Long, BookmarkRow>();
+		for (BookmarkRow row : rows) {
+			byId.put(row.getId(), row);
+		}
+		List<Long> missing = new ArrayList<Long>();
+		for (Long id : ids) {
+			if (!byId.containsKey(id)) {
+				missing.add(id);
+			}
+		}
+		byId.putAll(archive.getRowsById(missing));
+		List<BookmarkRow> results = new ArrayList<BookmarkRow>(ids.size());
+		for (Long id : ids) {
+			BookmarkRow row = byId.get(id);
+			if (row != null) {
+				results.add(row);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Builds the rows for the bookmarks with the given ids using one query for
+	 * the bookmarks and one for their tags.
+	 * 
+	 * @return Rows in the order of the ids, leaving out any that aren't in
+	 *         the database
+	 */
+	@SuppressWarnings("unchecked")
+	static List<BookmarkRow> queryRows(EntityManager em, List<Long> ids) {
+		if (ids.isEmpty()) {
+			return new ArrayList<BookmarkRow>();
+		}
+		List<BookmarkRow> fetched = em.createNamedQuery("Bookmark.rowsByIds")
+				.setParameter("ids", ids).getResultList();
+		List<Object[]> tagRows = em.createNamedQuery("Bookmark.tagRowsByIds")
+				.setParameter("ids", ids).getResultList();
+
+		Map<Long, List<TagRef>> tags = new HashMap<Long, List<TagRef>>();
+		for (Object[] row : tagRows) {
+			List<TagRef> list = tags.get(row[0]);
+			if (list == null) {
+				list = new ArrayList<TagRef>();
+				tags.put((Long) row[0], list);
+			}
+			list.add(new TagRef((String) row[1], (String) row[2]));
+		}
+		Map<Long, BookmarkRow> byId = new HashMap<Long, BookmarkRow>();
+		for (BookmarkRow row : fetched) {
+			byId.put(row.getId(), row);
+		}
+		List<BookmarkRow> results = new ArrayList<BookmarkRow>(ids.size());
+		for (Long id : ids) {
+			BookmarkRow row = byId.get(id);
+			if (row != null) {
+				List<TagRef> rowTags = tags.get(id);
+				results.add(rowTags == null ? row : row.withTags(rowTags));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Fetches the bookmarks with the given ids, together with their user and
+	 * tags, in a single query.
+	 * 
+	 * @param ids
+	 *            Ids of the bookmarks to fetch
+	 * @return List of bookmarks in the same order as the ids
+	 */
+	@SuppressWarnings("unchecked")
+	public List<Bookmark> getBookmarksById(List<Long> ids) {
+		if (ids.isEmpty()) {
+			return new ArrayList<Bookmark>();
+		}
+		List<Bookmark> fetched = entityManager
+				.createNamedQuery("Bookmark.fetchByIds")
+				.setParameter("ids", ids).getResultList();
+
+		Map<Long, Bookmark> byId = new HashMap<Long, Bookmark>();
+		for (Bookmark bookmark : fetched) {
+			byId.put(bookmark.getId(), bookmark);
+		}
+		List<Bookmark> results = new ArrayList<Bookmark>(ids.size());
+		for (Long id : ids) {
+			Bookmark bookmark = byId.get(id);
+			if (bookmark != null) {
+				results.add(bookmark);
+			}
 		}
-		qry.setMaxResults(count == null ? 10 : Math.max(count.intValue(), 5));
-		List<Bookmark> results = qry.getResultList();
 		return results;
 	}
 
 	/**
-	 * Saves an object to the entity manager inside a transaction
+	 * Saves an object to the entity manager inside a transaction. New
+	 * bookmarks invalidate the {@link ListingCache} and are added to the
+	 * {@link BookmarkCounters} and the user's {@link UserTimelines} entry
+	 * straight away, so the user sees their bookmark on the next page, and
+	 * are published on the {@link ChangeEventBus} for the other indexes,
+	 * which move the listing to a new version again once they have it.
 	 * 
 	 * @param object
 	 *            Object to save
@@ -103,10 +404,18 @@ public class BookmarkDao {
 		entityManager.getTransaction().begin();
 		entityManager.persist(object);
 		entityManager.getTransaction().commit();
+		if (object instanceof Bookmark) {
+			ListingCache.invalidate();
+			bookmarkCounters.bookmarkAdded((Bookmark) object);
+			userTimelines.bookmarkAdded((Bookmark) object);
+			changeEventBus.publish(new ChangeEvent(
+					ChangeEvent.Type.BOOKMARK_SAVED, object));
+		}
 	}
 
 	/**
-	 * Returns a user with a given Id
+	 * Returns a user with a given Id, from the second level cache once the
+	 * user has been loaded
 	 * 
 	 * @param userId
 	 *            Id of the user to return
@@ -118,10 +427,13 @@ public class BookmarkDao {
 	}
 
 	/**
-	 * Locates a {@link Tag} instance for a given tag name using a case
-	 * insensitive query. Optionally, a wildcard can be appended to the name so
-	 * you can perform a search for all Tag objects starting with the tagFilter
-	 * value.
+	 * Locates a {@link Tag} instance for a given tag name by comparing its
+	 * slug, so the match is case insensitive. Optionally, the name can be
+	 * treated as a prefix so you can perform a search for all Tag objects
+	 * starting with the tagFilter value.
+	 * <p/>
+	 * The match is made as a range of slugs rather than a <code>like</code> so
+	 * the database can use the unique index on the slug.
 	 * 
 	 * @param tagFilter
 	 *            name to search for
@@ -131,12 +443,10 @@ public class BookmarkDao {
 	 */
 	@SuppressWarnings("unchecked")
 	public List<Tag> findTagsMatching(String tagFilter, boolean includeWildcard) {
-		if (tagFilter == null) {
-			tagFilter = "";
-		}
-		tagFilter = tagFilter + (includeWildcard ? "%" : "");
-		String ql = "select t from Tag t where upper(t.name) like upper(:name) order by name";
-		return entityManager.createQuery(ql).setParameter("name", tagFilter)
+		String from = tagFilter == null ? "" : Tag.slugOf(tagFilter);
+		String to = from + (includeWildcard ? '\uffff' : '\u0000');
+		return entityManager.createNamedQuery("Tag.findBySlugRange")
+				.setParameter("from", from).setParameter("to", to)
 				.getResultList();
 	}
 
@@ -145,23 +455,127 @@ public class BookmarkDao {
 	 * found, creates and saves a new {@link Tag} and returns that instead.
 	 * 
 	 * @param tagName
-	 *            Name to look for
+	 *            Name to look for, which must not be blank
 	 * @return The {@link Tag} matching this name, or a new one set to this
 	 *         name.
 	 */
 	public Tag findOrCreateTag(String tagName) {
-		List<Tag> results = findTagsMatching(tagName, false);
-		Tag result = null;
+		if (tagName == null || tagName.trim().length() == 0) {
+			throw new IllegalArgumentException("Blank tag name");
+		}
+		return resolveTags(Collections.singleton(tagName)).get(0);
+	}
 
-		if (results.size() == 0) {
-			result = new Tag();
-			result.setName(tagName);
-			entityManager.getTransaction().begin();
-			entityManager.persist(result);
-			entityManager.getTransaction().commit();
-		} else {
-			result = results.get(0);
+	/**
+	 * Resolves a number of tag names to {@link Tag} instances, creating the
+	 * ones that don't exist yet. Existing tags are located by slug with a
+	 * single query and the missing ones are inserted together in one batch.
+	 * <p/>
+	 * The slug column is unique so if another user creates one of the same
+	 * tags at the same time, our insert fails and the tags they created are
+	 * looked up instead before trying again with whatever is still missing.
+	 * If some are still missing after a few attempts, the tags can't be
+	 * resolved and a {@link PersistenceException} naming them is thrown.
+	 * Created tags are added to the {@link TagIndex} and published on the
+	 * {@link ChangeEventBus}.
+	 * 
+	 * @param names
+	 *            Tag names to resolve, blank names are ignored
+	 * @return The tags in the order of the names, with one tag per slug
+	 */
+	public List<Tag> resolveTags(Collection<String> names) {
+		Map<String, String> wanted = new LinkedHashMap<String, String>();
+		for (String name : names) {
+			if (name != null && name.trim().length() != 0) {
+				String slug = Tag.slugOf(name);
+				if (!wanted.containsKey(slug)) {
+					wanted.put(slug, name.trim());
+				}
+			}
+		}
+
+		Map<String, Tag> found = findTagsBySlug(wanted.keySet());
+		for (int attempt = 0; attempt < MAX_TAG_INSERT_ATTEMPTS
+				&& found.size() < wanted.size(); attempt++) {
+			List<Tag> missing = new ArrayList<Tag>();
+			for (Map.Entry<String, String> entry : wanted.entrySet()) {
+				if (!found.containsKey(entry.getKey())) {
+					missing.add(new Tag(entry.getValue()));
+				}
+			}
+			try {
+				insertTags(missing);
+				for (Tag tag : missing) {
+					found.put(tag.getSlug(), tag);
+				}
+				tagIndex.addAll(missing);
+				for (Tag tag : missing) {
+					changeEventBus.publish(new ChangeEvent(
+							ChangeEvent.Type.TAG_CREATED, tag));
+				}
+			} catch (PersistenceException e) {
+				// if we lost a race with another insert, pick up what they
+				// created, otherwise it was a genuine failure
+				Set<String> slugs = new HashSet<String>();
+				for (Tag tag : missing) {
+					slugs.add(tag.getSlug());
+				}
+				Map<String, Tag> created = findTagsBySlug(slugs);
+				if (created.isEmpty()) {
+					throw e;
+				}
+				found.putAll(created);
+			}
+		}
+
+		List<Tag> results = new ArrayList<Tag>(wanted.size());
+		List<String> unresolved = new ArrayList<String>();
+		for (String slug : wanted.keySet()) {
+			Tag tag = found.get(slug);
+			if (tag == null) {
+				unresolved.add(slug);
+			} else {
+				results.add(tag);
+			}
+		}
+		if (!unresolved.isEmpty()) {
+			throw new PersistenceException("Couldn't resolve tags "
+					+ unresolved + " after " + MAX_TAG_INSERT_ATTEMPTS
+					+ " attempts");
+		}
+		return results;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Tag> findTagsBySlug(Collection<String> slugs) {
+		Map<String, Tag> results = new HashMap<String, Tag>();
+		if (!slugs.isEmpty()) {
+			List<Tag> tags = entityManager.createNamedQuery("Tag.findBySlugs")
+					.setParameter("slugs", slugs).getResultList();
+			for (Tag tag : tags) {
+				results.put(tag.getSlug(), tag);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Inserts the tags in their own short lived entity manager so a failed
+	 * insert doesn't leave the conversation's persistence context unusable.
+	 */
+	private void insertTags(List<Tag> tags) {
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			for (Tag tag : tags) {
+				em.persist(tag);
+			}
+			em.getTransaction().commit();
+		} finally {
+			if (em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
+			}
+			em.close();
 		}
-		return result;
 	}
 }
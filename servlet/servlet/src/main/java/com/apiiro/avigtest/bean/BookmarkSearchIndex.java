@@ -0,0 +1,590 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import com.apiiro.avigtest.model.Bookmark;
+import com.apiiro.avigtest.model.BookmarkRow;
+
+/**
+ * In memory inverted index over the bookmark title, description and URL used
+ * to search bookmarks without scanning the table with LIKE queries.
+ * <p/>
+ * Each bookmark is given a document number in the order it is indexed and
+ * every term maps to a posting list of the documents containing it, with a
+ * weight for how often and where the term appears (a title match counts for
+ * more than a description match). The term dictionary is sorted, so a prefix
+ * term such as <code>jav*</code> is the range of terms starting with
+ * <code>jav</code>.
+ * <p/>
+ * Searches match bookmarks containing all the terms and rank them by the sum
+ * of the term weights scaled by how rare each term is. The index is built
+ * from the database by the {@link BackgroundTasks} when the application
+ * starts and kept up to date from the {@link ChangeEvent}s of the bookmarks
+ * saved after that. Bookmarks saved while it loads are held until it has
+ * finished, and a search made before then waits for the load. If the bus
+ * drops events the index is built again. Each change moves the
+ * {@link ListingCache} to a new version once the index has it, so a search
+ * answered before then isn't validated by its old ETag.
+ *
+ */
+@ApplicationScoped
+public class BookmarkSearchIndex implements ChangeListener {
+
+	private static final int TITLE_WEIGHT = 3;
+	private static final int URL_WEIGHT = 2;
+	private static final int DESCRIPTION_WEIGHT = 1;
+
+	/**
+	 * Most terms a prefix is expanded to, the most common are used
+	 */
+	private static final int MAX_PREFIX_TERMS = 128;
+
+	/**
+	 * Prefix expansions with more postings than one in this many documents
+	 * are merged into a dense array rather than sorted
+	 */
+	private static final int DENSE_MERGE_RATIO = 16;
+
+	private static final int LOAD_PAGE_SIZE = 10000;
+
+	private static final Set<String> STOP_WORDS = new HashSet<String>(
+			Arrays.asList("http", "https", "www", "com", "org", "net", "html",
+					"htm", "the", "and", "of", "to", "a", "in", "is", "for"));
+
+	@Inject
+	private EntityManagerFactory entityManagerFactory;
+
+	@Inject
+	private BookmarkArchive archive;
+
+	@Inject
+	private BackgroundTasks backgroundTasks;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final TreeMap<String, Postings> terms = new TreeMap<String, Postings>();
+	private long[] bookmarkIds = new long[1024];
+	private int documents;
+	private volatile boolean loaded;
+
+	/**
+	 * Bookmarks saved before the load, added once it has finished
+	 */
+	private final List<Bookmark> pending = new ArrayList<Bookmark>();
+
+	/**
+	 * Ids of the bookmarks in the index, so a bookmark read by the load and
+	 * then given by its event, or archived while the index loaded, is only
+	 * indexed once. Ids come from a pooled sequence, so a bookmark saved
+	 * after the load can have a lower id than the ones it read, and only its
+	 * own id tells whether it has been indexed.
+	 */
+	private final Set<Long> indexedIds = new HashSet<Long>();
+
+	/**
+	 * Starts loading the index in the background
+	 */
+	@PostConstruct
+	public void startLoading() {
+		backgroundTasks.execute(new Runnable() {
+
+			public void run() {
+				ensureLoaded();
+			}
+		});
+	}
+
+	/**
+	 * Searches for bookmarks matching all of the terms in the query. Terms
+	 * ending in <code>*</code> match any word starting with the term.
+	 *
+	 * @param query
+	 *            Words to search for
+	 * @param max
+	 *            Maximum number of results to return
+	 * @return Ids of the matching bookmarks, best match first
+	 */
+	public List<Long> search(String query, int max) {
+		ensureLoaded();
+		lock.readLock().lock();
+		try {
+			List<Match> matches = new ArrayList<Match>();
+			for (String token : query.trim().split("\\s+")) {
+				boolean prefix = token.endsWith("*");
+				for (String term : tokenize(token)) {
+					Match match = prefix ? matchPrefix(term) : matchTerm(term);
+					if (match.size == 0) {
+						return Collections.emptyList();
+					}
+					matches.add(match);
+				}
+			}
+			if (matches.isEmpty()) {
+				return Collections.emptyList();
+			}
+			return topResults(matches, max);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a newly saved bookmark to the index
+	 *
+	 * @param bookmark
+	 *            Bookmark to add
+	 */
+	public void add(Bookmark bookmark) {
+		lock.writeLock().lock();
+		try {
+			if (!loaded) {
+				pending.add(bookmark);
+			} else {
+				index(bookmark.getId(), bookmark.getTitle(),
+						bookmark.getDescription(), bookmark.getUrl());
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds the saved bookmarks
+	 */
+	public void changed(List<ChangeEvent> events) {
+		boolean added = false;
+		for (ChangeEvent event : events) {
+			if (event.getType() == ChangeEvent.Type.BOOKMARK_SAVED) {
+				add((Bookmark) event.getEntity());
+				added = true;
+			}
+		}
+		if (added) {
+			ListingCache.invalidate();
+		}
+	}
+
+	/**
+	 * Builds the index again from the database, which has the bookmarks of
+	 * the dropped events. An index that hasn't loaded yet reads them when it
+	 * does.
+	 */
+	public void eventsDropped() {
+		lock.writeLock().lock();
+		try {
+			if (!loaded) {
+				return;
+			}
+			terms.clear();
+			indexedIds.clear();
+			documents = 0;
+			load();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		ListingCache.invalidate();
+	}
+
+	/**
+	 * @return Number of documents in the index
+	 */
+	public int size() {
+		ensureLoaded();
+		lock.readLock().lock();
+		try {
+			return documents;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Number of distinct terms in the index
+	 */
+	public int getTermCount() {
+		ensureLoaded();
+		lock.readLock().lock();
+		try {
+			return terms.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return True once the index has been built from the database
+	 */
+	boolean isLoaded() {
+		return loaded;
+	}
+
+	private void ensureLoaded() {
+		if (loaded) {
+			return;
+		}
+		lock.writeLock().lock();
+		try {
+			if (!loaded) {
+				load();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Builds the index from the database a page at a time and then from the
+	 * {@link BookmarkArchive}, and adds the bookmarks saved since that the
+	 * database didn't return. Must be called holding the write lock.
+	 */
+	@SuppressWarnings("unchecked")
+	private void load() {
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			long lastId = Long.MIN_VALUE;
+			List<Object[]> rows;
+			do {
+				rows = em
+						.createQuery(
+								"select b.id, b.title, b.description, b.url from Bookmark b where b.id > :lastId order by b.id")
+						.setParameter("lastId", lastId)
+						.setMaxResults(LOAD_PAGE_SIZE).getResultList();
+				for (Object[] row : rows) {
+					lastId = (Long) row[0];
+					index(lastId, (String) row[1], (String) row[2],
+							(String) row[3]);
+				}
+			} while (rows.size() == LOAD_PAGE_SIZE);
+			archive.forEach(new BookmarkArchive.RowVisitor() {
+
+				public void visit(BookmarkRow row) {
+					index(row.getId(), row.getTitle(), row.getDescription(),
+							row.getUrl());
+				}
+			});
+			for (Bookmark bookmark : pending) {
+				index(bookmark.getId(), bookmark.getTitle(),
+						bookmark.getDescription(), bookmark.getUrl());
+			}
+			pending.clear();
+			loaded = true;
+		} finally {
+			em.close();
+		}
+	}
+
+	private void index(long bookmarkId, String title, String description,
+			String url) {
+		if (!indexedIds.add(bookmarkId)) {
+			return;
+		}
+		Map<String, Integer> weights = new HashMap<String, Integer>();
+		addWeights(weights, title, TITLE_WEIGHT);
+		addWeights(weights, url, URL_WEIGHT);
+		addWeights(weights, description, DESCRIPTION_WEIGHT);
+
+		int doc = documents++;
+		if (doc == bookmarkIds.length) {
+			bookmarkIds = Arrays.copyOf(bookmarkIds, doc * 2);
+		}
+		bookmarkIds[doc] = bookmarkId;
+		for (Map.Entry<String, Integer> entry : weights.entrySet()) {
+			Postings postings = terms.get(entry.getKey());
+			if (postings == null) {
+				postings = new Postings();
+				terms.put(entry.getKey(), postings);
+			}
+			postings.add(doc, entry.getValue());
+		}
+	}
+
+	private static void addWeights(Map<String, Integer> weights, String text,
+			int weight) {
+		for (String term : tokenize(text)) {
+			Integer current = weights.get(term);
+			weights.put(term, current == null ? weight : current + weight);
+		}
+	}
+
+	/**
+	 * Splits text into lower case terms on anything that isn't a letter or
+	 * digit, dropping single characters and stop words.
+	 */
+	static List<String> tokenize(String text) {
+		List<String> tokens = new ArrayList<String>();
+		if (text == null) {
+			return tokens;
+		}
+		StringBuilder token = new StringBuilder();
+		for (int i = 0; i <= text.length(); i++) {
+			char c = i < text.length() ? text.charAt(i) : ' ';
+			if (Character.isLetterOrDigit(c)) {
+				token.append(Character.toLowerCase(c));
+			} else if (token.length() != 0) {
+				String term = token.toString();
+				if (term.length() > 1 && !STOP_WORDS.contains(term)) {
+					tokens.add(term);
+				}
+				token.setLength(0);
+			}
+		}
+		return tokens;
+	}
+
+	private Match matchTerm(String term) {
+		Postings postings = terms.get(term);
+		if (postings == null) {
+			return new Match(new int[0], 0, new float[0]);
+		}
+		return new Match(postings.docs, postings.size, postings.weights,
+				idf(postings.size));
+	}
+
+	/**
+	 * Merges the postings of the terms starting with the prefix into one
+	 * list, using the best scoring term for each document.
+	 */
+	private Match matchPrefix(String prefix) {
+		SortedMap<String, Postings> range = terms.subMap(prefix, prefix
+				+ Character.MAX_VALUE);
+		List<Postings> expansion = new ArrayList<Postings>(range.values());
+		if (expansion.size() > MAX_PREFIX_TERMS) {
+			Collections.sort(expansion, new Comparator<Postings>() {
+
+				public int compare(Postings a, Postings b) {
+					return b.size - a.size;
+				}
+			});
+			expansion = expansion.subList(0, MAX_PREFIX_TERMS);
+		}
+		int total = 0;
+		for (Postings postings : expansion) {
+			total += postings.size;
+		}
+		if (expansion.size() == 1) {
+			Postings postings = expansion.get(0);
+			return new Match(postings.docs, postings.size, postings.weights,
+					idf(postings.size));
+		}
+		return total > documents / DENSE_MERGE_RATIO ? mergeDense(expansion)
+				: mergeSorted(expansion, total);
+	}
+
+	/**
+	 * Merges large expansions by scoring into an array indexed by document
+	 */
+	private Match mergeDense(List<Postings> expansion) {
+		float[] accumulator = new float[documents];
+		int size = 0;
+		for (Postings postings : expansion) {
+			float idf = idf(postings.size);
+			for (int i = 0; i < postings.size; i++) {
+				int doc = postings.docs[i];
+				float score = postings.weights[i] * idf;
+				if (accumulator[doc] == 0) {
+					size++;
+					accumulator[doc] = score;
+				} else if (accumulator[doc] < score) {
+					accumulator[doc] = score;
+				}
+			}
+		}
+		int[] docs = new int[size];
+		float[] scores = new float[size];
+		int n = 0;
+		for (int doc = 0; doc < accumulator.length; doc++) {
+			if (accumulator[doc] != 0) {
+				docs[n] = doc;
+				scores[n++] = accumulator[doc];
+			}
+		}
+		return new Match(docs, size, scores);
+	}
+
+	/**
+	 * Merges small expansions by sorting the combined postings
+	 */
+	private Match mergeSorted(List<Postings> expansion, int total) {
+		// pack document and score into one long so a single sort groups them
+		long[] packed = new long[total];
+		int n = 0;
+		for (Postings postings : expansion) {
+			float idf = idf(postings.size);
+			for (int i = 0; i < postings.size; i++) {
+				packed[n++] = ((long) postings.docs[i] << 32)
+						| Float.floatToIntBits(postings.weights[i] * idf);
+			}
+		}
+		Arrays.sort(packed);
+		int[] docs = new int[total];
+		float[] scores = new float[total];
+		int size = 0;
+		for (long value : packed) {
+			int doc = (int) (value >>> 32);
+			float score = Float.intBitsToFloat((int) value);
+			if (size > 0 && docs[size - 1] == doc) {
+				scores[size - 1] = Math.max(scores[size - 1], score);
+			} else {
+				docs[size] = doc;
+				scores[size++] = score;
+			}
+		}
+		return new Match(docs, size, scores);
+	}
+
+	private float idf(int documentFrequency) {
+		return (float) Math.log(1.0 + (double) documents / documentFrequency);
+	}
+
+	/**
+	 * Intersects the matches, walking the shortest list and seeking forward in
+	 * the others, and keeps the best scoring results in a small heap.
+	 */
+	private List<Long> topResults(List<Match> matches, int max) {
+		Collections.sort(matches, new Comparator<Match>() {
+
+			public int compare(Match a, Match b) {
+				return a.size - b.size;
+			}
+		});
+		Match shortest = matches.get(0);
+		int[] positions = new int[matches.size()];
+		PriorityQueue<Result> best = new PriorityQueue<Result>();
+
+		candidates: for (int i = 0; i < shortest.size; i++) {
+			int doc = shortest.docs[i];
+			float score = shortest.score(i);
+			for (int m = 1; m < matches.size(); m++) {
+				Match match = matches.get(m);
+				int position = seek(match.docs, match.size, positions[m], doc);
+				positions[m] = position;
+				if (position == match.size) {
+					break candidates;
+				}
+				if (match.docs[position] != doc) {
+					continue candidates;
+				}
+				score += match.score(position);
+			}
+			if (best.size() < max) {
+				best.add(new Result(doc, score));
+			} else if (best.peek().score < score) {
+				best.poll();
+				best.add(new Result(doc, score));
+			}
+		}
+
+		List<Result> ranked = new ArrayList<Result>(best);
+		Collections.sort(ranked, Collections.reverseOrder());
+		List<Long> ids = new ArrayList<Long>(ranked.size());
+		for (Result result : ranked) {
+			ids.add(bookmarkIds[result.doc]);
+		}
+		return ids;
+	}
+
+	/**
+	 * @return the position of the first document not less than doc, searching
+	 *         forward from the start position with a galloping search
+	 */
+	private static int seek(int[] docs, int size, int start, int doc) {
+		int step = 1;
+		int high = start;
+		while (high < size && docs[high] < doc) {
+			start = high + 1;
+			high += step;
+			step <<= 1;
+		}
+		int index = Arrays.binarySearch(docs, start, Math.min(high + 1, size),
+				doc);
+		return index >= 0 ? index : -index - 1;
+	}
+
+	/**
+	 * Growable list of document numbers in ascending order with the weight of
+	 * the term in each
+	 */
+	private static final class Postings {
+
+		private int[] docs = new int[2];
+		private byte[] weights = new byte[2];
+		private int size;
+
+		void add(int doc, int weight) {
+			if (size == docs.length) {
+				docs = Arrays.copyOf(docs, size * 2);
+				weights = Arrays.copyOf(weights, size * 2);
+			}
+			docs[size] = doc;
+			weights[size++] = (byte) Math.min(weight, Byte.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Documents matching one query term with their scores, either merged
+	 * scores or the weights of a posting list scaled by the term's idf
+	 */
+	private static final class Match {
+
+		private final int[] docs;
+		private final int size;
+		private final float[] scores;
+		private final byte[] weights;
+		private final float idf;
+
+		Match(int[] docs, int size, float[] scores) {
+			this(docs, size, scores, null, 0);
+		}
+
+		Match(int[] docs, int size, byte[] weights, float idf) {
+			this(docs, size, null, weights, idf);
+		}
+
+		private Match(int[] docs, int size, float[] scores, byte[] weights,
+				float idf) {
+			this.docs = docs;
+			this.size = size;
+			this.scores = scores;
+			this.weights = weights;
+			this.idf = idf;
+		}
+
+		float score(int position) {
+			return scores != null ? scores[position] : weights[position] * idf;
+		}
+	}
+
+	private static final class Result implements Comparable<Result> {
+
+		private final int doc;
+		private final float score;
+
+		Result(int doc, float score) {
+			this.doc = doc;
+			this.score = score;
+		}
+
+		public int compareTo(Result o) {
+			return score != o.score ? Float.compare(score, o.score) : o.doc
+					- doc;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small thread safe cache that holds at most a fixed number of entries,
+ * discarding the least recently used entry when a new one is added to a full
+ * cache.
+ * <p/>
+ * Every access takes the cache's lock, so it suits small lookups that are
+ * cheap next to the work they save rather than very hot paths.
+ *
+ * @param <K>
+ *            Key type
+ * @param <V>
+ *            Value type
+ */
+public class BoundedLruCache<K, V> {
+
+	private final int capacity;
+	private final LinkedHashMap<K, V> entries;
+
+	public BoundedLruCache(final int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive, was "
+					+ capacity);
+		}
+		this.capacity = capacity;
+		// access ordered so the eldest entry is the least recently used
+		this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * @return The value for the key, or null if it isn't cached
+	 */
+	public synchronized V get(K key) {
+		return entries.get(key);
+	}
+
+	public synchronized void put(K key, V value) {
+		entries.put(key, value);
+	}
+
+	public synchronized void remove(K key) {
+		entries.remove(key);
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+}
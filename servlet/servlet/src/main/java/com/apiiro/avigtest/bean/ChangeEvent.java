@@ -0,0 +1,46 @@
+package com.apiiro.avigtest.bean;
+
+/**
+ * A write made by the {@link BookmarkDao}, published on the
+ * {@link ChangeEventBus} once it has been committed.
+ * <p/>
+ * The entity is the instance that was written, listeners must only read its
+ * already loaded state as the entity manager it belongs to may be in use or
+ * closed by the time the event is delivered.
+ *
+ */
+public final class ChangeEvent {
+
+	public enum Type {
+		/**
+		 * A {@link com.apiiro.avigtest.model.Bookmark} was saved
+		 */
+		BOOKMARK_SAVED,
+
+		/**
+		 * A {@link com.apiiro.avigtest.model.Tag} was created
+		 */
+		TAG_CREATED
+	}
+
+	private final Type type;
+	private final Object entity;
+
+	public ChangeEvent(Type type, Object entity) {
+		this.type = type;
+		this.entity = entity;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public Object getEntity() {
+		return entity;
+	}
+
+	@Override
+	public String toString() {
+		return type + " " + entity;
+	}
+}
@@ -0,0 +1,275 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Any;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+
+import com.apiiro.avigtest.Settings;
+
+/**
+ * Application wide publish/subscribe of the {@link ChangeEvent}s for the
+ * writes made by the {@link BookmarkDao}, so the in memory indexes can follow
+ * the database without the writes calling each of them.
+ * <p/>
+ * Events are put in a ring buffer of <code>events.capacity</code> slots
+ * shared by all the publishers. A publisher claims the next slot with a
+ * compare and set on the tail and never waits, if the ring is full because
+ * the listeners have fallen behind the event is dropped and counted. A single
+ * dispatcher thread takes the events from the ring in batches of up to
+ * <code>events.batchSize</code> and hands each batch to every
+ * {@link ChangeListener} in turn. When it sees the dropped count has moved
+ * it first tells every listener through
+ * {@link ChangeListener#eventsDropped()}, and they reload what they missed
+ * from the database.
+ *
+ */
+@ApplicationScoped
+public class ChangeEventBus {
+
+	private static final Logger log = Logger.getLogger(ChangeEventBus.class
+			.getName());
+
+	/**
+	 * Longest the dispatcher sleeps before checking the ring again, in case
+	 * a wake up was missed
+	 */
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	@Inject
+	@Any
+	private Instance<ChangeListener> beans;
+
+	private final List<ChangeListener> listeners = new CopyOnWriteArrayList<ChangeListener>();
+
+	private final AtomicReferenceArray<ChangeEvent> slots;
+	private final int mask;
+	private final int batchSize;
+
+	/**
+	 * Number of slots claimed by the publishers
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * Number of slots taken by the dispatcher, only it writes this
+	 */
+	private volatile long head;
+
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Dropped count the listeners were last told about, only the dispatcher
+	 * uses this
+	 */
+	private long droppedSeen;
+
+	private volatile Thread dispatcher;
+	private volatile boolean waiting;
+	private volatile boolean running;
+
+	public ChangeEventBus() {
+		this(Settings.getInt("events.capacity", 4096), Settings.getInt(
+				"events.batchSize", 256));
+	}
+
+	/**
+	 * @param capacity
+	 *            Number of events the ring holds, rounded up to a power of two
+	 * @param batchSize
+	 *            Most events handed to the listeners at once
+	 */
+	ChangeEventBus(int capacity, int batchSize) {
+		if (capacity < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("Capacity " + capacity
+					+ " and batch size " + batchSize + " must be positive");
+		}
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity) {
+			size <<= 1;
+		}
+		this.slots = new AtomicReferenceArray<ChangeEvent>(size);
+		this.mask = size - 1;
+		this.batchSize = batchSize;
+	}
+
+	/**
+	 * Subscribes the listener beans and starts the dispatcher
+	 */
+	@PostConstruct
+	public void subscribeBeans() {
+		for (ChangeListener listener : beans) {
+			subscribe(listener);
+		}
+		start();
+	}
+
+	/**
+	 * Adds a listener, which is given the events published from now on
+	 */
+	public void subscribe(ChangeListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Publishes an event without blocking
+	 *
+	 * @param event
+	 *            Event to publish
+	 * @return False if the ring was full and the event was dropped
+	 */
+	public boolean publish(ChangeEvent event) {
+		long slot;
+		do {
+			slot = tail.get();
+			if (slot - head >= slots.length()) {
+				dropped.incrementAndGet();
+				return false;
+			}
+		} while (!tail.compareAndSet(slot, slot + 1));
+		slots.set((int) (slot & mask), event);
+		published.incrementAndGet();
+		if (waiting) {
+			LockSupport.unpark(dispatcher);
+		}
+		return true;
+	}
+
+	/**
+	 * @return Number of events published
+	 */
+	public long getPublished() {
+		return published.get();
+	}
+
+	/**
+	 * @return Number of events dropped because the ring was full
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of events waiting to be dispatched
+	 */
+	public long getPending() {
+		return tail.get() - head;
+	}
+
+	synchronized void start() {
+		if (dispatcher != null) {
+			return;
+		}
+		running = true;
+		dispatcher = new Thread(new Runnable() {
+
+			public void run() {
+				dispatch();
+			}
+		}, "bookmarks-events");
+		dispatcher.setDaemon(true);
+		dispatcher.start();
+	}
+
+	/**
+	 * Stops the dispatcher once it has handed out the events already
+	 * published
+	 */
+	@PreDestroy
+	public void stop() {
+		Thread thread = dispatcher;
+		if (thread == null) {
+			return;
+		}
+		running = false;
+		LockSupport.unpark(thread);
+		try {
+			thread.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void dispatch() {
+		List<ChangeEvent> batch = new ArrayList<ChangeEvent>(batchSize);
+		while (true) {
+			long drops = dropped.get();
+			if (drops != droppedSeen) {
+				droppedSeen = drops;
+				reportDropped();
+			}
+			take(batch);
+			if (!batch.isEmpty()) {
+				deliver(batch);
+				batch.clear();
+			} else if (!running) {
+				return;
+			} else {
+				// publishers unpark us if they see we are waiting, and we
+				// look again after saying so in case one just missed it
+				waiting = true;
+				if (slots.get((int) (head & mask)) == null) {
+					LockSupport.parkNanos(this, IDLE_NANOS);
+				}
+				waiting = false;
+			}
+		}
+	}
+
+	/**
+	 * Moves up to a batch of published events out of the ring. A claimed
+	 * slot stays empty until its publisher has written it, so the batch stops
+	 * there to keep the events in order.
+	 */
+	private void take(List<ChangeEvent> batch) {
+		long position = head;
+		while (batch.size() < batchSize) {
+			int index = (int) (position & mask);
+			ChangeEvent event = slots.get(index);
+			if (event == null) {
+				break;
+			}
+			// emptied before the head moves on so the slot can't be
+			// claimed while it still holds this event
+			slots.set(index, null);
+			batch.add(event);
+			position++;
+		}
+		head = position;
+	}
+
+	private void reportDropped() {
+		for (ChangeListener listener : listeners) {
+			try {
+				listener.eventsDropped();
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "Change listener " + listener
+						+ " failed to catch up with dropped events", e);
+			}
+		}
+	}
+
+	private void deliver(List<ChangeEvent> batch) {
+		for (ChangeListener listener : listeners) {
+			try {
+				listener.changed(batch);
+			} catch (RuntimeException e) {
+				log.log(Level.WARNING, "Change listener " + listener
+						+ " failed on " + batch.size() + " events", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.List;
+
+/**
+ * Subscriber to the {@link ChangeEventBus}. Application scoped beans
+ * implementing this interface are subscribed when the bus starts.
+ *
+ */
+public interface ChangeListener {
+
+	/**
+	 * Called on the bus's dispatcher thread with the events published since
+	 * the last call, oldest first. A slow listener delays the events of the
+	 * other listeners, but never the writes publishing them.
+	 *
+	 * @param events
+	 *            Events to handle, which must not be kept after returning
+	 */
+	void changed(List<ChangeEvent> events);
+
+	/**
+	 * Called on the bus's dispatcher thread when events have been dropped
+	 * because the listeners fell behind, before the events published after
+	 * them. The listener can't follow the database from its events any more
+	 * and must read the changes it missed from the database.
+	 */
+	void eventsDropped();
+}
@@ -0,0 +1,332 @@
+package com.apiiro.avigtest.bean;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.NoResultException;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+import com.apiiro.avigtest.Settings;
+
+/**
+ * Counts clicks through to the bookmarked links. A popular link can be clicked
+ * thousands of times a second, so clicks are counted in memory, in a
+ * {@link LongAdder} per bookmark that spreads concurrent increments over
+ * several cells, and the counts are added to the bookmarks table in the
+ * background every <code>clicks.flushSeconds</code> as JDBC batches of
+ * <code>clicks.batchSize</code> updates. Each bookmark's row is then locked
+ * once per flush rather than once per click.
+ * <p/>
+ * Clicks not yet flushed are lost if the application stops abruptly, and are
+ * added to the counts read back from the database by
+ * {@link #getMostClicked(int)}.
+ * <p/>
+ * The {@link BookmarkArchive} doesn't keep click counts, so clicks on
+ * archived bookmarks aren't counted, and clicks counted before a bookmark
+ * was archived are dropped by the next flush rather than written to a row
+ * that is gone.
+ *
+ */
+@ApplicationScoped
+public class ClickCounters {
+
+	private static final Logger log = Logger.getLogger(ClickCounters.class
+			.getName());
+
+	private static final String ADD_CLICKS = "update BOOKMARKS set clicks = clicks + ? where id = ?";
+
+	@Inject
+	private EntityManagerFactory entityManagerFactory;
+
+	@Inject
+	private BookmarkArchive archive;
+
+	@Inject
+	private BackgroundTasks backgroundTasks;
+
+	private final int batchSize = Settings.getInt("clicks.batchSize", 500);
+
+	private final BoundedLruCache<Long, String> urls = new BoundedLruCache<Long, String>(
+			Settings.getInt("clicks.urlCacheSize", 10000));
+
+	private final ConcurrentMap<Long, LongAdder> pending = new ConcurrentHashMap<Long, LongAdder>();
+
+	/**
+	 * Counters taken out of {@link #pending} by the last flush, which a click
+	 * that looked its counter up before it was removed can still add to
+	 */
+	private Map<Long, LongAdder> retired = new HashMap<Long, LongAdder>();
+
+	@PostConstruct
+	public void scheduleFlush() {
+		long seconds = Settings.getLong("clicks.flushSeconds", 5);
+		backgroundTasks.scheduleWithFixedDelay("flush clicks", new Runnable() {
+
+			public void run() {
+				flush();
+			}
+		}, seconds, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Writes the last clicks when the application stops
+	 */
+	@PreDestroy
+	public void shutdown() {
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			log.log(Level.WARNING, "Unable to write the last clicks", e);
+		}
+	}
+
+	/**
+	 * Counts a click on a bookmark, unless it has been archived
+	 *
+	 * @return Whether the click was counted
+	 */
+	public boolean click(Long bookmarkId) {
+		if (archive.contains(bookmarkId)) {
+			return false;
+		}
+		counter(bookmarkId).increment();
+		return true;
+	}
+
+	/**
+	 * @return Number of clicks on the bookmark not yet written to the
+	 *         database
+	 */
+	public long getPending(Long bookmarkId) {
+		LongAdder counter = pending.get(bookmarkId);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	/**
+	 * @return URL of the bookmark, looked up in the {@link BookmarkArchive}
+	 *         if it has been archived, or null if there is no such bookmark
+	 */
+	public String getUrl(Long bookmarkId) {
+		String url = urls.get(bookmarkId);
+		if (url == null) {
+			EntityManager em = entityManagerFactory.createEntityManager();
+			try {
+				url = (String) em.createNamedQuery("Bookmark.url")
+						.setParameter("id", bookmarkId).getSingleResult();
+			} catch (NoResultException e) {
+				url = archive.getUrl(bookmarkId);
+				if (url == null) {
+					return null;
+				}
+			} finally {
+				em.close();
+			}
+			urls.put(bookmarkId, url);
+		}
+		return url;
+	}
+
+	/**
+	 * Adds the clicks counted since the last flush to the database in one
+	 * transaction. If it fails the clicks are counted again so the next flush
+	 * retries them.
+	 *
+	 * @return Number of bookmarks updated
+	 */
+	public synchronized int flush() {
+		final Map<Long, Long> deltas = takeDeltas();
+		for (Iterator<Long> ids = deltas.keySet().iterator(); ids.hasNext();) {
+			if (archive.contains(ids.next())) {
+				ids.remove();
+			}
+		}
+		if (deltas.isEmpty()) {
+			return 0;
+		}
+		EntityManager em = entityManagerFactory.createEntityManager();
+		EntityTransaction transaction = em.getTransaction();
+		try {
+			transaction.begin();
+			((Session) em.getDelegate()).doWork(new Work() {
+
+				public void execute(Connection connection) throws SQLException {
+					write(connection, deltas);
+				}
+			});
+			transaction.commit();
+			return deltas.size();
+		} catch (RuntimeException e) {
+			if (transaction.isActive()) {
+				transaction.rollback();
+			}
+			for (Map.Entry<Long, Long> delta : deltas.entrySet()) {
+				counter(delta.getKey()).add(delta.getValue());
+			}
+			throw e;
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * Ranks the bookmarks by their clicks in the database plus the clicks
+	 * still pending. A bookmark outside the database's top <code>count</code>
+	 * can only overtake one in it with pending clicks, so the candidates are
+	 * those and the bookmarks with pending clicks.
+	 *
+	 * @return Ids of the most clicked bookmarks mapped to their clicks, most
+	 *         clicked first
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Long, Long> getMostClicked(int count) {
+		Map<Long, Long> clicks = new HashMap<Long, Long>();
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			for (Object[] row : (List<Object[]>) em.createNamedQuery(
+					"Bookmark.mostClicked").setMaxResults(count)
+					.getResultList()) {
+				clicks.put((Long) row[0], (Long) row[1]);
+			}
+			List<Long> others = new ArrayList<Long>();
+			for (Long id : pending.keySet()) {
+				if (!clicks.containsKey(id)) {
+					others.add(id);
+				}
+			}
+			for (int i = 0; i < others.size(); i += batchSize) {
+				for (Object[] row : (List<Object[]>) em.createNamedQuery(
+						"Bookmark.clicksByIds").setParameter("ids",
+						others.subList(i, Math.min(others.size(), i + batchSize)))
+						.getResultList()) {
+					clicks.put((Long) row[0], (Long) row[1]);
+				}
+			}
+		} finally {
+			em.close();
+		}
+		for (Map.Entry<Long, Long> entry : clicks.entrySet()) {
+			entry.setValue(entry.getValue() + getPending(entry.getKey()));
+		}
+		return top(clicks, count);
+	}
+
+	/**
+	 * @return The <code>count</code> entries with the most clicks, ties going
+	 *         to the newer bookmark
+	 */
+	static Map<Long, Long> top(Map<Long, Long> clicks, int count) {
+		List<Map.Entry<Long, Long>> entries = new ArrayList<Map.Entry<Long, Long>>(
+				clicks.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<Long, Long>>() {
+
+			public int compare(Map.Entry<Long, Long> a, Map.Entry<Long, Long> b) {
+				int result = b.getValue().compareTo(a.getValue());
+				return result != 0 ? result : b.getKey().compareTo(a.getKey());
+			}
+		});
+		Map<Long, Long> top = new LinkedHashMap<Long, Long>();
+		for (Map.Entry<Long, Long> entry : entries.subList(0, Math.min(count,
+				entries.size()))) {
+			top.put(entry.getKey(), entry.getValue());
+		}
+		return top;
+	}
+
+	/**
+	 * Takes the clicks counted so far out of the counters, keyed by bookmark
+	 * id in id order so concurrent flushes would lock rows in the same order.
+	 * Counters with no clicks since the last flush are removed, and kept
+	 * aside until the next flush in case a click was being added to them.
+	 */
+	Map<Long, Long> takeDeltas() {
+		Map<Long, Long> deltas = new TreeMap<Long, Long>();
+		for (Map.Entry<Long, LongAdder> entry : retired.entrySet()) {
+			take(deltas, entry.getKey(), entry.getValue());
+		}
+		retired = new HashMap<Long, LongAdder>();
+		for (Map.Entry<Long, LongAdder> entry : pending.entrySet()) {
+			if (!take(deltas, entry.getKey(), entry.getValue())
+					&& pending.remove(entry.getKey(), entry.getValue())) {
+				retired.put(entry.getKey(), entry.getValue());
+			}
+		}
+		return deltas;
+	}
+
+	/**
+	 * Moves a counter's clicks into the deltas. The counter is reduced by what
+	 * was read rather than reset, so clicks added meanwhile are kept.
+	 *
+	 * @return Whether the counter had any clicks
+	 */
+	private static boolean take(Map<Long, Long> deltas, Long id,
+			LongAdder counter) {
+		long clicks = counter.sum();
+		if (clicks == 0) {
+			return false;
+		}
+		counter.add(-clicks);
+		Long delta = deltas.get(id);
+		deltas.put(id, delta == null ? clicks : delta + clicks);
+		return true;
+	}
+
+	private void write(Connection connection, Map<Long, Long> deltas)
+			throws SQLException {
+		PreparedStatement update = connection.prepareStatement(ADD_CLICKS);
+		try {
+			int batched = 0;
+			for (Map.Entry<Long, Long> delta : deltas.entrySet()) {
+				update.setLong(1, delta.getValue());
+				update.setLong(2, delta.getKey());
+				update.addBatch();
+				if (++batched == batchSize) {
+					update.executeBatch();
+					batched = 0;
+				}
+			}
+			if (batched > 0) {
+				update.executeBatch();
+			}
+		} finally {
+			update.close();
+		}
+	}
+
+	private LongAdder counter(Long bookmarkId) {
+		LongAdder counter = pending.get(bookmarkId);
+		if (counter == null) {
+			LongAdder created = new LongAdder();
+			counter = pending.putIfAbsent(bookmarkId, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		return counter;
+	}
+}
@@ -0,0 +1,87 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+
+/**
+ * Application wide counts of the conversations tracked by the
+ * {@link ConversationRegistry} of each session, shown on the stats page.
+ *
+ */
+@ApplicationScoped
+public class ConversationMetrics {
+
+	private final AtomicInteger live = new AtomicInteger();
+	private final AtomicLong retainedBytes = new AtomicLong();
+	private final AtomicLong started = new AtomicLong();
+	private final AtomicLong ended = new AtomicLong();
+	private final AtomicLong evictedIdle = new AtomicLong();
+	private final AtomicLong evictedOverCap = new AtomicLong();
+
+	void started() {
+		started.incrementAndGet();
+		live.incrementAndGet();
+	}
+
+	void ended(long bytes) {
+		ended.incrementAndGet();
+		remove(bytes);
+	}
+
+	void evicted(long bytes, boolean idle) {
+		(idle ? evictedIdle : evictedOverCap).incrementAndGet();
+		remove(bytes);
+	}
+
+	void resized(long delta) {
+		retainedBytes.addAndGet(delta);
+	}
+
+	private void remove(long bytes) {
+		live.decrementAndGet();
+		retainedBytes.addAndGet(-bytes);
+	}
+
+	/**
+	 * @return Number of conversations currently tracked
+	 */
+	public int getLive() {
+		return live.get();
+	}
+
+	/**
+	 * @return Estimated bytes held by the live conversations, as of their
+	 *         last request
+	 */
+	public long getRetainedBytes() {
+		return retainedBytes.get();
+	}
+
+	public long getStarted() {
+		return started.get();
+	}
+
+	/**
+	 * @return Number of conversations that were finished or whose session
+	 *         ended
+	 */
+	public long getEnded() {
+		return ended.get();
+	}
+
+	/**
+	 * @return Number of conversations evicted for being idle too long
+	 */
+	public long getEvictedIdle() {
+		return evictedIdle.get();
+	}
+
+	/**
+	 * @return Number of conversations evicted to keep a session under its cap
+	 */
+	public long getEvictedOverCap() {
+		return evictedOverCap.get();
+	}
+}
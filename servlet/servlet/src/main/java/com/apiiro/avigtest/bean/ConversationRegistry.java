@@ -0,0 +1,245 @@
+package com.apiiro.avigtest.bean;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PreDestroy;
+import javax.enterprise.context.SessionScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+
+import org.hibernate.Session;
+
+import com.apiiro.avigtest.Settings;
+
+/**
+ * Keeps track of the long running conversations of a session, so the state
+ * and open persistence contexts of abandoned conversations don't stay in the
+ * session until it expires.
+ * <p/>
+ * Conversation scoped beans implementing {@link ConversationState} touch
+ * their conversation on each request, and the entity managers of long running
+ * conversations are registered as they are produced. A conversation that hasn't
+ * been touched for <code>conversations.idleMinutes</code> is evicted the next
+ * time the session makes a request, and when a session goes over
+ * <code>conversations.maxPerSession</code> conversations its least recently
+ * used one is evicted. Eviction closes the conversation's entity managers and
+ * releases the bean's state, the conversation itself stays with CDI until the
+ * bean sees it was released and ends it.
+ * <p/>
+ * Entity managers can't be serialized, so nothing is tracked for a session
+ * that has been passivated.
+ *
+ */
+@SessionScoped
+public class ConversationRegistry implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Rough size of an entity and its snapshot in a persistence context
+	 */
+	static final long ENTITY_BYTES = 1024;
+
+	private final long idleMillis;
+	private final int maxPerSession;
+
+	/**
+	 * Conversations by id, least recently used first
+	 */
+	private transient Map<String, Entry> entries;
+
+	@Inject
+	private ConversationMetrics metrics;
+
+	public ConversationRegistry() {
+		this(Settings.getInt("conversations.idleMinutes", 10) * 60000L,
+				Settings.getInt("conversations.maxPerSession", 5));
+	}
+
+	ConversationRegistry(long idleMillis, int maxPerSession) {
+		if (maxPerSession < 1) {
+			throw new IllegalArgumentException(
+					"Conversations per session must be positive, was "
+							+ maxPerSession);
+		}
+		this.idleMillis = idleMillis;
+		this.maxPerSession = maxPerSession;
+	}
+
+	/**
+	 * @return Milliseconds a conversation may be idle before it is evicted
+	 */
+	public long getIdleMillis() {
+		return idleMillis;
+	}
+
+	/**
+	 * Records a request to a conversation, starting to track it if it is new,
+	 * and evicts any conversations that have been idle too long or that take
+	 * the session over its cap
+	 *
+	 * @param id
+	 *            Id of a long running conversation
+	 * @param state
+	 *            Bean holding the conversation's state
+	 */
+	public void touch(String id, ConversationState state) {
+		touch(id, state, System.currentTimeMillis());
+	}
+
+	synchronized void touch(String id, ConversationState state, long now) {
+		evictIdle(id, now);
+		Entry entry = entry(id);
+		entry.state = state;
+		entry.lastAccess = now;
+		long bytes = entry.estimate();
+		metrics.resized(bytes - entry.bytes);
+		entry.bytes = bytes;
+		evictOverCap();
+	}
+
+	/**
+	 * Stops tracking a conversation that has ended, its entity managers are
+	 * closed by CDI
+	 */
+	public synchronized void ended(String id) {
+		Entry entry = entries().remove(id);
+		if (entry != null) {
+			metrics.ended(entry.bytes);
+		}
+	}
+
+	/**
+	 * Registers an entity manager produced for a long running conversation
+	 */
+	public synchronized void entityManagerCreated(String id,
+			EntityManager entityManager) {
+		Entry entry = entry(id);
+		entry.entityManagers.add(entityManager);
+		entry.lastAccess = System.currentTimeMillis();
+	}
+
+	/**
+	 * Forgets an entity manager that CDI has disposed of
+	 */
+	public synchronized void entityManagerClosed(EntityManager entityManager) {
+		for (Entry entry : entries().values()) {
+			entry.entityManagers.remove(entityManager);
+		}
+	}
+
+	/**
+	 * @return Number of conversations tracked for the session
+	 */
+	public synchronized int size() {
+		return entries().size();
+	}
+
+	@PreDestroy
+	public synchronized void destroy() {
+		for (Entry entry : entries().values()) {
+			entry.close();
+			metrics.ended(entry.bytes);
+		}
+		entries().clear();
+	}
+
+	private void evictIdle(String current, long now) {
+		Iterator<Map.Entry<String, Entry>> i = entries().entrySet().iterator();
+		while (i.hasNext()) {
+			Map.Entry<String, Entry> next = i.next();
+			Entry entry = next.getValue();
+			if (!next.getKey().equals(current)
+					&& now - entry.lastAccess > idleMillis) {
+				i.remove();
+				evict(entry, true);
+			}
+		}
+	}
+
+	private void evictOverCap() {
+		Iterator<Entry> i = entries().values().iterator();
+		while (entries().size() > maxPerSession) {
+			Entry entry = i.next();
+			i.remove();
+			evict(entry, false);
+		}
+	}
+
+	private void evict(Entry entry, boolean idle) {
+		entry.close();
+		if (entry.state != null) {
+			entry.state.release();
+		}
+		metrics.evicted(entry.bytes, idle);
+	}
+
+	private Map<String, Entry> entries() {
+		if (entries == null) {
+			// access ordered so the first entry is the least recently used
+			entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+		}
+		return entries;
+	}
+
+	/**
+	 * @return The conversation's entry, which is started if it isn't tracked
+	 */
+	private Entry entry(String id) {
+		Entry entry = entries().get(id);
+		if (entry == null) {
+			entry = new Entry();
+			entries().put(id, entry);
+			metrics.started();
+		}
+		return entry;
+	}
+
+	/**
+	 * @return Rough number of bytes of entities in the persistence context
+	 */
+	static long estimate(EntityManager entityManager) {
+		if (!entityManager.isOpen()) {
+			return 0;
+		}
+		Object delegate = entityManager.getDelegate();
+		if (delegate instanceof Session) {
+			return ((Session) delegate).getStatistics().getEntityCount()
+					* ENTITY_BYTES;
+		}
+		return 0;
+	}
+
+	/**
+	 * A tracked conversation
+	 */
+	private static class Entry {
+
+		ConversationState state;
+		long lastAccess;
+		long bytes;
+		final List<EntityManager> entityManagers = new ArrayList<EntityManager>();
+
+		long estimate() {
+			long total = state == null ? 0 : state.getRetainedBytes();
+			for (EntityManager entityManager : entityManagers) {
+				total += ConversationRegistry.estimate(entityManager);
+			}
+			return total;
+		}
+
+		void close() {
+			for (EntityManager entityManager : entityManagers) {
+				if (entityManager.isOpen()) {
+					entityManager.close();
+				}
+			}
+			entityManagers.clear();
+		}
+	}
+}
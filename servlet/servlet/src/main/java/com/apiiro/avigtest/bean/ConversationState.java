@@ -0,0 +1,22 @@
+package com.apiiro.avigtest.bean;
+
+/**
+ * State held by a conversation scoped bean that the
+ * {@link ConversationRegistry} can measure and let go of when the
+ * conversation is evicted.
+ *
+ */
+public interface ConversationState {
+
+	/**
+	 * @return Rough number of bytes of state the bean is holding
+	 */
+	long getRetainedBytes();
+
+	/**
+	 * Drops the bean's state, called when the conversation is evicted. The
+	 * conversation's entity managers have been closed by then, so the bean
+	 * must not use them again.
+	 */
+	void release();
+}
@@ -20,8 +20,8 @@ import com.apiiro.avigtest.model.User;
 /**
  * 
  * Simple class that is used to generate the test data for the application. It
- * provides the bookmark count and if it is zero, it generates the data and
- * re-calculates the count.
+ * provides the bookmark count from the {@link BookmarkCounters} and if it is
+ * zero, it generates the data and re-calculates the count.
  * 
  * @author Andy Gibson
  * 
@@ -33,18 +33,39 @@ public class DataFactory {
 	@DataRepository
 	@Inject
 	private EntityManager entityManager;
+
+	@Inject
+	private TagIndex tagIndex;
+
+	@Inject
+	private BookmarkCounters bookmarkCounters;
 	private List<User> users = new ArrayList<User>();
 	private List<Tag> tags = new ArrayList<Tag>();
-	private static Random random = new Random();
+	private final Random random;
 
 	private Long count;
 
+	public DataFactory() {
+		this(new Random());
+	}
+
+	/**
+	 * @param random
+	 *            Picks the users, tags and dates of the bookmarks, seeded by
+	 *            the tests so they always see the same data
+	 */
+	DataFactory(Random random) {
+		this.random = random;
+	}
+
 	public void createData() {
 		createUsers();
 		createTags();
 		entityManager.getTransaction().begin();
 		createBookmarks();
 		entityManager.getTransaction().commit();
+		tagIndex.addAll(tags);
+		ListingCache.invalidate();
 	}
 
 	private void createTags() {
@@ -99,8 +120,7 @@ public class DataFactory {
 
 	@SuppressWarnings("unchecked")
 	public List<User> getAvailableUsers() {
-		return entityManager.createQuery("select u from User u")
-				.getResultList();
+		return entityManager.createNamedQuery("User.findAll").getResultList();
 	}
 
 	private void addBookmark(String url, String title, String description) {
@@ -116,10 +136,7 @@ public class DataFactory {
 		b.setDescription(description);
 		int count = 2 + random.nextInt(4);
 		for (int i = 0; i < count; i++) {
-			Tag tag = tags.get(random.nextInt(tags.size()));
-			if (!b.getTags().contains(tag)) {
-				b.getTags().add(tag);
-			}
+			b.getTags().add(tags.get(random.nextInt(tags.size())));
 		}
 		if (today) {
 			b.setAddedOn(new Date());
@@ -178,12 +195,11 @@ public class DataFactory {
 	@Named("bookmarkCount")
 	public Long getBookmarkCount() {
 		if (count == null) {
-			count = (Long) entityManager.createQuery(
-					"select count(b) from Bookmark b").getSingleResult();
+			count = bookmarkCounters.getTotal();
 			if (count.intValue() == 0) {
 				createData();
-				count = (Long) entityManager.createQuery(
-						"select count(b) from Bookmark b").getSingleResult();
+				bookmarkCounters.reconcile();
+				count = bookmarkCounters.getTotal();
 			}
 		}
 		return count;
@@ -1,34 +1,208 @@
 package com.apiiro.avigtest.bean;
 
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.enterprise.context.ContextNotActiveException;
+import javax.enterprise.context.Conversation;
 import javax.enterprise.context.ConversationScoped;
+import javax.enterprise.inject.Disposes;
 import javax.enterprise.inject.Produces;
 import javax.inject.Singleton;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+import javax.persistence.metamodel.EntityType;
+
+import com.apiiro.avigtest.Settings;
 
 /**
  * This bean is used to hold the entity manager factory and to produce the
  * conversation scoped entity manager for injection
+ * <p/>
+ * The factory is built once when the application starts by the
+ * {@link com.apiiro.avigtest.PersistenceBootstrapListener}, which also closes
+ * it and its connection pool when the application stops. Connections come
+ * from a c3p0 pool configured in persistence.xml, and the <code>pool.*</code>
+ * settings in bookmarks.properties override the pool size and timeouts.
+ * <p/>
+ * By default the unit runs against an in memory database that hibernate
+ * creates. With <code>db.profile=file</code> it uses the database at
+ * <code>db.url</code> instead, which the {@link SchemaMigrator} brings up to
+ * date before hibernate validates the mappings against it.
  */
 @Singleton
 public class DataRepositoryProducer {
 
-	private static EntityManagerFactory factory;
+	private static final Logger log = Logger
+			.getLogger(DataRepositoryProducer.class.getName());
 
-	@Produces
-	public EntityManagerFactory getEntityManagerFactory() {
+	private static final String PERSISTENCE_UNIT = "pu";
+
+	/**
+	 * Application settings and the persistence unit properties they override
+	 */
+	private static final String[][] POOL_SETTINGS = {
+			{ "pool.minSize", "hibernate.c3p0.min_size" },
+			{ "pool.maxSize", "hibernate.c3p0.max_size" },
+			{ "pool.checkoutTimeoutMillis", "hibernate.c3p0.checkoutTimeout" },
+			{ "pool.idleTimeoutSeconds", "hibernate.c3p0.timeout" },
+			{ "pool.idleTestSeconds", "hibernate.c3p0.idle_test_period" } };
+
+	private static final String FILE_PROFILE = "file";
+
+	private static final String DEFAULT_DB_URL = "jdbc:hsqldb:file:data/bookmarks;shutdown=true";
+
+	private static volatile EntityManagerFactory factory;
+
+	/**
+	 * Builds the entity manager factory if it hasn't been already and checks
+	 * that every entity can be read from the database, so a mapping that
+	 * doesn't match the schema or a database that can't be reached fails the
+	 * application at startup rather than on the first request.
+	 *
+	 * @return The application's entity manager factory
+	 */
+	public static synchronized EntityManagerFactory start() {
 		if (factory == null) {
-			factory = Persistence.createEntityManagerFactory("pu");
+			long started = System.currentTimeMillis();
+			EntityManagerFactory created = createEntityManagerFactory();
+			try {
+				validate(created);
+			} catch (RuntimeException e) {
+				created.close();
+				throw e;
+			}
+			factory = created;
+			log.info("Persistence unit " + PERSISTENCE_UNIT + " started in "
+					+ (System.currentTimeMillis() - started) + "ms");
 		}
 		return factory;
 	}
 
+	/**
+	 * Closes the entity manager factory and its connection pool
+	 */
+	public static synchronized void stop() {
+		if (factory != null) {
+			factory.close();
+			factory = null;
+		}
+	}
+
+	/**
+	 * @return Whether the database outlives the application, which is only the
+	 *         case with <code>db.profile=file</code>. The default in memory
+	 *         database is created when the entity manager factory starts and
+	 *         dropped when it closes.
+	 */
+	public static boolean isPersistent() {
+		return FILE_PROFILE.equals(Settings.getString("db.profile", null));
+	}
+
+	/**
+	 * Creates a new entity manager factory for the persistence unit with the
+	 * pool settings applied. Used by the offline tools that run outside the
+	 * application.
+	 *
+	 * @return A new entity manager factory, which the caller must close
+	 */
+	public static EntityManagerFactory createEntityManagerFactory() {
+		Map<String, String> properties = new HashMap<String, String>();
+		for (String[] setting : POOL_SETTINGS) {
+			String value = Settings.getString(setting[0], null);
+			if (value != null) {
+				properties.put(setting[1], value);
+			}
+		}
+		if (isPersistent()) {
+			applyFileProfile(properties);
+		}
+		return Persistence.createEntityManagerFactory(PERSISTENCE_UNIT,
+				properties);
+	}
+
+	/**
+	 * Migrates the file database and points the unit at it, with hibernate
+	 * checking the schema instead of creating it
+	 */
+	private static void applyFileProfile(Map<String, String> properties) {
+		String driver = Settings.getString("db.driver", "org.hsqldb.jdbcDriver");
+		String url = Settings.getString("db.url", DEFAULT_DB_URL);
+		String username = Settings.getString("db.username", "sa");
+		String password = Settings.getString("db.password", "");
+		try {
+			new SchemaMigrator(driver, url, username, password).migrate();
+		} catch (SQLException e) {
+			throw new PersistenceException("Unable to migrate the schema of "
+					+ url, e);
+		}
+		properties.put("hibernate.connection.driver_class", driver);
+		properties.put("hibernate.connection.url", url);
+		properties.put("hibernate.connection.username", username);
+		properties.put("hibernate.connection.password", password);
+		properties.put("hibernate.hbm2ddl.auto", "validate");
+	}
+
+	/**
+	 * Reads a row of each entity, which fills the connection pool and
+	 * compiles the mappings' SQL as well as checking them against the schema
+	 */
+	private static void validate(EntityManagerFactory factory) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			for (EntityType<?> type : factory.getMetamodel().getEntities()) {
+				em.createQuery("select e from " + type.getName() + " e")
+						.setMaxResults(1).getResultList();
+			}
+		} finally {
+			em.close();
+		}
+	}
+
+	@Produces
+	public EntityManagerFactory getEntityManagerFactory() {
+		EntityManagerFactory result = factory;
+		return result != null ? result : start();
+	}
+
+	/**
+	 * Produces the conversation's entity manager. The entity manager of a long
+	 * running conversation is registered with the {@link ConversationRegistry}
+	 * so it is closed if the conversation is evicted.
+	 */
 	@Produces
 	@DataRepository
 	@ConversationScoped
-	public EntityManager produceEntityManager() {
-		return getEntityManagerFactory().createEntityManager();
+	public EntityManager produceEntityManager(Conversation conversation,
+			ConversationRegistry conversations) {
+		EntityManager entityManager = getEntityManagerFactory()
+				.createEntityManager();
+		if (!conversation.isTransient()) {
+			conversations.entityManagerCreated(conversation.getId(),
+					entityManager);
+		}
+		return entityManager;
+	}
+
+	/**
+	 * Closes the entity manager when its conversation ends, unless it was
+	 * closed when the conversation was evicted
+	 */
+	public void disposeEntityManager(
+			@Disposes @DataRepository EntityManager entityManager,
+			ConversationRegistry conversations) {
+		try {
+			conversations.entityManagerClosed(entityManager);
+		} catch (ContextNotActiveException e) {
+			// the session is being destroyed along with its registry
+		}
+		if (entityManager.isOpen()) {
+			entityManager.close();
+		}
 	}
 
 }
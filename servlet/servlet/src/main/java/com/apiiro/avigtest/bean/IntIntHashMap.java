@@ -0,0 +1,133 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.Arrays;
+
+/**
+ * Map of int keys to int values held in two arrays, for counts over dense
+ * numbers where boxed maps would cost an Integer for every key and value and
+ * an entry object for every mapping.
+ * <p/>
+ * Keys are found by open addressing with linear probing. Mappings can't be
+ * removed, which suits counts that only go up. Missing keys read as 0. Not
+ * thread safe.
+ *
+ */
+public class IntIntHashMap {
+
+	/**
+	 * Marks an empty slot, so it can't be used as a key
+	 */
+	static final int FREE = Integer.MIN_VALUE;
+
+	private int[] keys;
+	private int[] values;
+	private int size;
+	private int mask;
+
+	public IntIntHashMap() {
+		this(8);
+	}
+
+	/**
+	 * @param expected
+	 *            Number of mappings to make room for
+	 */
+	public IntIntHashMap(int expected) {
+		allocate(Integer.highestOneBit(Math.max(4, expected) * 2 - 1) * 2);
+	}
+
+	/**
+	 * @return The value for the key, 0 if it isn't mapped
+	 */
+	public int get(int key) {
+		int slot = slot(key);
+		return keys[slot] == FREE ? 0 : values[slot];
+	}
+
+	public boolean containsKey(int key) {
+		return keys[slot(key)] != FREE;
+	}
+
+	/**
+	 * Adds to the value for the key, mapping it first if it isn't mapped
+	 *
+	 * @return The new value
+	 */
+	public int addTo(int key, int delta) {
+		if (key == FREE) {
+			throw new IllegalArgumentException("Key can't be " + FREE);
+		}
+		int slot = slot(key);
+		if (keys[slot] == FREE) {
+			keys[slot] = key;
+			values[slot] = delta;
+			if (++size > keys.length / 2) {
+				grow();
+			}
+			return delta;
+		}
+		return values[slot] += delta;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Calls the visitor with every mapping, in no particular order
+	 */
+	public void forEach(Visitor visitor) {
+		for (int slot = 0; slot < keys.length; slot++) {
+			if (keys[slot] != FREE) {
+				visitor.visit(keys[slot], values[slot]);
+			}
+		}
+	}
+
+	/**
+	 * @return The slot holding the key, or the empty slot it would go in
+	 */
+	private int slot(int key) {
+		int slot = mix(key) & mask;
+		while (keys[slot] != FREE && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	/**
+	 * Spreads sequential keys over the table
+	 */
+	private static int mix(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(keys.length * 2);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != FREE) {
+				int slot = slot(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		Arrays.fill(keys, FREE);
+		values = new int[capacity];
+		mask = capacity - 1;
+	}
+
+	/**
+	 * Receives the mappings of a map
+	 */
+	public interface Visitor {
+
+		void visit(int key, int value);
+	}
+}
@@ -0,0 +1,91 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManagerFactory;
+
+import com.apiiro.avigtest.Settings;
+import com.apiiro.avigtest.bulk.Checkpoint;
+import com.apiiro.avigtest.bulk.LinkChecker;
+
+/**
+ * Runs the {@link LinkChecker} on the {@link BackgroundTasks} every
+ * <code>links.runHours</code> against the application's own database, so
+ * the checks see the bookmarks the application serves whichever database
+ * profile it uses.
+ * <p/>
+ * A run saves how far it has got in a {@link Checkpoint}, so a run stopped
+ * by a shutdown carries on from there when the application next starts with
+ * the same persistent database, and otherwise starts over.
+ * <p/>
+ * Application scoped beans are only created when first used, so the checks
+ * are started and stopped with the application by the
+ * {@link com.apiiro.avigtest.BackgroundJobsListener}.
+ *
+ */
+@ApplicationScoped
+public class LinkChecks {
+
+	private static final Logger log = Logger.getLogger(LinkChecks.class
+			.getName());
+
+	@Inject
+	private EntityManagerFactory entityManagerFactory;
+
+	@Inject
+	private BackgroundTasks backgroundTasks;
+
+	private final long runHours = Settings.getLong("links.runHours", 24);
+
+	private ScheduledFuture<?> checks;
+
+	/**
+	 * Schedules the checks, unless they are already scheduled or turned off
+	 */
+	public synchronized void start() {
+		if (runHours <= 0 || checks != null) {
+			return;
+		}
+		checks = backgroundTasks.scheduleWithFixedDelay("check links",
+				new Runnable() {
+
+					public void run() {
+						checkLinks();
+					}
+				}, runHours, TimeUnit.HOURS);
+	}
+
+	/**
+	 * Cancels the checks, interrupting a run in progress, which leaves its
+	 * checkpoint at the last page written
+	 */
+	public synchronized void stop() {
+		if (checks != null) {
+			checks.cancel(true);
+			checks = null;
+		}
+	}
+
+	/**
+	 * Checks the links after the checkpoint, returning early if the
+	 * application is shutting down
+	 *
+	 * @return Number of links checked
+	 */
+	long checkLinks() {
+		try {
+			long checked = new LinkChecker(entityManagerFactory)
+					.checkAll(new Checkpoint(entityManagerFactory,
+							LinkChecker.CHECKPOINT));
+			log.info("Checked " + checked + " links");
+			return checked;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return 0;
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import com.apiiro.avigtest.Settings;
+
+/**
+ * Application wide cache of {@link ListingPage}s keyed by the listing filter
+ * and page, so the home page doesn't go to the database each time the same
+ * page is shown.
+ * <p/>
+ * Rather than tracking which pages a change affects, every cached page
+ * belongs to a version of the listing, and the {@link BookmarkDao} moves to a
+ * new version whenever a bookmark is saved, as do the search and related tag
+ * indexes once they have followed it. Pages of older versions are no
+ * longer found and drop out of the cache as it fills up, it holds the most
+ * recently used <code>listing.cacheSize</code> pages. The version and the
+ * time it changed are static so the
+ * {@link com.apiiro.avigtest.ConditionalGetFilter} can read them without a
+ * CDI context.
+ * <p/>
+ * The version starts from the time the application started rather than
+ * zero, so the ETags handed out before a restart don't match the new
+ * versions.
+ *
+ */
+@ApplicationScoped
+public class ListingCache {
+
+	private static volatile long lastModified = System.currentTimeMillis();
+	private static final AtomicLong version = new AtomicLong(lastModified);
+
+	private final BoundedLruCache<String, ListingPage> pages = new BoundedLruCache<String, ListingPage>(
+			Settings.getInt("listing.cacheSize", 1000));
+
+	/**
+	 * @return The current version of the listing
+	 */
+	public static long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * @return Time in milliseconds the listing last changed
+	 */
+	public static long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Moves to a new version of the listing, called after bookmarks or the
+	 * counts shown with them change
+	 */
+	public static void invalidate() {
+		lastModified = System.currentTimeMillis();
+		version.incrementAndGet();
+	}
+
+	/**
+	 * Builds the key of a page in the current version. The key should be
+	 * taken before the page is loaded, so a page loaded while the listing
+	 * changes is stored under the version it was loaded from.
+	 *
+	 * @param tag
+	 *            Tag filter or null
+	 * @param username
+	 *            User filter or null
+	 * @param cursor
+	 *            Parsed page cursor or null for the first page, so page
+	 *            tokens that aren't valid all share the first page's entry
+	 *            rather than each taking one of their own
+	 * @return Key for {@link #get(String)} and {@link #put(String, ListingPage)}
+	 */
+	public String key(String tag, String username, PageCursor cursor) {
+		return getVersion() + "\n" + (tag == null ? "" : tag) + "\n"
+				+ (username == null ? "" : username) + "\n"
+				+ (cursor == null ? "" : cursor.getToken());
+	}
+
+	/**
+	 * @return The cached page or null
+	 */
+	public ListingPage get(String key) {
+		return pages.get(key);
+	}
+
+	public void put(String key, ListingPage page) {
+		pages.put(key, page);
+	}
+}
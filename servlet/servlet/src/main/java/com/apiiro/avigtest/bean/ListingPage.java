@@ -0,0 +1,46 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.apiiro.avigtest.model.BookmarkRow;
+
+/**
+ * A page of the bookmark listing as it is shown, the rows along with whether
+ * there are newer or older pages. Pages are immutable so they can be shared
+ * between requests by the {@link ListingCache}.
+ *
+ */
+public final class ListingPage {
+
+	private final List<BookmarkRow> rows;
+	private final boolean hasNext;
+	private final boolean hasPrevious;
+
+	public ListingPage(List<BookmarkRow> rows, boolean hasNext,
+			boolean hasPrevious) {
+		this.rows = Collections.unmodifiableList(new ArrayList<BookmarkRow>(
+				rows));
+		this.hasNext = hasNext;
+		this.hasPrevious = hasPrevious;
+	}
+
+	public List<BookmarkRow> getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return Whether there is an older page
+	 */
+	public boolean isHasNext() {
+		return hasNext;
+	}
+
+	/**
+	 * @return Whether there is a newer page
+	 */
+	public boolean isHasPrevious() {
+		return hasPrevious;
+	}
+}
@@ -0,0 +1,71 @@
+package com.apiiro.avigtest.bean;
+
+/**
+ * Fixed size buffer of the most recently added longs, held in an array that
+ * is written round and round so adding never allocates. Once the buffer is
+ * full each value added replaces the oldest. Not thread safe.
+ *
+ */
+public class LongRingBuffer {
+
+	private final long[] values;
+	private int next;
+	private int size;
+
+	public LongRingBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive, was "
+					+ capacity);
+		}
+		values = new long[capacity];
+	}
+
+	/**
+	 * Adds a value, dropping the oldest if the buffer is full
+	 */
+	public void add(long value) {
+		values[next] = value;
+		next = (next + 1) % values.length;
+		if (size < values.length) {
+			size++;
+		}
+	}
+
+	/**
+	 * @param index
+	 *            Position counting back from the newest value, which is 0
+	 * @return The value at the position
+	 */
+	public long get(int index) {
+		if (index < 0 || index >= size) {
+			throw new IndexOutOfBoundsException("Index " + index + ", size "
+					+ size);
+		}
+		int position = next - 1 - index;
+		return values[position < 0 ? position + values.length : position];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int capacity() {
+		return values.length;
+	}
+
+	public boolean isFull() {
+		return size == values.length;
+	}
+
+	/**
+	 * @return Whether the value is in the buffer, checking every value
+	 */
+	public boolean contains(long value) {
+		for (int i = 0; i < size; i++) {
+			if (get(i) == value) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,128 @@
+package com.apiiro.avigtest.bean;
+
+import java.io.Serializable;
+import java.util.Date;
+
+import com.apiiro.avigtest.model.Bookmark;
+import com.apiiro.avigtest.model.BookmarkRow;
+
+/**
+ * Position in the bookmark listing used for keyset (seek) pagination. The
+ * listing is ordered by <code>(addedOn desc, id desc)</code> so a cursor is
+ * the sort key of a row on the edge of a page plus the direction to read in.
+ * <p/>
+ * Cursors are passed around in page links as opaque tokens produced by
+ * {@link #getToken()} and read back using {@link #parse(String)}.
+ *
+ */
+public final class PageCursor implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final char AFTER = 'a';
+	private static final char BEFORE = 'b';
+
+	private final boolean before;
+	private final Date addedOn;
+	private final Long id;
+
+	private PageCursor(boolean before, Date addedOn, Long id) {
+		this.before = before;
+		this.addedOn = addedOn;
+		this.id = id;
+	}
+
+	/**
+	 * @param bookmark
+	 *            Last bookmark on the current page
+	 * @return Cursor for the rows older than this bookmark
+	 */
+	public static PageCursor after(Bookmark bookmark) {
+		return new PageCursor(false, bookmark.getAddedOn(), bookmark.getId());
+	}
+
+	/**
+	 * @param bookmark
+	 *            First bookmark on the current page
+	 * @return Cursor for the rows newer than this bookmark
+	 */
+	public static PageCursor before(Bookmark bookmark) {
+		return new PageCursor(true, bookmark.getAddedOn(), bookmark.getId());
+	}
+
+	/**
+	 * @param row
+	 *            Last row on the current page
+	 * @return Cursor for the rows older than this row
+	 */
+	public static PageCursor after(BookmarkRow row) {
+		return new PageCursor(false, row.getAddedOn(), row.getId());
+	}
+
+	/**
+	 * @param row
+	 *            First row on the current page
+	 * @return Cursor for the rows newer than this row
+	 */
+	public static PageCursor before(BookmarkRow row) {
+		return new PageCursor(true, row.getAddedOn(), row.getId());
+	}
+
+	/**
+	 * Reads a cursor back from the token generated by {@link #getToken()}.
+	 *
+	 * @param token
+	 *            Token to parse
+	 * @return The cursor or null if the token is empty or not valid
+	 */
+	public static PageCursor parse(String token) {
+		if (token == null || token.length() < 4) {
+			return null;
+		}
+		char direction = token.charAt(0);
+		int split = token.indexOf('.', 2);
+		if ((direction != AFTER && direction != BEFORE)
+				|| token.charAt(1) != '.' || split < 0) {
+			return null;
+		}
+		try {
+			long time = Long.parseLong(token.substring(2, split),
+					Character.MAX_RADIX);
+			long id = Long.parseLong(token.substring(split + 1),
+					Character.MAX_RADIX);
+			return new PageCursor(direction == BEFORE, new Date(time), id);
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Opaque string form of this cursor for use in links
+	 */
+	public String getToken() {
+		return (before ? BEFORE : AFTER) + "."
+				+ Long.toString(addedOn.getTime(), Character.MAX_RADIX) + "."
+				+ Long.toString(id, Character.MAX_RADIX);
+	}
+
+	/**
+	 * @return true if this cursor reads the rows newer than its position,
+	 *         false if it reads the older ones
+	 */
+	public boolean isBefore() {
+		return before;
+	}
+
+	public Date getAddedOn() {
+		return addedOn;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return getToken();
+	}
+}
@@ -0,0 +1,237 @@
+package com.apiiro.avigtest.bean;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Brings a database schema up to date by running the numbered scripts in
+ * <code>/db/migration</code> on the classpath, <code>V1.sql</code>,
+ * <code>V2.sql</code> and so on, that haven't been run against it yet. The
+ * versions that have been applied are recorded in a
+ * <code>SCHEMA_VERSION</code> table.
+ * <p/>
+ * Scripts hold one statement per line, blank lines and lines starting with
+ * <code>--</code> are skipped. The same scripts are imported by hibernate
+ * into the in memory database, so they must stay in that form. A new script
+ * is added for every schema change, scripts that have been released are
+ * never edited.
+ * <p/>
+ * HSQLDB commits each schema change as it runs, so a script that fails part
+ * way can't be rolled back. Data a script can't apply to is looked for by the
+ * {@link #PRECONDITIONS} of its version before any of it runs.
+ *
+ */
+public class SchemaMigrator {
+
+	private static final Logger log = Logger.getLogger(SchemaMigrator.class
+			.getName());
+
+	private static final String SCRIPT_PREFIX = "/db/migration/V";
+
+	/**
+	 * Version, a query for the rows that would make its script fail and what
+	 * to do about them. The version isn't applied while the query returns
+	 * anything.
+	 */
+	private static final String[][] PRECONDITIONS = { {
+			"3",
+			"select lower(username) from USERS group by lower(username) having count(*) > 1",
+			"Usernames must differ by more than case before they can be looked up ignoring it, rename the users" } };
+
+	/**
+	 * Most of the rows failing a precondition that are listed in the error
+	 */
+	private static final int MAX_LISTED_ROWS = 10;
+
+	private final String url;
+	private final String username;
+	private final String password;
+
+	public SchemaMigrator(String driverClass, String url, String username,
+			String password) {
+		try {
+			Class.forName(driverClass);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalArgumentException("JDBC driver " + driverClass
+					+ " not found", e);
+		}
+		this.url = url;
+		this.username = username;
+		this.password = password;
+	}
+
+	/**
+	 * Applies the scripts newer than the current version of the schema in
+	 * order, each in its own transaction, stopping at the first version that
+	 * has no script.
+	 *
+	 * @return Number of scripts applied
+	 */
+	public int migrate() throws SQLException {
+		return migrate(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Applies the scripts newer than the current version of the schema up to
+	 * and including the last version
+	 *
+	 * @return Number of scripts applied
+	 */
+	int migrate(int lastVersion) throws SQLException {
+		Connection connection = DriverManager.getConnection(url, username,
+				password);
+		try {
+			connection.setAutoCommit(false);
+			int version = currentVersion(connection);
+			int applied = 0;
+			List<String> statements;
+			while (version < lastVersion
+					&& (statements = readScript(version + 1)) != null) {
+				version++;
+				try {
+					checkPreconditions(connection, version);
+					apply(connection, version, statements);
+				} catch (SQLException e) {
+					log.log(Level.SEVERE, "Unable to apply schema version "
+							+ version + " to " + url, e);
+					throw e;
+				}
+				applied++;
+				log.info("Applied schema version " + version + " to " + url);
+			}
+			return applied;
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * @return The latest version applied, creating the version table if
+	 *         this is a new database
+	 */
+	private int currentVersion(Connection connection) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			ResultSet tables = connection.getMetaData().getTables(null, null,
+					"SCHEMA_VERSION", null);
+			boolean exists = tables.next();
+			tables.close();
+			if (!exists) {
+				statement.execute("create table SCHEMA_VERSION (version integer not null, appliedOn timestamp not null, primary key (version))");
+				connection.commit();
+				return 0;
+			}
+			ResultSet result = statement
+					.executeQuery("select max(version) from SCHEMA_VERSION");
+			result.next();
+			return result.getInt(1);
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * @throws SQLException
+	 *             listing the rows that fail a precondition of the version
+	 */
+	private void checkPreconditions(Connection connection, int version)
+			throws SQLException {
+		for (String[] precondition : PRECONDITIONS) {
+			if (Integer.parseInt(precondition[0]) != version) {
+				continue;
+			}
+			Statement statement = connection.createStatement();
+			try {
+				ResultSet result = statement.executeQuery(precondition[1]);
+				List<String> rows = new ArrayList<String>();
+				while (result.next() && rows.size() < MAX_LISTED_ROWS) {
+					rows.add(result.getString(1));
+				}
+				if (!rows.isEmpty()) {
+					throw new SQLException("Schema version " + version
+							+ " can't be applied to " + url + " : "
+							+ precondition[2] + " " + rows);
+				}
+			} finally {
+				statement.close();
+			}
+		}
+	}
+
+	private void apply(Connection connection, int version,
+			List<String> statements) throws SQLException {
+		Statement statement = connection.createStatement();
+		try {
+			for (String sql : statements) {
+				statement.execute(sql);
+			}
+			PreparedStatement insert = connection
+					.prepareStatement("insert into SCHEMA_VERSION (version, appliedOn) values (?, ?)");
+			try {
+				insert.setInt(1, version);
+				insert.setTimestamp(2, new Timestamp(System.currentTimeMillis()));
+				insert.executeUpdate();
+			} finally {
+				insert.close();
+			}
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			statement.close();
+		}
+	}
+
+	/**
+	 * @return The statements in the script for this version or null if there
+	 *         isn't one
+	 */
+	private List<String> readScript(int version) throws SQLException {
+		String name = SCRIPT_PREFIX + version + ".sql";
+		InputStream in = SchemaMigrator.class.getResourceAsStream(name);
+		if (in == null) {
+			return null;
+		}
+		List<String> statements = new ArrayList<String>();
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(
+					in, "UTF-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.length() == 0 || line.startsWith("--")) {
+					continue;
+				}
+				if (line.endsWith(";")) {
+					line = line.substring(0, line.length() - 1);
+				}
+				statements.add(line);
+			}
+		} catch (IOException e) {
+			log.log(Level.SEVERE, "Unable to read " + name, e);
+			throw new SQLException("Unable to read " + name, e);
+		} finally {
+			try {
+				in.close();
+			} catch (IOException e) {
+				log.log(Level.SEVERE, "Unable to close " + name, e);
+				throw new SQLException("Unable to close " + name, e);
+			}
+		}
+		return statements;
+	}
+}
@@ -0,0 +1,450 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import com.apiiro.avigtest.Settings;
+import com.apiiro.avigtest.model.Bookmark;
+import com.apiiro.avigtest.model.BookmarkRow;
+import com.apiiro.avigtest.model.BookmarkRow.TagRef;
+import com.apiiro.avigtest.model.Tag;
+
+/**
+ * In memory matrix of how many bookmarks each pair of tags has in common,
+ * used for the related tags and related bookmarks shown with a tag's
+ * listing without self joining the tags table on every request.
+ * <p/>
+ * Each tag is given a number in the order it is first seen, and its row of
+ * the matrix is an {@link IntIntHashMap} from the numbers of the tags it has
+ * been used with to the number of bookmarks with both. The ids of the
+ * <code>related.recentPerTag</code> bookmarks with each tag added most
+ * recently are kept, by the time they were added since ids aren't given out
+ * in that order, and the related bookmarks of a tag are the newest bookmarks
+ * of its related tags, ranked by how strongly those tags are related to it.
+ * <p/>
+ * The matrix is built from the database and the {@link BookmarkArchive} on
+ * first use, so archiving bookmarks doesn't change the counts, and kept up
+ * to date from the {@link ChangeEvent}s of the bookmarks saved after that,
+ * and built again if the bus drops events. Each change moves the {@link ListingCache}
+ * to a new version once the matrix has it, since the related tags are shown
+ * with the listing.
+ *
+ */
+@ApplicationScoped
+public class TagCooccurrence implements ChangeListener {
+
+	private static final int LOAD_PAGE_SIZE = 10000;
+
+	/**
+	 * Number of related tags whose bookmarks are considered for the related
+	 * bookmarks
+	 */
+	private static final int RELATED_TAG_FANOUT = 10;
+
+	@Inject
+	private EntityManagerFactory entityManagerFactory;
+
+	@Inject
+	private BookmarkArchive archive;
+
+	private final int recentPerTag = Settings.getInt("related.recentPerTag",
+			50);
+	private final int loadPageSize;
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<String, Integer> numbers = new HashMap<String, Integer>();
+	private String[] slugs = new String[64];
+	private String[] names = new String[64];
+	private IntIntHashMap[] pairs = new IntIntHashMap[64];
+	private NewestIds[] recent = new NewestIds[64];
+	private int tags;
+	private boolean loaded;
+
+	/**
+	 * Ids of the bookmarks in the matrix, so a bookmark read by the load and
+	 * then given by its event, or archived while the matrix loaded, is only
+	 * counted once. Ids come from a pooled sequence, so a bookmark saved
+	 * after the load can have a lower id than the ones it read.
+	 */
+	private final Set<Long> indexedIds = new HashSet<Long>();
+
+	public TagCooccurrence() {
+		this(LOAD_PAGE_SIZE);
+	}
+
+	/**
+	 * @param loadPageSize
+	 *            Number of bookmarks read at a time when loading
+	 */
+	TagCooccurrence(int loadPageSize) {
+		this.loadPageSize = loadPageSize;
+	}
+
+	/**
+	 * @param slug
+	 *            Slug of the tag
+	 * @param count
+	 *            Most tags to return
+	 * @return The tags used most often with the tag, most often first
+	 */
+	public List<TagRef> getRelatedTags(String slug, int count) {
+		ensureLoaded();
+		lock.readLock().lock();
+		try {
+			Integer tag = numbers.get(slug);
+			if (tag == null) {
+				return Collections.emptyList();
+			}
+			int[] related = topRelated(tag, count);
+			List<TagRef> results = new ArrayList<TagRef>(related.length);
+			for (int other : related) {
+				results.add(new TagRef(names[other], slugs[other]));
+			}
+			return results;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Ranks the newest bookmarks of the tag's related tags by the sum of how
+	 * often the tag is used with each of the related tags the bookmark has.
+	 * The tag's own newest bookmarks are left out since its listing shows
+	 * them.
+	 *
+	 * @param slug
+	 *            Slug of the tag
+	 * @param count
+	 *            Most bookmarks to return
+	 * @return Ids of the related bookmarks, most related first
+	 */
+	public List<Long> getRelatedBookmarks(String slug, int count) {
+		ensureLoaded();
+		lock.readLock().lock();
+		try {
+			Integer tag = numbers.get(slug);
+			if (tag == null) {
+				return Collections.emptyList();
+			}
+			final Map<Long, Integer> scores = new HashMap<Long, Integer>();
+			for (int other : topRelated(tag, RELATED_TAG_FANOUT)) {
+				int weight = pairs[tag].get(other);
+				NewestIds bookmarks = recent[other];
+				for (int i = 0; i < bookmarks.size(); i++) {
+					Long id = bookmarks.get(i);
+					Integer score = scores.get(id);
+					scores.put(id, score == null ? weight : score + weight);
+				}
+			}
+			NewestIds own = recent[tag];
+			for (int i = 0; i < own.size(); i++) {
+				scores.remove(own.get(i));
+			}
+			List<Long> ids = new ArrayList<Long>(scores.keySet());
+			Collections.sort(ids, new Comparator<Long>() {
+
+				public int compare(Long a, Long b) {
+					int result = scores.get(b).compareTo(scores.get(a));
+					return result != 0 ? result : b.compareTo(a);
+				}
+			});
+			return ids.subList(0, Math.min(count, ids.size()));
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return Number of bookmarks tagged with both tags
+	 */
+	public int getCount(String slug, String otherSlug) {
+		ensureLoaded();
+		lock.readLock().lock();
+		try {
+			Integer tag = numbers.get(slug);
+			Integer other = numbers.get(otherSlug);
+			return tag == null || other == null ? 0 : pairs[tag].get(other);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds a newly saved bookmark's tags to the matrix
+	 *
+	 * @param bookmark
+	 *            Bookmark to add
+	 */
+	public void add(Bookmark bookmark) {
+		lock.writeLock().lock();
+		try {
+			if (!loaded) {
+				load();
+			}
+			List<String[]> tagNames = new ArrayList<String[]>();
+			for (Tag tag : bookmark.getTags()) {
+				tagNames.add(new String[] { tag.getSlug(), tag.getName() });
+			}
+			index(bookmark.getId(), bookmark.getAddedOn().getTime(), tagNames);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Adds the saved bookmarks
+	 */
+	public void changed(List<ChangeEvent> events) {
+		boolean added = false;
+		for (ChangeEvent event : events) {
+			if (event.getType() == ChangeEvent.Type.BOOKMARK_SAVED) {
+				add((Bookmark) event.getEntity());
+				added = true;
+			}
+		}
+		if (added) {
+			ListingCache.invalidate();
+		}
+	}
+
+	/**
+	 * Builds the matrix again from the database, which has the bookmarks of
+	 * the dropped events. A matrix that hasn't loaded yet reads them when it
+	 * does.
+	 */
+	public void eventsDropped() {
+		lock.writeLock().lock();
+		try {
+			if (!loaded) {
+				return;
+			}
+			numbers.clear();
+			indexedIds.clear();
+			tags = 0;
+			slugs = new String[64];
+			names = new String[64];
+			pairs = new IntIntHashMap[64];
+			recent = new NewestIds[64];
+			load();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		ListingCache.invalidate();
+	}
+
+	/**
+	 * @return Numbers of the tags used most often with the tag, most often
+	 *         first and ties going to the older tag
+	 */
+	private int[] topRelated(int tag, int count) {
+		final long[] packed = new long[pairs[tag].size()];
+		pairs[tag].forEach(new IntIntHashMap.Visitor() {
+
+			private int n;
+
+			public void visit(int other, int together) {
+				// sorts by count, then by the inverse tag number
+				packed[n++] = ((long) together << 32)
+						| (Integer.MAX_VALUE - other);
+			}
+		});
+		Arrays.sort(packed);
+		int[] related = new int[Math.min(count, packed.length)];
+		for (int i = 0; i < related.length; i++) {
+			related[i] = Integer.MAX_VALUE
+					- (int) packed[packed.length - 1 - i];
+		}
+		return related;
+	}
+
+	private void ensureLoaded() {
+		lock.readLock().lock();
+		try {
+			if (loaded) {
+				return;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		lock.writeLock().lock();
+		try {
+			if (!loaded) {
+				load();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Builds the matrix from the database a page of bookmarks at a time and
+	 * then from the {@link BookmarkArchive}, must be called holding the write
+	 * lock. Each page reads the ids of the next bookmarks and then the tags of
+	 * the bookmarks in that range of ids.
+	 */
+	@SuppressWarnings("unchecked")
+	private void load() {
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			long lastId = Long.MIN_VALUE;
+			List<Long> ids;
+			do {
+				ids = em
+						.createQuery(
+								"select b.id from Bookmark b where b.id > :lastId order by b.id")
+						.setParameter("lastId", lastId).setMaxResults(
+								loadPageSize).getResultList();
+				if (ids.isEmpty()) {
+					break;
+				}
+				List<Object[]> rows = em
+						.createQuery(
+								"select b.id, b.addedOn, t.slug, t.name from Bookmark b join b.tags t where b.id > :lastId and b.id <= :to order by b.id")
+						.setParameter("lastId", lastId).setParameter("to",
+								ids.get(ids.size() - 1)).getResultList();
+				int start = 0;
+				for (int i = 1; i <= rows.size(); i++) {
+					if (i == rows.size()
+							|| !rows.get(i)[0].equals(rows.get(start)[0])) {
+						List<String[]> tagNames = new ArrayList<String[]>();
+						for (Object[] row : rows.subList(start, i)) {
+							tagNames.add(new String[] { (String) row[2],
+									(String) row[3] });
+						}
+						index((Long) rows.get(start)[0], ((Date) rows
+								.get(start)[1]).getTime(), tagNames);
+						start = i;
+					}
+				}
+				lastId = ids.get(ids.size() - 1);
+			} while (ids.size() == loadPageSize);
+			archive.forEach(new BookmarkArchive.RowVisitor() {
+
+				public void visit(BookmarkRow row) {
+					List<String[]> tagNames = new ArrayList<String[]>();
+					for (TagRef tag : row.getTags()) {
+						tagNames.add(new String[] { tag.getSlug(),
+								tag.getName() });
+					}
+					index(row.getId(), row.getAddedOn().getTime(), tagNames);
+				}
+			});
+			loaded = true;
+		} finally {
+			em.close();
+		}
+	}
+
+	private void index(long bookmarkId, long addedOn, List<String[]> tagNames) {
+		if (!indexedIds.add(bookmarkId)) {
+			return;
+		}
+		int[] tagged = new int[tagNames.size()];
+		for (int i = 0; i < tagged.length; i++) {
+			tagged[i] = number(tagNames.get(i)[0], tagNames.get(i)[1]);
+			recent[tagged[i]].add(addedOn, bookmarkId);
+		}
+		for (int tag : tagged) {
+			for (int other : tagged) {
+				if (tag != other) {
+					pairs[tag].addTo(other, 1);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The tag's number, giving it the next one if it is new
+	 */
+	private int number(String slug, String name) {
+		Integer number = numbers.get(slug);
+		if (number != null) {
+			return number;
+		}
+		if (tags == slugs.length) {
+			slugs = Arrays.copyOf(slugs, tags * 2);
+			names = Arrays.copyOf(names, tags * 2);
+			pairs = Arrays.copyOf(pairs, tags * 2);
+			recent = Arrays.copyOf(recent, tags * 2);
+		}
+		slugs[tags] = slug;
+		names[tags] = name;
+		pairs[tags] = new IntIntHashMap();
+		recent[tags] = new NewestIds(recentPerTag);
+		numbers.put(slug, tags);
+		return tags++;
+	}
+
+	/**
+	 * Ids of the bookmarks added most recently, newest first, kept in order
+	 * of the time they were added and then their id whatever order they are
+	 * added in. Not thread safe.
+	 */
+	static final class NewestIds {
+
+		private final long[] times;
+		private final long[] ids;
+		private int size;
+
+		NewestIds(int capacity) {
+			times = new long[capacity];
+			ids = new long[capacity];
+		}
+
+		/**
+		 * Adds a bookmark, dropping the oldest if it is full, or ignoring the
+		 * bookmark if it is older than all of them
+		 */
+		void add(long addedOn, long id) {
+			int position = size;
+			while (position > 0 && isOlder(position - 1, addedOn, id)) {
+				position--;
+			}
+			if (position == times.length) {
+				return;
+			}
+			int moved = Math.min(size, times.length - 1) - position;
+			System.arraycopy(times, position, times, position + 1, moved);
+			System.arraycopy(ids, position, ids, position + 1, moved);
+			times[position] = addedOn;
+			ids[position] = id;
+			size = Math.min(size + 1, times.length);
+		}
+
+		private boolean isOlder(int index, long addedOn, long id) {
+			return times[index] < addedOn || times[index] == addedOn
+					&& ids[index] < id;
+		}
+
+		/**
+		 * @param index
+		 *            Position counting back from the newest, which is 0
+		 */
+		long get(int index) {
+			if (index < 0 || index >= size) {
+				throw new IndexOutOfBoundsException("Index " + index
+						+ ", size " + size);
+			}
+			return ids[index];
+		}
+
+		int size() {
+			return size;
+		}
+	}
+}
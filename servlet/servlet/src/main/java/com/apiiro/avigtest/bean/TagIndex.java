@@ -0,0 +1,168 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import com.apiiro.avigtest.model.Tag;
+
+/**
+ * Application wide index of the {@link Tag} names used to serve the tag
+ * autocomplete without going to the database on every keystroke.
+ * <p/>
+ * Tags are kept in an array sorted on the case folded name so a prefix search
+ * is a binary search for the first match followed by a scan over the matching
+ * run. The array is replaced rather than modified when tags are added so
+ * readers never need to lock. The index is loaded from the database on first
+ * use and is kept up to date by the {@link BookmarkDao} as tags are created.
+ *
+ */
+@ApplicationScoped
+public class TagIndex {
+
+	@Inject
+	private EntityManagerFactory entityManagerFactory;
+
+	private volatile Entry[] entries;
+
+	/**
+	 * Returns the tags whose name starts with the prefix, ignoring case.
+	 *
+	 * @param prefix
+	 *            Start of the tag name, or null to return all tags
+	 * @return New list of matching tags ordered by name
+	 */
+	public List<Tag> findByPrefix(String prefix) {
+		Entry[] current = getEntries();
+		String key = fold(prefix == null ? "" : prefix);
+		List<Tag> results = new ArrayList<Tag>();
+		for (int i = lowerBound(current, key); i < current.length
+				&& current[i].key.startsWith(key); i++) {
+			results.add(current[i].tag);
+		}
+		return results;
+	}
+
+	/**
+	 * Adds a newly created tag to the index
+	 *
+	 * @param tag
+	 *            Persisted tag to add
+	 */
+	public void add(Tag tag) {
+		addAll(Arrays.asList(tag));
+	}
+
+	/**
+	 * Adds a number of newly created tags to the index in one go
+	 *
+	 * @param tags
+	 *            Persisted tags to add
+	 */
+	public synchronized void addAll(Collection<Tag> tags) {
+		Entry[] current = getEntries();
+		Entry[] updated = Arrays.copyOf(current, current.length + tags.size());
+		int size = current.length;
+		for (Tag tag : tags) {
+			Entry entry = new Entry(tag);
+			if (!contains(current, entry)) {
+				updated[size++] = entry;
+			}
+		}
+		updated = Arrays.copyOf(updated, size);
+		Arrays.sort(updated);
+		entries = updated;
+	}
+
+	/**
+	 * @return the number of tags in the index
+	 */
+	public int size() {
+		return getEntries().length;
+	}
+
+	private Entry[] getEntries() {
+		Entry[] current = entries;
+		if (current == null) {
+			synchronized (this) {
+				if (entries == null) {
+					entries = load();
+				}
+				current = entries;
+			}
+		}
+		return current;
+	}
+
+	@SuppressWarnings("unchecked")
+	private Entry[] load() {
+		EntityManager em = entityManagerFactory.createEntityManager();
+		try {
+			List<Tag> tags = em.createNamedQuery("Tag.findAll")
+					.getResultList();
+			Entry[] loaded = new Entry[tags.size()];
+			for (int i = 0; i < loaded.length; i++) {
+				loaded[i] = new Entry(tags.get(i));
+			}
+			Arrays.sort(loaded);
+			return loaded;
+		} finally {
+			em.close();
+		}
+	}
+
+	private static boolean contains(Entry[] sorted, Entry entry) {
+		for (int i = lowerBound(sorted, entry.key); i < sorted.length
+				&& sorted[i].key.equals(entry.key); i++) {
+			if (sorted[i].tag.getId().equals(entry.tag.getId())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return index of the first entry with a key not less than the key
+	 */
+	private static int lowerBound(Entry[] sorted, String key) {
+		int low = 0;
+		int high = sorted.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (sorted[mid].key.compareTo(key) < 0) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	static String fold(String name) {
+		return name.toLowerCase(Locale.ENGLISH);
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+
+		private final String key;
+		private final Tag tag;
+
+		Entry(Tag tag) {
+			this.key = fold(tag.getName());
+			this.tag = tag;
+		}
+
+		public int compareTo(Entry o) {
+			int result = key.compareTo(o.key);
+			return result != 0 ? result : tag.getName().compareTo(
+					o.tag.getName());
+		}
+	}
+}
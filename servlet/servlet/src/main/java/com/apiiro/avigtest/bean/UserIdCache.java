@@ -0,0 +1,36 @@
+package com.apiiro.avigtest.bean;
+
+import javax.enterprise.context.ApplicationScoped;
+
+import com.apiiro.avigtest.Settings;
+import com.apiiro.avigtest.model.User;
+
+/**
+ * Application wide cache of user ids keyed by {@link User#getUsernameKey()},
+ * used by the {@link BookmarkDao} so a repeated login finds the user by id in
+ * the second level cache rather than querying the users table. Holds the most
+ * recently used <code>users.idCacheSize</code> users.
+ *
+ */
+@ApplicationScoped
+public class UserIdCache {
+
+	private final BoundedLruCache<String, Long> ids = new BoundedLruCache<String, Long>(
+			Settings.getInt("users.idCacheSize", 10000));
+
+	/**
+	 * @return The id of the user with this username key, or null if it isn't
+	 *         cached
+	 */
+	public Long get(String usernameKey) {
+		return ids.get(usernameKey);
+	}
+
+	public void put(User user) {
+		ids.put(user.getUsernameKey(), user.getId());
+	}
+
+	public void remove(String usernameKey) {
+		ids.remove(usernameKey);
+	}
+}
@@ -0,0 +1,235 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import com.apiiro.avigtest.Settings;
+import com.apiiro.avigtest.model.Bookmark;
+
+/**
+ * Application wide cache of each user's newest bookmark ids, so the pages of
+ * a user's listing can be served without the join, filter and sort of the
+ * listing query.
+ * <p/>
+ * A user's timeline holds the ids and times of their newest
+ * <code>timelines.size</code> bookmarks in listing order, in a pair of
+ * {@link LongRingBuffer}s, and is loaded with one query when the user's
+ * listing is first shown. The timelines of the most recently viewed
+ * <code>timelines.users</code> users are kept. The {@link BookmarkDao} adds
+ * bookmarks to a cached timeline as they are saved, dropping the oldest, and
+ * reads pages from it, going to the database for pages beyond it.
+ *
+ */
+@ApplicationScoped
+public class UserTimelines {
+
+	@Inject
+	private EntityManagerFactory entityManagerFactory;
+
+	private final int size;
+	private final BoundedLruCache<String, Timeline> timelines;
+
+	public UserTimelines() {
+		this(Settings.getInt("timelines.size", 200), Settings.getInt(
+				"timelines.users", 1000));
+	}
+
+	UserTimelines(int size, int users) {
+		this.size = size;
+		this.timelines = new BoundedLruCache<String, Timeline>(users);
+	}
+
+	/**
+	 * Reads a page of a user's listing from their timeline, loading it if it
+	 * isn't cached
+	 *
+	 * @param username
+	 *            Username of the user
+	 * @param cursor
+	 *            Position to read from or null for the first page
+	 * @param count
+	 *            Number of bookmarks to read
+	 * @return Ids of the bookmarks on the page, newest first, or null if the
+	 *         page goes beyond the timeline
+	 */
+	public List<Long> getBookmarkIds(String username, PageCursor cursor,
+			int count) {
+		Timeline timeline = timelines.get(username);
+		if (timeline == null) {
+			timeline = load(username);
+		}
+		return timeline.page(cursor, count);
+	}
+
+	/**
+	 * Adds a newly saved bookmark to its user's timeline if it is cached
+	 *
+	 * @param bookmark
+	 *            Bookmark that was saved
+	 */
+	public void bookmarkAdded(Bookmark bookmark) {
+		if (bookmark.getUser() == null) {
+			return;
+		}
+		String username = bookmark.getUser().getUsername();
+		Timeline timeline = timelines.get(username);
+		if (timeline != null
+				&& !timeline.add(bookmark.getId(), bookmark.getAddedOn()
+						.getTime())) {
+			// older than the newest bookmark, the next view reloads it
+			timelines.remove(username);
+		}
+	}
+
+	/**
+	 * Loads the user's newest bookmarks. The timeline is only cached if no
+	 * bookmark was saved while it loaded, since it may have been missed.
+	 */
+	@SuppressWarnings("unchecked")
+	private Timeline load(String username) {
+		long version = ListingCache.getVersion();
+		EntityManager em = entityManagerFactory.createEntityManager();
+		List<Object[]> rows;
+		try {
+			rows = em.createNamedQuery("Bookmark.pageIdsByUser").setParameter(
+					"username", username).setMaxResults(size).getResultList();
+		} finally {
+			em.close();
+		}
+		Timeline timeline = new Timeline(size, rows.size() < size);
+		for (int i = rows.size() - 1; i >= 0; i--) {
+			timeline.add((Long) rows.get(i)[0], ((Date) rows.get(i)[1])
+					.getTime());
+		}
+		if (version == ListingCache.getVersion()) {
+			timelines.put(username, timeline);
+		}
+		return timeline;
+	}
+
+	/**
+	 * A user's newest bookmarks, index 0 being the newest
+	 */
+	static class Timeline {
+
+		private final LongRingBuffer ids;
+		private final LongRingBuffer times;
+
+		/**
+		 * Whether the timeline holds all of the user's bookmarks
+		 */
+		private boolean complete;
+
+		Timeline(int size, boolean complete) {
+			this.ids = new LongRingBuffer(size);
+			this.times = new LongRingBuffer(size);
+			this.complete = complete;
+		}
+
+		/**
+		 * Adds a bookmark as the newest
+		 *
+		 * @return False if the bookmark is older than the newest, since it
+		 *         would be out of order
+		 */
+		synchronized boolean add(long id, long time) {
+			if (ids.size() > 0) {
+				int newest = compare(0, time, id);
+				if (newest >= 0) {
+					// already added if it is the newest
+					return newest == 0;
+				}
+			}
+			if (ids.isFull()) {
+				complete = false;
+			}
+			ids.add(id);
+			times.add(time);
+			return true;
+		}
+
+		/**
+		 * Reads the bookmarks older than an <code>after</code> cursor, or the
+		 * ones closest to a <code>before</code> cursor that are newer than it
+		 *
+		 * @return The ids newest first, or null if the page goes beyond the
+		 *         timeline
+		 */
+		synchronized List<Long> page(PageCursor cursor, int count) {
+			int from;
+			int to;
+			if (cursor == null) {
+				from = 0;
+				to = count;
+			} else {
+				// first bookmark older than the cursor
+				int older = olderThan(cursor.getAddedOn().getTime(), cursor
+						.getId());
+				if (cursor.isBefore()) {
+					if (older == ids.size() && !complete) {
+						// there may be newer bookmarks beyond the timeline
+						return null;
+					}
+					// the cursor's own row isn't part of the page
+					int newer = older > 0
+							&& compare(older - 1, cursor.getAddedOn()
+									.getTime(), cursor.getId()) == 0 ? older - 1
+							: older;
+					from = Math.max(0, newer - count);
+					to = newer;
+				} else {
+					from = older;
+					to = older + count;
+				}
+			}
+			if (to > ids.size()) {
+				if (!complete) {
+					return null;
+				}
+				to = ids.size();
+			}
+			List<Long> page = new ArrayList<Long>(Math.max(0, to - from));
+			for (int i = from; i < to; i++) {
+				page.add(ids.get(i));
+			}
+			return page;
+		}
+
+		/**
+		 * @return Index of the first bookmark older than the time and id, by
+		 *         binary search since the timeline is in listing order
+		 */
+		private int olderThan(long time, long id) {
+			int low = 0;
+			int high = ids.size();
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (compare(middle, time, id) >= 0) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			return low;
+		}
+
+		/**
+		 * @return Positive if the bookmark at the index is newer than the time
+		 *         and id, 0 if it is the same and negative if it is older
+		 */
+		private int compare(int index, long time, long id) {
+			long other = times.get(index);
+			if (other != time) {
+				return other > time ? 1 : -1;
+			}
+			long otherId = ids.get(index);
+			return otherId == id ? 0 : otherId > id ? 1 : -1;
+		}
+	}
+}
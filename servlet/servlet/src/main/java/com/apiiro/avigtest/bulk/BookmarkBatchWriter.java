@@ -0,0 +1,201 @@
+package com.apiiro.avigtest.bulk;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import com.apiiro.avigtest.model.Bookmark;
+import com.apiiro.avigtest.model.Tag;
+import com.apiiro.avigtest.model.User;
+
+/**
+ * Writes large numbers of bookmarks through JPA in constant memory. Users and
+ * tags are looked up by name in maps of ids rather than queried, and new ones
+ * are created as they are first seen. The persistence context is flushed and
+ * cleared every <code>flushSize</code> bookmarks, letting Hibernate send the
+ * inserts as JDBC batches, while {@link #commit()} decides how much work goes
+ * in each transaction.
+ * <p/>
+ * The id maps can be shared by several writers as long as none of them needs
+ * to create new users or tags.
+ *
+ */
+public class BookmarkBatchWriter implements Closeable {
+
+	private final EntityManager entityManager;
+	private final int flushSize;
+	private final Map<String, Long> userIds;
+	private final Map<String, Long> tagIds;
+	private int unflushed;
+
+	/**
+	 * @param factory
+	 *            Factory to create the writers entity manager with
+	 * @param flushSize
+	 *            Number of bookmarks to write between flushes, this should
+	 *            match the <code>hibernate.jdbc.batch_size</code>
+	 * @param userIds
+	 *            Map of lower cased username to user id, see
+	 *            {@link #loadUserIds}
+	 * @param tagIds
+	 *            Map of tag slug to tag id, see {@link #loadTagIds}
+	 */
+	public BookmarkBatchWriter(EntityManagerFactory factory, int flushSize,
+			Map<String, Long> userIds, Map<String, Long> tagIds) {
+		this.entityManager = factory.createEntityManager();
+		this.flushSize = flushSize;
+		this.userIds = userIds;
+		this.tagIds = tagIds;
+	}
+
+	/**
+	 * Loads the ids of all the users keyed by their lower cased username, see
+	 * {@link User#keyOf(String)}, as usernames only differing by case are the
+	 * same user
+	 */
+	public static Map<String, Long> loadUserIds(EntityManagerFactory factory) {
+		return loadIds(factory, "select u.usernameKey, u.id from User u");
+	}
+
+	/**
+	 * Loads the ids of all the tags keyed by slug
+	 */
+	public static Map<String, Long> loadTagIds(EntityManagerFactory factory) {
+		return loadIds(factory, "select t.slug, t.id from Tag t");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Long> loadIds(EntityManagerFactory factory,
+			String ql) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			Map<String, Long> ids = new ConcurrentHashMap<String, Long>();
+			for (Object[] row : (List<Object[]>) em.createQuery(ql)
+					.getResultList()) {
+				if (row[0] != null) {
+					ids.put((String) row[0], (Long) row[1]);
+				}
+			}
+			return ids;
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * Adds the bookmark to the current transaction, starting one if needed
+	 *
+	 * @param record
+	 *            Bookmark to write
+	 * @return The id of the new bookmark
+	 */
+	public Long write(BookmarkRecord record) {
+		if (!entityManager.getTransaction().isActive()) {
+			entityManager.getTransaction().begin();
+		}
+		Bookmark bookmark = new Bookmark();
+		bookmark.setUrl(record.getUrl());
+		bookmark.setTitle(record.getTitle());
+		bookmark.setDescription(record.getDescription());
+		bookmark.setAddedOn(record.getAddedOn());
+		if (record.getUsername() != null) {
+			bookmark.setUser(entityManager.getReference(User.class,
+					userId(record.getUsername())));
+		}
+		for (String name : record.getTags()) {
+			// only the id is needed for the join row, and unlike a lazy
+			// reference hashing this tag by slug doesn't load it
+			Tag tag = new Tag(name);
+			tag.setId(tagId(name));
+			bookmark.getTags().add(tag);
+		}
+		entityManager.persist(bookmark);
+		if (++unflushed >= flushSize) {
+			flush();
+		}
+		return bookmark.getId();
+	}
+
+	/**
+	 * Commits the bookmarks written since the last commit
+	 */
+	public void commit() {
+		if (entityManager.getTransaction().isActive()) {
+			flush();
+			entityManager.getTransaction().commit();
+		}
+	}
+
+	/**
+	 * Commits the bookmarks written since the last commit together with the
+	 * position of the job, so the saved position always matches the
+	 * bookmarks that were committed
+	 *
+	 * @param checkpoint
+	 *            Checkpoint of the job
+	 * @param position
+	 *            Position the job has reached
+	 */
+	public void commit(Checkpoint checkpoint, long position) {
+		if (!entityManager.getTransaction().isActive()) {
+			entityManager.getTransaction().begin();
+		}
+		flush();
+		checkpoint.save(entityManager, position);
+		entityManager.getTransaction().commit();
+		entityManager.clear();
+	}
+
+	/**
+	 * Discards the bookmarks written since the last commit. Any users or tags
+	 * created in that time are discarded too, so the id maps should be
+	 * reloaded before writing again.
+	 */
+	public void rollback() {
+		if (entityManager.getTransaction().isActive()) {
+			entityManager.getTransaction().rollback();
+		}
+		entityManager.clear();
+		unflushed = 0;
+	}
+
+	public void close() {
+		rollback();
+		entityManager.close();
+	}
+
+	private void flush() {
+		entityManager.flush();
+		entityManager.clear();
+		unflushed = 0;
+	}
+
+	private Long userId(String username) {
+		String key = User.keyOf(username);
+		Long id = userIds.get(key);
+		if (id == null) {
+			User user = new User();
+			user.setUsername(username);
+			entityManager.persist(user);
+			id = user.getId();
+			userIds.put(key, id);
+		}
+		return id;
+	}
+
+	private Long tagId(String name) {
+		String slug = Tag.slugOf(name);
+		Long id = tagIds.get(slug);
+		if (id == null) {
+			Tag tag = new Tag(name);
+			entityManager.persist(tag);
+			id = tag.getId();
+			tagIds.put(slug, id);
+		}
+		return id;
+	}
+}
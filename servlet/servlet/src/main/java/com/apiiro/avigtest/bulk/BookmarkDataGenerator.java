@@ -0,0 +1,424 @@
+package com.apiiro.avigtest.bulk;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import com.apiiro.avigtest.Settings;
+import com.apiiro.avigtest.bean.DataRepositoryProducer;
+import com.apiiro.avigtest.model.Tag;
+import com.apiiro.avigtest.model.User;
+
+/**
+ * Generates large, reproducible data sets of users, tags and bookmarks for
+ * load testing and demos.
+ * <p/>
+ * The bookmarks are generated in blocks and each block uses its own random
+ * number generator seeded from the generator seed and the block number, so
+ * the same seed and end date always produce the same data no matter how many
+ * threads generate it. Blocks are handed out to a pool of threads which
+ * write them with a {@link BookmarkBatchWriter}, committing once per block.
+ * <p/>
+ * Tags are picked for each bookmark from a Zipf distribution so a few tags
+ * are very popular and most are rare, as with real bookmarks, and no tag is
+ * picked twice for the same bookmark. Dates are
+ * spread evenly over <code>dateSpreadDays</code> before the end date. All
+ * the settings can be given as <code>generator.*</code> settings when run from
+ * the command line, see <code>bookmarks.properties</code>.
+ *
+ */
+public class BookmarkDataGenerator {
+
+	private static final Logger log = Logger
+			.getLogger(BookmarkDataGenerator.class.getName());
+
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	private static final String[] TAG_NAMES = { "Java", "SQL", "JSF", "JPA",
+			"JEE", "JBoss", "Oracle", "Web", "Spring", "Swing", "JavaFX" };
+
+	private static final String[] FIRST_NAMES = { "Andy", "Sam", "Alex",
+			"Jo", "Chris", "Pat", "Lee", "Robin", "Kim", "Max" };
+
+	private static final String[] LAST_NAMES = { "Gibson", "Smith", "Jones",
+			"Brown", "Taylor", "Wilson", "Davies", "Evans", "Thomas", "Walker" };
+
+	private static final String[] WORDS = { "java", "web", "database",
+			"search", "engine", "guide", "tutorial", "article", "blog", "news",
+			"faster", "simple", "complete", "reference", "tips", "patterns",
+			"design", "server", "client", "framework", "library", "tool",
+			"performance", "cache", "index", "query", "page", "mobile",
+			"cloud", "open", "source", "project", "release", "notes", "how",
+			"to", "build", "deploy", "test", "debug", "learn", "review",
+			"best", "practices", "introduction", "advanced", "examples",
+			"video", "podcast", "book" };
+
+	private int users = 1000;
+	private int tags = 500;
+	private long bookmarks = 100000;
+	private int minTagsPerBookmark = 1;
+	private int maxTagsPerBookmark = 5;
+	private double tagSkew = 1.0;
+	private int dateSpreadDays = 365;
+	private Date endDate = startOfToday();
+	private long seed = 1;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int blockSize = 10000;
+	private int flushSize = 50;
+
+	/**
+	 * Generates the data set and writes it using the factory
+	 *
+	 * @param factory
+	 *            Factory for the database to fill
+	 * @return Number of bookmarks generated
+	 */
+	public long generate(final EntityManagerFactory factory)
+			throws InterruptedException {
+		final List<String> usernames = createUsers(factory);
+		final List<String> tagNames = createTags(factory);
+		final Map<String, Long> userIds = BookmarkBatchWriter
+				.loadUserIds(factory);
+		final Map<String, Long> tagIds = BookmarkBatchWriter
+				.loadTagIds(factory);
+		final double[] tagDistribution = zipf(tagNames.size(), tagSkew);
+
+		final int blocks = (int) ((bookmarks + blockSize - 1) / blockSize);
+		final AtomicInteger nextBlock = new AtomicInteger();
+		final AtomicLong written = new AtomicLong();
+		final long started = System.nanoTime();
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1,
+				threads));
+		List<Future<?>> workers = new ArrayList<Future<?>>();
+		for (int i = 0; i < Math.max(1, threads); i++) {
+			workers.add(executor.submit(new Runnable() {
+
+				public void run() {
+					BookmarkBatchWriter writer = new BookmarkBatchWriter(
+							factory, flushSize, userIds, tagIds);
+					try {
+						int block;
+						while ((block = nextBlock.getAndIncrement()) < blocks
+								&& !Thread.currentThread().isInterrupted()) {
+							Random random = new Random(seed * 1000003L + block);
+							long first = (long) block * blockSize;
+							long last = Math.min(bookmarks, first + blockSize);
+							for (long index = first; index < last; index++) {
+								writer.write(record(random, index, usernames,
+										tagNames, tagDistribution));
+							}
+							writer.commit();
+							log.info(progress(written.addAndGet(last - first),
+									started));
+						}
+					} finally {
+						writer.close();
+					}
+				}
+			}));
+		}
+		executor.shutdown();
+		try {
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			throw new IllegalStateException("Data generation failed",
+					e.getCause());
+		}
+		log.info(progress(written.get(), started));
+		return written.get();
+	}
+
+	private BookmarkRecord record(Random random, long index,
+			List<String> usernames, List<String> tagNames,
+			double[] tagDistribution) {
+		BookmarkRecord record = new BookmarkRecord();
+		record.setUrl("http://www.site" + random.nextInt(10000) + ".com/page/"
+				+ index);
+		record.setTitle(capitalize(words(random, 3, 7)));
+		record.setDescription(capitalize(words(random, 8, 20)));
+		record.setAddedOn(new Date(endDate.getTime()
+				- (long) (random.nextDouble() * dateSpreadDays * DAY)));
+		record.setUsername(usernames.get(random.nextInt(usernames.size())));
+		int count = Math.min(tagNames.size(), minTagsPerBookmark
+				+ random.nextInt(maxTagsPerBookmark - minTagsPerBookmark + 1));
+		// a repeated tag would be dropped by the bookmark's set of tags, so
+		// pick again until there are enough different ones
+		Set<Integer> picked = new HashSet<Integer>();
+		while (picked.size() < count) {
+			int rank = sample(tagDistribution, random.nextDouble());
+			if (picked.add(rank)) {
+				record.getTags().add(tagNames.get(rank));
+			}
+		}
+		return record;
+	}
+
+	private static String words(Random random, int min, int max) {
+		int count = min + random.nextInt(max - min + 1);
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < count; i++) {
+			if (i != 0) {
+				text.append(' ');
+			}
+			text.append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return text.toString();
+	}
+
+	private static String capitalize(String text) {
+		return Character.toUpperCase(text.charAt(0)) + text.substring(1);
+	}
+
+	/**
+	 * Builds the cumulative distribution for a Zipf distribution over n ranks
+	 */
+	static double[] zipf(int n, double skew) {
+		double[] cumulative = new double[n];
+		double total = 0;
+		for (int i = 0; i < n; i++) {
+			total += 1.0 / Math.pow(i + 1, skew);
+			cumulative[i] = total;
+		}
+		for (int i = 0; i < n; i++) {
+			cumulative[i] /= total;
+		}
+		return cumulative;
+	}
+
+	/**
+	 * @return the rank for a uniform random value in the cumulative
+	 *         distribution
+	 */
+	static int sample(double[] cumulative, double value) {
+		int low = 0;
+		int high = cumulative.length - 1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (cumulative[mid] < value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	private List<String> createUsers(EntityManagerFactory factory) {
+		Map<String, Long> existing = BookmarkBatchWriter.loadUserIds(factory);
+		List<String> usernames = new ArrayList<String>(users);
+		EntityManager em = factory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			for (int i = 1; i <= users; i++) {
+				String username = "user" + i;
+				usernames.add(username);
+				if (!existing.containsKey(User.keyOf(username))) {
+					User user = new User();
+					user.setUsername(username);
+					user.setPassword("pass" + i);
+					user.setFirstName(FIRST_NAMES[i % FIRST_NAMES.length]);
+					user.setLastName(LAST_NAMES[(i / FIRST_NAMES.length)
+							% LAST_NAMES.length]);
+					em.persist(user);
+					if (i % flushSize == 0) {
+						em.flush();
+						em.clear();
+					}
+				}
+			}
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+		return usernames;
+	}
+
+	private List<String> createTags(EntityManagerFactory factory) {
+		Map<String, Long> existing = BookmarkBatchWriter.loadTagIds(factory);
+		List<String> names = new ArrayList<String>(tags);
+		EntityManager em = factory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			for (int i = 0; i < tags; i++) {
+				String name = i < TAG_NAMES.length ? TAG_NAMES[i] : "Tag " + i;
+				names.add(name);
+				if (!existing.containsKey(Tag.slugOf(name))) {
+					em.persist(new Tag(name));
+					if (i % flushSize == 0) {
+						em.flush();
+						em.clear();
+					}
+				}
+			}
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+		return names;
+	}
+
+	private static String progress(long written, long started) {
+		double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+		return String.format("Generated %d bookmarks in %.1fs (%.0f rows/s)",
+				written, seconds, written / seconds);
+	}
+
+	private static Date startOfToday() {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTime();
+	}
+
+	public int getUsers() {
+		return users;
+	}
+
+	public void setUsers(int users) {
+		this.users = users;
+	}
+
+	public int getTags() {
+		return tags;
+	}
+
+	public void setTags(int tags) {
+		this.tags = tags;
+	}
+
+	public long getBookmarks() {
+		return bookmarks;
+	}
+
+	public void setBookmarks(long bookmarks) {
+		this.bookmarks = bookmarks;
+	}
+
+	public int getMinTagsPerBookmark() {
+		return minTagsPerBookmark;
+	}
+
+	public void setMinTagsPerBookmark(int minTagsPerBookmark) {
+		this.minTagsPerBookmark = minTagsPerBookmark;
+	}
+
+	public int getMaxTagsPerBookmark() {
+		return maxTagsPerBookmark;
+	}
+
+	public void setMaxTagsPerBookmark(int maxTagsPerBookmark) {
+		this.maxTagsPerBookmark = maxTagsPerBookmark;
+	}
+
+	public double getTagSkew() {
+		return tagSkew;
+	}
+
+	public void setTagSkew(double tagSkew) {
+		this.tagSkew = tagSkew;
+	}
+
+	public int getDateSpreadDays() {
+		return dateSpreadDays;
+	}
+
+	public void setDateSpreadDays(int dateSpreadDays) {
+		this.dateSpreadDays = dateSpreadDays;
+	}
+
+	public Date getEndDate() {
+		return endDate;
+	}
+
+	public void setEndDate(Date endDate) {
+		this.endDate = endDate;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	public int getFlushSize() {
+		return flushSize;
+	}
+
+	public void setFlushSize(int flushSize) {
+		this.flushSize = flushSize;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		BookmarkDataGenerator generator = new BookmarkDataGenerator();
+		generator.setUsers(Settings.getInt("generator.users",
+				generator.getUsers()));
+		generator.setTags(Settings.getInt("generator.tags", generator.getTags()));
+		generator.setBookmarks(Settings.getLong("generator.bookmarks",
+				generator.getBookmarks()));
+		generator.setMinTagsPerBookmark(Settings.getInt("generator.minTags",
+				generator.getMinTagsPerBookmark()));
+		generator.setMaxTagsPerBookmark(Settings.getInt("generator.maxTags",
+				generator.getMaxTagsPerBookmark()));
+		generator.setTagSkew(Double.parseDouble(Settings.getString(
+				"generator.tagSkew", String.valueOf(generator.getTagSkew()))));
+		generator.setDateSpreadDays(Settings.getInt(
+				"generator.dateSpreadDays", generator.getDateSpreadDays()));
+		String endDate = Settings.getString("generator.endDate", null);
+		if (endDate != null) {
+			generator.setEndDate(BookmarkRecordReader.parseDate(endDate));
+		}
+		generator.setSeed(Settings.getLong("generator.seed", generator.getSeed()));
+		generator.setThreads(Settings.getInt("generator.threads",
+				generator.getThreads()));
+		generator.setFlushSize(Settings.getInt("import.flushSize",
+				generator.getFlushSize()));
+
+		EntityManagerFactory factory = DataRepositoryProducer
+				.createEntityManagerFactory();
+		try {
+			generator.generate(factory);
+		} finally {
+			factory.close();
+		}
+	}
+}
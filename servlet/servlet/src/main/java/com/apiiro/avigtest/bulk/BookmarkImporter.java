@@ -0,0 +1,177 @@
+package com.apiiro.avigtest.bulk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManagerFactory;
+
+import com.apiiro.avigtest.Settings;
+import com.apiiro.avigtest.bean.DataRepositoryProducer;
+
+/**
+ * Imports bookmarks from CSV or NDJSON files (see {@link CsvBookmarkReader}
+ * and {@link NdjsonBookmarkReader}) into the bookmark store.
+ * <p/>
+ * Files are streamed and written with a {@link BookmarkBatchWriter} in
+ * transactions of <code>import.chunkSize</code> records, so memory use does
+ * not grow with the size of the file. Each chunk is committed along with the
+ * number of records read so far, saved as the file's {@link Checkpoint}, so
+ * a restarted import skips straight past the records that were committed and
+ * imports the rest exactly once. Run with <code>-restart</code> to import
+ * the files from the start again.
+ * <p/>
+ * The importer only runs against a persistent database
+ * (<code>db.profile=file</code>, see {@link DataRepositoryProducer}), the
+ * default in memory one would be dropped with everything imported when it
+ * exits. The application must be stopped while it runs, as the database
+ * files can only be opened by one process.
+ * <p/>
+ * Records with missing fields are logged and skipped. Users and tags that
+ * don't exist yet are created. Since the import bypasses the
+ * {@link com.apiiro.avigtest.bean.BookmarkDao}, a running application picks up
+ * the new counts when its counters are next reconciled.
+ * 
+ * <pre>
+ * java com.apiiro.avigtest.bulk.BookmarkImporter [-restart] bookmarks.csv more.ndjson
+ * </pre>
+ *
+ */
+public class BookmarkImporter {
+
+	private static final Logger log = Logger.getLogger(BookmarkImporter.class
+			.getName());
+
+	private final EntityManagerFactory factory;
+	private final int chunkSize;
+	private final int flushSize;
+
+	public BookmarkImporter(EntityManagerFactory factory) {
+		this(factory, Settings.getInt("import.chunkSize", 5000), Settings
+				.getInt("import.flushSize", 50));
+	}
+
+	public BookmarkImporter(EntityManagerFactory factory, int chunkSize,
+			int flushSize) {
+		this.factory = factory;
+		this.chunkSize = chunkSize;
+		this.flushSize = flushSize;
+	}
+
+	/**
+	 * Imports the bookmarks in the file, resuming from its checkpoint if there
+	 * is one.
+	 *
+	 * @param file
+	 *            CSV or NDJSON file to import
+	 * @return Number of bookmarks imported by this run
+	 * @throws IOException
+	 *             if the file can't be read
+	 */
+	public long importFile(File file) throws IOException {
+		Checkpoint checkpoint = checkpoint(file);
+		long position = checkpoint.load();
+		long imported = 0;
+		long invalid = 0;
+		long started = System.nanoTime();
+
+		Map<String, Long> userIds = BookmarkBatchWriter.loadUserIds(factory);
+		Map<String, Long> tagIds = BookmarkBatchWriter.loadTagIds(factory);
+		BookmarkRecordReader reader = BookmarkRecordReader.open(file);
+		BookmarkBatchWriter writer = new BookmarkBatchWriter(factory,
+				flushSize, userIds, tagIds);
+		try {
+			if (position > 0) {
+				log.info("Resuming import of " + file + " after " + position
+						+ " records");
+				reader.skip(position);
+			}
+			int inChunk = 0;
+			while (true) {
+				BookmarkRecord record;
+				try {
+					record = reader.read();
+					if (record == null) {
+						break;
+					}
+					validate(record);
+				} catch (IllegalArgumentException e) {
+					log.warning("Skipping line " + reader.getLineNumber()
+							+ " of " + file + " : " + e.getMessage());
+					invalid++;
+					record = null;
+				}
+				if (record != null) {
+					writer.write(record);
+					imported++;
+				}
+				if (++inChunk == chunkSize) {
+					position += inChunk;
+					inChunk = 0;
+					writer.commit(checkpoint, position);
+					log.info(progress(file, imported, started));
+				}
+			}
+			writer.commit(checkpoint, position + inChunk);
+		} finally {
+			writer.close();
+			reader.close();
+		}
+		log.info(progress(file, imported, started) + ", skipped " + invalid
+				+ " invalid records");
+		return imported;
+	}
+
+	/**
+	 * @return The checkpoint of the file, named by its full path
+	 */
+	public Checkpoint checkpoint(File file) throws IOException {
+		return new Checkpoint(factory, "import " + file.getCanonicalPath());
+	}
+
+	private static void validate(BookmarkRecord record) {
+		if (isEmpty(record.getUrl()) || isEmpty(record.getTitle())
+				|| isEmpty(record.getDescription())) {
+			throw new IllegalArgumentException(
+					"url, title and description are required");
+		}
+	}
+
+	private static boolean isEmpty(String value) {
+		return value == null || value.trim().length() == 0;
+	}
+
+	private static String progress(File file, long imported, long started) {
+		double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+		return String.format("Imported %d bookmarks from %s in %.1fs (%.0f rows/s)",
+				imported, file.getName(), seconds, imported / seconds);
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean restart = args.length > 0 && args[0].equals("-restart");
+		if (args.length == (restart ? 1 : 0)) {
+			System.err.println("Usage : BookmarkImporter [-restart] file.csv|file.ndjson ...");
+			System.exit(1);
+		}
+		if (!DataRepositoryProducer.isPersistent()) {
+			System.err.println("BookmarkImporter needs a persistent database, "
+					+ "set db.profile=file and db.url");
+			System.exit(1);
+		}
+		EntityManagerFactory factory = DataRepositoryProducer
+				.createEntityManagerFactory();
+		try {
+			BookmarkImporter importer = new BookmarkImporter(factory);
+			for (int i = restart ? 1 : 0; i < args.length; i++) {
+				File file = new File(args[i]);
+				if (restart) {
+					importer.checkpoint(file).clear();
+				}
+				importer.importFile(file);
+			}
+		} finally {
+			factory.close();
+		}
+	}
+}
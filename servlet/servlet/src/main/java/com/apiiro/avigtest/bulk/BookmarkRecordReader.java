@@ -0,0 +1,160 @@
+package com.apiiro.avigtest.bulk;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Streams {@link BookmarkRecord} instances out of an import file one line at a
+ * time so files of any size can be read in constant memory. Use
+ * {@link #open(File)} to get the reader matching the file extension,
+ * <code>.csv</code> or <code>.ndjson</code>/<code>.jsonl</code>.
+ *
+ */
+public abstract class BookmarkRecordReader implements Closeable {
+
+	private final BufferedReader reader;
+	private long lineNumber;
+
+	protected BookmarkRecordReader(BufferedReader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Opens a reader for the file based on its extension
+	 *
+	 * @param file
+	 *            File to read
+	 * @return Reader for the file
+	 * @throws IOException
+	 *             if the file can't be opened
+	 */
+	public static BookmarkRecordReader open(File file) throws IOException {
+		String name = file.getName().toLowerCase();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), "UTF-8"), 64 * 1024);
+		if (name.endsWith(".csv")) {
+			return new CsvBookmarkReader(reader);
+		}
+		if (name.endsWith(".ndjson") || name.endsWith(".jsonl")) {
+			return new NdjsonBookmarkReader(reader);
+		}
+		reader.close();
+		throw new IllegalArgumentException("Unknown import file type : "
+				+ file);
+	}
+
+	/**
+	 * Reads the next record
+	 *
+	 * @return The next record or null at the end of the file
+	 * @throws IOException
+	 *             if the file can't be read
+	 * @throws IllegalArgumentException
+	 *             if the record is not valid, the reader can carry on with the
+	 *             next record
+	 */
+	public BookmarkRecord read() throws IOException {
+		String line;
+		do {
+			line = nextLine();
+			if (line == null) {
+				return null;
+			}
+		} while (line.trim().length() == 0);
+		return parse(line);
+	}
+
+	/**
+	 * Skips over a number of records, used to resume an import
+	 *
+	 * @param count
+	 *            Number of records to skip
+	 * @return Number of records actually skipped
+	 */
+	public long skip(long count) throws IOException {
+		long skipped = 0;
+		while (skipped < count) {
+			String line = nextLine();
+			if (line == null) {
+				break;
+			}
+			if (line.trim().length() != 0) {
+				skipped++;
+			}
+		}
+		return skipped;
+	}
+
+	/**
+	 * @return Line number of the last line read
+	 */
+	public long getLineNumber() {
+		return lineNumber;
+	}
+
+	public void close() throws IOException {
+		reader.close();
+	}
+
+	protected String nextLine() throws IOException {
+		String line = reader.readLine();
+		if (line != null) {
+			lineNumber++;
+		}
+		return line;
+	}
+
+	/**
+	 * Converts a line of the file into a record
+	 */
+	protected abstract BookmarkRecord parse(String line);
+
+	/**
+	 * Parses the date added, either as epoch milliseconds or an ISO-8601 UTC
+	 * date or date and time.
+	 */
+	protected static Date parseDate(String value) {
+		if (value == null || value.length() == 0) {
+			return new Date();
+		}
+		if (isDigits(value)) {
+			return new Date(Long.parseLong(value));
+		}
+		String pattern = value.length() <= 10 ? "yyyy-MM-dd"
+				: "yyyy-MM-dd'T'HH:mm:ss";
+		SimpleDateFormat format = new SimpleDateFormat(pattern);
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+		try {
+			return format.parse(value);
+		} catch (ParseException e) {
+			throw new IllegalArgumentException("Invalid date : " + value);
+		}
+	}
+
+	private static boolean isDigits(String value) {
+		for (int i = 0; i < value.length(); i++) {
+			if (!Character.isDigit(value.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	protected static void addTags(BookmarkRecord record, String tags) {
+		if (tags != null) {
+			for (String tag : tags.split("\\|")) {
+				if (tag.trim().length() != 0) {
+					record.getTags().add(tag.trim());
+				}
+			}
+		}
+	}
+}
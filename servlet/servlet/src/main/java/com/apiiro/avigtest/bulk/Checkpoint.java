@@ -0,0 +1,89 @@
+package com.apiiro.avigtest.bulk;
+
+import java.util.Date;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import com.apiiro.avigtest.model.JobCheckpoint;
+
+/**
+ * Records how far a long running job has got so it can pick up where it left
+ * off after a restart. The position is a {@link JobCheckpoint} row that the
+ * job saves in the same transaction as the work it has done, so after a
+ * crash the position always matches what was committed and no work is done
+ * twice or skipped.
+ *
+ */
+public class Checkpoint {
+
+	private final EntityManagerFactory factory;
+	private final String name;
+
+	/**
+	 * @param factory
+	 *            Factory of the database the job writes to
+	 * @param name
+	 *            Name identifying the job and what it works on
+	 */
+	public Checkpoint(EntityManagerFactory factory, String name) {
+		this.factory = factory;
+		this.name = name;
+	}
+
+	/**
+	 * @return The last saved position, or zero if there isn't one
+	 */
+	public long load() {
+		EntityManager em = factory.createEntityManager();
+		try {
+			JobCheckpoint checkpoint = em.find(JobCheckpoint.class, name);
+			return checkpoint == null ? 0 : checkpoint.getPosition();
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * Saves the position, replacing the previous one, in the transaction the
+	 * entity manager has open. It is only saved if that transaction commits.
+	 *
+	 * @param em
+	 *            Entity manager with the job's transaction active
+	 * @param position
+	 *            Position to save
+	 */
+	public void save(EntityManager em, long position) {
+		JobCheckpoint checkpoint = em.find(JobCheckpoint.class, name);
+		if (checkpoint == null) {
+			checkpoint = new JobCheckpoint(name);
+			em.persist(checkpoint);
+		}
+		checkpoint.setPosition(position);
+		checkpoint.setSavedOn(new Date());
+	}
+
+	/**
+	 * Removes the checkpoint so the job starts from the beginning next time
+	 */
+	public void clear() {
+		EntityManager em = factory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			JobCheckpoint checkpoint = em.find(JobCheckpoint.class, name);
+			if (checkpoint != null) {
+				em.remove(checkpoint);
+			}
+			em.getTransaction().commit();
+		} finally {
+			if (em.getTransaction().isActive()) {
+				em.getTransaction().rollback();
+			}
+			em.close();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+}
@@ -0,0 +1,108 @@
+package com.apiiro.avigtest.bulk;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads bookmarks from a CSV file. The first line is a header naming the
+ * columns, from <code>url, title, description, addedOn, username, tags</code>
+ * in any order. Values may be quoted with double quotes, and multiple tags
+ * are separated with a <code>|</code>. Each record must be on a single line.
+ *
+ */
+public class CsvBookmarkReader extends BookmarkRecordReader {
+
+	private Map<String, Integer> columns;
+
+	public CsvBookmarkReader(BufferedReader reader) {
+		super(reader);
+	}
+
+	@Override
+	public BookmarkRecord read() throws IOException {
+		readHeader();
+		return super.read();
+	}
+
+	@Override
+	public long skip(long count) throws IOException {
+		readHeader();
+		return super.skip(count);
+	}
+
+	private void readHeader() throws IOException {
+		if (columns == null) {
+			columns = new HashMap<String, Integer>();
+			String header = nextLine();
+			if (header != null) {
+				List<String> names = split(header);
+				for (int i = 0; i < names.size(); i++) {
+					columns.put(names.get(i).trim().toLowerCase(), i);
+				}
+			}
+			if (!columns.containsKey("url")) {
+				throw new IllegalArgumentException(
+						"CSV header must include a url column");
+			}
+		}
+	}
+
+	@Override
+	protected BookmarkRecord parse(String line) {
+		List<String> values = split(line);
+		BookmarkRecord record = new BookmarkRecord();
+		record.setUrl(value(values, "url"));
+		record.setTitle(value(values, "title"));
+		record.setDescription(value(values, "description"));
+		record.setAddedOn(parseDate(value(values, "addedon")));
+		record.setUsername(value(values, "username"));
+		addTags(record, value(values, "tags"));
+		return record;
+	}
+
+	private String value(List<String> values, String column) {
+		Integer index = columns.get(column);
+		return index == null || index >= values.size() ? null : values.get(
+				index).trim();
+	}
+
+	/**
+	 * Splits a line on commas outside of quotes
+	 */
+	static List<String> split(String line) {
+		List<String> values = new ArrayList<String>();
+		StringBuilder value = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"') {
+					if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+						value.append('"');
+						i++;
+					} else {
+						quoted = false;
+					}
+				} else {
+					value.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				values.add(value.toString());
+				value.setLength(0);
+			} else {
+				value.append(c);
+			}
+		}
+		if (quoted) {
+			throw new IllegalArgumentException("Unterminated quote");
+		}
+		values.add(value.toString());
+		return values;
+	}
+}
@@ -0,0 +1,325 @@
+package com.apiiro.avigtest.bulk;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+
+import org.hibernate.Session;
+import org.hibernate.jdbc.Work;
+
+import com.apiiro.avigtest.AsyncExecutors;
+import com.apiiro.avigtest.Settings;
+import com.apiiro.avigtest.bean.DataRepositoryProducer;
+
+/**
+ * Checks that the bookmark URLs still answer and records the HTTP status and
+ * time of each check on the bookmark (see
+ * {@link com.apiiro.avigtest.model.Bookmark#isLinkDead()}).
+ * <p/>
+ * Bookmarks are read a page of <code>links.pageSize</code> at a time in id
+ * order and their URLs are checked at the same time on the executor given by
+ * <code>links.executor</code> (see {@link AsyncExecutors}), with at most
+ * <code>links.perHost</code> requests to any one host at once. Each URL is
+ * sent a HEAD request, or a GET if the server doesn't allow HEAD, with
+ * <code>links.timeoutMillis</code> to connect and for each read. The
+ * statuses of a page are written in one JDBC batch, in the same transaction
+ * as the last id of the page is saved in a {@link Checkpoint}, so a restarted
+ * run carries on after the last page written. The checkpoint is removed once
+ * every bookmark has been checked.
+ * <p/>
+ * The application runs the checks itself every <code>links.runHours</code>
+ * (see {@link com.apiiro.avigtest.bean.LinkChecks}). Run on its own, like the
+ * {@link BookmarkImporter}, it needs a persistent database and the
+ * application must be stopped, as the database files can only be opened by
+ * one process.
+ *
+ * <pre>
+ * java com.apiiro.avigtest.bulk.LinkChecker
+ * </pre>
+ *
+ */
+public class LinkChecker {
+
+	private static final Logger log = Logger.getLogger(LinkChecker.class
+			.getName());
+
+	/**
+	 * Status recorded when the server couldn't be reached or didn't answer in
+	 * time
+	 */
+	public static final int UNREACHABLE = 0;
+
+	/**
+	 * Status recorded when the URL isn't an http or https URL
+	 */
+	public static final int NOT_A_WEB_LINK = -1;
+
+	/**
+	 * Name of the checkpoint of the checks of all the bookmarks
+	 */
+	public static final String CHECKPOINT = "link checker";
+
+	private static final String UPDATE_STATUS = "update BOOKMARKS set linkStatus = ?, linkCheckedOn = ? where id = ?";
+
+	private final EntityManagerFactory factory;
+	private final int pageSize;
+	private final int perHost;
+	private final int timeoutMillis;
+	private final String executorKind;
+	private final int threads;
+
+	/**
+	 * Requests allowed to each host of the page being checked
+	 */
+	private final ConcurrentMap<String, Semaphore> hosts = new ConcurrentHashMap<String, Semaphore>();
+
+	public LinkChecker(EntityManagerFactory factory) {
+		this(factory, Settings.getInt("links.pageSize", 500), Settings.getInt(
+				"links.perHost", 2), Settings.getInt("links.timeoutMillis",
+				5000), Settings.getString("links.executor",
+				AsyncExecutors.VIRTUAL), Settings.getInt("links.threads", 64));
+	}
+
+	public LinkChecker(EntityManagerFactory factory, int pageSize,
+			int perHost, int timeoutMillis, String executorKind, int threads) {
+		this.factory = factory;
+		this.pageSize = pageSize;
+		this.perHost = perHost;
+		this.timeoutMillis = timeoutMillis;
+		this.executorKind = executorKind;
+		this.threads = threads;
+	}
+
+	/**
+	 * Checks the bookmarks after the checkpoint, or all of them if there isn't
+	 * one
+	 *
+	 * @param checkpoint
+	 *            Id of the last bookmark checked
+	 * @return Number of bookmarks checked by this run
+	 * @throws InterruptedException
+	 *             if the thread is interrupted, the checkpoint is left at the
+	 *             last page written
+	 */
+	public long checkAll(Checkpoint checkpoint) throws InterruptedException {
+		long lastId = checkpoint.load();
+		if (lastId > 0) {
+			log.info("Resuming link check after bookmark " + lastId);
+		}
+		long checked = 0;
+		long started = System.nanoTime();
+		ExecutorService executor = AsyncExecutors.create("link-checker",
+				executorKind, threads);
+		try {
+			while (true) {
+				List<Object[]> page = page(lastId);
+				if (page.isEmpty()) {
+					break;
+				}
+				int[] statuses = check(executor, page);
+				lastId = (Long) page.get(page.size() - 1)[0];
+				write(page, statuses, checkpoint, lastId);
+				checked += page.size();
+				log.info(progress(checked, started));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		checkpoint.clear();
+		return checked;
+	}
+
+	/**
+	 * Checks a URL, waiting while the host already has
+	 * <code>links.perHost</code> requests open
+	 *
+	 * @param url
+	 *            URL to check
+	 * @return The HTTP status, {@link #UNREACHABLE} or {@link #NOT_A_WEB_LINK}
+	 */
+	public int check(String url) throws InterruptedException {
+		URL parsed;
+		try {
+			parsed = new URL(url);
+		} catch (MalformedURLException e) {
+			return NOT_A_WEB_LINK;
+		}
+		String protocol = parsed.getProtocol().toLowerCase(Locale.ENGLISH);
+		String host = parsed.getHost().toLowerCase(Locale.ENGLISH);
+		if (!(protocol.equals("http") || protocol.equals("https"))
+				|| host.length() == 0) {
+			return NOT_A_WEB_LINK;
+		}
+		Semaphore permits = permits(host);
+		permits.acquire();
+		try {
+			int status = request(parsed, "HEAD");
+			if (status == HttpURLConnection.HTTP_BAD_METHOD
+					|| status == HttpURLConnection.HTTP_NOT_IMPLEMENTED) {
+				status = request(parsed, "GET");
+			}
+			return status;
+		} catch (IOException e) {
+			return UNREACHABLE;
+		} finally {
+			permits.release();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private List<Object[]> page(long lastId) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			return em
+					.createQuery(
+							"select b.id, b.url from Bookmark b where b.id > :lastId order by b.id")
+					.setParameter("lastId", lastId).setMaxResults(pageSize)
+					.getResultList();
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * Checks the URLs of a page at the same time
+	 *
+	 * @return The statuses in the order of the page
+	 */
+	private int[] check(ExecutorService executor, List<Object[]> page)
+			throws InterruptedException {
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>(page
+				.size());
+		for (Object[] row : page) {
+			final String url = (String) row[1];
+			results.add(executor.submit(new Callable<Integer>() {
+
+				public Integer call() throws InterruptedException {
+					return url == null ? NOT_A_WEB_LINK : check(url);
+				}
+			}));
+		}
+		int[] statuses = new int[page.size()];
+		try {
+			for (int i = 0; i < statuses.length; i++) {
+				statuses[i] = results.get(i).get();
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Link check failed", e.getCause());
+		} finally {
+			// the hosts of the next page start afresh
+			hosts.clear();
+		}
+		return statuses;
+	}
+
+	private int request(URL url, String method) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) url
+				.openConnection();
+		try {
+			connection.setRequestMethod(method);
+			connection.setConnectTimeout(timeoutMillis);
+			connection.setReadTimeout(timeoutMillis);
+			connection.setUseCaches(false);
+			connection.setRequestProperty("User-Agent", "bookmarks-link-checker");
+			int status = connection.getResponseCode();
+			// not a valid HTTP response
+			return status < 100 ? UNREACHABLE : status;
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	private Semaphore permits(String host) {
+		Semaphore permits = hosts.get(host);
+		if (permits == null) {
+			Semaphore created = new Semaphore(perHost);
+			permits = hosts.putIfAbsent(host, created);
+			if (permits == null) {
+				permits = created;
+			}
+		}
+		return permits;
+	}
+
+	/**
+	 * Writes the statuses of a page and the checkpoint in one transaction
+	 */
+	private void write(final List<Object[]> page, final int[] statuses,
+			Checkpoint checkpoint, long lastId) {
+		final Timestamp checkedOn = new Timestamp(System.currentTimeMillis());
+		EntityManager em = factory.createEntityManager();
+		EntityTransaction transaction = em.getTransaction();
+		try {
+			transaction.begin();
+			((Session) em.getDelegate()).doWork(new Work() {
+
+				public void execute(Connection connection) throws SQLException {
+					PreparedStatement update = connection
+							.prepareStatement(UPDATE_STATUS);
+					try {
+						for (int i = 0; i < statuses.length; i++) {
+							update.setInt(1, statuses[i]);
+							update.setTimestamp(2, checkedOn);
+							update.setLong(3, (Long) page.get(i)[0]);
+							update.addBatch();
+						}
+						update.executeBatch();
+					} finally {
+						update.close();
+					}
+				}
+			});
+			checkpoint.save(em, lastId);
+			transaction.commit();
+		} catch (RuntimeException e) {
+			if (transaction.isActive()) {
+				transaction.rollback();
+			}
+			throw e;
+		} finally {
+			em.close();
+		}
+	}
+
+	private static String progress(long checked, long started) {
+		double seconds = Math.max(System.nanoTime() - started, 1) / 1e9;
+		return String.format("Checked %d links in %.1fs (%.0f links/s)",
+				checked, seconds, checked / seconds);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (!DataRepositoryProducer.isPersistent()) {
+			System.err.println("LinkChecker needs a persistent database, "
+					+ "set db.profile=file and db.url");
+			System.exit(1);
+		}
+		EntityManagerFactory factory = DataRepositoryProducer
+				.createEntityManagerFactory();
+		try {
+			new LinkChecker(factory).checkAll(new Checkpoint(factory,
+					CHECKPOINT));
+		} finally {
+			factory.close();
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.apiiro.avigtest.bulk;
+
+import java.io.BufferedReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads bookmarks from a newline delimited JSON file with one flat object
+ * per line, for example :
+ * 
+ * <pre>
+ * {"url":"http://example.com","title":"Example","description":"An example","addedOn":"2010-05-01T10:00:00","username":"user1","tags":["Java","Web"]}
+ * </pre>
+ * 
+ * Values can be strings, numbers, booleans, null or arrays of those. Nested
+ * objects are not supported.
+ *
+ */
+public class NdjsonBookmarkReader extends BookmarkRecordReader {
+
+	public NdjsonBookmarkReader(BufferedReader reader) {
+		super(reader);
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	protected BookmarkRecord parse(String line) {
+		Map<String, Object> values = new Parser(line).parseObject();
+		BookmarkRecord record = new BookmarkRecord();
+		record.setUrl(string(values.get("url")));
+		record.setTitle(string(values.get("title")));
+		record.setDescription(string(values.get("description")));
+		record.setAddedOn(parseDate(string(values.get("addedOn"))));
+		record.setUsername(string(values.get("username")));
+		Object tags = values.get("tags");
+		if (tags instanceof List) {
+			for (Object tag : (List<Object>) tags) {
+				addTags(record, string(tag));
+			}
+		} else {
+			addTags(record, string(tags));
+		}
+		return record;
+	}
+
+	private static String string(Object value) {
+		return value == null ? null : value.toString();
+	}
+
+	/**
+	 * Minimal parser for a single flat JSON object
+	 */
+	private static class Parser {
+
+		private final String text;
+		private int pos;
+
+		Parser(String text) {
+			this.text = text;
+		}
+
+		Map<String, Object> parseObject() {
+			Map<String, Object> values = new HashMap<String, Object>();
+			expect('{');
+			if (peek() == '}') {
+				pos++;
+			} else {
+				do {
+					String key = parseString();
+					expect(':');
+					values.put(key, parseValue(true));
+				} while (next() == ',');
+				pos--;
+				expect('}');
+			}
+			return values;
+		}
+
+		private Object parseValue(boolean allowArray) {
+			char c = peek();
+			if (c == '"') {
+				return parseString();
+			}
+			if (c == '[' && allowArray) {
+				pos++;
+				List<Object> values = new ArrayList<Object>();
+				if (peek() == ']') {
+					pos++;
+					return values;
+				}
+				do {
+					values.add(parseValue(false));
+				} while (next() == ',');
+				pos--;
+				expect(']');
+				return values;
+			}
+			int start = pos;
+			while (pos < text.length() && ",}] \t".indexOf(text.charAt(pos)) < 0) {
+				pos++;
+			}
+			String literal = text.substring(start, pos);
+			if (literal.equals("null")) {
+				return null;
+			}
+			if (literal.equals("true") || literal.equals("false")
+					|| literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")) {
+				return literal;
+			}
+			throw error("Unexpected value " + literal);
+		}
+
+		private String parseString() {
+			expect('"');
+			StringBuilder value = new StringBuilder();
+			while (pos < text.length()) {
+				char c = text.charAt(pos++);
+				if (c == '"') {
+					return value.toString();
+				}
+				if (c == '\\') {
+					if (pos >= text.length()) {
+						break;
+					}
+					char escaped = text.charAt(pos++);
+					switch (escaped) {
+					case 'n':
+						value.append('\n');
+						break;
+					case 't':
+						value.append('\t');
+						break;
+					case 'r':
+						value.append('\r');
+						break;
+					case 'b':
+						value.append('\b');
+						break;
+					case 'f':
+						value.append('\f');
+						break;
+					case 'u':
+						if (pos + 4 > text.length()) {
+							throw error("Invalid unicode escape");
+						}
+						value.append((char) Integer.parseInt(text.substring(
+								pos, pos + 4), 16));
+						pos += 4;
+						break;
+					default:
+						value.append(escaped);
+					}
+				} else {
+					value.append(c);
+				}
+			}
+			throw error("Unterminated string");
+		}
+
+		private void expect(char expected) {
+			if (next() != expected) {
+				throw error("Expected '" + expected + "'");
+			}
+		}
+
+		private char next() {
+			char c = peek();
+			pos++;
+			return c;
+		}
+
+		private char peek() {
+			while (pos < text.length()
+					&& Character.isWhitespace(text.charAt(pos))) {
+				pos++;
+			}
+			return pos < text.length() ? text.charAt(pos) : 0;
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at column "
+					+ (pos + 1));
+		}
+	}
+}
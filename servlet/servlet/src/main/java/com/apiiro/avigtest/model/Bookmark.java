@@ -3,7 +3,10 @@ package com.apiiro.avigtest.model;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
@@ -14,6 +17,11 @@ import javax.persistence.JoinColumn;
 import javax.persistence.JoinTable;
 import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.OrderBy;
+import javax.persistence.QueryHint;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
@@ -24,18 +32,63 @@ import org.hibernate.validator.constraints.NotEmpty;
  * This entity contains the bookmark information such as URL, title,
  * description, date added and so on. It belongs to a {@link User} and has a
  * number of {@link Tag} objects assigned to it.
+ * <p/>
+ * The listing queries are named queries so they are parsed and checked once
+ * when the persistence unit starts. There is a page id query for each
+ * combination of the tag and user filters, each in three forms: the first
+ * page, the page older than a cursor and the page newer than a cursor. They
+ * are written to use the indexes created by the V2 schema migration.
+ * <p/>
+ * The click count is only written by the
+ * {@link com.apiiro.avigtest.bean.ClickCounters}, which adds the clicks it
+ * has counted in batches, so saving a bookmark never overwrites it. The link
+ * status is likewise only written by the
+ * {@link com.apiiro.avigtest.bulk.LinkChecker}.
  * 
  * @author Andy Gibson
  * 
  */
 @Entity
 @Table(name = "BOOKMARKS")
+@NamedQueries({
+		@NamedQuery(name = "Bookmark.pageIds", query = Bookmark.SELECT_IDS + Bookmark.NEWEST_FIRST),
+		@NamedQuery(name = "Bookmark.pageIds.older", query = Bookmark.SELECT_IDS + "where " + Bookmark.OLDER + Bookmark.NEWEST_FIRST),
+		@NamedQuery(name = "Bookmark.pageIds.newer", query = Bookmark.SELECT_IDS + "where " + Bookmark.NEWER + Bookmark.OLDEST_FIRST),
+		@NamedQuery(name = "Bookmark.pageIdsByTag", query = Bookmark.SELECT_TAG_IDS + Bookmark.NEWEST_FIRST),
+		@NamedQuery(name = "Bookmark.pageIdsByTag.older", query = Bookmark.SELECT_TAG_IDS + "and " + Bookmark.OLDER + Bookmark.NEWEST_FIRST),
+		@NamedQuery(name = "Bookmark.pageIdsByTag.newer", query = Bookmark.SELECT_TAG_IDS + "and " + Bookmark.NEWER + Bookmark.OLDEST_FIRST),
+		@NamedQuery(name = "Bookmark.pageIdsByUser", query = Bookmark.SELECT_USER_IDS + Bookmark.NEWEST_FIRST),
+		@NamedQuery(name = "Bookmark.pageIdsByUser.older", query = Bookmark.SELECT_USER_IDS + "and " + Bookmark.OLDER + Bookmark.NEWEST_FIRST),
+		@NamedQuery(name = "Bookmark.pageIdsByUser.newer", query = Bookmark.SELECT_USER_IDS + "and " + Bookmark.NEWER + Bookmark.OLDEST_FIRST),
+		@NamedQuery(name = "Bookmark.pageIdsByTagAndUser", query = Bookmark.SELECT_TAG_AND_USER_IDS + Bookmark.NEWEST_FIRST),
+		@NamedQuery(name = "Bookmark.pageIdsByTagAndUser.older", query = Bookmark.SELECT_TAG_AND_USER_IDS + "and " + Bookmark.OLDER + Bookmark.NEWEST_FIRST),
+		@NamedQuery(name = "Bookmark.pageIdsByTagAndUser.newer", query = Bookmark.SELECT_TAG_AND_USER_IDS + "and " + Bookmark.NEWER + Bookmark.OLDEST_FIRST),
+		@NamedQuery(name = "Bookmark.fetchByIds", query = "select distinct b from Bookmark b left join fetch b.user left join fetch b.tags where b.id in (:ids)"),
+		@NamedQuery(name = "Bookmark.rowsByIds", query = "select new com.apiiro.avigtest.model.BookmarkRow(b.id, b.url, b.title, b.description, b.addedOn, u.username) "
+				+ "from Bookmark b left join b.user u where b.id in (:ids)", hints = @QueryHint(name = "org.hibernate.readOnly", value = "true")),
+		@NamedQuery(name = "Bookmark.tagRowsByIds", query = "select b.id, t.name, t.slug from Bookmark b join b.tags t where b.id in (:ids) order by t.name", hints = @QueryHint(name = "org.hibernate.readOnly", value = "true")),
+		@NamedQuery(name = "Bookmark.mostClicked", query = "select b.id, b.clicks from Bookmark b where b.clicks > 0 order by b.clicks desc, b.id desc"),
+		@NamedQuery(name = "Bookmark.clicksByIds", query = "select b.id, b.clicks from Bookmark b where b.id in (:ids)"),
+		@NamedQuery(name = "Bookmark.url", query = "select b.url from Bookmark b where b.id = :id") })
 public class Bookmark implements Serializable {
 
 	private static final long serialVersionUID = 1L;
 
+	// fragments of the page id queries, HSQLDB joins tables in the order they
+	// are listed so the filtered queries start from the tag or user
+	static final String SELECT_IDS = "select b.id, b.addedOn from Bookmark b ";
+	static final String SELECT_TAG_IDS = "select b.id, b.addedOn from Tag t join t.bookmarks b where t.slug = :tag ";
+	static final String SELECT_USER_IDS = "select b.id, b.addedOn from User u, Bookmark b where b.user = u and u.username = :username ";
+	static final String SELECT_TAG_AND_USER_IDS = SELECT_TAG_IDS + "and b.user.username = :username ";
+	// the keyset condition leads with a range on addedOn so it can use an index
+	static final String OLDER = "b.addedOn <= :addedOn and (b.addedOn < :addedOn or b.id < :id) ";
+	static final String NEWER = "b.addedOn >= :addedOn and (b.addedOn > :addedOn or b.id > :id) ";
+	static final String NEWEST_FIRST = "order by b.addedOn desc, b.id desc";
+	static final String OLDEST_FIRST = "order by b.addedOn asc, b.id asc";
+
 	@Id
-	@GeneratedValue(strategy = GenerationType.AUTO)
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "bookmarkIds")
+	@SequenceGenerator(name = "bookmarkIds", sequenceName = "BOOKMARK_SEQ", allocationSize = 50)
 	private Long id;
 
 	@ManyToOne
@@ -57,18 +110,29 @@ public class Bookmark implements Serializable {
 	@NotEmpty
 	private String description;
 
+	@Column(insertable = false, updatable = false, columnDefinition = "bigint default 0 not null")
+	private long clicks;
+
+	@Column(insertable = false, updatable = false)
+	private Integer linkStatus;
+
+	@Column(insertable = false, updatable = false)
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date linkCheckedOn;
+
+	/**
+	 * Mapped as a set so adding or removing a tag only inserts or deletes that
+	 * tag's row in the join table
+	 */
 	@ManyToMany
 	@JoinTable(name = "BOOKMARK_TAGS_XREF")
-	private List<Tag> tags = new ArrayList<Tag>();
+	@OrderBy("name")
+	private Set<Tag> tags = new LinkedHashSet<Tag>();
 
 	public void removeTag(String tagName) {
-		int i = 0;
-
-		while (i < getTags().size()) {
-			if (getTags().get(i).getName().equals(tagName)) {
-				getTags().remove(i);
-			} else {
-				i++;
+		for (Iterator<Tag> i = getTags().iterator(); i.hasNext();) {
+			if (i.next().getName().equals(tagName)) {
+				i.remove();
 			}
 		}
 	}
@@ -121,16 +185,52 @@ public class Bookmark implements Serializable {
 		this.description = description;
 	}
 
-	public List<Tag> getTags() {
+	/**
+	 * @return Number of clicks written to the database, not counting those
+	 *         still held by the {@link com.apiiro.avigtest.bean.ClickCounters}
+	 */
+	public long getClicks() {
+		return clicks;
+	}
+
+	/**
+	 * @return HTTP status of the URL when it was last checked, see
+	 *         {@link com.apiiro.avigtest.bulk.LinkChecker}, or null if it
+	 *         hasn't been checked
+	 */
+	public Integer getLinkStatus() {
+		return linkStatus;
+	}
+
+	/**
+	 * @return When the URL was last checked or null
+	 */
+	public Date getLinkCheckedOn() {
+		return linkCheckedOn;
+	}
+
+	/**
+	 * @return Whether the last check couldn't reach the URL or was answered
+	 *         with an error
+	 */
+	public boolean isLinkDead() {
+		return linkStatus != null && (linkStatus < 200 || linkStatus >= 400);
+	}
+
+	public Set<Tag> getTags() {
 		return tags;
 	}
 
-	public void setTags(List<Tag> tags) {
+	public void setTags(Set<Tag> tags) {
 		this.tags = tags;
 	}
 
-	public void getTagList() {
-
+	/**
+	 * @return Copy of the tags as a list, for components that need indexed
+	 *         access
+	 */
+	public List<Tag> getTagList() {
+		return new ArrayList<Tag>(tags);
 	}
 
 }
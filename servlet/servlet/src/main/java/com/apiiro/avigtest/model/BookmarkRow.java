@@ -0,0 +1,113 @@
+package com.apiiro.avigtest.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Read only view of a {@link Bookmark} holding just what the listing shows.
+ * Rows are built directly from query results rather than loading the
+ * entities, so they aren't tracked by the persistence context.
+ *
+ */
+public final class BookmarkRow implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final Long id;
+	private final String url;
+	private final String title;
+	private final String description;
+	private final Date addedOn;
+	private final String username;
+	private final List<TagRef> tags;
+
+	/**
+	 * Creates a row without tags, used by the constructor expression in the
+	 * listing queries
+	 */
+	public BookmarkRow(Long id, String url, String title, String description,
+			Date addedOn, String username) {
+		this(id, url, title, description, addedOn, username, Collections
+				.<TagRef> emptyList());
+	}
+
+	public BookmarkRow(Long id, String url, String title, String description,
+			Date addedOn, String username, List<TagRef> tags) {
+		this.id = id;
+		this.url = url;
+		this.title = title;
+		this.description = description;
+		this.addedOn = addedOn;
+		this.username = username;
+		this.tags = tags.isEmpty() ? Collections.<TagRef> emptyList()
+				: Collections.unmodifiableList(new ArrayList<TagRef>(tags));
+	}
+
+	/**
+	 * @param tags
+	 *            Tags of the bookmark
+	 * @return A copy of this row with the given tags
+	 */
+	public BookmarkRow withTags(List<TagRef> tags) {
+		return new BookmarkRow(id, url, title, description, addedOn, username,
+				tags);
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getUrl() {
+		return url;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public String getDescription() {
+		return description;
+	}
+
+	public Date getAddedOn() {
+		return addedOn;
+	}
+
+	/**
+	 * @return Username of the user that posted the bookmark
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+	public List<TagRef> getTags() {
+		return tags;
+	}
+
+	/**
+	 * Name and slug of a tag on a {@link BookmarkRow}
+	 */
+	public static final class TagRef implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final String name;
+		private final String slug;
+
+		public TagRef(String name, String slug) {
+			this.name = name;
+			this.slug = slug;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getSlug() {
+			return slug;
+		}
+	}
+}
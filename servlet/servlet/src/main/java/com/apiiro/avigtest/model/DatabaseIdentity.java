@@ -0,0 +1,59 @@
+package com.apiiro.avigtest.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * Random identity given to the database the first time it is asked for, so
+ * data kept outside the database, such as the
+ * {@link com.apiiro.avigtest.bean.BookmarkArchive}, can tell whether it
+ * belongs to it. A database created again, or a different one, has a new
+ * identity. The table holds a single row with the id {@link #ID}.
+ *
+ */
+@Entity
+@Table(name = "DATABASE_IDENTITY")
+public class DatabaseIdentity {
+
+	public static final int ID = 1;
+
+	@Id
+	private int id;
+
+	@Column(length = 36, nullable = false)
+	private String uuid;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date createdOn;
+
+	public DatabaseIdentity() {
+	}
+
+	/**
+	 * @param uuid
+	 *            The random identity
+	 */
+	public DatabaseIdentity(String uuid) {
+		this.id = ID;
+		this.uuid = uuid;
+		this.createdOn = new Date();
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public String getUuid() {
+		return uuid;
+	}
+
+	public Date getCreatedOn() {
+		return createdOn;
+	}
+}
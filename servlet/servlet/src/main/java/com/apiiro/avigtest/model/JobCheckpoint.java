@@ -0,0 +1,58 @@
+package com.apiiro.avigtest.model;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * How far a resumable job has got, see
+ * {@link com.apiiro.avigtest.bulk.Checkpoint}. It is kept in the database so
+ * it can be saved in the same transaction as the work it records.
+ *
+ */
+@Entity
+@Table(name = "JOB_CHECKPOINTS")
+public class JobCheckpoint {
+
+	@Id
+	@Column(length = 512)
+	private String name;
+
+	@Column(name = "jobPosition")
+	private long position;
+
+	@Temporal(TemporalType.TIMESTAMP)
+	private Date savedOn;
+
+	public JobCheckpoint() {
+	}
+
+	public JobCheckpoint(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getPosition() {
+		return position;
+	}
+
+	public void setPosition(long position) {
+		this.position = position;
+	}
+
+	public Date getSavedOn() {
+		return savedOn;
+	}
+
+	public void setSavedOn(Date savedOn) {
+		this.savedOn = savedOn;
+	}
+}
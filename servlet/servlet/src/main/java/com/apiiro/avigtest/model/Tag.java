@@ -1,14 +1,25 @@
 package com.apiiro.avigtest.model;
 
+import java.util.Set;
+
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.JoinColumn;
+import javax.persistence.ManyToMany;
 import javax.persistence.ManyToOne;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.QueryHint;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 /**
  * Entity that can be used to tag bookmarks to group their content.
  * 
@@ -16,11 +27,22 @@ import javax.persistence.Table;
  *
  */
 @Entity
+@Cacheable
+@Cache(usage=CacheConcurrencyStrategy.READ_WRITE)
 @Table
+@NamedQueries({
+	@NamedQuery(name="Tag.findBySlugs", query="select t from Tag t where t.slug in (:slugs)", hints={
+		@QueryHint(name="org.hibernate.cacheable", value="true"),
+		@QueryHint(name="org.hibernate.cacheRegion", value="query.tags") }),
+	@NamedQuery(name="Tag.findBySlugRange", query="select t from Tag t where t.slug >= :from and t.slug < :to order by t.name", hints={
+		@QueryHint(name="org.hibernate.cacheable", value="true"),
+		@QueryHint(name="org.hibernate.cacheRegion", value="query.tags") }),
+	@NamedQuery(name="Tag.findAll", query="select t from Tag t") })
 public class Tag {
 	
 	@Id
-	@GeneratedValue(strategy=GenerationType.AUTO)
+	@GeneratedValue(strategy=GenerationType.SEQUENCE, generator="tagIds")
+	@SequenceGenerator(name="tagIds", sequenceName="TAG_SEQ", allocationSize=50)
 	private Long id;
 	
 	@ManyToOne
@@ -30,15 +52,30 @@ public class Tag {
 	@Column(length=24)
 	private String name;
 	
-	@Column(length=24)
+	@Column(length=24, unique=true)
 	private String slug;
+
+	/**
+	 * Inverse side of {@link Bookmark#getTags()}, never loaded but lets the
+	 * tag filtered listing queries start from the tag and its index
+	 */
+	@ManyToMany(mappedBy="tags")
+	private Set<Bookmark> bookmarks;
 	
 	public Tag() {
 	}
 	
 	public Tag(String name) {
 		this.name = name;	
-		this.slug = name.replace(" ","_").toLowerCase();		
+		this.slug = slugOf(name);		
+	}
+
+	/**
+	 * @param name Tag name
+	 * @return The url friendly slug used to identify the tag with this name
+	 */
+	public static String slugOf(String name) {
+		return name.trim().replace(" ","_").toLowerCase();
 	}
 
 	public Long getId() {
@@ -72,6 +109,29 @@ public class Tag {
 	public void setUser(User user) {
 		this.user = user;
 	}
+
+	/**
+	 * Tags are equal if they have the same slug, which is unique and set when
+	 * the tag is created so it is stable before and after the tag is saved.
+	 * Uses the getters so it works with lazy loaded proxies.
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Tag)) {
+			return false;
+		}
+		String slug = getSlug();
+		return slug != null && slug.equals(((Tag) obj).getSlug());
+	}
+
+	@Override
+	public int hashCode() {
+		String slug = getSlug();
+		return slug == null ? 0 : slug.hashCode();
+	}
 	
 	
 }
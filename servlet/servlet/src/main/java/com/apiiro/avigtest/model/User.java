@@ -1,29 +1,56 @@
 package com.apiiro.avigtest.model;
 
+import java.util.Locale;
+
+import javax.persistence.Cacheable;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.NamedQueries;
+import javax.persistence.NamedQuery;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+import javax.persistence.QueryHint;
+import javax.persistence.SequenceGenerator;
 import javax.persistence.Table;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 /**
  * User account that is required for logging in and posting bookmarks.
+ * <p/>
+ * Usernames are matched ignoring case, using the lower cased
+ * <code>usernameKey</code> that is kept in step with the username when the
+ * user is saved, so the lookup can use the unique index on that column.
  * 
  * @author Andy Gibson
  *
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 @Table(name = "USERS")
+@NamedQueries({
+		@NamedQuery(name = "User.login", query = "select u from User u where u.usernameKey = :usernameKey and u.password = :password"),
+		@NamedQuery(name = "User.findAll", query = "select u from User u", hints = {
+				@QueryHint(name = "org.hibernate.cacheable", value = "true"),
+				@QueryHint(name = "org.hibernate.cacheRegion", value = "query.users") }) })
 public class User {
 
 	@Id
-	@GeneratedValue(strategy = GenerationType.AUTO)
+	@GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "userIds")
+	@SequenceGenerator(name = "userIds", sequenceName = "USER_SEQ", allocationSize = 50)
 	private Long id;
 
 	@Column(length = 24)
 	private String username;
 
+	@Column(length = 24, unique = true)
+	private String usernameKey;
+
 	@Column(length = 24,name="userPassword")
 	private String password;
 
@@ -49,6 +76,28 @@ public class User {
 		this.username = username;
 	}
 
+	/**
+	 * @return The lower cased username used to look the user up
+	 */
+	public String getUsernameKey() {
+		return usernameKey;
+	}
+
+	/**
+	 * @param username
+	 *            Username as entered
+	 * @return The key users with this username are looked up by
+	 */
+	public static String keyOf(String username) {
+		return username == null ? null : username.toLowerCase(Locale.ENGLISH);
+	}
+
+	@PrePersist
+	@PreUpdate
+	void updateUsernameKey() {
+		usernameKey = keyOf(username);
+	}
+
 	public String getPassword() {
 		return password;
 	}
@@ -2,8 +2,11 @@ package com.apiiro.avigtest.view;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import javax.enterprise.context.Conversation;
 import javax.enterprise.context.ConversationScoped;
@@ -14,6 +17,9 @@ import javax.inject.Inject;
 import javax.inject.Named;
 
 import com.apiiro.avigtest.bean.BookmarkDao;
+import com.apiiro.avigtest.bean.ConversationRegistry;
+import com.apiiro.avigtest.bean.ConversationState;
+import com.apiiro.avigtest.bean.TagIndex;
 import com.apiiro.avigtest.model.Bookmark;
 import com.apiiro.avigtest.model.Tag;
 
@@ -26,6 +32,13 @@ import com.apiiro.avigtest.model.Tag;
  * This is a conversation scoped bean so the user can go back and forth between
  * the client and the server without having to propagate state or store it in
  * the session and since we are using Ajax, we could do this several times.
+ * <p/>
+ * The conversation is tracked by the session's {@link ConversationRegistry},
+ * which releases the bean's state if the user abandons the page. The
+ * registry is told the conversation is in use once per request, by the first
+ * of {@link #init()} and the actions to run, and the getters have no side
+ * effects. The next request to a released conversation ends it and starts
+ * the page again.
  * 
  * 
  * @author Andy Gibson
@@ -33,10 +46,21 @@ import com.apiiro.avigtest.model.Tag;
  */
 @Named
 @ConversationScoped
-public class BookmarkerBean implements Serializable {
+public class BookmarkerBean implements Serializable, ConversationState {
 
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * Rough size of a list entry
+	 */
+	private static final int REFERENCE_BYTES = 8;
+
+	/**
+	 * Request attribute set once the conversation has been touched
+	 */
+	private static final String TOUCHED = BookmarkerBean.class.getName()
+			+ ".touched";
+
 	/**
 	 * Bookmark to be edited
 	 */
@@ -61,15 +85,26 @@ public class BookmarkerBean implements Serializable {
 
 	private String tagFilter;
 
+	/**
+	 * Set when the {@link ConversationRegistry} evicts the conversation
+	 */
+	private volatile boolean released;
+
 	@Inject
 	private BookmarkDao bookmarkDao;
 
+	@Inject
+	private TagIndex tagIndex;
+
 	@Inject
 	private UserSession userSession;
 
 	@Inject
 	private Conversation conversation;
 
+	@Inject
+	private ConversationRegistry conversations;
+
 	/**
 	 * Init() method is called when entering the page. We start the conversation
 	 * here and check that the user is logged in.
@@ -77,10 +112,13 @@ public class BookmarkerBean implements Serializable {
 	public void init() {
 		if (conversation.isTransient()) {
 			conversation.begin();
+			conversation.setTimeout(conversations.getIdleMillis());
 		}
+		touch();
 
 		// if the user is not logged in, then take them to the home page
-		if (!userSession.isLoggedIn()) {
+		if (!userSession.isLoggedIn()
+				&& !FacesContext.getCurrentInstance().getResponseComplete()) {
 
 			try {
 				FacesContext.getCurrentInstance().getExternalContext()
@@ -99,6 +137,9 @@ public class BookmarkerBean implements Serializable {
 	 * @return The view to go to
 	 */
 	public String save() {
+		if (!touch()) {
+			return null;
+		}
 		bookmark.setAddedOn(new Date());
 		bookmark.setUser(userSession.getUser());
 		//check the url starts with HTTP:// (not the best way to do it)
@@ -106,7 +147,9 @@ public class BookmarkerBean implements Serializable {
 			bookmark.setUrl("http://"+bookmark.getUrl());
 		}
 		bookmarkDao.save(bookmark);
+		String id = conversation.getId();
 		conversation.end();
+		conversations.ended(id);
 		return "home?faces-redirect=true";
 	}
 
@@ -119,14 +162,14 @@ public class BookmarkerBean implements Serializable {
 	}
 
 	/**
-	 * Returns a list of tags from the database filtered by the value in
+	 * Returns a list of tags from the {@link TagIndex} filtered by the value in
 	 * <code>tagFilter</code>.
 	 * 
 	 * @return List of tags optionally filtered by the tagFilter value
 	 */
 	public List<Tag> getTags() {
 		if (tags == null) {
-			tags = bookmarkDao.findTagsMatching(tagFilter, true);
+			tags = tagIndex.findByPrefix(tagFilter);
 		}
 		return tags;
 	}
@@ -147,6 +190,9 @@ public class BookmarkerBean implements Serializable {
 	 *            Name of tag to add
 	 */
 	public void addTag(String tagname) {
+		if (!touch() || tagname == null || tagname.trim().length() == 0) {
+			return;
+		}
 		Tag tag = bookmarkDao.findOrCreateTag(tagname);
 		addTagToBookmark(tag);
 	}
@@ -160,6 +206,9 @@ public class BookmarkerBean implements Serializable {
 	 *            Details of what called this even
 	 */
 	public void tagSearchUpdate(ValueChangeEvent event) {
+		if (!touch()) {
+			return;
+		}
 		invalidateTagLists();
 	}
 
@@ -172,8 +221,13 @@ public class BookmarkerBean implements Serializable {
 	 */
 	public ListDataModel<Tag> getAvailableTagModel() {
 		if (availableTagsModel == null) {
-			List<Tag> tagList = getTags();
-			tagList.removeAll(bookmark.getTags());
+			Set<Tag> selected = bookmark.getTags();
+			List<Tag> tagList = new ArrayList<Tag>();
+			for (Tag tag : getTags()) {
+				if (!selected.contains(tag)) {
+					tagList.add(tag);
+				}
+			}
 			availableTagsModel = new ListDataModel<Tag>(tagList);
 		}
 		return availableTagsModel;
@@ -186,7 +240,7 @@ public class BookmarkerBean implements Serializable {
 	 */
 	public ListDataModel<Tag> getSelectedTagModel() {
 		if (selectedTagsModel == null) {
-			selectedTagsModel = new ListDataModel<Tag>(getBookmark().getTags());
+			selectedTagsModel = new ListDataModel<Tag>(bookmark.getTagList());
 		}
 		return selectedTagsModel;
 	}
@@ -195,6 +249,9 @@ public class BookmarkerBean implements Serializable {
 	 * Used to add the clicked tag to the bookmark
 	 */
 	public void addTagToBookmark() {
+		if (!touch()) {
+			return;
+		}
 		Tag tag = getAvailableTagModel().getRowData();
 		addTagToBookmark(tag);
 	}
@@ -203,10 +260,76 @@ public class BookmarkerBean implements Serializable {
 	 * Used to remove the clicked tag from the bookmark
 	 */
 	public void removeTagFromBookmark() {
+		if (!touch()) {
+			return;
+		}
 		Tag tag = getSelectedTagModel().getRowData();
 		removeTag(tag);
 	}
 
+	/**
+	 * Estimates the bookmark's text and the tag lists, the tags themselves
+	 * are counted with the entity manager that holds them
+	 */
+	public long getRetainedBytes() {
+		long bytes = 2 * (length(bookmark.getTitle())
+				+ length(bookmark.getUrl())
+				+ length(bookmark.getDescription()) + length(tagFilter));
+		int references = bookmark.getTags().size();
+		if (tags != null) {
+			references += tags.size();
+		}
+		if (availableTagsModel != null) {
+			references += availableTagsModel.getRowCount();
+		}
+		if (selectedTagsModel != null) {
+			references += selectedTagsModel.getRowCount();
+		}
+		return bytes + references * REFERENCE_BYTES;
+	}
+
+	public void release() {
+		bookmark = new Bookmark();
+		tagFilter = null;
+		invalidateTagLists();
+		released = true;
+	}
+
+	/**
+	 * Tells the registry the conversation is in use, the first time it is
+	 * called in a request, or if it has been released, ends it and sends the
+	 * user back to the start of the page
+	 * 
+	 * @return False if the response is complete, such as when the
+	 *         conversation was released, and the request shouldn't go on
+	 */
+	private boolean touch() {
+		FacesContext context = FacesContext.getCurrentInstance();
+		if (context.getResponseComplete()) {
+			return false;
+		}
+		if (conversation.isTransient()
+				|| context.getAttributes().put(TOUCHED, Boolean.TRUE) != null) {
+			return true;
+		}
+		if (!released) {
+			conversations.touch(conversation.getId(), this);
+			return true;
+		}
+		conversation.end();
+		try {
+			context.getExternalContext().redirect("add.jsf");
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		context.responseComplete();
+		return false;
+	}
+
+	private static int length(String value) {
+		return value == null ? 0 : value.length();
+	}
+
 	/**
 	 * Invalidates the tag lists, usually called in the Invoke Application stage
 	 * so the data is re-fetched in the render response stage and includes the
@@ -220,19 +343,21 @@ public class BookmarkerBean implements Serializable {
 	}
 
 	/**
-	 * Adds a new tag to the bookmark based on the value entered in the
-	 * <code>tagFilter</code> field.
+	 * Adds new tags to the bookmark based on the value entered in the
+	 * <code>tagFilter</code> field. Several tags can be entered at once
+	 * separated by commas.
 	 */
 	public void addNewTag() {
-		addTagNameToBookmark(tagFilter);
-		tagFilter = null;
-	}
-
-	private void addTagNameToBookmark(String tagName) {
-		if (tagName != null && tagName.length() != 0) {
-			Tag tag = bookmarkDao.findOrCreateTag(tagName);
-			addTagToBookmark(tag);
+		if (!touch()) {
+			return;
 		}
+		if (tagFilter != null && tagFilter.length() != 0) {
+			for (Tag tag : bookmarkDao.resolveTags(Arrays.asList(tagFilter
+					.split(",")))) {
+				addTagToBookmark(tag);
+			}
+		}
+		tagFilter = null;
 	}
 
 	/**
@@ -248,8 +373,7 @@ public class BookmarkerBean implements Serializable {
 		if (tag == null) {
 			return;
 		}
-		if (!getBookmark().getTags().contains(tag)) {
-			getBookmark().getTags().add(tag);
+		if (bookmark.getTags().add(tag)) {
 			invalidateTagLists();
 		}
 	}
@@ -264,8 +388,7 @@ public class BookmarkerBean implements Serializable {
 		if (tag == null) {
 			return;
 		}
-		if (getBookmark().getTags().contains(tag)) {
-			getBookmark().getTags().remove(tag);
+		if (bookmark.getTags().remove(tag)) {
 			invalidateTagLists();
 		}
 	}
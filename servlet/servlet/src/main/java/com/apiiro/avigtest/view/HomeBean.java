@@ -6,15 +6,27 @@ import javax.enterprise.context.RequestScoped;
 import javax.inject.Inject;
 import javax.inject.Named;
 
+import com.apiiro.avigtest.bean.BookmarkCounters;
 import com.apiiro.avigtest.bean.BookmarkDao;
-import com.apiiro.avigtest.model.Bookmark;
+import com.apiiro.avigtest.bean.ListingCache;
+import com.apiiro.avigtest.bean.ListingPage;
+import com.apiiro.avigtest.bean.PageCursor;
+import com.apiiro.avigtest.bean.TagCooccurrence;
+import com.apiiro.avigtest.model.BookmarkRow;
+import com.apiiro.avigtest.model.BookmarkRow.TagRef;
 
 
 /**
  * Home bean that is used to back the home view page. This bean deals with the
  * page parameters and fetches the list of bookmarks based on those parameters.
  * It also includes attributes for dealing with pagination
- * (firstResult,hasNext,hasPrevious,previousIndex,nextIndex)
+ * (page,hasNext,hasPrevious,previousPage,nextPage) where the page values are
+ * opaque {@link PageCursor} tokens. When a search query is given the best
+ * matches are shown instead, on a single page.
+ * <p/>
+ * Listing pages are kept in the {@link ListingCache} until the next bookmark
+ * is saved. A tag's listing also shows the tags and bookmarks related to it by
+ * the {@link TagCooccurrence}.
  * 
  * @author Andy Gibson
  * 
@@ -23,23 +35,39 @@ import com.apiiro.avigtest.model.Bookmark;
 @RequestScoped
 public class HomeBean {
 
-	private List<Bookmark> bookmarks;
+	private List<BookmarkRow> bookmarks;
 	private static int PAGE_SIZE = 5;
+	private static int SEARCH_RESULTS = 50;
+	private static int RELATED = 5;
 
 	@Inject
 	private BookmarkDao bookmarkDao;
 
-	private Integer firstResult;
+	@Inject
+	private BookmarkCounters bookmarkCounters;
+
+	@Inject
+	private ListingCache listingCache;
+
+	@Inject
+	private TagCooccurrence tagCooccurrence;
+
+	private String page;
+	private PageCursor cursor;
 	private String tag;
 	private String username;
+	private String query;
 	private boolean hasNext;
+	private boolean hasPrevious;
+	private List<TagRef> relatedTags;
+	private List<BookmarkRow> relatedBookmarks;
 
 	/**
 	 * Lazy loads the bookmarks
 	 * 
 	 * @return The bookmarks
 	 */
-	public List<Bookmark> getBookmarks() {
+	public List<BookmarkRow> getBookmarks() {
 		if (bookmarks == null) {
 			bookmarks = fetchBookmarks();
 		}
@@ -47,22 +75,77 @@ public class HomeBean {
 	}
 
 	/**
-	 * Uses the {@link BookmarkDao} to fetch the results using the tag,
-	 * firstResult, username and pagination info stored in the home bean
-	 * attributes.
+	 * @return The tags used most often with the tag being viewed
+	 */
+	public List<TagRef> getRelatedTags() {
+		if (relatedTags == null) {
+			relatedTags = tagCooccurrence.getRelatedTags(tag, RELATED);
+		}
+		return relatedTags;
+	}
+
+	/**
+	 * @return Newest bookmarks with the tags related to the tag being viewed
+	 */
+	public List<BookmarkRow> getRelatedBookmarks() {
+		if (relatedBookmarks == null) {
+			relatedBookmarks = bookmarkDao.getBookmarkRowsById(tagCooccurrence
+					.getRelatedBookmarks(tag, RELATED));
+		}
+		return relatedBookmarks;
+	}
+
+	/**
+	 * Uses the {@link BookmarkDao} to fetch the results using the tag, page
+	 * cursor, username and pagination info stored in the home bean
+	 * attributes. The bookmarks are read only {@link BookmarkRow} views since
+	 * the page only displays them.
 	 * 
 	 * @return The list of bookmarks based on the home bean attributes
 	 */
-	private List<Bookmark> fetchBookmarks() {
+	private List<BookmarkRow> fetchBookmarks() {
+		if (isSearchView()) {
+			return bookmarkDao.search(query, SEARCH_RESULTS);
+		}
+		String key = listingCache.key(tag, username, cursor);
+		ListingPage cached = listingCache.get(key);
+		if (cached == null) {
+			List<BookmarkRow> rows = fetchPage();
+			cached = new ListingPage(rows, hasNext, hasPrevious);
+			listingCache.put(key, cached);
+		}
+		hasNext = cached.isHasNext();
+		hasPrevious = cached.isHasPrevious();
+		return cached.getRows();
+	}
+
+	/**
+	 * Loads the page of the listing at the cursor and sets the paging flags
+	 */
+	private List<BookmarkRow> fetchPage() {
 		// fetch list plus one to see if we have more results
-		List<Bookmark> temp = bookmarkDao.getBookmarks(tag, firstResult,
+		List<BookmarkRow> temp = bookmarkDao.getBookmarkRows(tag, cursor,
 				PAGE_SIZE + 1, username);
-		// do we have another page
-		hasNext = temp.size() == PAGE_SIZE + 1;
+		boolean more = temp.size() == PAGE_SIZE + 1;
 
-		if (hasNext) {
-			// take off the last item so we return the actual page size.
-			temp.remove(PAGE_SIZE);
+		if (cursor != null && cursor.isBefore()) {
+			// paging back towards the newest, the extra item is the first one
+			if (more) {
+				temp.remove(0);
+			} else if (temp.size() < PAGE_SIZE) {
+				// ran into the start of the list, show the full first page
+				cursor = null;
+				return fetchPage();
+			}
+			hasPrevious = more;
+			hasNext = true;
+		} else {
+			if (more) {
+				// take off the last item so we return the actual page size.
+				temp.remove(PAGE_SIZE);
+			}
+			hasNext = more;
+			hasPrevious = cursor != null;
 		}
 		return temp;
 	}
@@ -75,12 +158,13 @@ public class HomeBean {
 		this.tag = tag;
 	}
 
-	public Integer getFirstResult() {
-		return firstResult == null ? 0 : firstResult;
+	public String getPage() {
+		return page;
 	}
 
-	public void setFirstResult(Integer firstResult) {
-		this.firstResult = firstResult;
+	public void setPage(String page) {
+		this.page = page;
+		this.cursor = PageCursor.parse(page);
 	}
 
 	public String getUsername() {
@@ -91,6 +175,14 @@ public class HomeBean {
 		this.username = username;
 	}
 
+	public String getQuery() {
+		return query;
+	}
+
+	public void setQuery(String query) {
+		this.query = query;
+	}
+
 	public void refresh() {
 
 	}
@@ -109,6 +201,31 @@ public class HomeBean {
 		return username != null && username.length() != 0;
 	}
 
+	/**
+	 * @return indicates whether the bookmark list is search results
+	 */
+	public boolean isSearchView() {
+		return query != null && query.trim().length() != 0;
+	}
+
+	/**
+	 * @return the number of bookmarks in the current tag or user view, or the
+	 *         total if not filtered. Null when filtered by both since those
+	 *         counts aren't maintained, or when searching.
+	 */
+	public Long getBookmarkCount() {
+		if (isSearchView() || (isTagView() && isUserView())) {
+			return null;
+		}
+		if (isTagView()) {
+			return bookmarkCounters.getTagCount(tag);
+		}
+		if (isUserView()) {
+			return bookmarkCounters.getUserCount(username);
+		}
+		return bookmarkCounters.getTotal();
+	}
+
 	/**
 	 * @return flag indicating whether there is a next page
 	 */
@@ -120,24 +237,30 @@ public class HomeBean {
 	}
 
 	/**
-	 * @return the firstResult index of the previous page
+	 * @return the cursor token of the previous (newer) page
 	 */
-	public int getPreviousIndex() {
-		return Math.max(0, getFirstResult() - PAGE_SIZE);
+	public String getPreviousPage() {
+		List<BookmarkRow> list = getBookmarks();
+		return list.isEmpty() ? null : PageCursor.before(list.get(0))
+				.getToken();
 	}
 
 	/**
-	 * @return the firstResult index of the next page
+	 * @return the cursor token of the next (older) page
 	 */
-	public int getNextIndex() {
-		return getFirstResult() + PAGE_SIZE;
+	public String getNextPage() {
+		List<BookmarkRow> list = getBookmarks();
+		return list.isEmpty() ? null : PageCursor.after(
+				list.get(list.size() - 1)).getToken();
 	}
 
 	/**
 	 * @return Flag indicating whether we can go back a page
 	 */
 	public boolean getHasPrevious() {
-		return getFirstResult() > 0;
+		// make sure we get the bookmark list first
+		getBookmarks();
+		return hasPrevious;
 	}
 
 }
@@ -0,0 +1,56 @@
+package com.apiiro.avigtest.view;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+import com.apiiro.avigtest.bean.BookmarkDao;
+import com.apiiro.avigtest.bean.ClickCounters;
+import com.apiiro.avigtest.model.BookmarkRow;
+
+/**
+ * Backing bean for the popular page listing the most clicked bookmarks, with
+ * clicks counted by the {@link ClickCounters} including those not yet written
+ * to the database.
+ *
+ */
+@Named
+@RequestScoped
+public class PopularBean {
+
+	private static final int COUNT = 20;
+
+	@Inject
+	private ClickCounters clickCounters;
+
+	@Inject
+	private BookmarkDao bookmarkDao;
+
+	private Map<Long, Long> clicks;
+	private List<BookmarkRow> bookmarks;
+
+	/**
+	 * @return The most clicked bookmarks, most clicked first
+	 */
+	public List<BookmarkRow> getBookmarks() {
+		if (bookmarks == null) {
+			bookmarks = bookmarkDao.getBookmarkRowsById(new ArrayList<Long>(
+					getClicks().keySet()));
+		}
+		return bookmarks;
+	}
+
+	/**
+	 * @return Clicks keyed by bookmark id
+	 */
+	public Map<Long, Long> getClicks() {
+		if (clicks == null) {
+			clicks = clickCounters.getMostClicked(COUNT);
+		}
+		return clicks;
+	}
+}
@@ -0,0 +1,159 @@
+package com.apiiro.avigtest.view;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.enterprise.context.RequestScoped;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.SecondLevelCacheStatistics;
+import org.hibernate.stat.Statistics;
+
+import com.apiiro.avigtest.bean.ConversationMetrics;
+import com.mchange.v2.c3p0.C3P0Registry;
+import com.mchange.v2.c3p0.PooledDataSource;
+
+/**
+ * Backing bean for the stats page showing how well the second level and query
+ * caches are doing, with the hit, miss and put counts for each cache region,
+ * how busy the database connection pool is and how many add bookmark
+ * conversations are holding state.
+ * 
+ */
+@Named
+@RequestScoped
+public class StatsBean {
+
+	@Inject
+	private EntityManagerFactory entityManagerFactory;
+
+	@Inject
+	private ConversationMetrics conversationMetrics;
+
+	private Statistics statistics;
+
+	/**
+	 * @return Hibernate statistics for the persistence unit
+	 */
+	public Statistics getStatistics() {
+		if (statistics == null) {
+			statistics = ((HibernateEntityManagerFactory) entityManagerFactory)
+					.getSessionFactory().getStatistics();
+		}
+		return statistics;
+	}
+
+	/**
+	 * @return Statistics for each of the second level cache regions
+	 */
+	public List<CacheRegion> getCacheRegions() {
+		List<CacheRegion> regions = new ArrayList<CacheRegion>();
+		for (String name : getStatistics().getSecondLevelCacheRegionNames()) {
+			regions.add(new CacheRegion(name, getStatistics()
+					.getSecondLevelCacheStatistics(name)));
+		}
+		return regions;
+	}
+
+	/**
+	 * @return Connection counts for each of the connection pools
+	 */
+	@SuppressWarnings("unchecked")
+	public List<ConnectionPool> getConnectionPools() throws SQLException {
+		List<ConnectionPool> pools = new ArrayList<ConnectionPool>();
+		for (PooledDataSource dataSource : (Iterable<PooledDataSource>) C3P0Registry
+				.getPooledDataSources()) {
+			pools.add(new ConnectionPool(dataSource));
+		}
+		return pools;
+	}
+
+	/**
+	 * @return Counts of the conversations tracked across all sessions
+	 */
+	public ConversationMetrics getConversations() {
+		return conversationMetrics;
+	}
+
+	/**
+	 * Resets all the counters
+	 */
+	public void clear() {
+		getStatistics().clear();
+	}
+
+	/**
+	 * Name and statistics of a cache region
+	 */
+	public static class CacheRegion {
+
+		private final String name;
+		private final SecondLevelCacheStatistics statistics;
+
+		public CacheRegion(String name, SecondLevelCacheStatistics statistics) {
+			this.name = name;
+			this.statistics = statistics;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public SecondLevelCacheStatistics getStatistics() {
+			return statistics;
+		}
+	}
+
+	/**
+	 * Snapshot of a connection pool's connection counts
+	 */
+	public static class ConnectionPool {
+
+		private final String name;
+		private final int active;
+		private final int idle;
+		private final int total;
+		private final int pending;
+
+		public ConnectionPool(PooledDataSource dataSource) throws SQLException {
+			this.name = dataSource.getDataSourceName();
+			this.active = dataSource.getNumBusyConnectionsDefaultUser();
+			this.idle = dataSource.getNumIdleConnectionsDefaultUser();
+			this.total = dataSource.getNumConnectionsDefaultUser();
+			this.pending = dataSource.getNumThreadsAwaitingCheckoutDefaultUser();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return Number of connections checked out
+		 */
+		public int getActive() {
+			return active;
+		}
+
+		/**
+		 * @return Number of connections waiting in the pool
+		 */
+		public int getIdle() {
+			return idle;
+		}
+
+		public int getTotal() {
+			return total;
+		}
+
+		/**
+		 * @return Number of threads waiting for a connection
+		 */
+		public int getPending() {
+			return pending;
+		}
+	}
+}
@@ -0,0 +1,12 @@
+-- Baseline schema, the tables as mapped by the entities with named constraints
+create table USERS (id bigint not null, firstName varchar(24), lastName varchar(24), userPassword varchar(24), username varchar(24), constraint PK_USERS primary key (id));
+create table BOOKMARKS (id bigint not null, addedOn timestamp, description varchar(255) not null, title varchar(255) not null, url varchar(255) not null, USER_ID bigint, constraint PK_BOOKMARKS primary key (id));
+create table Tag (id bigint not null, name varchar(24), slug varchar(24), USER_ID bigint, constraint PK_TAG primary key (id), constraint UK_TAG_SLUG unique (slug));
+create table BOOKMARK_TAGS_XREF (bookmarks_id bigint not null, tags_id bigint not null, constraint PK_BOOKMARK_TAGS_XREF primary key (bookmarks_id, tags_id));
+alter table BOOKMARKS add constraint FK_BOOKMARKS_USER foreign key (USER_ID) references USERS;
+alter table BOOKMARK_TAGS_XREF add constraint FK_XREF_BOOKMARK foreign key (bookmarks_id) references BOOKMARKS;
+alter table BOOKMARK_TAGS_XREF add constraint FK_XREF_TAG foreign key (tags_id) references Tag;
+alter table Tag add constraint FK_TAG_USER foreign key (USER_ID) references USERS;
+create sequence BOOKMARK_SEQ;
+create sequence TAG_SEQ;
+create sequence USER_SEQ;
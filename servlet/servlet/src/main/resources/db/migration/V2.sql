@@ -0,0 +1,8 @@
+-- Indexes for the listing and lookup queries, also run by hibernate on the
+-- in memory database after it creates the schema (hibernate.hbm2ddl.import_files).
+-- HSQLDB indexes foreign keys itself and prefers those indexes, so bookmarks
+-- are found by user through FK_BOOKMARKS_USER and by tag through FK_XREF_TAG
+-- Keyset paging of the unfiltered listing, newest first
+create index IDX_BOOKMARKS_ADDED on BOOKMARKS (addedOn, id);
+-- Login and the user filter
+create index IDX_USERS_USERNAME on USERS (username);
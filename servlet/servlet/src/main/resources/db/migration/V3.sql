@@ -0,0 +1,5 @@
+-- Case insensitive username lookups, usernameKey is the lower cased username
+-- kept up to date by the User entity
+alter table USERS add column usernameKey varchar(24);
+update USERS set usernameKey = lower(username);
+alter table USERS add constraint UK_USERS_USERNAME_KEY unique (usernameKey);
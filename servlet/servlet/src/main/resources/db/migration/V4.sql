@@ -0,0 +1,2 @@
+-- Click through counts, only ever added to by the ClickCounters flush
+alter table BOOKMARKS add column clicks bigint default 0 not null;
@@ -0,0 +1,3 @@
+-- Most clicked bookmarks, also run by hibernate on the in memory database
+-- after it creates the schema (hibernate.hbm2ddl.import_files)
+create index IDX_BOOKMARKS_CLICKS on BOOKMARKS (clicks, id);
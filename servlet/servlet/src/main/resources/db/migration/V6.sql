@@ -0,0 +1,5 @@
+-- Link liveness written by the LinkChecker, the HTTP status of the last
+-- check (0 if the server couldn't be reached, -1 if it isn't a web link) and
+-- when it was made, both null until the bookmark is first checked
+alter table BOOKMARKS add column linkStatus integer;
+alter table BOOKMARKS add column linkCheckedOn timestamp;
@@ -0,0 +1,3 @@
+-- Progress of the resumable jobs, saved in the same transaction as the work
+-- it records (see JobCheckpoint)
+create table JOB_CHECKPOINTS (name varchar(512) not null, jobPosition bigint not null, savedOn timestamp, constraint PK_JOB_CHECKPOINTS primary key (name));
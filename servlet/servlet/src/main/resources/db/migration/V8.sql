@@ -0,0 +1,3 @@
+-- Random identity of the database, recorded with the data kept outside it so
+-- that data isn't mixed up with another database (see DatabaseIdentity)
+create table DATABASE_IDENTITY (id integer not null, uuid varchar(36) not null, createdOn timestamp, constraint PK_DATABASE_IDENTITY primary key (id));
@@ -0,0 +1,9 @@
+-- Keyset paging of the user and tag filtered listings, newest first, also run
+-- by hibernate on the in memory database after it creates the schema
+-- (hibernate.hbm2ddl.import_files). They hold the whole page key, so a page
+-- is read in order from the index rather than sorting every bookmark of the
+-- user or tag. HSQLDB keeps preferring the indexes it made for FK_BOOKMARKS_USER
+-- and FK_XREF_TAG, led by the same columns, so these are for the databases
+-- the file profile can be pointed at that choose the wider index
+create index IDX_BOOKMARKS_USER_ADDED on BOOKMARKS (USER_ID, addedOn, id);
+create index IDX_XREF_TAG_BOOKMARK on BOOKMARK_TAGS_XREF (tags_id, bookmarks_id);
@@ -0,0 +1,67 @@
+package com.apiiro.avigtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.apiiro.avigtest.bean.BackgroundTasks;
+import com.apiiro.avigtest.bean.LinkChecks;
+import com.apiiro.avigtest.bean.TestDatabase;
+
+/**
+ * Deploys and undeploys a {@link BackgroundJobsListener} with the beans it
+ * would look up handed to it, and checks the jobs it starts.
+ *
+ */
+public class BackgroundJobsListenerTest {
+
+	private final List<String> scheduled = new ArrayList<String>();
+	private final List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>();
+
+	private final BackgroundTasks backgroundTasks = new BackgroundTasks() {
+
+		@Override
+		public ScheduledFuture<?> scheduleWithFixedDelay(String name,
+				Runnable task, long delay, TimeUnit unit) {
+			scheduled.add(name);
+			ScheduledFuture<?> future = super.scheduleWithFixedDelay(name,
+					task, delay, unit);
+			futures.add(future);
+			return future;
+		}
+	};
+
+	@After
+	public void shutdown() {
+		backgroundTasks.shutdown();
+	}
+
+	@Test
+	public void linkChecksAreScheduledOnStartupAndCancelledOnShutdown()
+			throws Exception {
+		final LinkChecks linkChecks = new LinkChecks();
+		TestDatabase.inject(linkChecks, "backgroundTasks", backgroundTasks);
+		BackgroundJobsListener listener = new BackgroundJobsListener() {
+
+			@Override
+			LinkChecks lookupLinkChecks() {
+				return linkChecks;
+			}
+		};
+		assertTrue(scheduled.isEmpty());
+
+		listener.contextInitialized(null);
+		assertEquals(1, scheduled.size());
+		assertEquals("check links", scheduled.get(0));
+
+		listener.contextDestroyed(null);
+		assertTrue(futures.get(0).isCancelled());
+	}
+}
@@ -0,0 +1,386 @@
+package com.apiiro.avigtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Answers asynchronous requests with {@link BaseServlet}s through a stand in
+ * {@link AsyncContext}, which the tests time out themselves as the container
+ * would.
+ *
+ */
+public class BaseServletTest {
+
+	private final CountDownLatch release = new CountDownLatch(1);
+	private final CompletableFuture<String> result = new CompletableFuture<String>();
+
+	private BaseServlet servlet;
+
+	@After
+	public void destroy() {
+		release.countDown();
+		if (servlet != null) {
+			servlet.destroy();
+		}
+	}
+
+	@Test
+	public void resultIsWrittenAndTheRequestCompleted() throws Exception {
+		servlet = start(new BaseServlet() {
+
+			@Override
+			protected String work(HttpServletRequest request) {
+				return "Answered";
+			}
+		});
+		Exchange exchange = post();
+		exchange.awaitComplete();
+		finishWork();
+
+		assertEquals(200, exchange.status);
+		assertEquals("Answered\n", exchange.body.toString("UTF-8"));
+		assertEquals(1, exchange.completions);
+		assertTrue(exchange.errors.isEmpty());
+	}
+
+	@Test
+	public void streamedResponseIsWritten() throws Exception {
+		servlet = start(new StreamingBaseServlet() {
+
+			@Override
+			protected void work(HttpServletRequest request, ResponseSink sink)
+					throws IOException {
+				sink.println("Streamed");
+				sink.println("Answer");
+			}
+		});
+		Exchange exchange = post();
+		exchange.awaitComplete();
+		finishWork();
+
+		assertEquals(200, exchange.status);
+		assertEquals("Streamed\nAnswer\n", exchange.body.toString("UTF-8"));
+		assertEquals(1, exchange.completions);
+		assertTrue(exchange.errors.isEmpty());
+	}
+
+	@Test
+	public void failedWorkIsAnError() throws Exception {
+		servlet = start(new BaseServlet() {
+
+			@Override
+			protected String work(HttpServletRequest request) {
+				throw new IllegalStateException("Broken");
+			}
+		});
+		Exchange exchange = post();
+		exchange.awaitComplete();
+		finishWork();
+
+		assertEquals(500, exchange.status);
+		assertEquals(0, exchange.body.size());
+		assertEquals(1, exchange.completions);
+		assertTrue(exchange.errors.isEmpty());
+	}
+
+	@Test
+	public void slowWorkTimesOutAndCantWriteAfterwards() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		servlet = start(new BaseServlet() {
+
+			@Override
+			protected String work(HttpServletRequest request) {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return "Too late";
+			}
+		});
+		Exchange exchange = post();
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+		exchange.timeout();
+		assertEquals(503, exchange.status);
+		assertEquals(1, exchange.completions);
+
+		release.countDown();
+		finishWork();
+		assertEquals(503, exchange.status);
+		assertEquals(0, exchange.body.size());
+		assertEquals(1, exchange.completions);
+		assertTrue(exchange.errors.toString(), exchange.errors.isEmpty());
+	}
+
+	@Test
+	public void workTimedOutWhileQueuedNeverRuns() throws Exception {
+		final List<String> ran = new ArrayList<String>();
+		servlet = start(new BaseServlet() {
+
+			@Override
+			protected String work(HttpServletRequest request) {
+				ran.add(request.toString());
+				return "Ran";
+			}
+		}, "1");
+		// takes the only thread so the next request is queued behind it
+		servlet.getExecutor().execute(new Runnable() {
+
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		Exchange exchange = post();
+		exchange.timeout();
+		release.countDown();
+		finishWork();
+
+		assertTrue(ran.isEmpty());
+		assertEquals(503, exchange.status);
+		assertEquals(1, exchange.completions);
+		assertTrue(exchange.errors.isEmpty());
+	}
+
+	@Test
+	public void stageIsCancelledByTheTimeout() throws Exception {
+		servlet = start(new BaseServlet() {
+
+			@Override
+			protected String work(HttpServletRequest request) {
+				return "Not used";
+			}
+
+			@Override
+			protected CompletionStage<String> workAsync(
+					HttpServletRequest request) {
+				return result;
+			}
+		});
+		Exchange exchange = post();
+		exchange.timeout();
+		assertTrue(result.isCancelled());
+		assertEquals(503, exchange.status);
+		assertEquals(0, exchange.body.size());
+		assertEquals(1, exchange.completions);
+		assertTrue(exchange.errors.isEmpty());
+	}
+
+	@Test
+	public void stageResultIsWritten() throws Exception {
+		servlet = start(new BaseServlet() {
+
+			@Override
+			protected String work(HttpServletRequest request) {
+				return "Not used";
+			}
+
+			@Override
+			protected CompletionStage<String> workAsync(
+					HttpServletRequest request) {
+				return result;
+			}
+		});
+		Exchange exchange = post();
+		assertEquals(0, exchange.completions);
+		result.complete("Later");
+
+		assertEquals("Later\n", exchange.body.toString("UTF-8"));
+		assertEquals(1, exchange.completions);
+		exchange.timeout();
+		assertEquals(200, exchange.status);
+		assertTrue(exchange.errors.isEmpty());
+	}
+
+	private static BaseServlet start(BaseServlet servlet, String... threads)
+			throws ServletException {
+		final String count = threads.length == 0 ? "4" : threads[0];
+		servlet.init((ServletConfig) Proxy.newProxyInstance(
+				BaseServletTest.class.getClassLoader(),
+				new Class<?>[] { ServletConfig.class }, new InvocationHandler() {
+
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						String name = method.getName();
+						if (name.equals("getServletName")) {
+							return "test";
+						} else if (name.equals("getInitParameter")) {
+							if ("async".equals(args[0])) {
+								return "true";
+							} else if ("async.executor".equals(args[0])) {
+								return AsyncExecutors.FIXED;
+							} else if ("async.threads".equals(args[0])) {
+								return count;
+							}
+						}
+						return null;
+					}
+				}));
+		return servlet;
+	}
+
+	private Exchange post() throws Exception {
+		Exchange exchange = new Exchange();
+		servlet.doPost(exchange.request(), exchange.response());
+		return exchange;
+	}
+
+	/**
+	 * Waits for the work that has been handed to the executor to finish
+	 */
+	private void finishWork() throws InterruptedException {
+		ExecutorService executor = (ExecutorService) servlet.getExecutor();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * A request, its response and its async context, recording what the
+	 * servlet does to them
+	 */
+	private static class Exchange {
+
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		final List<String> errors = new ArrayList<String>();
+		final CountDownLatch completed = new CountDownLatch(1);
+		volatile int status = 200;
+		volatile int completions;
+		volatile boolean committed;
+		AsyncListener listener;
+
+		HttpServletRequest request() {
+			return (HttpServletRequest) Proxy.newProxyInstance(getClass()
+					.getClassLoader(),
+					new Class<?>[] { HttpServletRequest.class },
+					new InvocationHandler() {
+
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							String name = method.getName();
+							if (name.equals("isAsyncSupported")) {
+								return true;
+							} else if (name.equals("startAsync")) {
+								return context();
+							} else if (name.equals("toString")) {
+								return "request";
+							}
+							return null;
+						}
+					});
+		}
+
+		AsyncContext context() {
+			return (AsyncContext) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { AsyncContext.class },
+					new InvocationHandler() {
+
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							String name = method.getName();
+							if (name.equals("addListener")) {
+								listener = (AsyncListener) args[0];
+							} else if (name.equals("complete")) {
+								synchronized (Exchange.this) {
+									if (completions > 0) {
+										errors.add("completed twice");
+										throw new IllegalStateException(
+												"Already completed");
+									}
+									completions++;
+								}
+								completed.countDown();
+							}
+							return null;
+						}
+					});
+		}
+
+		HttpServletResponse response() {
+			return (HttpServletResponse) Proxy.newProxyInstance(getClass()
+					.getClassLoader(),
+					new Class<?>[] { HttpServletResponse.class },
+					new InvocationHandler() {
+
+						public Object invoke(Object proxy, Method method,
+								Object[] args) throws IOException {
+							String name = method.getName();
+							check(name);
+							if (name.equals("sendError")) {
+								status = (Integer) args[0];
+								committed = true;
+							} else if (name.equals("isCommitted")) {
+								return committed;
+							} else if (name.equals("getOutputStream")) {
+								return new ServletOutputStream() {
+
+									@Override
+									public void write(int b) {
+										write(new byte[] { (byte) b }, 0, 1);
+									}
+
+									@Override
+									public void write(byte[] b, int off,
+											int len) {
+										check("write");
+										committed = true;
+										synchronized (body) {
+											body.write(b, off, len);
+										}
+									}
+								};
+							}
+							return null;
+						}
+					});
+		}
+
+		/**
+		 * Records use of the response once the request has completed, when
+		 * the container may have recycled it
+		 */
+		void check(String name) {
+			if (completions > 0 && !name.equals("isCommitted")) {
+				synchronized (this) {
+					errors.add(name + " after completion");
+				}
+			}
+		}
+
+		void timeout() throws IOException {
+			listener.onTimeout(new AsyncEvent(null));
+		}
+
+		void awaitComplete() throws InterruptedException {
+			assertTrue(completed.await(5, TimeUnit.SECONDS));
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package com.apiiro.avigtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.apiiro.avigtest.bean.ListingCache;
+
+/**
+ * Sends requests through a {@link ConditionalGetFilter} with stand in
+ * requests and responses sharing one session.
+ *
+ */
+public class ConditionalGetFilterTest {
+
+	private ConditionalGetFilter filter;
+	private Map<String, Object> session;
+	private boolean sessionStarted;
+
+	@Before
+	public void createFilter() throws Exception {
+		filter = new ConditionalGetFilter();
+		filter.init((FilterConfig) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { FilterConfig.class },
+				new InvocationHandler() {
+
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						return "paths".equals(args[0]) ? " /home.jsf, /popular.jsf"
+								: null;
+					}
+				}));
+		session = new HashMap<String, Object>();
+		sessionStarted = true;
+	}
+
+	@Test
+	public void listingIsSentWithValidators() throws Exception {
+		Response response = get("/home.jsf", "tag=java");
+		assertTrue(response.passedOn);
+		assertEquals(200, response.status);
+		String etag = response.headers.get("ETag");
+		assertTrue(etag, etag.startsWith("W/\"" + ListingCache.getVersion()
+				+ "-"));
+		assertEquals(ListingCache.getLastModified(), (long) response.dates
+				.get("Last-Modified"));
+		assertEquals("private, no-cache", response.headers
+				.get("Cache-Control"));
+	}
+
+	@Test
+	public void listingVersionStartsFromTheStartupTime() {
+		// a version counted from zero would repeat the ETags of an earlier run
+		assertTrue(ListingCache.getVersion() >= 1262304000000L);
+	}
+
+	@Test
+	public void matchingEtagIsNotModified() throws Exception {
+		String etag = get("/home.jsf", "tag=java").headers.get("ETag");
+
+		Response response = get("/home.jsf", "tag=java", "If-None-Match",
+				etag);
+		assertFalse(response.passedOn);
+		assertEquals(304, response.status);
+		assertEquals(etag, response.headers.get("ETag"));
+
+		// compared weakly and found in a list
+		assertEquals(304, get("/home.jsf", "tag=java", "If-None-Match",
+				"\"other\", " + etag.substring(2)).status);
+		assertEquals(304, get("/home.jsf", "tag=java", "If-None-Match", "*").status);
+	}
+
+	@Test
+	public void etagDiffersByQuery() throws Exception {
+		String etag = get("/home.jsf", "tag=java").headers.get("ETag");
+		Response response = get("/home.jsf", "tag=sql", "If-None-Match", etag);
+		assertTrue(response.passedOn);
+		assertFalse(etag.equals(response.headers.get("ETag")));
+	}
+
+	@Test
+	public void changedListingIsSentAgain() throws Exception {
+		String etag = get("/home.jsf", null).headers.get("ETag");
+		ListingCache.invalidate();
+		Response response = get("/home.jsf", null, "If-None-Match", etag);
+		assertTrue(response.passedOn);
+		assertFalse(etag.equals(response.headers.get("ETag")));
+	}
+
+	@Test
+	public void postChangesTheEtag() throws Exception {
+		String etag = get("/home.jsf", null).headers.get("ETag");
+		Response post = send("POST", "/home.jsf", null);
+		assertTrue(post.passedOn);
+		assertNull(post.headers.get("ETag"));
+		assertNotNull(session.get(ConditionalGetFilter.class.getName()
+				+ ".changedAt"));
+
+		session.put(ConditionalGetFilter.class.getName() + ".changedAt", 1L);
+		assertTrue(get("/home.jsf", null, "If-None-Match", etag).passedOn);
+	}
+
+	@Test
+	public void ifModifiedSinceIsUsedWithoutIfNoneMatch() throws Exception {
+		long lastModified = get("/home.jsf", null).dates.get("Last-Modified");
+		long second = lastModified / 1000 * 1000;
+
+		assertEquals(304, get("/home.jsf", null, "If-Modified-Since",
+				second).status);
+		assertTrue(get("/home.jsf", null, "If-Modified-Since", second - 1000).passedOn);
+		assertTrue(get("/home.jsf", null, "If-Modified-Since", "yesterday").passedOn);
+	}
+
+	@Test
+	public void ifNoneMatchTakesPrecedenceOverIfModifiedSince()
+			throws Exception {
+		long later = get("/home.jsf", null).dates.get("Last-Modified") + 60000;
+		assertTrue(get("/home.jsf", null, "If-None-Match", "W/\"0-0\"",
+				"If-Modified-Since", later).passedOn);
+	}
+
+	@Test
+	public void otherPagesAreNotValidated() throws Exception {
+		Response response = get("/stats.jsf", null);
+		assertTrue(response.passedOn);
+		assertNull(response.headers.get("ETag"));
+		assertTrue(session.isEmpty());
+	}
+
+	@Test
+	public void requestsWithoutASessionDontStartOne() throws Exception {
+		sessionStarted = false;
+		Response response = get("/home.jsf", "tag=java", "If-None-Match", "*");
+		assertTrue(response.passedOn);
+		assertNull(response.headers.get("ETag"));
+		assertTrue(send("POST", "/home.jsf", null).passedOn);
+		assertFalse(sessionStarted);
+		assertTrue(session.isEmpty());
+	}
+
+	private Response get(String path, String query, Object... headers)
+			throws Exception {
+		return send("GET", path, query, headers);
+	}
+
+	/**
+	 * @param headers
+	 *            Header names and values, a value is a String or the Long of
+	 *            a date header
+	 */
+	private Response send(final String method, final String path,
+			final String query, Object... headers) throws Exception {
+		final Map<String, Object> values = new HashMap<String, Object>();
+		for (int i = 0; i < headers.length; i += 2) {
+			values.put((String) headers[i], headers[i + 1]);
+		}
+		final HttpSession httpSession = (HttpSession) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { HttpSession.class }, new InvocationHandler() {
+
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						String name = m.getName();
+						if (name.equals("getId")) {
+							return "session-1";
+						} else if (name.equals("getCreationTime")) {
+							return 0L;
+						} else if (name.equals("getAttribute")) {
+							return session.get(args[0]);
+						} else if (name.equals("setAttribute")) {
+							session.put((String) args[0], args[1]);
+						}
+						return null;
+					}
+				});
+		HttpServletRequest request = (HttpServletRequest) Proxy
+				.newProxyInstance(getClass().getClassLoader(),
+						new Class<?>[] { HttpServletRequest.class },
+						new InvocationHandler() {
+
+							public Object invoke(Object proxy, Method m,
+									Object[] args) {
+								String name = m.getName();
+								if (name.equals("getMethod")) {
+									return method;
+								} else if (name.equals("getServletPath")) {
+									return path;
+								} else if (name.equals("getQueryString")) {
+									return query;
+								} else if (name.equals("getSession")) {
+									if (args == null || (Boolean) args[0]) {
+										sessionStarted = true;
+									}
+									return sessionStarted ? httpSession
+											: null;
+								} else if (name.equals("getHeader")) {
+									Object value = values.get(args[0]);
+									return value == null ? null : value
+											.toString();
+								} else if (name.equals("getDateHeader")) {
+									Object value = values.get(args[0]);
+									if (value instanceof String) {
+										throw new IllegalArgumentException(
+												(String) value);
+									}
+									return value == null ? -1L : value;
+								}
+								return null;
+							}
+						});
+		final Response response = new Response();
+		filter.doFilter(request, response.proxy(), new FilterChain() {
+
+			public void doFilter(ServletRequest req, ServletResponse resp) {
+				response.passedOn = true;
+			}
+		});
+		return response;
+	}
+
+	/**
+	 * Records the status and headers set on an {@link HttpServletResponse}
+	 */
+	private static class Response implements InvocationHandler {
+
+		final Map<String, String> headers = new HashMap<String, String>();
+		final Map<String, Long> dates = new HashMap<String, Long>();
+		int status = 200;
+		boolean passedOn;
+
+		HttpServletResponse proxy() {
+			return (HttpServletResponse) Proxy.newProxyInstance(getClass()
+					.getClassLoader(),
+					new Class<?>[] { HttpServletResponse.class }, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("setStatus")) {
+				status = (Integer) args[0];
+			} else if (name.equals("setHeader")) {
+				headers.put((String) args[0], (String) args[1]);
+			} else if (name.equals("setDateHeader")) {
+				dates.put((String) args[0], (Long) args[1]);
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package com.apiiro.avigtest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+/**
+ * Writes responses through a {@link ResponseSink} to a stand in response that
+ * records the headers and body.
+ *
+ */
+public class ResponseSinkTest {
+
+	@Test
+	public void gzipIsNegotiated() {
+		assertFalse(ResponseSink.acceptsGzip(null));
+		assertFalse(ResponseSink.acceptsGzip("identity"));
+		assertTrue(ResponseSink.acceptsGzip("gzip, deflate"));
+		assertTrue(ResponseSink.acceptsGzip("deflate, GZIP;q=0.5"));
+		assertFalse(ResponseSink.acceptsGzip("gzip;q=0"));
+		assertTrue(ResponseSink.acceptsGzip("*"));
+		assertFalse(ResponseSink.acceptsGzip("*, gzip;q=0"));
+	}
+
+	@Test
+	public void smallBodyIsSentAsIsWithLength() throws IOException {
+		Response response = new Response();
+		ResponseSink sink = new ResponseSink(request("gzip"), response
+				.proxy(), "text/html");
+		sink.println("Extended servlet");
+		sink.close();
+
+		assertNull(response.headers.get("Content-Encoding"));
+		assertEquals("text/html;charset=UTF-8", response.contentTypeBeforeBody);
+		assertEquals(response.body.size(), response.contentLength);
+		assertEquals("Extended servlet\n", response.body.toString("UTF-8"));
+	}
+
+	@Test
+	public void largeBodyIsCompressedAndStreamed() throws IOException {
+		Response response = new Response();
+		ResponseSink sink = new ResponseSink(request("gzip"), response
+				.proxy(), "text/plain");
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			// multi byte characters land across buffer boundaries
+			String line = "line " + i + " caf\u00e9 \u20ac \ud83d\ude00";
+			sink.println(line);
+			expected.append(line).append('\n');
+		}
+		sink.close();
+
+		assertEquals("gzip", response.headers.get("Content-Encoding"));
+		assertEquals("text/plain;charset=UTF-8", response.contentTypeBeforeBody);
+		assertEquals(-1, response.contentLength);
+		assertTrue(response.largestWrite <= ResponseSink.BUFFER_SIZE);
+		assertTrue(response.body.size() < expected.length() / 4);
+		assertEquals(expected.toString(), new String(gunzip(response.body
+				.toByteArray()), "UTF-8"));
+	}
+
+	@Test
+	public void largeBodyIsNotCompressedUnlessAccepted() throws IOException {
+		Response response = new Response();
+		ResponseSink sink = new ResponseSink(request("gzip;q=0"), response
+				.proxy(), "text/plain");
+		byte[] block = new byte[1000];
+		for (int i = 0; i < 100; i++) {
+			sink.write(block, 0, block.length);
+		}
+		sink.close();
+
+		assertNull(response.headers.get("Content-Encoding"));
+		assertEquals(100000, response.body.size());
+		assertTrue(response.largestWrite <= ResponseSink.BUFFER_SIZE);
+	}
+
+	@Test
+	public void abortedSinkSendsNothing() throws IOException {
+		Response response = new Response();
+		ResponseSink sink = new ResponseSink(request("gzip"), response
+				.proxy(), "text/html");
+		sink.println("partial");
+		sink.abort();
+		assertEquals(0, response.body.size());
+		assertFalse(response.committed);
+	}
+
+	@Test
+	public void abortedCompressedBodyIsLeftUnfinished() throws IOException {
+		Response response = new Response();
+		ResponseSink sink = new ResponseSink(request("gzip"), response
+				.proxy(), "text/plain");
+		byte[] block = new byte[1000];
+		for (int i = 0; i < 100; i++) {
+			sink.write(block, 0, block.length);
+		}
+		int sent = response.body.size();
+		assertTrue(sent > 0);
+		sink.abort();
+		sink.abort();
+
+		assertEquals(sent, response.body.size());
+		try {
+			sink.println("more");
+			fail("Wrote to an aborted sink");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	private static byte[] gunzip(byte[] bytes) throws IOException {
+		InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static HttpServletRequest request(final String acceptEncoding) {
+		return (HttpServletRequest) Proxy.newProxyInstance(
+				ResponseSinkTest.class.getClassLoader(),
+				new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if (method.getName().equals("getHeader")
+								&& "Accept-Encoding".equals(args[0])) {
+							return acceptEncoding;
+						}
+						return null;
+					}
+				});
+	}
+
+	/**
+	 * Records what is done to an {@link HttpServletResponse}
+	 */
+	private static class Response implements InvocationHandler {
+
+		final Map<String, String> headers = new HashMap<String, String>();
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		String contentType;
+		String contentTypeBeforeBody;
+		int contentLength = -1;
+		int largestWrite;
+		boolean committed;
+
+		HttpServletResponse proxy() {
+			return (HttpServletResponse) Proxy.newProxyInstance(getClass()
+					.getClassLoader(),
+					new Class<?>[] { HttpServletResponse.class }, this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if (name.equals("setContentType")) {
+				contentType = (String) args[0];
+			} else if (name.equals("setHeader") || name.equals("addHeader")) {
+				headers.put((String) args[0], (String) args[1]);
+			} else if (name.equals("setContentLength")) {
+				contentLength = (Integer) args[0];
+			} else if (name.equals("isCommitted")) {
+				return committed;
+			} else if (name.equals("getOutputStream")) {
+				contentTypeBeforeBody = contentType;
+				return new ServletOutputStream() {
+
+					@Override
+					public void write(int b) {
+						write(new byte[] { (byte) b }, 0, 1);
+					}
+
+					@Override
+					public void write(byte[] b, int off, int len) {
+						committed = true;
+						largestWrite = Math.max(largestWrite, len);
+						body.write(b, off, len);
+					}
+				};
+			}
+			return null;
+		}
+	}
+}
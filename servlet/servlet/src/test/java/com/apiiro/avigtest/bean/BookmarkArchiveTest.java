@@ -0,0 +1,270 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apiiro.avigtest.model.BookmarkRow;
+import com.apiiro.avigtest.model.BookmarkRow.TagRef;
+import com.apiiro.avigtest.model.DatabaseIdentity;
+
+/**
+ * Archives the older half of the bookmarks in the {@link TestDatabase} and
+ * checks the listings, lookups and searches of the {@link BookmarkDao} give
+ * the same results as before.
+ *
+ */
+public class BookmarkArchiveTest {
+
+	private static final String[][] FILTERS = { { null, null },
+			{ "java", null }, { null, "andygibson" }, { "java", "andygibson" } };
+
+	private static EntityManagerFactory factory;
+	private static File directory;
+	private static BookmarkArchive archive;
+	private static Date cutoff;
+	private static int archived;
+
+	/**
+	 * Every row and the pages either side of it for each filter, taken
+	 * before archiving
+	 */
+	private static Map<String, List<Long>> before = new HashMap<String, List<Long>>();
+	private static Map<Long, BookmarkRow> rowsBefore = new HashMap<Long, BookmarkRow>();
+
+	@BeforeClass
+	public static void archiveOlderHalf() throws Exception {
+		factory = TestDatabase.create();
+
+		directory = Files.createTempDirectory("archive").toFile();
+		archive = archive(directory);
+		BookmarkDao dao = dao(archive);
+		for (String[] filter : FILTERS) {
+			before.putAll(pages(dao, filter));
+		}
+		List<BookmarkRow> all = listing(dao, null, null);
+		for (BookmarkRow row : all) {
+			rowsBefore.put(row.getId(), row);
+		}
+		cutoff = all.get(all.size() / 2).getAddedOn();
+		archived = archive.archiveOlderThan(cutoff);
+	}
+
+	@AfterClass
+	public static void removeArchive() {
+		factory.close();
+		for (File file : directory.listFiles()) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	@Test
+	public void oldBookmarksLeaveTheTable() {
+		assertTrue(archived > 0);
+		assertEquals(archived, archive.size());
+		EntityManager em = factory.createEntityManager();
+		try {
+			assertEquals(0L, em.createQuery(
+					"select count(b) from Bookmark b where b.addedOn < :cutoff")
+					.setParameter("cutoff", cutoff).getSingleResult());
+			assertEquals((long) rowsBefore.size() - archived, em.createQuery(
+					"select count(b) from Bookmark b").getSingleResult());
+		} finally {
+			em.close();
+		}
+		assertEquals(0, archive.archiveOlderThan(cutoff));
+	}
+
+	@Test
+	public void listingsAreUnchanged() throws Exception {
+		BookmarkDao dao = dao(archive);
+		Map<String, List<Long>> after = new HashMap<String, List<Long>>();
+		for (String[] filter : FILTERS) {
+			after.putAll(pages(dao, filter));
+		}
+		assertEquals(before, after);
+	}
+
+	@Test
+	public void reopenedArchiveFindsTheRows() throws Exception {
+		BookmarkDao dao = dao(archive(directory));
+		List<Long> ids = new ArrayList<Long>(rowsBefore.keySet());
+		List<BookmarkRow> rows = dao.getBookmarkRowsById(ids);
+		assertEquals(ids.size(), rows.size());
+		for (BookmarkRow row : rows) {
+			BookmarkRow expected = rowsBefore.get(row.getId());
+			assertEquals(expected.getUrl(), row.getUrl());
+			assertEquals(expected.getTitle(), row.getTitle());
+			assertEquals(expected.getDescription(), row.getDescription());
+			assertEquals(expected.getAddedOn().getTime(), row.getAddedOn()
+					.getTime());
+			assertEquals(expected.getUsername(), row.getUsername());
+			assertEquals(slugs(expected), slugs(row));
+		}
+	}
+
+	@Test
+	public void searchFindsArchivedBookmarks() throws Exception {
+		BookmarkDao dao = dao(archive);
+		BookmarkSearchIndex searchIndex = new BookmarkSearchIndex();
+		TestDatabase.inject(searchIndex, "entityManagerFactory", factory);
+		TestDatabase.inject(searchIndex, "archive", archive);
+		TestDatabase.inject(dao, "searchIndex", searchIndex);
+		int found = 0;
+		for (BookmarkRow row : rowsBefore.values()) {
+			if (row.getAddedOn().before(cutoff)) {
+				List<Long> ids = new ArrayList<Long>();
+				for (BookmarkRow result : dao.search(row.getTitle(), 100)) {
+					ids.add(result.getId());
+				}
+				assertTrue(row.getTitle(), ids.contains(row.getId()));
+				found++;
+			}
+		}
+		assertEquals(archived, found);
+	}
+
+	@Test
+	public void archiveOfAnotherDatabaseIsNotUsed() throws Exception {
+		assertTrue(new File(directory, "database.id").exists());
+		EntityManager em = factory.createEntityManager();
+		DatabaseIdentity identity = em.find(DatabaseIdentity.class,
+				DatabaseIdentity.ID);
+		em.getTransaction().begin();
+		em.remove(identity);
+		em.getTransaction().commit();
+		try {
+			// the database is given a new identity, as if it was created again
+			BookmarkArchive reopened = archive(directory);
+			assertEquals(0, reopened.size());
+			try {
+				reopened.archiveOlderThan(new Date());
+				fail();
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		} finally {
+			em.getTransaction().begin();
+			em.remove(em.find(DatabaseIdentity.class, DatabaseIdentity.ID));
+			em.flush();
+			em.persist(identity);
+			em.getTransaction().commit();
+			em.close();
+		}
+		assertEquals(archived, archive(directory).size());
+	}
+
+	@Test
+	public void archivingOnlyRunsAgainstAPersistentDatabase() throws Exception {
+		final List<String> scheduled = new ArrayList<String>();
+		BookmarkArchive archive = new BookmarkArchive(directory, 365, 5);
+		TestDatabase.inject(archive, "backgroundTasks", new BackgroundTasks() {
+
+			@Override
+			public ScheduledFuture<?> scheduleWithFixedDelay(String name,
+					Runnable task, long delay, TimeUnit unit) {
+				scheduled.add(name);
+				return null;
+			}
+		});
+		archive.scheduleArchival();
+		assertTrue(scheduled.isEmpty());
+
+		System.setProperty("db.profile", "file");
+		try {
+			archive.scheduleArchival();
+		} finally {
+			System.clearProperty("db.profile");
+		}
+		assertEquals(Collections.singletonList("archive bookmarks"), scheduled);
+	}
+
+	private static BookmarkArchive archive(File directory) throws Exception {
+		BookmarkArchive archive = new BookmarkArchive(directory, 0, 5);
+		TestDatabase.inject(archive, "entityManagerFactory", factory);
+		return archive;
+	}
+
+	private static BookmarkDao dao(BookmarkArchive archive) throws Exception {
+		BookmarkDao dao = new BookmarkDao();
+		TestDatabase.inject(dao, "entityManagerFactory", factory);
+		UserTimelines userTimelines = new UserTimelines();
+		TestDatabase.inject(userTimelines, "entityManagerFactory", factory);
+		TestDatabase.inject(dao, "userTimelines", userTimelines);
+		TestDatabase.inject(dao, "archive", archive);
+		return dao;
+	}
+
+	/**
+	 * @return The whole listing for the filter, read a page at a time
+	 */
+	private static List<BookmarkRow> listing(BookmarkDao dao, String tag,
+			String username) {
+		List<BookmarkRow> all = new ArrayList<BookmarkRow>();
+		PageCursor cursor = null;
+		while (true) {
+			List<BookmarkRow> page = dao.getBookmarkRows(tag, cursor, 5,
+					username);
+			all.addAll(page);
+			if (page.size() < 5) {
+				return all;
+			}
+			cursor = PageCursor.after(page.get(page.size() - 1));
+		}
+	}
+
+	/**
+	 * @return The ids on the pages either side of each row of the listing,
+	 *         keyed by filter and cursor
+	 */
+	private static Map<String, List<Long>> pages(BookmarkDao dao,
+			String[] filter) {
+		Map<String, List<Long>> pages = new HashMap<String, List<Long>>();
+		String key = filter[0] + "/" + filter[1] + " ";
+		pages.put(key, ids(dao.getBookmarkRows(filter[0], null, 5, filter[1])));
+		for (BookmarkRow row : listing(dao, filter[0], filter[1])) {
+			for (PageCursor cursor : new PageCursor[] { PageCursor.after(row),
+					PageCursor.before(row) }) {
+				pages.put(key + cursor.getToken(), ids(dao.getBookmarkRows(
+						filter[0], cursor, 5, filter[1])));
+			}
+		}
+		return pages;
+	}
+
+	private static List<Long> ids(List<BookmarkRow> rows) {
+		List<Long> ids = new ArrayList<Long>();
+		for (BookmarkRow row : rows) {
+			ids.add(row.getId());
+		}
+		return ids;
+	}
+
+	private static List<String> slugs(BookmarkRow row) {
+		List<String> slugs = new ArrayList<String>();
+		for (TagRef tag : row.getTags()) {
+			slugs.add(tag.getSlug());
+		}
+		Collections.sort(slugs);
+		return slugs;
+	}
+}
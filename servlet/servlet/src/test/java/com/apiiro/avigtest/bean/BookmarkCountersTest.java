@@ -0,0 +1,180 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apiiro.avigtest.model.Bookmark;
+import com.apiiro.avigtest.model.Tag;
+import com.apiiro.avigtest.model.User;
+
+/**
+ * Keeps the {@link BookmarkCounters} for the {@link TestDatabase} and checks
+ * them against the counts queried from it.
+ *
+ */
+public class BookmarkCountersTest {
+
+	private static final String[] USERS = { "andygibson", "user1", "user2" };
+
+	private static EntityManagerFactory factory;
+
+	private BookmarkCounters counters;
+
+	@BeforeClass
+	public static void createData() throws Exception {
+		factory = TestDatabase.create();
+	}
+
+	@AfterClass
+	public static void closeFactory() {
+		factory.close();
+	}
+
+	@Before
+	public void createCounters() throws Exception {
+		counters = new BookmarkCounters();
+		TestDatabase.inject(counters, "entityManagerFactory", factory);
+		TestDatabase.inject(counters, "archive", TestDatabase.emptyArchive());
+	}
+
+	@Test
+	public void countsMatchTheDatabase() {
+		assertCountsMatch();
+		assertEquals(0, counters.getUserCount("nobody"));
+		assertEquals(0, counters.getUserCount(null));
+		assertEquals(0, counters.getTagCount("no-such-tag"));
+	}
+
+	@Test
+	public void savedBookmarkIsCountedWithoutAQuery() {
+		counters.getTotal();
+		Bookmark bookmark = save("user1", false, "jsf", "swing");
+		Statistics statistics = statistics();
+		statistics.clear();
+
+		counters.bookmarkAdded(bookmark);
+		counters.getTotal();
+		counters.getUserCount("user1");
+		counters.getTagCount("jsf");
+		assertEquals(0, statistics.getPrepareStatementCount());
+		assertCountsMatch();
+	}
+
+	@Test
+	public void bookmarkSavedBeforeLoadingIsCountedOnce() {
+		Bookmark bookmark = save("user2", false, "web");
+		counters.bookmarkAdded(bookmark);
+		assertCountsMatch();
+	}
+
+	@Test
+	public void reconcileCatchesUpWithMissedBookmarks() {
+		counters.getTotal();
+		// saved without telling the counters
+		save("andygibson", true, "java", "sql");
+		assertEquals(total() - 1, counters.getTotal());
+
+		long version = ListingCache.getVersion();
+		counters.reconcile();
+		assertCountsMatch();
+		assertTrue(ListingCache.getVersion() > version);
+	}
+
+	@Test
+	public void reconcileWithoutChangesKeepsTheListingVersion() {
+		counters.getTotal();
+		long version = ListingCache.getVersion();
+		counters.reconcile();
+		assertEquals(version, ListingCache.getVersion());
+	}
+
+	private void assertCountsMatch() {
+		assertEquals(total(), counters.getTotal());
+		for (String username : USERS) {
+			assertEquals(username, count(
+					"select count(b) from Bookmark b where b.user.username = :key",
+					username), counters.getUserCount(username));
+		}
+		for (String slug : slugs()) {
+			assertEquals(slug, count(
+					"select count(b) from Bookmark b join b.tags t where t.slug = :key",
+					slug), counters.getTagCount(slug));
+		}
+	}
+
+	/**
+	 * Saves a bookmark straight to the database
+	 */
+	private static Bookmark save(String username, boolean today,
+			String... slugs) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			Bookmark bookmark = new Bookmark();
+			bookmark.setUrl("http://www.example.com");
+			bookmark.setTitle("Example");
+			bookmark.setDescription("Example");
+			bookmark.setAddedOn(today ? new Date() : new Date(0));
+			bookmark.setUser((User) em.createQuery(
+					"select u from User u where u.username = :username")
+					.setParameter("username", username).getSingleResult());
+			for (String slug : slugs) {
+				bookmark.getTags().add(
+						(Tag) em.createQuery(
+								"select t from Tag t where t.slug = :slug")
+								.setParameter("slug", slug).getSingleResult());
+			}
+			em.persist(bookmark);
+			em.getTransaction().commit();
+			return bookmark;
+		} finally {
+			em.close();
+		}
+	}
+
+	private static long total() {
+		return count("select count(b) from Bookmark b", null);
+	}
+
+	private static long count(String query, String key) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			Query count = em.createQuery(query);
+			if (key != null) {
+				count.setParameter("key", key);
+			}
+			return (Long) count.getSingleResult();
+		} finally {
+			em.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> slugs() {
+		EntityManager em = factory.createEntityManager();
+		try {
+			return em.createQuery("select t.slug from Tag t").getResultList();
+		} finally {
+			em.close();
+		}
+	}
+
+	private static Statistics statistics() {
+		return ((HibernateEntityManagerFactory) factory).getSessionFactory()
+				.getStatistics();
+	}
+}
@@ -0,0 +1,466 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import javax.persistence.Query;
+
+import org.hibernate.Session;
+import org.hibernate.stat.Statistics;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apiiro.avigtest.model.Bookmark;
+import com.apiiro.avigtest.model.BookmarkRow;
+import com.apiiro.avigtest.model.Tag;
+
+/**
+ * Runs the {@link BookmarkDao} against the {@link TestDatabase}.
+ *
+ */
+public class BookmarkDaoTest {
+
+	/**
+	 * Most statements a page of the listing may cost, one for the ids on the
+	 * page and one to fetch the bookmarks with their users and tags.
+	 */
+	private static final int MAX_STATEMENTS_PER_PAGE = 2;
+
+	/**
+	 * Most statements a page of read only rows may cost, one each for the
+	 * ids, the rows and their tags.
+	 */
+	private static final int MAX_STATEMENTS_PER_ROW_PAGE = 3;
+
+	private static EntityManagerFactory factory;
+
+	private EntityManager entityManager;
+	private BookmarkDao bookmarkDao;
+	private TagIndex tagIndex;
+	private ChangeEventBus changeEventBus;
+
+	@BeforeClass
+	public static void createData() throws Exception {
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.generate_statistics", "true");
+		factory = TestDatabase.create(properties);
+	}
+
+	@AfterClass
+	public static void closeFactory() {
+		factory.close();
+	}
+
+	@Before
+	public void createDao() throws Exception {
+		entityManager = factory.createEntityManager();
+		bookmarkDao = new BookmarkDao();
+		TestDatabase.inject(bookmarkDao, "entityManager", entityManager);
+		TestDatabase.inject(bookmarkDao, "entityManagerFactory", factory);
+		TestDatabase.inject(bookmarkDao, "userIdCache", new UserIdCache());
+		UserTimelines userTimelines = new UserTimelines();
+		TestDatabase.inject(userTimelines, "entityManagerFactory", factory);
+		TestDatabase.inject(bookmarkDao, "userTimelines", userTimelines);
+		tagIndex = new TagIndex();
+		TestDatabase.inject(tagIndex, "entityManagerFactory", factory);
+		TestDatabase.inject(bookmarkDao, "tagIndex", tagIndex);
+		changeEventBus = new ChangeEventBus();
+		TestDatabase.inject(bookmarkDao, "changeEventBus", changeEventBus);
+		TestDatabase.inject(bookmarkDao, "archive", TestDatabase.emptyArchive());
+	}
+
+	@After
+	public void closeEntityManager() {
+		entityManager.close();
+	}
+
+	@Test
+	public void pageRenderUsesFixedNumberOfStatements() {
+		Statistics statistics = statistics();
+		PageCursor cursor = null;
+		int pages = 0;
+		do {
+			statistics.clear();
+			List<Bookmark> page = bookmarkDao.getBookmarks(null, cursor, 5,
+					null);
+			if (page.isEmpty()) {
+				break;
+			}
+			render(page);
+			assertTrue("page " + pages + " ran "
+					+ statistics.getPrepareStatementCount() + " statements",
+					statistics.getPrepareStatementCount() <= MAX_STATEMENTS_PER_PAGE);
+			cursor = PageCursor.after(page.get(page.size() - 1));
+			pages++;
+		} while (true);
+		assertEquals(3, pages);
+	}
+
+	@Test
+	public void filteredPageRenderUsesFixedNumberOfStatements() {
+		Statistics statistics = statistics();
+		statistics.clear();
+		List<Bookmark> page = bookmarkDao.getBookmarks("java", null, 5,
+				"andygibson");
+		assertFalse(page.isEmpty());
+		render(page);
+		assertTrue(statistics.getPrepareStatementCount() <= MAX_STATEMENTS_PER_PAGE);
+	}
+
+	@Test
+	public void pagesAreOrderedNewestFirst() {
+		List<Bookmark> page = bookmarkDao.getBookmarks(null, null, 12, null);
+		assertEquals(12, page.size());
+		for (int i = 1; i < page.size(); i++) {
+			assertFalse(page.get(i).getAddedOn().after(
+					page.get(i - 1).getAddedOn()));
+		}
+	}
+
+	@Test
+	public void everyFilterPagesForwardAndBack() {
+		String[][] filters = { { null, null }, { "java", null },
+				{ null, "andygibson" }, { "java", "andygibson" } };
+		for (String[] filter : filters) {
+			List<Bookmark> first = bookmarkDao.getBookmarks(filter[0], null, 5,
+					filter[1]);
+			assertTrue(first.size() > 1);
+			// the page after the first row starts with the rest of the first
+			// page, and the page before that is the first row
+			List<Bookmark> next = bookmarkDao.getBookmarks(filter[0], PageCursor
+					.after(first.get(0)), 5, filter[1]);
+			assertTrue(next.size() >= first.size() - 1);
+			assertEquals(ids(first).subList(1, first.size()), ids(next).subList(
+					0, first.size() - 1));
+			List<Bookmark> back = bookmarkDao.getBookmarks(filter[0], PageCursor
+					.before(next.get(0)), 5, filter[1]);
+			assertEquals(ids(first).subList(0, 1), ids(back));
+			for (Bookmark bookmark : next) {
+				assertMatches(bookmark, filter);
+			}
+		}
+	}
+
+	@Test
+	public void rowsMatchBookmarks() {
+		List<Bookmark> page = bookmarkDao.getBookmarks(null, null, 12, null);
+		List<BookmarkRow> rows = bookmarkDao.getBookmarkRows(null, null, 12,
+				null);
+		assertEquals(page.size(), rows.size());
+		for (int i = 0; i < page.size(); i++) {
+			Bookmark bookmark = page.get(i);
+			BookmarkRow row = rows.get(i);
+			assertEquals(bookmark.getId(), row.getId());
+			assertEquals(bookmark.getTitle(), row.getTitle());
+			assertEquals(bookmark.getUser().getUsername(), row.getUsername());
+			assertEquals(bookmark.getTags().size(), row.getTags().size());
+		}
+	}
+
+	@Test
+	public void rowPageLoadsNoEntities() {
+		Statistics statistics = statistics();
+		statistics.clear();
+		List<BookmarkRow> rows = bookmarkDao.getBookmarkRows("java", null, 5,
+				null);
+		assertFalse(rows.isEmpty());
+		assertTrue(statistics.getPrepareStatementCount() <= MAX_STATEMENTS_PER_ROW_PAGE);
+		assertEquals(0, statistics.getEntityLoadCount());
+	}
+
+	@Test
+	public void tagEditsOnlyTouchChangedRows() {
+		Bookmark bookmark = bookmarkDao.getBookmarks(null, null, 5, null)
+				.get(0);
+		Tag extra = null;
+		for (Tag tag : bookmarkDao.findTagsMatching("", true)) {
+			if (!bookmark.getTags().contains(tag)) {
+				extra = tag;
+			}
+		}
+		Statistics statistics = statistics();
+
+		statistics.clear();
+		entityManager.getTransaction().begin();
+		assertTrue(bookmark.getTags().add(extra));
+		entityManager.getTransaction().commit();
+		assertEquals(1, statistics.getPrepareStatementCount());
+
+		statistics.clear();
+		entityManager.getTransaction().begin();
+		bookmark.removeTag(extra.getName());
+		entityManager.getTransaction().commit();
+		assertEquals(1, statistics.getPrepareStatementCount());
+	}
+
+	@Test
+	public void loginIgnoresCaseOfUsername() {
+		assertEquals("andygibson", bookmarkDao.login("AndyGibson", "mypass")
+				.getUsername());
+		assertNull(bookmarkDao.login("andygibson", "MYPASS"));
+		assertNull(bookmarkDao.login("nobody", "mypass"));
+	}
+
+	@Test
+	public void repeatedLoginRunsNoStatements() {
+		bookmarkDao.login("user1", "pass1");
+		entityManager.clear();
+		Statistics statistics = statistics();
+		statistics.clear();
+		assertEquals("user1", bookmarkDao.login("USER1", "pass1").getUsername());
+		assertNull(bookmarkDao.login("user1", "wrong"));
+		assertEquals(0, statistics.getPrepareStatementCount());
+	}
+
+	@Test
+	public void tagsAreResolvedToOneTagPerSlug() {
+		Long java = bookmarkDao.findTagsMatching("java", false).get(0).getId();
+		long published = changeEventBus.getPublished();
+		List<Tag> tags = bookmarkDao.resolveTags(Arrays.asList("Java",
+				" JAVA ", "Web Services", "", null, "web_services",
+				"Jakarta EE"));
+		assertEquals(Arrays.asList("java", "web_services", "jakarta_ee"),
+				slugs(tags));
+		assertEquals(java, tags.get(0).getId());
+		assertEquals("Web Services", tags.get(1).getName());
+		assertEquals(2, changeEventBus.getPublished() - published);
+		assertEquals(1, tagIndex.findByPrefix("jakarta").size());
+
+		// the created tags are found the next time
+		List<Tag> again = bookmarkDao.resolveTags(Arrays.asList("jakarta ee",
+				"WEB SERVICES"));
+		assertEquals(tags.get(2).getId(), again.get(0).getId());
+		assertEquals(tags.get(1).getId(), again.get(1).getId());
+		assertEquals(2, changeEventBus.getPublished() - published);
+	}
+
+	@Test
+	public void lostTagInsertRaceUsesTheOtherTag() throws Exception {
+		final Tag raced = new Tag("Raced");
+		// another user creates the tag between our lookup and our insert
+		TestDatabase.inject(bookmarkDao, "entityManager", afterTagLookup(
+				entityManager, new Runnable() {
+
+					public void run() {
+						EntityManager other = factory.createEntityManager();
+						other.getTransaction().begin();
+						other.persist(raced);
+						other.getTransaction().commit();
+						other.close();
+					}
+				}));
+		List<Tag> tags = bookmarkDao.resolveTags(Arrays.asList("Raced",
+				"Fresh"));
+		assertEquals(Arrays.asList("raced", "fresh"), slugs(tags));
+		assertEquals(raced.getId(), tags.get(0).getId());
+		assertNotNull(tags.get(1).getId());
+		assertEquals(1L, entityManager.createQuery(
+				"select count(t) from Tag t where t.slug = 'raced'")
+				.getSingleResult());
+		assertEquals(1L, entityManager.createQuery(
+				"select count(t) from Tag t where t.slug = 'fresh'")
+				.getSingleResult());
+	}
+
+	@Test
+	public void tagsStillMissingAfterTheLastAttemptAreNamed() throws Exception {
+		EntityManager other = factory.createEntityManager();
+		other.getTransaction().begin();
+		for (String name : Arrays.asList("Hidden", "Later1", "Later2",
+				"Later3")) {
+			other.persist(new Tag(name));
+		}
+		other.getTransaction().commit();
+		other.close();
+		// every insert fails on an existing tag but each lookup after one
+		// finds another of them, while one is never found
+		TestDatabase.inject(bookmarkDao, "entityManager",
+				revealingTags(entityManager));
+		try {
+			bookmarkDao.resolveTags(Arrays.asList("Hidden", "Later1",
+					"Later2", "Later3"));
+			fail("Resolved a tag that can't be found");
+		} catch (PersistenceException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("[hidden]"));
+		}
+	}
+
+	/**
+	 * @return The entity manager, where tag lookups by slug never find the
+	 *         hidden tag and the n-th lookup only finds the later tags
+	 *         numbered below n
+	 */
+	private static EntityManager revealingTags(
+			final EntityManager entityManager) {
+		final int[] lookups = new int[1];
+		return (EntityManager) Proxy.newProxyInstance(BookmarkDaoTest.class
+				.getClassLoader(), new Class<?>[] { EntityManager.class },
+				new InvocationHandler() {
+
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						Object result = forward(entityManager, method, args);
+						if (method.getName().equals("createNamedQuery")
+								&& "Tag.findBySlugs".equals(args[0])) {
+							return query((Query) result);
+						}
+						return result;
+					}
+
+					private Query query(final Query query) {
+						return (Query) Proxy.newProxyInstance(
+								BookmarkDaoTest.class.getClassLoader(),
+								new Class<?>[] { Query.class },
+								new InvocationHandler() {
+
+									public Object invoke(Object proxy,
+											Method method, Object[] args)
+											throws Throwable {
+										Object result = forward(query,
+												method, args);
+										if (method.getName().equals(
+												"getResultList")) {
+											return found((List<?>) result,
+													++lookups[0]);
+										}
+										return result == query ? proxy
+												: result;
+									}
+								});
+					}
+
+					private List<Tag> found(List<?> tags, int lookup) {
+						List<Tag> found = new ArrayList<Tag>();
+						for (Object tag : tags) {
+							String slug = ((Tag) tag).getSlug();
+							if (slug.startsWith("later")
+									&& Integer.parseInt(slug.substring(5)) < lookup) {
+								found.add((Tag) tag);
+							}
+						}
+						return found;
+					}
+				});
+	}
+
+	/**
+	 * @return The entity manager, running the task once after the first tag
+	 *         lookup by slug has read its results
+	 */
+	private static EntityManager afterTagLookup(
+			final EntityManager entityManager, final Runnable task) {
+		final boolean[] ran = new boolean[1];
+		return (EntityManager) Proxy.newProxyInstance(BookmarkDaoTest.class
+				.getClassLoader(), new Class<?>[] { EntityManager.class },
+				new InvocationHandler() {
+
+					public Object invoke(Object proxy, Method method,
+							Object[] args) throws Throwable {
+						Object result = forward(entityManager, method, args);
+						if (method.getName().equals("createNamedQuery")
+								&& "Tag.findBySlugs".equals(args[0])) {
+							return query((Query) result);
+						}
+						return result;
+					}
+
+					private Query query(final Query query) {
+						return (Query) Proxy.newProxyInstance(
+								BookmarkDaoTest.class.getClassLoader(),
+								new Class<?>[] { Query.class },
+								new InvocationHandler() {
+
+									public Object invoke(Object proxy,
+											Method method, Object[] args)
+											throws Throwable {
+										Object result = forward(query,
+												method, args);
+										if (method.getName().equals(
+												"getResultList")
+												&& !ran[0]) {
+											ran[0] = true;
+											task.run();
+										}
+										return result == query ? proxy
+												: result;
+									}
+								});
+					}
+				});
+	}
+
+	private static Object forward(Object target, Method method, Object[] args)
+			throws Throwable {
+		try {
+			return method.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * Touches everything home.xhtml shows for each bookmark
+	 */
+	private void render(List<Bookmark> page) {
+		for (Bookmark bookmark : page) {
+			bookmark.getUser().getUsername();
+			for (Tag tag : bookmark.getTags()) {
+				tag.getName();
+			}
+		}
+	}
+
+	private static void assertMatches(Bookmark bookmark, String[] filter) {
+		if (filter[0] != null) {
+			boolean tagged = false;
+			for (Tag tag : bookmark.getTags()) {
+				tagged |= tag.getSlug().equals(filter[0]);
+			}
+			assertTrue(bookmark.getId() + " tagged " + filter[0], tagged);
+		}
+		if (filter[1] != null) {
+			assertEquals(filter[1], bookmark.getUser().getUsername());
+		}
+	}
+
+	private static List<String> slugs(List<Tag> tags) {
+		List<String> slugs = new ArrayList<String>();
+		for (Tag tag : tags) {
+			slugs.add(tag.getSlug());
+		}
+		return slugs;
+	}
+
+	private static List<Long> ids(List<Bookmark> bookmarks) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Bookmark bookmark : bookmarks) {
+			ids.add(bookmark.getId());
+		}
+		return ids;
+	}
+
+	private Statistics statistics() {
+		return ((Session) entityManager.getDelegate()).getSessionFactory()
+				.getStatistics();
+	}
+}
@@ -0,0 +1,237 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apiiro.avigtest.model.Bookmark;
+
+/**
+ * Searches a {@link BookmarkSearchIndex} loaded from the {@link TestDatabase}
+ * and the bookmarks each test saves to it. The tests search for made up words
+ * the seeded bookmarks don't contain.
+ *
+ */
+public class BookmarkSearchIndexTest {
+
+	private static EntityManagerFactory factory;
+
+	private BookmarkSearchIndex searchIndex;
+
+	@BeforeClass
+	public static void createData() throws Exception {
+		factory = TestDatabase.create();
+	}
+
+	@AfterClass
+	public static void closeFactory() {
+		factory.close();
+	}
+
+	@Before
+	public void createIndex() throws Exception {
+		searchIndex = new BookmarkSearchIndex();
+		TestDatabase.inject(searchIndex, "entityManagerFactory", factory);
+		TestDatabase.inject(searchIndex, "archive", TestDatabase.emptyArchive());
+	}
+
+	@Test
+	public void textIsSplitIntoLowerCaseTerms() {
+		assertEquals(Arrays.asList("java", "ee", "example", "page2"),
+				BookmarkSearchIndex
+						.tokenize("The Java-EE http://www.Example.com/a_b/Page2 x"));
+		assertTrue(BookmarkSearchIndex.tokenize(null).isEmpty());
+		assertTrue(BookmarkSearchIndex.tokenize(" - ").isEmpty());
+	}
+
+	@Test
+	public void everyTermMustMatch() {
+		Bookmark habitat = save("Quokka habitat", "Wildlife of the island");
+		Bookmark recipes = save("Quokka free recipes", "Cooking");
+
+		assertEquals(ids(habitat, recipes), sorted(searchIndex.search("quokka",
+				10)));
+		assertEquals(ids(habitat), searchIndex.search("QUOKKA wildlife", 10));
+		assertEquals(ids(recipes), searchIndex.search("cooking quokka", 10));
+		assertTrue(searchIndex.search("quokka unheardof", 10).isEmpty());
+		assertTrue(searchIndex.search("the and", 10).isEmpty());
+		assertEquals(1, searchIndex.search("quokka", 1).size());
+	}
+
+	@Test
+	public void titleMatchesRankFirst() {
+		Bookmark described = save("Burrows", "Where the wombat lives");
+		Bookmark titled = save("Wombat facts", "Burrows and more");
+		Bookmark both = save("Wombat burrows", "Wombat burrows explained");
+
+		assertEquals(ids(both, titled, described), searchIndex.search(
+				"wombat", 10));
+		assertEquals(both.getId(), searchIndex.search("wombat burrows", 10)
+				.get(0));
+	}
+
+	@Test
+	public void prefixMatchesEveryTermStartingWithIt() {
+		Bookmark numbat = save("Numbat sightings", "Termites");
+		Bookmark numbats = save("Numbats", "Termite mounds");
+		save("Echidna", "Also eats termites");
+
+		assertEquals(ids(numbat, numbats), sorted(searchIndex.search("numb*",
+				10)));
+		assertEquals(ids(numbat, numbats), sorted(searchIndex.search(
+				"termit* numbat*", 10)));
+		assertTrue(searchIndex.search("numbat", 10).contains(numbat.getId()));
+		assertFalse(searchIndex.search("numbat", 10).contains(numbats.getId()));
+		assertTrue(searchIndex.search("numbz*", 10).isEmpty());
+	}
+
+	@Test
+	public void loadIndexesEveryBookmark() {
+		EntityManager em = factory.createEntityManager();
+		try {
+			assertEquals(em.createQuery("select count(b) from Bookmark b")
+					.getSingleResult(), (long) searchIndex.size());
+			assertTrue(searchIndex.getTermCount() > 0);
+		} finally {
+			em.close();
+		}
+	}
+
+	@Test
+	public void addedBookmarkIsFound() {
+		searchIndex.size();
+		Bookmark bookmark = save("Bilby conservation", "Night life");
+		assertTrue(searchIndex.search("bilby", 10).isEmpty());
+
+		searchIndex.add(bookmark);
+		assertEquals(ids(bookmark), searchIndex.search("bilby", 10));
+		assertEquals(ids(bookmark), searchIndex.search("bil*", 10));
+	}
+
+	@Test
+	public void bookmarkSavedBeforeLoadingIsIndexedOnce() {
+		Bookmark bookmark = save("Platypus", "Lays eggs");
+		searchIndex.add(bookmark);
+		assertFalse(searchIndex.isLoaded());
+
+		int size = searchIndex.size();
+		assertEquals(ids(bookmark), searchIndex.search("platypus", 10));
+		searchIndex.add(bookmark);
+		assertEquals(size, searchIndex.size());
+	}
+
+	@Test
+	public void lowerIdCommittedAfterTheLoadIsIndexed() {
+		// ids come from a pooled sequence, so a bookmark can commit after
+		// the load has read a bookmark with a higher id
+		Bookmark late = save("Bandicoot", "Committed late");
+		delete(late);
+		save("Potoroo", "Committed first");
+		int size = searchIndex.size();
+
+		searchIndex.add(late);
+		assertEquals(ids(late), searchIndex.search("bandicoot", 10));
+		assertEquals(size + 1, searchIndex.size());
+	}
+
+	@Test
+	public void droppedBookmarkIsReadFromTheDatabase() {
+		int size = searchIndex.size();
+		Bookmark bookmark = save("Quoll dens", "Spotted");
+		searchIndex.eventsDropped();
+
+		assertEquals(ids(bookmark), searchIndex.search("quoll", 10));
+		assertEquals(size + 1, searchIndex.size());
+		searchIndex.add(bookmark);
+		assertEquals(size + 1, searchIndex.size());
+	}
+
+	@Test
+	public void listingMovesOnOnceTheIndexHasTheBookmark() {
+		searchIndex.size();
+		Bookmark bookmark = save("Dunnart", "Tiny");
+		long version = ListingCache.getVersion();
+		searchIndex.changed(Collections.singletonList(new ChangeEvent(
+				ChangeEvent.Type.BOOKMARK_SAVED, bookmark)));
+		assertEquals(ids(bookmark), searchIndex.search("dunnart", 10));
+		assertTrue(ListingCache.getVersion() > version);
+
+		version = ListingCache.getVersion();
+		searchIndex.changed(Collections.singletonList(new ChangeEvent(
+				ChangeEvent.Type.TAG_CREATED, "tag")));
+		assertEquals(version, ListingCache.getVersion());
+	}
+
+	@Test
+	public void indexIsLoadedInTheBackground() throws Exception {
+		BackgroundTasks backgroundTasks = new BackgroundTasks();
+		TestDatabase.inject(searchIndex, "backgroundTasks", backgroundTasks);
+		try {
+			searchIndex.startLoading();
+			long deadline = System.currentTimeMillis() + 10000;
+			while (!searchIndex.isLoaded()
+					&& System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(searchIndex.isLoaded());
+		} finally {
+			backgroundTasks.shutdown();
+		}
+	}
+
+	private static Bookmark save(String title, String description) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			Bookmark bookmark = new Bookmark();
+			bookmark.setUrl("http://www.example.com/");
+			bookmark.setTitle(title);
+			bookmark.setDescription(description);
+			bookmark.setAddedOn(new Date());
+			em.persist(bookmark);
+			em.getTransaction().commit();
+			return bookmark;
+		} finally {
+			em.close();
+		}
+	}
+
+	private static void delete(Bookmark bookmark) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			em.remove(em.find(Bookmark.class, bookmark.getId()));
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+	}
+
+	private static List<Long> ids(Bookmark... bookmarks) {
+		List<Long> ids = new ArrayList<Long>();
+		for (Bookmark bookmark : bookmarks) {
+			ids.add(bookmark.getId());
+		}
+		return ids;
+	}
+
+	private static List<Long> sorted(List<Long> ids) {
+		List<Long> sorted = new ArrayList<Long>(ids);
+		Collections.sort(sorted);
+		return sorted;
+	}
+}
@@ -0,0 +1,195 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Publishes events to a {@link ChangeEventBus} from several threads and
+ * checks what its listeners are given.
+ *
+ */
+public class ChangeEventBusTest {
+
+	private ChangeEventBus bus;
+
+	@After
+	public void stopBus() {
+		if (bus != null) {
+			bus.stop();
+		}
+	}
+
+	@Test
+	public void everyEventIsDeliveredInPublishOrder() throws Exception {
+		bus = new ChangeEventBus(64, 16);
+		final List<ChangeEvent> received = new ArrayList<ChangeEvent>();
+		final int[] largestBatch = new int[1];
+		bus.subscribe(new ChangeListener() {
+
+			public void changed(List<ChangeEvent> events) {
+				largestBatch[0] = Math.max(largestBatch[0], events.size());
+				received.addAll(events);
+			}
+
+			public void eventsDropped() {
+			}
+		});
+		bus.start();
+
+		final int publishers = 4;
+		final int each = 5000;
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int p = 0; p < publishers; p++) {
+			final int publisher = p;
+			Thread thread = new Thread(new Runnable() {
+
+				public void run() {
+					for (int i = 0; i < each; i++) {
+						// the ring is small, so retry when it is full
+						while (!bus.publish(new ChangeEvent(
+								ChangeEvent.Type.BOOKMARK_SAVED, new int[] {
+										publisher, i }))) {
+							Thread.yield();
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		bus.stop();
+
+		assertEquals(publishers * each, received.size());
+		assertEquals(publishers * each, bus.getPublished());
+		assertTrue(largestBatch[0] <= 16);
+		int[] next = new int[publishers];
+		for (ChangeEvent event : received) {
+			int[] entity = (int[]) event.getEntity();
+			assertEquals(next[entity[0]]++, entity[1]);
+		}
+	}
+
+	@Test
+	public void fullRingDropsInsteadOfBlocking() throws Exception {
+		bus = new ChangeEventBus(8, 8);
+		final CountDownLatch stalled = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		bus.subscribe(new ChangeListener() {
+
+			public void changed(List<ChangeEvent> events) {
+				stalled.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			public void eventsDropped() {
+			}
+		});
+		bus.start();
+		assertTrue(bus.publish(event()));
+		assertTrue(stalled.await(5, TimeUnit.SECONDS));
+
+		int accepted = 0;
+		for (int i = 0; i < 20; i++) {
+			if (bus.publish(event())) {
+				accepted++;
+			}
+		}
+		assertEquals(8, accepted);
+		assertEquals(12, bus.getDropped());
+		release.countDown();
+	}
+
+	@Test
+	public void failingListenerDoesNotStopTheOthers() throws Exception {
+		bus = new ChangeEventBus(16, 4);
+		final CountDownLatch delivered = new CountDownLatch(10);
+		bus.subscribe(new ChangeListener() {
+
+			public void changed(List<ChangeEvent> events) {
+				throw new IllegalStateException("listener failed");
+			}
+
+			public void eventsDropped() {
+			}
+		});
+		bus.subscribe(new ChangeListener() {
+
+			public void changed(List<ChangeEvent> events) {
+				for (int i = 0; i < events.size(); i++) {
+					delivered.countDown();
+				}
+			}
+
+			public void eventsDropped() {
+			}
+		});
+		bus.start();
+		for (int i = 0; i < 10; i++) {
+			assertTrue(bus.publish(event()));
+		}
+		assertTrue(delivered.await(5, TimeUnit.SECONDS));
+		assertFalse(bus.getPending() > 0);
+	}
+
+	@Test
+	public void droppedEventsAreReportedBeforeTheNextBatch() throws Exception {
+		bus = new ChangeEventBus(8, 8);
+		final CountDownLatch stalled = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch delivered = new CountDownLatch(9);
+		final List<String> calls = new ArrayList<String>();
+		bus.subscribe(new ChangeListener() {
+
+			public void changed(List<ChangeEvent> events) {
+				calls.add("changed " + events.size());
+				stalled.countDown();
+				for (int i = 0; i < events.size(); i++) {
+					delivered.countDown();
+				}
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+
+			public void eventsDropped() {
+				calls.add("dropped");
+			}
+		});
+		bus.start();
+		assertTrue(bus.publish(event()));
+		assertTrue(stalled.await(5, TimeUnit.SECONDS));
+		for (int i = 0; i < 10; i++) {
+			bus.publish(event());
+		}
+		release.countDown();
+		assertTrue(delivered.await(5, TimeUnit.SECONDS));
+		bus.stop();
+
+		assertEquals(2, bus.getDropped());
+		assertEquals(Arrays.asList("changed 1", "dropped",
+				"changed 8"), calls);
+	}
+
+	private static ChangeEvent event() {
+		return new ChangeEvent(ChangeEvent.Type.TAG_CREATED, "tag");
+	}
+}
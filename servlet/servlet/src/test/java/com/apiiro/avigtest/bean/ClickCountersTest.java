@@ -0,0 +1,171 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apiiro.avigtest.model.Bookmark;
+
+/**
+ * Counts clicks with the {@link ClickCounters} against the
+ * {@link TestDatabase}. Each test clicks its own bookmarks since the counts
+ * are kept between tests.
+ *
+ */
+public class ClickCountersTest {
+
+	private static EntityManagerFactory factory;
+	private static Iterator<Long> bookmarkIds;
+
+	private ClickCounters clickCounters;
+
+	@BeforeClass
+	@SuppressWarnings("unchecked")
+	public static void createData() throws Exception {
+		factory = TestDatabase.create();
+		EntityManager em = factory.createEntityManager();
+		bookmarkIds = ((List<Long>) em.createQuery(
+				"select b.id from Bookmark b order by b.id").getResultList())
+				.iterator();
+		em.close();
+	}
+
+	@AfterClass
+	public static void closeFactory() {
+		factory.close();
+	}
+
+	@Before
+	public void createCounters() throws Exception {
+		clickCounters = new ClickCounters();
+		TestDatabase.inject(clickCounters, "entityManagerFactory", factory);
+		TestDatabase.inject(clickCounters, "archive", TestDatabase
+				.emptyArchive());
+	}
+
+	@Test
+	public void concurrentClicksAreAddedByOneFlush() throws Exception {
+		final Long first = bookmarkIds.next();
+		final Long second = bookmarkIds.next();
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		for (int i = 0; i < 8; i++) {
+			executor.execute(new Runnable() {
+
+				public void run() {
+					for (int j = 0; j < 1000; j++) {
+						clickCounters.click(j % 4 == 0 ? second : first);
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+		assertEquals(6000, clickCounters.getPending(first));
+
+		assertEquals(2, clickCounters.flush());
+		assertEquals(0, clickCounters.getPending(first));
+		assertEquals(6000, clicksOf(first));
+		assertEquals(2000, clicksOf(second));
+		assertEquals(0, clickCounters.flush());
+	}
+
+	@Test
+	public void mostClickedIncludesPendingClicks() throws Exception {
+		Long flushed = bookmarkIds.next();
+		Long pending = bookmarkIds.next();
+		click(flushed, 50000);
+		clickCounters.flush();
+		click(flushed, 1);
+		click(pending, 50002);
+
+		Map<Long, Long> top = clickCounters.getMostClicked(2);
+		List<Long> ids = new ArrayList<Long>(top.keySet());
+		assertEquals(2, ids.size());
+		assertEquals(pending, ids.get(0));
+		assertEquals(Long.valueOf(50002), top.get(pending));
+		assertEquals(flushed, ids.get(1));
+		assertEquals(Long.valueOf(50001), top.get(flushed));
+	}
+
+	@Test
+	public void idleCountersAreRemovedWithoutLosingClicks() throws Exception {
+		Long id = bookmarkIds.next();
+		click(id, 3);
+		clickCounters.flush();
+		// no clicks since the last flush, the counter is retired
+		assertEquals(0, clickCounters.takeDeltas().size());
+		click(id, 2);
+		clickCounters.flush();
+		assertEquals(5, clicksOf(id));
+	}
+
+	@Test
+	public void urlIsLookedUpOnce() throws Exception {
+		Long id = bookmarkIds.next();
+		String url = clickCounters.getUrl(id);
+		assertEquals(clickCounters.getUrl(id), url);
+		EntityManager em = factory.createEntityManager();
+		try {
+			assertEquals(em.find(Bookmark.class, id).getUrl(), url);
+		} finally {
+			em.close();
+		}
+		assertEquals(null, clickCounters.getUrl(-1L));
+	}
+
+	@Test
+	public void clicksOnArchivedBookmarksAreNotCounted() throws Exception {
+		final Long archived = bookmarkIds.next();
+		Long live = bookmarkIds.next();
+		click(archived, 2);
+		click(live, 1);
+		TestDatabase.inject(clickCounters, "archive", new BookmarkArchive(
+				new File("does-not-exist"), 0, 1) {
+
+			@Override
+			public boolean contains(long id) {
+				return id == archived;
+			}
+		});
+
+		// counted before it was archived, dropped rather than lost in a write
+		assertFalse(clickCounters.click(archived));
+		assertTrue(clickCounters.click(live));
+		assertEquals(1, clickCounters.flush());
+		assertEquals(0, clickCounters.getPending(archived));
+		assertEquals(2, clicksOf(live));
+		assertEquals(0, clicksOf(archived));
+	}
+
+	private void click(Long id, int times) {
+		for (int i = 0; i < times; i++) {
+			clickCounters.click(id);
+		}
+	}
+
+	private static long clicksOf(Long id) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			return em.find(Bookmark.class, id).getClicks();
+		} finally {
+			em.close();
+		}
+	}
+}
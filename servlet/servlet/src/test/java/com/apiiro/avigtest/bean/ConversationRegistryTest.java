@@ -0,0 +1,145 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.persistence.EntityManager;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Evicts conversations of a registry holding stand in entity managers and
+ * bean state.
+ *
+ */
+public class ConversationRegistryTest {
+
+	private static final long IDLE = 60000;
+
+	private ConversationRegistry registry;
+	private ConversationMetrics metrics;
+
+	@Before
+	public void setUp() throws Exception {
+		registry = new ConversationRegistry(IDLE, 2);
+		metrics = new ConversationMetrics();
+		TestDatabase.inject(registry, "metrics", metrics);
+	}
+
+	@Test
+	public void leastRecentlyUsedIsEvictedOverCap() {
+		State first = new State(100);
+		State second = new State(200);
+		State third = new State(300);
+		Closeable firstEm = new Closeable();
+		registry.entityManagerCreated("1", firstEm.proxy());
+		registry.touch("1", first, 0);
+		registry.touch("2", second, 1);
+		// using the first again makes the second the least recently used
+		registry.touch("1", first, 2);
+		registry.touch("3", third, 3);
+
+		assertEquals(2, registry.size());
+		assertTrue(second.released);
+		assertFalse(first.released);
+		assertTrue(firstEm.open);
+		assertEquals(2, metrics.getLive());
+		assertEquals(400, metrics.getRetainedBytes());
+		assertEquals(1, metrics.getEvictedOverCap());
+	}
+
+	@Test
+	public void idleConversationIsEvictedWithItsEntityManager() {
+		State idle = new State(100);
+		State active = new State(50);
+		Closeable em = new Closeable();
+		registry.entityManagerCreated("1", em.proxy());
+		registry.touch("1", idle, 0);
+		registry.touch("2", active, IDLE);
+		assertFalse(idle.released);
+
+		registry.touch("2", active, IDLE + 1);
+		assertTrue(idle.released);
+		assertFalse(em.open);
+		assertEquals(1, registry.size());
+		assertEquals(1, metrics.getEvictedIdle());
+		assertEquals(50, metrics.getRetainedBytes());
+	}
+
+	@Test
+	public void endedConversationIsLeftToCdi() {
+		State state = new State(100);
+		Closeable em = new Closeable();
+		registry.entityManagerCreated("1", em.proxy());
+		registry.touch("1", state, 0);
+		registry.ended("1");
+
+		assertEquals(0, registry.size());
+		assertTrue(em.open);
+		assertFalse(state.released);
+		assertEquals(0, metrics.getLive());
+		assertEquals(0, metrics.getRetainedBytes());
+		assertEquals(1, metrics.getEnded());
+	}
+
+	@Test
+	public void retainedBytesFollowTheState() {
+		State state = new State(100);
+		registry.touch("1", state, 0);
+		state.bytes = 250;
+		registry.touch("1", state, 1);
+		assertEquals(250, metrics.getRetainedBytes());
+
+		registry.destroy();
+		assertEquals(0, metrics.getLive());
+		assertEquals(0, metrics.getRetainedBytes());
+	}
+
+	private static class State implements ConversationState {
+
+		long bytes;
+		boolean released;
+
+		State(long bytes) {
+			this.bytes = bytes;
+		}
+
+		public long getRetainedBytes() {
+			return bytes;
+		}
+
+		public void release() {
+			released = true;
+		}
+	}
+
+	/**
+	 * Stand in entity manager that only knows whether it is open
+	 */
+	private static class Closeable implements InvocationHandler {
+
+		boolean open = true;
+
+		EntityManager proxy() {
+			return (EntityManager) Proxy.newProxyInstance(getClass()
+					.getClassLoader(), new Class<?>[] { EntityManager.class },
+					this);
+		}
+
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			if (method.getName().equals("isOpen")) {
+				return open;
+			}
+			if (method.getName().equals("close")) {
+				open = false;
+			}
+			return null;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Starts and stops the application's entity manager factory with the
+ * {@link DataRepositoryProducer}, with the default in memory database and
+ * with <code>db.profile=file</code> pointed at a database of its own.
+ *
+ */
+public class DataRepositoryProducerTest {
+
+	private static final String URL = "jdbc:hsqldb:mem:producer-test";
+
+	@After
+	public void stop() {
+		DataRepositoryProducer.stop();
+		System.clearProperty("db.profile");
+		System.clearProperty("db.url");
+	}
+
+	@Test
+	public void factoryIsStartedOnce() throws Exception {
+		final int threads = 8;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<EntityManagerFactory>> starts = new ArrayList<Future<EntityManagerFactory>>();
+			for (int i = 0; i < threads; i++) {
+				starts.add(executor.submit(new Callable<EntityManagerFactory>() {
+
+					public EntityManagerFactory call() {
+						return DataRepositoryProducer.start();
+					}
+				}));
+			}
+			EntityManagerFactory factory = starts.get(0).get();
+			for (Future<EntityManagerFactory> start : starts) {
+				assertSame(factory, start.get());
+			}
+			assertSame(factory, DataRepositoryProducer.start());
+			assertSame(factory,
+					new DataRepositoryProducer().getEntityManagerFactory());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void stoppedFactoryIsClosedAndStartedAgain() {
+		EntityManagerFactory factory = DataRepositoryProducer.start();
+		DataRepositoryProducer.stop();
+		assertFalse(factory.isOpen());
+		DataRepositoryProducer.stop();
+
+		EntityManagerFactory restarted = new DataRepositoryProducer()
+				.getEntityManagerFactory();
+		assertNotSame(factory, restarted);
+		assertTrue(restarted.isOpen());
+	}
+
+	@Test
+	public void fileProfileMigratesAndValidatesTheDatabase() {
+		useFileProfile();
+		assertTrue(DataRepositoryProducer.isPersistent());
+		assertEquals(0, countUsers(DataRepositoryProducer.start()));
+
+		// started again against the migrated database
+		DataRepositoryProducer.stop();
+		assertEquals(0, countUsers(DataRepositoryProducer.start()));
+	}
+
+	@Test
+	public void schemaThatDoesNotMatchTheMappingsFailsTheStart()
+			throws Exception {
+		useFileProfile();
+		DataRepositoryProducer.start();
+		DataRepositoryProducer.stop();
+		execute("alter table USERS drop column firstName");
+		try {
+			DataRepositoryProducer.start();
+			fail();
+		} catch (PersistenceException e) {
+			// expected
+		} finally {
+			execute("alter table USERS add column firstName varchar(24)");
+		}
+		assertEquals(0, countUsers(DataRepositoryProducer.start()));
+	}
+
+	@Test
+	public void defaultProfileIsNotPersistent() {
+		assertFalse(DataRepositoryProducer.isPersistent());
+	}
+
+	private static void useFileProfile() {
+		System.setProperty("db.profile", "file");
+		System.setProperty("db.url", URL);
+	}
+
+	private static long countUsers(EntityManagerFactory factory) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			return (Long) em.createQuery("select count(u) from User u")
+					.getSingleResult();
+		} finally {
+			em.close();
+		}
+	}
+
+	private static void execute(String sql) throws Exception {
+		Connection connection = DriverManager.getConnection(URL, "sa", "");
+		try {
+			connection.createStatement().execute(sql);
+		} finally {
+			connection.close();
+		}
+	}
+}
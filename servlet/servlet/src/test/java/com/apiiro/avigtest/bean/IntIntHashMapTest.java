@@ -0,0 +1,63 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Checks the {@link IntIntHashMap} against a {@link HashMap} given the same
+ * additions.
+ *
+ */
+public class IntIntHashMapTest {
+
+	@Test
+	public void matchesHashMap() {
+		Random random = new Random(1);
+		IntIntHashMap map = new IntIntHashMap();
+		final Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+		for (int i = 0; i < 100000; i++) {
+			// sequential keys and scattered negative ones
+			int key = i % 3 == 0 ? -random.nextInt(1000000) : random
+					.nextInt(5000);
+			int delta = random.nextInt(10);
+			Integer current = expected.get(key);
+			int value = current == null ? delta : current + delta;
+			expected.put(key, value);
+			assertEquals(value, map.addTo(key, delta));
+		}
+		assertEquals(expected.size(), map.size());
+		for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+			assertEquals(entry.getValue().intValue(), map.get(entry.getKey()));
+		}
+		final int[] visited = new int[1];
+		map.forEach(new IntIntHashMap.Visitor() {
+
+			public void visit(int key, int value) {
+				assertEquals(expected.get(key).intValue(), value);
+				visited[0]++;
+			}
+		});
+		assertEquals(expected.size(), visited[0]);
+	}
+
+	@Test
+	public void missingKeysReadAsZero() {
+		IntIntHashMap map = new IntIntHashMap();
+		map.addTo(7, 3);
+		assertEquals(0, map.get(8));
+		assertFalse(map.containsKey(8));
+		assertTrue(map.containsKey(7));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void freeMarkerIsNotAKey() {
+		new IntIntHashMap().addTo(IntIntHashMap.FREE, 1);
+	}
+}
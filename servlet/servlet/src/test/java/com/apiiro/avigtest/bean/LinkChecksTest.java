@@ -0,0 +1,135 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apiiro.avigtest.bulk.Checkpoint;
+import com.apiiro.avigtest.bulk.LinkChecker;
+import com.apiiro.avigtest.model.Bookmark;
+
+/**
+ * Schedules the {@link LinkChecks} on stand in {@link BackgroundTasks} and
+ * runs them against the in memory "pu" database, with links that aren't web
+ * links so nothing is requested.
+ *
+ */
+public class LinkChecksTest {
+
+	private static EntityManagerFactory factory;
+
+	private final List<String> scheduled = new ArrayList<String>();
+	private final List<ScheduledFuture<?>> futures = new ArrayList<ScheduledFuture<?>>();
+
+	private final BackgroundTasks backgroundTasks = new BackgroundTasks() {
+
+		@Override
+		public ScheduledFuture<?> scheduleWithFixedDelay(String name,
+				Runnable task, long delay, TimeUnit unit) {
+			scheduled.add(name + " every " + delay + " " + unit);
+			ScheduledFuture<?> future = super.scheduleWithFixedDelay(name,
+					task, delay, unit);
+			futures.add(future);
+			return future;
+		}
+	};
+
+	@BeforeClass
+	public static void createFactory() {
+		factory = Persistence.createEntityManagerFactory("pu");
+	}
+
+	@AfterClass
+	public static void closeFactory() {
+		factory.close();
+	}
+
+	@After
+	public void removeBookmarks() {
+		backgroundTasks.shutdown();
+		System.clearProperty("links.runHours");
+		EntityManager em = factory.createEntityManager();
+		em.getTransaction().begin();
+		em.createQuery("delete from Bookmark").executeUpdate();
+		em.getTransaction().commit();
+		em.close();
+	}
+
+	@Test
+	public void checksAreScheduledOnceUnlessTurnedOff() throws Exception {
+		LinkChecks linkChecks = linkChecks();
+		linkChecks.start();
+		linkChecks.start();
+		assertEquals(1, scheduled.size());
+		assertEquals("check links every 24 HOURS", scheduled.get(0));
+
+		System.setProperty("links.runHours", "0");
+		linkChecks().start();
+		assertEquals(1, scheduled.size());
+	}
+
+	@Test
+	public void stoppedChecksAreCancelled() throws Exception {
+		LinkChecks linkChecks = linkChecks();
+		linkChecks.start();
+		linkChecks.stop();
+		assertTrue(futures.get(0).isCancelled());
+		linkChecks.stop();
+
+		linkChecks.start();
+		assertEquals(2, scheduled.size());
+		assertFalse(futures.get(1).isCancelled());
+	}
+
+	@Test
+	public void linksOfTheApplicationDatabaseAreChecked() throws Exception {
+		long id = bookmark("not a url");
+		assertEquals(1, linkChecks().checkLinks());
+
+		EntityManager em = factory.createEntityManager();
+		try {
+			assertEquals(Integer.valueOf(LinkChecker.NOT_A_WEB_LINK), em.find(
+					Bookmark.class, id).getLinkStatus());
+		} finally {
+			em.close();
+		}
+		assertEquals(0, new Checkpoint(factory, LinkChecker.CHECKPOINT)
+				.load());
+	}
+
+	private LinkChecks linkChecks() throws Exception {
+		LinkChecks linkChecks = new LinkChecks();
+		TestDatabase.inject(linkChecks, "entityManagerFactory", factory);
+		TestDatabase.inject(linkChecks, "backgroundTasks", backgroundTasks);
+		return linkChecks;
+	}
+
+	private static long bookmark(String url) {
+		EntityManager em = factory.createEntityManager();
+		em.getTransaction().begin();
+		Bookmark bookmark = new Bookmark();
+		bookmark.setUrl(url);
+		bookmark.setTitle("Link");
+		bookmark.setDescription("Link");
+		bookmark.setAddedOn(new Date());
+		em.persist(bookmark);
+		em.getTransaction().commit();
+		em.close();
+		return bookmark.getId();
+	}
+}
@@ -0,0 +1,55 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+import com.apiiro.avigtest.model.BookmarkRow;
+
+/**
+ * Stores pages in a {@link ListingCache} and moves it to new versions.
+ *
+ */
+public class ListingCacheTest {
+
+	@Test
+	public void invalidateMovesToANewVersion() throws InterruptedException {
+		long version = ListingCache.getVersion();
+		long lastModified = ListingCache.getLastModified();
+		Thread.sleep(5);
+		ListingCache.invalidate();
+		assertEquals(version + 1, ListingCache.getVersion());
+		assertTrue(ListingCache.getLastModified() > lastModified);
+	}
+
+	@Test
+	public void pagesOfOlderVersionsAreNotFound() {
+		ListingCache cache = new ListingCache();
+		ListingPage page = new ListingPage(Collections.<BookmarkRow> emptyList(),
+				false, false);
+		String key = cache.key("java", null, null);
+		cache.put(key, page);
+		assertSame(page, cache.get(cache.key("java", null, null)));
+		assertNull(cache.get(cache.key("java", "user1", null)));
+		assertNull(cache.get(cache.key(null, null, PageCursor.parse("a.1.1"))));
+
+		ListingCache.invalidate();
+		assertFalse(key.equals(cache.key("java", null, null)));
+		assertNull(cache.get(cache.key("java", null, null)));
+	}
+
+	@Test
+	public void pagesAreKeyedByTheParsedCursor() {
+		ListingCache cache = new ListingCache();
+		assertEquals(cache.key(null, null, null), cache.key(null, null,
+				PageCursor.parse("junk")));
+		assertEquals(cache.key(null, null, PageCursor.parse("a.1.z")), cache
+				.key(null, null, PageCursor.parse("a.01.0z")));
+	}
+}
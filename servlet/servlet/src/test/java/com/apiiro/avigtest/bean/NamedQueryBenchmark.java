@@ -0,0 +1,153 @@
+package com.apiiro.avigtest.bean;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+
+/**
+ * Compares building the page id query from a JPQL string on every call, as
+ * the listing used to, with creating the equivalent named query, from a
+ * number of threads at once. Each variant is timed creating the query alone
+ * and creating and running it.
+ * <p/>
+ * Run with <code>NamedQueryBenchmark [threads] [callsPerThread]</code>
+ *
+ */
+public class NamedQueryBenchmark {
+
+	private static final String[][] FILTERS = { { null, null },
+			{ "java", null }, { null, "andygibson" }, { "java", "andygibson" } };
+
+	public static void main(String[] args) throws Exception {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+		int calls = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+		EntityManagerFactory factory = TestDatabase.create();
+		try {
+			for (int round = 0; round < 2; round++) {
+				// the first round warms up the JIT
+				boolean report = round == 1;
+				for (boolean execute : new boolean[] { false, true }) {
+					double inline = run(factory, threads, calls, false, execute);
+					double named = run(factory, threads, calls, true, execute);
+					if (report) {
+						System.out.println(String.format(
+								"%s: inline %.2f us/call, named %.2f us/call, %.0f%% saved (%d threads)",
+								execute ? "create and run" : "create only",
+								inline, named, 100 * (inline - named) / inline,
+								threads));
+					}
+				}
+			}
+		} finally {
+			factory.close();
+		}
+	}
+
+	/**
+	 * @return Average microseconds per call across the threads
+	 */
+	private static double run(final EntityManagerFactory factory,
+			int threads, final int calls, final boolean named,
+			final boolean execute) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Long>> results = new ArrayList<Future<Long>>();
+			for (int t = 0; t < threads; t++) {
+				results.add(executor.submit(new Callable<Long>() {
+
+					public Long call() {
+						EntityManager em = factory.createEntityManager();
+						try {
+							Date now = new Date();
+							long started = System.nanoTime();
+							for (int i = 0; i < calls; i++) {
+								String[] filter = FILTERS[i % FILTERS.length];
+								PageCursor cursor = i % 2 == 0 ? null
+										: PageCursor.parse("a."
+												+ Long.toString(now.getTime(),
+														Character.MAX_RADIX)
+												+ ".zz");
+								Query query = named ? named(em, filter[0],
+										cursor, filter[1]) : inline(em,
+										filter[0], cursor, filter[1]);
+								query.setMaxResults(6);
+								if (execute) {
+									query.getResultList();
+								}
+							}
+							return System.nanoTime() - started;
+						} finally {
+							em.close();
+						}
+					}
+				}));
+			}
+			long total = 0;
+			for (Future<Long> result : results) {
+				total += result.get();
+			}
+			return total / 1000.0 / threads / calls;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Builds the query the way the listing did before it used named queries
+	 */
+	private static Query inline(EntityManager em, String tag,
+			PageCursor cursor, String username) {
+		String ql = "select distinct b.id, b.addedOn from Bookmark b join b.tags t where 1=1";
+		if (tag != null) {
+			ql = ql + " and t.slug = :tag ";
+		}
+		if (username != null) {
+			ql = ql + " and b.user.username = :username ";
+		}
+		if (cursor != null) {
+			ql = ql + " and (b.addedOn < :addedOn or (b.addedOn = :addedOn and b.id < :id)) ";
+		}
+		ql = ql + " order by b.addedOn desc, b.id desc";
+		return bind(em.createQuery(ql), tag, cursor, username);
+	}
+
+	private static Query named(EntityManager em, String tag,
+			PageCursor cursor, String username) {
+		String name = "Bookmark.pageIds";
+		if (tag != null) {
+			name = name + (username != null ? "ByTagAndUser" : "ByTag");
+		} else if (username != null) {
+			name = name + "ByUser";
+		}
+		if (cursor != null) {
+			name = name + ".older";
+		}
+		return bind(em.createNamedQuery(name), tag, cursor, username);
+	}
+
+	private static Query bind(Query query, String tag, PageCursor cursor,
+			String username) {
+		if (tag != null) {
+			query.setParameter("tag", tag);
+		}
+		if (username != null) {
+			query.setParameter("username", username);
+		}
+		if (cursor != null) {
+			query.setParameter("addedOn", cursor.getAddedOn(),
+					TemporalType.TIMESTAMP);
+			query.setParameter("id", cursor.getId());
+		}
+		return query;
+	}
+}
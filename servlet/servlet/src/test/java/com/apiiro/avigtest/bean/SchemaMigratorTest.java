@@ -0,0 +1,217 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Migrates a new in memory database with the {@link SchemaMigrator}, checks
+ * the mappings validate against it and that the listing and lookup queries
+ * are planned with the indexes the migrations create.
+ *
+ */
+public class SchemaMigratorTest {
+
+	private static final String URL = "jdbc:hsqldb:mem:schema-migrator-test";
+
+	private static int applied;
+	private static EntityManagerFactory factory;
+
+	@BeforeClass
+	public static void migrate() throws Exception {
+		applied = migrator().migrate();
+
+		Map<String, String> properties = new HashMap<String, String>();
+		properties.put("hibernate.connection.url", URL);
+		properties.put("hibernate.hbm2ddl.auto", "validate");
+		factory = Persistence.createEntityManagerFactory("pu", properties);
+	}
+
+	@AfterClass
+	public static void closeFactory() {
+		factory.close();
+	}
+
+	@Test
+	public void migrationsAreAppliedOnce() throws Exception {
+		assertTrue(applied > 0);
+		assertEquals(0, migrator().migrate());
+		Connection connection = connect();
+		try {
+			ResultSet result = connection.createStatement().executeQuery(
+					"select max(version) from SCHEMA_VERSION");
+			result.next();
+			assertEquals(applied, result.getInt(1));
+		} finally {
+			connection.close();
+		}
+	}
+
+	@Test
+	public void usernamesDifferingByCaseStopTheMigrationBeforeItChanges()
+			throws Exception {
+		String url = "jdbc:hsqldb:mem:case-duplicates-test";
+		SchemaMigrator migrator = new SchemaMigrator("org.hsqldb.jdbcDriver",
+				url, "sa", "");
+		assertEquals(2, migrator.migrate(2));
+		Connection connection = DriverManager.getConnection(url, "sa", "");
+		try {
+			Statement statement = connection.createStatement();
+			statement.execute("insert into USERS (id, username) values (1, 'Alice')");
+			statement.execute("insert into USERS (id, username) values (2, 'alice')");
+			statement.execute("insert into USERS (id, username) values (3, 'Bob')");
+			try {
+				migrator.migrate();
+				fail();
+			} catch (SQLException e) {
+				assertTrue(e.getMessage(), e.getMessage().contains("[alice]"));
+			}
+			ResultSet columns = connection.getMetaData().getColumns(null,
+					null, "USERS", "USERNAMEKEY");
+			assertFalse(columns.next());
+			columns.close();
+
+			statement.execute("update USERS set username = 'Alice2' where id = 2");
+			assertTrue(migrator.migrate() > 0);
+			ResultSet keys = statement
+					.executeQuery("select usernameKey from USERS order by id");
+			keys.next();
+			assertEquals("alice", keys.getString(1));
+			keys.next();
+			assertEquals("alice2", keys.getString(1));
+		} finally {
+			connection.createStatement().execute("SHUTDOWN");
+			connection.close();
+		}
+	}
+
+	@Test
+	public void listingQueriesUseIndexes() throws Exception {
+		assertPlanUses("Bookmark.pageIds.older", "IDX_BOOKMARKS_ADDED");
+		assertPlanUses("Bookmark.pageIds.newer", "IDX_BOOKMARKS_ADDED");
+		assertPlanUses("Bookmark.pageIdsByTag.older", "UK_TAG_SLUG",
+				indexOn("BOOKMARK_TAGS_XREF", "TAGS_ID"));
+		assertPlanUses("Bookmark.pageIdsByUser.older", "IDX_USERS_USERNAME",
+				indexOn("BOOKMARKS", "USER_ID"));
+		assertPlanUses("Bookmark.pageIdsByTagAndUser.older", "UK_TAG_SLUG",
+				indexOn("BOOKMARK_TAGS_XREF", "TAGS_ID"));
+	}
+
+	@Test
+	public void filteredListingsHaveKeysetIndexes() throws Exception {
+		assertEquals(Arrays.asList("USER_ID", "ADDEDON", "ID"),
+				columnsOf("IDX_BOOKMARKS_USER_ADDED"));
+		assertEquals(Arrays.asList("TAGS_ID", "BOOKMARKS_ID"),
+				columnsOf("IDX_XREF_TAG_BOOKMARK"));
+	}
+
+	@Test
+	public void mostClickedUsesIndex() throws Exception {
+		assertPlanUses("Bookmark.mostClicked", "IDX_BOOKMARKS_CLICKS");
+	}
+
+	@Test
+	public void lookupsUseUniqueIndexes() throws Exception {
+		assertPlanUses("Tag.findBySlugRange", "UK_TAG_SLUG");
+		assertPlanUses("User.login", "UK_USERS_USERNAME_KEY");
+	}
+
+	/**
+	 * Explains the SQL hibernate generates for a named query and checks each
+	 * index appears in the plan
+	 */
+	private static void assertPlanUses(String queryName, String... indexes)
+			throws Exception {
+		SessionFactoryImplementor sessionFactory = (SessionFactoryImplementor) ((HibernateEntityManagerFactory) factory)
+				.getSessionFactory();
+		String hql = sessionFactory.getNamedQuery(queryName).getQueryString();
+		String sql = sessionFactory.getQueryPlanCache().getHQLQueryPlan(hql,
+				false, Collections.EMPTY_MAP).getSqlStrings()[0];
+
+		StringBuilder plan = new StringBuilder();
+		Connection connection = connect();
+		try {
+			Statement statement = connection.createStatement();
+			ResultSet result = statement.executeQuery("EXPLAIN PLAN FOR "
+					+ sql);
+			while (result.next()) {
+				plan.append(result.getString(1)).append('\n');
+			}
+		} finally {
+			connection.close();
+		}
+		for (String index : indexes) {
+			assertTrue(queryName + " doesn't use " + index + "\n" + plan, plan
+					.indexOf(index) >= 0);
+		}
+	}
+
+	/**
+	 * @return Name of the index the database created that starts with a
+	 *         column, used for the indexes it creates for foreign keys
+	 */
+	private static String indexOn(String table, String column)
+			throws Exception {
+		Connection connection = connect();
+		try {
+			ResultSet result = connection.createStatement().executeQuery(
+					"select index_name from information_schema.system_indexinfo where table_name = '"
+							+ table + "' and column_name = '" + column
+							+ "' and ordinal_position = 1"
+							+ " and index_name like 'SYS_IDX_%'");
+			assertTrue("no index on " + table + "." + column, result.next());
+			return result.getString(1);
+		} finally {
+			connection.close();
+		}
+	}
+
+	/**
+	 * @return Columns of an index in order
+	 */
+	private static List<String> columnsOf(String index) throws Exception {
+		List<String> columns = new ArrayList<String>();
+		Connection connection = connect();
+		try {
+			ResultSet result = connection.createStatement().executeQuery(
+					"select column_name from information_schema.system_indexinfo where index_name = '"
+							+ index + "' order by ordinal_position");
+			while (result.next()) {
+				columns.add(result.getString(1));
+			}
+			return columns;
+		} finally {
+			connection.close();
+		}
+	}
+
+	private static SchemaMigrator migrator() {
+		return new SchemaMigrator("org.hsqldb.jdbcDriver", URL, "sa", "");
+	}
+
+	private static Connection connect() throws Exception {
+		return DriverManager.getConnection(URL, "sa", "");
+	}
+}
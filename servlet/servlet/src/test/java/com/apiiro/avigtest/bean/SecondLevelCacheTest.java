@@ -0,0 +1,148 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.hibernate.ejb.HibernateEntityManagerFactory;
+import org.hibernate.stat.Statistics;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apiiro.avigtest.model.Tag;
+import com.apiiro.avigtest.model.User;
+
+/**
+ * Reads users and tags from the {@link TestDatabase} in separate entity
+ * managers, as separate requests would, and checks the second level and query
+ * caches answer the repeated reads and see the writes.
+ *
+ */
+public class SecondLevelCacheTest {
+
+	private static EntityManagerFactory factory;
+
+	private Statistics statistics;
+
+	@BeforeClass
+	public static void createData() throws Exception {
+		factory = TestDatabase.create();
+	}
+
+	@AfterClass
+	public static void closeFactory() {
+		factory.close();
+	}
+
+	@Before
+	public void clearStatistics() {
+		statistics = ((HibernateEntityManagerFactory) factory)
+				.getSessionFactory().getStatistics();
+		factory.getCache().evictAll();
+		statistics.clear();
+	}
+
+	@Test
+	public void userIsFoundInTheCache() {
+		Long id = userId("andygibson");
+		find(User.class, id);
+		long statements = statistics.getPrepareStatementCount();
+
+		User user = find(User.class, id);
+		assertEquals("andygibson", user.getUsername());
+		assertEquals(statements, statistics.getPrepareStatementCount());
+		assertEquals(1, statistics.getSecondLevelCacheStatistics(
+				User.class.getName()).getHitCount());
+	}
+
+	@Test
+	public void updatedUserIsReadFromTheCache() {
+		Long id = userId("user2");
+		EntityManager em = factory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			em.find(User.class, id).setFirstName("Renamed");
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+		long statements = statistics.getPrepareStatementCount();
+
+		assertEquals("Renamed", find(User.class, id).getFirstName());
+		assertEquals(statements, statistics.getPrepareStatementCount());
+	}
+
+	@Test
+	public void tagQueryIsAnsweredFromTheQueryCache() {
+		assertEquals(Arrays.asList("java", "sql"), findBySlugs("java", "sql"));
+		long statements = statistics.getPrepareStatementCount();
+
+		assertEquals(Arrays.asList("java", "sql"), findBySlugs("java", "sql"));
+		assertEquals(statements, statistics.getPrepareStatementCount());
+		assertEquals(1, statistics.getQueryCacheHitCount());
+	}
+
+	@Test
+	public void insertedTagIsFoundByTheCachedQuery() {
+		assertEquals(Arrays.asList("java"), findBySlugs("java", "erlang"));
+
+		EntityManager em = factory.createEntityManager();
+		try {
+			em.getTransaction().begin();
+			em.persist(new Tag("Erlang"));
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+		assertEquals(Arrays.asList("erlang", "java"), findBySlugs("java",
+				"erlang"));
+		assertEquals(0, statistics.getQueryCacheHitCount());
+		assertTrue(statistics.getQueryCacheMissCount() >= 2);
+	}
+
+	private static <T> T find(Class<T> type, Long id) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			return em.find(type, id);
+		} finally {
+			em.close();
+		}
+	}
+
+	private static Long userId(String username) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			return (Long) em.createQuery(
+					"select u.id from User u where u.username = :username")
+					.setParameter("username", username).getSingleResult();
+		} finally {
+			em.close();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> findBySlugs(String... slugs) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			List<String> found = new ArrayList<String>();
+			for (Tag tag : (List<Tag>) em.createNamedQuery("Tag.findBySlugs")
+					.setParameter("slugs", Arrays.asList(slugs))
+					.getResultList()) {
+				found.add(tag.getSlug());
+			}
+			Collections.sort(found);
+			return found;
+		} finally {
+			em.close();
+		}
+	}
+}
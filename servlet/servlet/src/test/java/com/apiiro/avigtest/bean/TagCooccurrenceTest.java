@@ -0,0 +1,255 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apiiro.avigtest.model.Bookmark;
+import com.apiiro.avigtest.model.BookmarkRow;
+import com.apiiro.avigtest.model.BookmarkRow.TagRef;
+import com.apiiro.avigtest.model.Tag;
+
+/**
+ * Builds the {@link TagCooccurrence} from the {@link TestDatabase} and checks
+ * it against the counts a self join of the tag assignments gives.
+ *
+ */
+public class TagCooccurrenceTest {
+
+	private static EntityManagerFactory factory;
+
+	@BeforeClass
+	public static void createData() throws Exception {
+		factory = TestDatabase.create();
+	}
+
+	@AfterClass
+	public static void closeFactory() {
+		factory.close();
+	}
+
+	@Test
+	public void countsMatchTheDatabase() throws Exception {
+		// small pages so bookmarks are split across them
+		TagCooccurrence matrix = matrix(3);
+		for (String[] pair : pairs()) {
+			assertEquals(pair[0] + "/" + pair[1], countBoth(pair[0], pair[1]),
+					matrix.getCount(pair[0], pair[1]));
+		}
+	}
+
+	@Test
+	public void relatedTagsAreMostUsedTogetherFirst() throws Exception {
+		TagCooccurrence matrix = matrix(1000);
+		List<TagRef> related = matrix.getRelatedTags("java", 3);
+		assertFalse(related.isEmpty());
+		int previous = Integer.MAX_VALUE;
+		for (TagRef tag : related) {
+			assertFalse(tag.getSlug().equals("java"));
+			int count = countBoth("java", tag.getSlug());
+			assertTrue(count > 0 && count <= previous);
+			previous = count;
+		}
+		assertTrue(matrix.getRelatedTags("no-such-tag", 3).isEmpty());
+	}
+
+	@Test
+	public void relatedBookmarksHaveARelatedTag() throws Exception {
+		TagCooccurrence matrix = matrix(1000);
+		Set<String> related = new HashSet<String>();
+		for (TagRef tag : matrix.getRelatedTags("sql", 10)) {
+			related.add(tag.getSlug());
+		}
+		List<Long> ids = matrix.getRelatedBookmarks("sql", 5);
+		assertFalse(ids.isEmpty());
+		EntityManager em = factory.createEntityManager();
+		try {
+			for (Long id : ids) {
+				Set<String> slugs = new HashSet<String>();
+				for (Tag tag : em.find(Bookmark.class, id).getTags()) {
+					slugs.add(tag.getSlug());
+				}
+				assertFalse(slugs.contains("sql"));
+				slugs.retainAll(related);
+				assertFalse(slugs.isEmpty());
+			}
+		} finally {
+			em.close();
+		}
+	}
+
+	@Test
+	public void savedBookmarkIsAdded() throws Exception {
+		TagCooccurrence matrix = matrix(1000);
+		int before = matrix.getCount("jsf", "swing");
+
+		EntityManager em = factory.createEntityManager();
+		Bookmark bookmark = new Bookmark();
+		bookmark.setUrl("http://www.example.com");
+		bookmark.setTitle("Example");
+		bookmark.setDescription("Example");
+		bookmark.setAddedOn(new Date());
+		bookmark.getTags().add(tag(em, "jsf"));
+		bookmark.getTags().add(tag(em, "swing"));
+		em.getTransaction().begin();
+		em.persist(bookmark);
+		em.getTransaction().commit();
+		em.close();
+		matrix.add(bookmark);
+
+		assertEquals(before + 1, matrix.getCount("jsf", "swing"));
+		assertEquals(before + 1, matrix.getCount("swing", "jsf"));
+		assertEquals(countBoth("jsf", "swing"), matrix.getCount("jsf", "swing"));
+	}
+
+	@Test
+	public void droppedBookmarkIsReadFromTheDatabase() throws Exception {
+		TagCooccurrence matrix = matrix(1000);
+		int before = matrix.getCount("jsf", "swing");
+
+		EntityManager em = factory.createEntityManager();
+		Bookmark bookmark = new Bookmark();
+		bookmark.setUrl("http://www.example.com");
+		bookmark.setTitle("Example");
+		bookmark.setDescription("Example");
+		bookmark.setAddedOn(new Date());
+		bookmark.getTags().add(tag(em, "jsf"));
+		bookmark.getTags().add(tag(em, "swing"));
+		em.getTransaction().begin();
+		em.persist(bookmark);
+		em.getTransaction().commit();
+		em.close();
+		long version = ListingCache.getVersion();
+		matrix.eventsDropped();
+
+		assertTrue(ListingCache.getVersion() > version);
+		assertEquals(before + 1, matrix.getCount("jsf", "swing"));
+		assertEquals(countBoth("jsf", "swing"), matrix.getCount("jsf", "swing"));
+		matrix.add(bookmark);
+		assertEquals(before + 1, matrix.getCount("jsf", "swing"));
+	}
+
+	@Test
+	public void lowerIdCommittedAfterTheLoadIsAdded() throws Exception {
+		// ids come from a pooled sequence, so a bookmark can commit after
+		// the load has read a bookmark with a higher id
+		EntityManager em = factory.createEntityManager();
+		Bookmark late = new Bookmark();
+		late.setUrl("http://www.example.com");
+		late.setTitle("Late");
+		late.setDescription("Late");
+		late.setAddedOn(new Date());
+		late.getTags().add(tag(em, "jsf"));
+		late.getTags().add(tag(em, "swing"));
+		em.getTransaction().begin();
+		em.persist(late);
+		em.getTransaction().commit();
+		em.getTransaction().begin();
+		em.remove(late);
+		em.getTransaction().commit();
+		em.close();
+		TagCooccurrence matrix = matrix(1000);
+		int before = matrix.getCount("jsf", "swing");
+
+		matrix.add(late);
+		assertEquals(before + 1, matrix.getCount("jsf", "swing"));
+		matrix.add(late);
+		assertEquals(before + 1, matrix.getCount("jsf", "swing"));
+	}
+
+	@Test
+	public void archivedBookmarksAreCounted() throws Exception {
+		final BookmarkRow archived = new BookmarkRow(-1L,
+				"http://www.example.com", "Archived", "Archived", new Date(0),
+				"andygibson", Arrays.asList(new TagRef("JSF", "jsf"),
+						new TagRef("Swing", "swing")));
+		TagCooccurrence matrix = matrix(1000);
+		TestDatabase.inject(matrix, "archive", new BookmarkArchive(new File(
+				"does-not-exist"), 0, 1) {
+
+			@Override
+			public void forEach(RowVisitor visitor) {
+				visitor.visit(archived);
+			}
+		});
+		assertEquals(countBoth("jsf", "swing") + 1, matrix.getCount("jsf",
+				"swing"));
+	}
+
+	@Test
+	public void newestIdsAreOrderedByTimeAdded() {
+		TagCooccurrence.NewestIds newest = new TagCooccurrence.NewestIds(3);
+		newest.add(20, 1);
+		newest.add(10, 9);
+		newest.add(30, 2);
+		newest.add(20, 5);
+		assertEquals(3, newest.size());
+		assertEquals(2, newest.get(0));
+		assertEquals(5, newest.get(1));
+		assertEquals(1, newest.get(2));
+		// older than all of them
+		newest.add(5, 100);
+		assertEquals(1, newest.get(2));
+		assertEquals(3, newest.size());
+	}
+
+	private static TagCooccurrence matrix(int pageSize) throws Exception {
+		TagCooccurrence matrix = new TagCooccurrence(pageSize);
+		TestDatabase.inject(matrix, "entityManagerFactory", factory);
+		TestDatabase.inject(matrix, "archive", TestDatabase.emptyArchive());
+		return matrix;
+	}
+
+	private static Tag tag(EntityManager em, String slug) {
+		return (Tag) em.createQuery("select t from Tag t where t.slug = :slug")
+				.setParameter("slug", slug).getSingleResult();
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String[]> pairs() {
+		EntityManager em = factory.createEntityManager();
+		try {
+			List<String> slugs = em.createQuery("select t.slug from Tag t")
+					.getResultList();
+			List<String[]> pairs = new ArrayList<String[]>();
+			for (String a : slugs) {
+				for (String b : slugs) {
+					if (!a.equals(b)) {
+						pairs.add(new String[] { a, b });
+					}
+				}
+			}
+			return pairs;
+		} finally {
+			em.close();
+		}
+	}
+
+	private static int countBoth(String a, String b) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			return ((Long) em
+					.createQuery(
+							"select count(b) from Bookmark b join b.tags x join b.tags y where x.slug = :a and y.slug = :b")
+					.setParameter("a", a).setParameter("b", b)
+					.getSingleResult()).intValue();
+		} finally {
+			em.close();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apiiro.avigtest.model.Tag;
+
+/**
+ * Looks tags up by prefix in a {@link TagIndex} loaded from the
+ * {@link TestDatabase}.
+ *
+ */
+public class TagIndexTest {
+
+	private static EntityManagerFactory factory;
+
+	private TagIndex tagIndex;
+
+	@BeforeClass
+	public static void createData() throws Exception {
+		factory = TestDatabase.create();
+	}
+
+	@AfterClass
+	public static void closeFactory() {
+		factory.close();
+	}
+
+	@Before
+	public void createIndex() throws Exception {
+		tagIndex = new TagIndex();
+		TestDatabase.inject(tagIndex, "entityManagerFactory", factory);
+	}
+
+	@Test
+	public void prefixIgnoresCaseAndOrdersByName() {
+		assertEquals(Arrays.asList("Java", "JavaFX", "JBoss", "JEE", "JPA",
+				"JSF"), names(tagIndex.findByPrefix("j")));
+		assertEquals(Arrays.asList("Java", "JavaFX"), names(tagIndex
+				.findByPrefix("jAV")));
+		assertEquals(Arrays.asList("JavaFX"), names(tagIndex
+				.findByPrefix("JavaF")));
+		assertTrue(tagIndex.findByPrefix("javafxx").isEmpty());
+		assertTrue(tagIndex.findByPrefix("x").isEmpty());
+		assertEquals(tagIndex.size(), tagIndex.findByPrefix(null).size());
+		assertEquals(tagIndex.size(), tagIndex.findByPrefix("").size());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void everyPrefixMatchesTheDatabase() {
+		EntityManager em = factory.createEntityManager();
+		try {
+			List<String> all = em.createQuery("select t.name from Tag t")
+					.getResultList();
+			assertEquals(all.size(), tagIndex.size());
+			for (String name : all) {
+				for (int length = 1; length <= name.length(); length++) {
+					String prefix = name.substring(0, length);
+					List<String> expected = em.createQuery(
+							"select t.name from Tag t where lower(t.name) like :prefix order by lower(t.name), t.name")
+							.setParameter("prefix",
+									prefix.toLowerCase() + "%")
+							.getResultList();
+					assertEquals(prefix, expected, names(tagIndex
+							.findByPrefix(prefix)));
+				}
+			}
+		} finally {
+			em.close();
+		}
+	}
+
+	@Test
+	public void addedTagIsFoundOnce() {
+		int size = tagIndex.size();
+		EntityManager em = factory.createEntityManager();
+		Tag tag = new Tag("Kotlin");
+		try {
+			em.getTransaction().begin();
+			em.persist(tag);
+			em.getTransaction().commit();
+		} finally {
+			em.close();
+		}
+		tagIndex.add(tag);
+		tagIndex.add(tag);
+		assertEquals(size + 1, tagIndex.size());
+		assertEquals(Arrays.asList("Kotlin"), names(tagIndex
+				.findByPrefix("KOT")));
+		assertEquals(Arrays.asList("Kotlin"), names(tagIndex
+				.findByPrefix("k")));
+	}
+
+	private static List<String> names(List<Tag> tags) {
+		List<String> names = new ArrayList<String>();
+		for (Tag tag : tags) {
+			names.add(tag.getName());
+		}
+		return names;
+	}
+}
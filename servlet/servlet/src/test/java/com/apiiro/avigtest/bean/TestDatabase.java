@@ -0,0 +1,79 @@
+package com.apiiro.avigtest.bean;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+/**
+ * The in memory "pu" database the bean tests run against, seeded by the
+ * {@link DataFactory} with a fixed seed so every run sees the same users, tags
+ * and bookmarks.
+ *
+ */
+public final class TestDatabase {
+
+	/**
+	 * Seed of the data, which gives every user, the "java" tag and
+	 * andygibson's "java" bookmarks at least three bookmarks each
+	 */
+	static final long SEED = 299;
+
+	private TestDatabase() {
+	}
+
+	/**
+	 * @return A new factory for the "pu" unit with the data created, which the
+	 *         caller must close
+	 */
+	public static EntityManagerFactory create() throws Exception {
+		return create(Collections.<String, String> emptyMap());
+	}
+
+	/**
+	 * @param properties
+	 *            Properties of the unit to override
+	 * @return A new factory for the "pu" unit with the data created, which the
+	 *         caller must close
+	 */
+	public static EntityManagerFactory create(Map<String, String> properties)
+			throws Exception {
+		EntityManagerFactory factory = Persistence.createEntityManagerFactory(
+				"pu", properties);
+		EntityManager em = factory.createEntityManager();
+		try {
+			TagIndex tagIndex = new TagIndex();
+			inject(tagIndex, "entityManagerFactory", factory);
+			DataFactory dataFactory = new DataFactory(new Random(SEED));
+			inject(dataFactory, "entityManager", em);
+			inject(dataFactory, "tagIndex", tagIndex);
+			dataFactory.createData();
+		} finally {
+			em.close();
+		}
+		return factory;
+	}
+
+	/**
+	 * @return An archive with no segments, for the tests of the beans that
+	 *         merge archived bookmarks in
+	 */
+	static BookmarkArchive emptyArchive() {
+		return new BookmarkArchive(new File("does-not-exist"), 0, 1);
+	}
+
+	/**
+	 * Sets a field the container would inject
+	 */
+	public static void inject(Object target, String fieldName, Object value)
+			throws Exception {
+		Field field = target.getClass().getDeclaredField(fieldName);
+		field.setAccessible(true);
+		field.set(target, value);
+	}
+}
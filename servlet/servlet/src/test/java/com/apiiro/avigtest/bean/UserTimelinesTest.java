@@ -0,0 +1,217 @@
+package com.apiiro.avigtest.bean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.persistence.TemporalType;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apiiro.avigtest.model.Bookmark;
+import com.apiiro.avigtest.model.User;
+
+/**
+ * Reads every page of each user's listing from the {@link UserTimelines} and
+ * checks it against the listing queries on the {@link TestDatabase}.
+ *
+ */
+public class UserTimelinesTest {
+
+	/**
+	 * User given a known number of bookmarks, as the seeded users' bookmarks
+	 * are picked at random
+	 */
+	private static final String TIMELINE_USER = "timeline";
+
+	private static final int TIMELINE_BOOKMARKS = 12;
+
+	private static final String[] USERS = { "andygibson", "user1", "user2",
+			TIMELINE_USER };
+
+	private static EntityManagerFactory factory;
+
+	@BeforeClass
+	public static void createData() throws Exception {
+		factory = TestDatabase.create();
+		EntityManager em = factory.createEntityManager();
+		addTimelineUser(em);
+		em.close();
+	}
+
+	@AfterClass
+	public static void closeFactory() {
+		factory.close();
+	}
+
+	@Test
+	public void pagesMatchTheDatabase() throws Exception {
+		for (String username : USERS) {
+			UserTimelines timelines = timelines(1000);
+			for (PageCursor cursor : cursors(username)) {
+				List<Long> page = timelines.getBookmarkIds(username, cursor, 5);
+				assertNotNull(username + " " + cursor, page);
+				assertEquals(username + " " + cursor, page(username, cursor, 5),
+						page);
+			}
+		}
+	}
+
+	@Test
+	public void deepPagesFallBackToTheDatabase() throws Exception {
+		// fewer than a page, so only the pages reaching past it are read from
+		// the database
+		UserTimelines timelines = timelines(2);
+		assertNull(timelines.getBookmarkIds(TIMELINE_USER, null, 5));
+		int served = 0;
+		for (PageCursor cursor : cursors(TIMELINE_USER)) {
+			List<Long> page = timelines.getBookmarkIds(TIMELINE_USER, cursor, 5);
+			if (page != null) {
+				assertEquals(String.valueOf(cursor), page(TIMELINE_USER, cursor, 5),
+						page);
+				served++;
+			}
+		}
+		assertTrue(served > 0);
+		assertTrue(served < cursors(TIMELINE_USER).size());
+	}
+
+	@Test
+	public void savedBookmarkIsAdded() throws Exception {
+		UserTimelines timelines = timelines(1000);
+		timelines.getBookmarkIds("user1", null, 5);
+
+		EntityManager em = factory.createEntityManager();
+		Bookmark bookmark = new Bookmark();
+		bookmark.setUrl("http://www.example.com");
+		bookmark.setTitle("Example");
+		bookmark.setDescription("Example");
+		bookmark.setAddedOn(new Date());
+		bookmark.setUser((User) em.createQuery(
+				"select u from User u where u.username = 'user1'")
+				.getSingleResult());
+		em.getTransaction().begin();
+		em.persist(bookmark);
+		em.getTransaction().commit();
+		em.close();
+		timelines.bookmarkAdded(bookmark);
+
+		List<Long> page = timelines.getBookmarkIds("user1", null, 5);
+		assertEquals(bookmark.getId(), page.get(0));
+		assertEquals(page("user1", null, 5), page);
+	}
+
+	/**
+	 * Adds {@link #TIMELINE_USER} with a bookmark a day, two of them on the
+	 * same day so the ids order them
+	 */
+	private static void addTimelineUser(EntityManager em) {
+		em.getTransaction().begin();
+		User user = new User();
+		user.setUsername(TIMELINE_USER);
+		user.setFirstName("Time");
+		user.setLastName("Line");
+		user.setPassword("timeline");
+		em.persist(user);
+		Calendar day = Calendar.getInstance();
+		for (int i = 0; i < TIMELINE_BOOKMARKS; i++) {
+			if (i != 1) {
+				day.add(Calendar.DATE, -1);
+			}
+			Bookmark bookmark = new Bookmark();
+			bookmark.setUrl("http://www.example.com/" + i);
+			bookmark.setTitle("Timeline " + i);
+			bookmark.setDescription("Timeline " + i);
+			bookmark.setAddedOn(day.getTime());
+			bookmark.setUser(user);
+			em.persist(bookmark);
+		}
+		em.getTransaction().commit();
+	}
+
+	private static UserTimelines timelines(int size) throws Exception {
+		UserTimelines timelines = new UserTimelines(size, 10);
+		TestDatabase.inject(timelines, "entityManagerFactory", factory);
+		return timelines;
+	}
+
+	/**
+	 * @return The first page and a cursor either side of each of the user's
+	 *         bookmarks
+	 */
+	private static List<PageCursor> cursors(String username) {
+		List<PageCursor> cursors = new ArrayList<PageCursor>();
+		cursors.add(null);
+		for (int i = 0;; i++) {
+			Bookmark bookmark = bookmark(username, i);
+			if (bookmark == null) {
+				return cursors;
+			}
+			cursors.add(PageCursor.after(bookmark));
+			cursors.add(PageCursor.before(bookmark));
+		}
+	}
+
+	/**
+	 * @return The user's bookmark at the position in the listing or null
+	 */
+	@SuppressWarnings("unchecked")
+	private static Bookmark bookmark(String username, int position) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			List<Bookmark> bookmarks = em
+					.createQuery(
+							"select b from Bookmark b where b.user.username = :username order by b.addedOn desc, b.id desc")
+					.setParameter("username", username)
+					.setFirstResult(position).setMaxResults(1).getResultList();
+			return bookmarks.isEmpty() ? null : bookmarks.get(0);
+		} finally {
+			em.close();
+		}
+	}
+
+	/**
+	 * @return The page the listing queries give
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<Long> page(String username, PageCursor cursor,
+			int count) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			String name = "Bookmark.pageIdsByUser";
+			if (cursor != null) {
+				name = name + (cursor.isBefore() ? ".newer" : ".older");
+			}
+			Query query = em.createNamedQuery(name).setParameter("username",
+					username);
+			if (cursor != null) {
+				query.setParameter("addedOn", cursor.getAddedOn(),
+						TemporalType.TIMESTAMP).setParameter("id",
+						cursor.getId());
+			}
+			List<Long> ids = new ArrayList<Long>();
+			for (Object[] row : (List<Object[]>) query.setMaxResults(count)
+					.getResultList()) {
+				ids.add((Long) row[0]);
+			}
+			if (cursor != null && cursor.isBefore()) {
+				Collections.reverse(ids);
+			}
+			return ids;
+		} finally {
+			em.close();
+		}
+	}
+}
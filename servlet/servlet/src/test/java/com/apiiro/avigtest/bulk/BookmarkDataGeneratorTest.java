@@ -0,0 +1,110 @@
+package com.apiiro.avigtest.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.junit.Test;
+
+/**
+ * Generates small data sets with the {@link BookmarkDataGenerator} into fresh
+ * in memory "pu" databases and compares what was written.
+ *
+ */
+public class BookmarkDataGeneratorTest {
+
+	private static final int TAGS_PER_BOOKMARK = 3;
+
+	@Test
+	public void sameSeedGivesTheSameDataWithAnyNumberOfThreads()
+			throws InterruptedException {
+		List<String> single = generate(42, 1);
+		assertEquals(500, single.size());
+		assertEquals(single, generate(42, 4));
+		assertFalse(single.equals(generate(43, 1)));
+	}
+
+	@Test
+	public void tagsAreNotRepeated() throws InterruptedException {
+		for (String bookmark : generate(42, 2)) {
+			String tags = bookmark.substring(bookmark.lastIndexOf('[') + 1,
+					bookmark.length() - 1);
+			assertEquals(bookmark, TAGS_PER_BOOKMARK, tags.split(", ").length);
+		}
+	}
+
+	@Test
+	public void samplingFollowsTheCumulativeDistribution() {
+		double[] cumulative = BookmarkDataGenerator.zipf(4, 1.0);
+		assertEquals(1.0, cumulative[3], 1e-9);
+		assertEquals(0, BookmarkDataGenerator.sample(cumulative, 0));
+		assertEquals(0, BookmarkDataGenerator.sample(cumulative, cumulative[0]));
+		assertEquals(1, BookmarkDataGenerator.sample(cumulative,
+				cumulative[0] + 1e-9));
+		assertEquals(3, BookmarkDataGenerator.sample(cumulative, 0.999999));
+	}
+
+	/**
+	 * Generates a data set with the seed and reads it back
+	 *
+	 * @return A line per bookmark with its fields and tags, ordered by url
+	 */
+	@SuppressWarnings("unchecked")
+	private static List<String> generate(long seed, int threads)
+			throws InterruptedException {
+		BookmarkDataGenerator generator = new BookmarkDataGenerator();
+		generator.setUsers(20);
+		generator.setTags(30);
+		generator.setBookmarks(500);
+		generator.setBlockSize(64);
+		generator.setMinTagsPerBookmark(TAGS_PER_BOOKMARK);
+		generator.setMaxTagsPerBookmark(TAGS_PER_BOOKMARK);
+		generator.setEndDate(new Date(1272672000000L));
+		generator.setSeed(seed);
+		generator.setThreads(threads);
+
+		// create-drop starts each data set in an empty database
+		EntityManagerFactory factory = Persistence
+				.createEntityManagerFactory("pu");
+		try {
+			generator.generate(factory);
+			EntityManager em = factory.createEntityManager();
+			try {
+				Map<String, List<String>> bookmarks = new LinkedHashMap<String, List<String>>();
+				for (Object[] row : (List<Object[]>) em.createQuery(
+						"select b.url, b.title, b.description, b.addedOn, b.user.username from Bookmark b order by b.url")
+						.getResultList()) {
+					bookmarks.put((String) row[0], new ArrayList<String>());
+					bookmarks.get(row[0]).add(row[1] + "|" + row[2] + "|"
+							+ ((Date) row[3]).getTime() + "|" + row[4]);
+				}
+				for (Object[] row : (List<Object[]>) em.createQuery(
+						"select b.url, t.slug from Bookmark b join b.tags t order by t.slug")
+						.getResultList()) {
+					bookmarks.get(row[0]).add((String) row[1]);
+				}
+				List<String> lines = new ArrayList<String>();
+				for (Map.Entry<String, List<String>> bookmark : bookmarks
+						.entrySet()) {
+					List<String> fields = bookmark.getValue();
+					lines.add(bookmark.getKey() + "|" + fields.get(0) + "|"
+							+ fields.subList(1, fields.size()));
+				}
+				return lines;
+			} finally {
+				em.close();
+			}
+		} finally {
+			factory.close();
+		}
+	}
+}
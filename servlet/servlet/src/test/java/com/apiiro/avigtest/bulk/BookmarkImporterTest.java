@@ -0,0 +1,238 @@
+package com.apiiro.avigtest.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import javax.persistence.PersistenceException;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Imports files into the in memory "pu" database with the
+ * {@link BookmarkImporter} and checks each record ends up in it exactly once,
+ * however the import is interrupted.
+ *
+ */
+public class BookmarkImporterTest {
+
+	private static final String HEADER = "url,title,description,addedOn,username,tags";
+
+	private static EntityManagerFactory factory;
+
+	private File file;
+
+	@BeforeClass
+	public static void createFactory() {
+		factory = Persistence.createEntityManagerFactory("pu");
+	}
+
+	@AfterClass
+	public static void closeFactory() {
+		factory.close();
+	}
+
+	@Before
+	public void createFile() throws IOException {
+		file = File.createTempFile("bookmarks", ".csv");
+	}
+
+	@After
+	public void removeBookmarks() throws Exception {
+		importer().checkpoint(file).clear();
+		file.delete();
+		EntityManager em = factory.createEntityManager();
+		em.getTransaction().begin();
+		em.createNativeQuery("delete from BOOKMARK_TAGS_XREF").executeUpdate();
+		em.createQuery("delete from Bookmark").executeUpdate();
+		em.getTransaction().commit();
+		em.close();
+	}
+
+	@Test
+	public void appendedRecordsAreImportedOnResume() throws Exception {
+		write(HEADER, record(1), record(2), record(3), record(4), record(5));
+		assertEquals(5, importer().importFile(file));
+		assertEquals(5, importer().checkpoint(file).load());
+
+		write(HEADER, record(1), record(2), record(3), record(4), record(5),
+				record(6), record(7));
+		assertEquals(2, importer().importFile(file));
+		assertEquals(0, importer().importFile(file));
+		assertEquals(urls(1, 2, 3, 4, 5, 6, 7), importedUrls());
+	}
+
+	@Test
+	public void failedChunkIsImportedOnceOnResume() throws Exception {
+		String longUrl = "http://www.example.com/" + repeat('x', 300);
+		write(HEADER, record(1), record(2), record(3), longUrl
+				+ ",Long,Long,,user1,Java", record(5));
+		limitUrlLength(true);
+		try {
+			importer().importFile(file);
+			fail();
+		} catch (PersistenceException e) {
+			// the second chunk is rolled back, checkpoint and all
+		} finally {
+			limitUrlLength(false);
+		}
+		assertEquals(urls(1, 2), importedUrls());
+		assertEquals(2, importer().checkpoint(file).load());
+
+		assertEquals(3, importer().importFile(file));
+		List<String> expected = urls(1, 2, 3, 5);
+		expected.add(longUrl);
+		assertEquals(sorted(expected), importedUrls());
+	}
+
+	@Test
+	public void invalidRecordsAreSkippedAndPassed() throws Exception {
+		write(HEADER, record(1), "http://www.example.com/2,,Missing title",
+				record(3), "\"unterminated", record(5));
+		assertEquals(3, importer().importFile(file));
+		assertEquals(5, importer().checkpoint(file).load());
+		assertEquals(urls(1, 3, 5), importedUrls());
+	}
+
+	@Test
+	public void restartedImportStartsFromTheTop() throws Exception {
+		write(HEADER, record(1), record(2), record(3));
+		importer().importFile(file);
+		importer().checkpoint(file).clear();
+		assertEquals(3, importer().importFile(file));
+		assertEquals(6, importedUrls().size());
+	}
+
+	@Test
+	public void usersAndTagsAreCreatedOnce() throws Exception {
+		write(HEADER, record(1), record(2), record(3), record(4), record(5));
+		importer().importFile(file);
+		EntityManager em = factory.createEntityManager();
+		try {
+			assertEquals(1L, em.createQuery(
+					"select count(u) from User u where u.username = 'importer'")
+					.getSingleResult());
+			assertEquals(1L, em.createQuery(
+					"select count(t) from Tag t where t.slug = 'imported'")
+					.getSingleResult());
+			assertEquals(5L, em.createQuery(
+					"select count(b) from Bookmark b join b.tags t where t.slug = 'imported' and b.user.username = 'importer'")
+					.getSingleResult());
+		} finally {
+			em.close();
+		}
+	}
+
+	@Test
+	public void usernamesDifferingByCaseAreOneUser() throws Exception {
+		write(HEADER, record(1, "CaseUser"), record(2, "caseuser"), record(3,
+				"CASEUSER"));
+		assertEquals(3, importer().importFile(file));
+		// resumed with the ids loaded from the database
+		write(HEADER, record(1, "CaseUser"), record(2, "caseuser"), record(3,
+				"CASEUSER"), record(4, "caseUser"));
+		assertEquals(1, importer().importFile(file));
+
+		EntityManager em = factory.createEntityManager();
+		try {
+			assertEquals(1L, em.createQuery(
+					"select count(u) from User u where u.usernameKey = 'caseuser'")
+					.getSingleResult());
+			assertEquals(4L, em.createQuery(
+					"select count(b) from Bookmark b where b.user.usernameKey = 'caseuser'")
+					.getSingleResult());
+		} finally {
+			em.close();
+		}
+	}
+
+	private static BookmarkImporter importer() {
+		return new BookmarkImporter(factory, 2, 2);
+	}
+
+	private static String record(int number) {
+		return record(number, "importer");
+	}
+
+	private static String record(int number, String username) {
+		return "http://www.example.com/" + number + ",Title " + number
+				+ ",Description " + number + ",2010-05-01," + username
+				+ ",Imported";
+	}
+
+	private void write(String... lines) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			for (String line : lines) {
+				out.write(line + "\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static List<String> urls(int... numbers) {
+		List<String> urls = new ArrayList<String>();
+		for (int number : numbers) {
+			urls.add("http://www.example.com/" + number);
+		}
+		return urls;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<String> importedUrls() {
+		EntityManager em = factory.createEntityManager();
+		try {
+			return em.createQuery("select b.url from Bookmark b order by b.url")
+					.getResultList();
+		} finally {
+			em.close();
+		}
+	}
+
+	private static List<String> sorted(List<String> values) {
+		String[] array = values.toArray(new String[values.size()]);
+		Arrays.sort(array);
+		return Arrays.asList(array);
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+
+	/**
+	 * Adds or drops a constraint making the database reject long urls, so the
+	 * chunk holding one fails when it is flushed
+	 */
+	private static void limitUrlLength(boolean limit) throws SQLException {
+		Connection connection = DriverManager.getConnection(
+				"jdbc:hsqldb:mem:unit-testing-jpa", "sa", "");
+		try {
+			connection.createStatement().execute(
+					limit ? "alter table BOOKMARKS add constraint CK_URL_LENGTH check (length(url) < 255)"
+							: "alter table BOOKMARKS drop constraint CK_URL_LENGTH");
+		} finally {
+			connection.close();
+		}
+	}
+}
@@ -0,0 +1,184 @@
+package com.apiiro.avigtest.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+/**
+ * Reads bookmarks from CSV and NDJSON text with the
+ * {@link CsvBookmarkReader} and {@link NdjsonBookmarkReader}.
+ *
+ */
+public class BookmarkRecordReaderTest {
+
+	/**
+	 * 2010-05-01T10:00:00 UTC
+	 */
+	private static final long MAY_FIRST_TEN = 1272708000000L;
+
+	@Test
+	public void csvColumnsAreReadByName() throws IOException {
+		BookmarkRecordReader reader = csv(
+				"Title,url,tags,USERNAME,addedOn,description",
+				"\"Say \"\"hi\"\", then go\",http://a.com, Java |Web Services||,user1,2010-05-01T10:00:00,Greeting",
+				"", "Bare,http://b.com,,,,",
+				"Dated,http://c.com,SQL,,2010-05-01,Day");
+
+		BookmarkRecord record = reader.read();
+		assertEquals("Say \"hi\", then go", record.getTitle());
+		assertEquals("http://a.com", record.getUrl());
+		assertEquals("Greeting", record.getDescription());
+		assertEquals("user1", record.getUsername());
+		assertEquals(Arrays.asList("Java", "Web Services"), record.getTags());
+		assertEquals(MAY_FIRST_TEN, record.getAddedOn().getTime());
+		assertEquals(2, reader.getLineNumber());
+
+		// the blank line is passed over
+		record = reader.read();
+		assertEquals("Bare", record.getTitle());
+		assertEquals("", record.getUsername());
+		assertEquals(Collections.emptyList(), record.getTags());
+		assertTrue(System.currentTimeMillis() - record.getAddedOn().getTime() < 60000);
+		assertEquals(4, reader.getLineNumber());
+
+		record = reader.read();
+		assertEquals(MAY_FIRST_TEN - 10 * 3600000L, record.getAddedOn()
+				.getTime());
+		assertNull(reader.read());
+	}
+
+	@Test
+	public void badCsvLineIsSkippedAndReadingCarriesOn() throws IOException {
+		BookmarkRecordReader reader = csv("url,title", "http://a.com,\"open",
+				"http://b.com,B", "http://c.com,C,D,1");
+		try {
+			reader.read();
+			fail();
+		} catch (IllegalArgumentException e) {
+			assertEquals(2, reader.getLineNumber());
+		}
+		assertEquals("B", reader.read().getTitle());
+		// extra columns are ignored
+		assertEquals("C", reader.read().getTitle());
+		assertNull(reader.read());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void csvWithoutUrlColumnIsRejected() throws IOException {
+		csv("title,description", "A,B").read();
+	}
+
+	@Test
+	public void ndjsonValuesAreParsed() throws IOException {
+		BookmarkRecordReader reader = ndjson(
+				"{\"url\":\"http://a.com\", \"title\":\"Caf\\u00e9 \\\"quoted\\\"\\n\", \"description\":\"D\", \"addedOn\":\""
+						+ MAY_FIRST_TEN
+						+ "\", \"username\":null, \"tags\":[\"Java\", \" Web \", null], \"extra\":true, \"n\":-1.5e3}",
+				"   ",
+				"{\"url\":\"http://b.com\",\"title\":\"B\",\"description\":\"D\",\"addedOn\":"
+						+ MAY_FIRST_TEN + ",\"tags\":\"SQL|JPA\"}", "{}");
+
+		BookmarkRecord record = reader.read();
+		assertEquals("http://a.com", record.getUrl());
+		assertEquals("Caf\u00e9 \"quoted\"\n", record.getTitle());
+		assertNull(record.getUsername());
+		assertEquals(Arrays.asList("Java", "Web"), record.getTags());
+		assertEquals(MAY_FIRST_TEN, record.getAddedOn().getTime());
+
+		record = reader.read();
+		assertEquals(Arrays.asList("SQL", "JPA"), record.getTags());
+		assertEquals(MAY_FIRST_TEN, record.getAddedOn().getTime());
+		assertEquals(3, reader.getLineNumber());
+
+		record = reader.read();
+		assertNull(record.getUrl());
+		assertNull(reader.read());
+	}
+
+	@Test
+	public void badNdjsonLinesAreRejected() throws IOException {
+		String[] lines = { "{\"url\":\"http://a.com\"", "[1]",
+				"{\"url\":{\"nested\":1}}", "{\"url\":\"open}",
+				"{\"url\":nope}", "{\"addedOn\":\"May 2010\"}" };
+		BookmarkRecordReader reader = ndjson(lines);
+		for (int i = 0; i < lines.length; i++) {
+			try {
+				reader.read();
+				fail(lines[i]);
+			} catch (IllegalArgumentException e) {
+				assertEquals(i + 1, reader.getLineNumber());
+			}
+		}
+		assertNull(reader.read());
+	}
+
+	@Test
+	public void skipCountsRecordsNotLines() throws IOException {
+		BookmarkRecordReader reader = csv("url", "http://a.com", "",
+				"http://b.com", "http://c.com");
+		assertEquals(2, reader.skip(2));
+		assertEquals("http://c.com", reader.read().getUrl());
+		assertEquals(0, reader.skip(1));
+
+		reader = ndjson("{\"url\":\"a\"}", "{\"url\":\"b\"}");
+		assertEquals(2, reader.skip(5));
+		assertNull(reader.read());
+	}
+
+	@Test
+	public void readerIsPickedByExtension() throws IOException {
+		File directory = Files.createTempDirectory("import").toFile();
+		try {
+			assertTrue(open(directory, "a.CSV") instanceof CsvBookmarkReader);
+			assertTrue(open(directory, "a.ndjson") instanceof NdjsonBookmarkReader);
+			assertTrue(open(directory, "a.jsonl") instanceof NdjsonBookmarkReader);
+			try {
+				open(directory, "a.txt");
+				fail();
+			} catch (IllegalArgumentException e) {
+				// expected
+			}
+		} finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	private static BookmarkRecordReader open(File directory, String name)
+			throws IOException {
+		File file = new File(directory, name);
+		file.createNewFile();
+		BookmarkRecordReader reader = BookmarkRecordReader.open(file);
+		reader.close();
+		return reader;
+	}
+
+	private static BookmarkRecordReader csv(String... lines) {
+		return new CsvBookmarkReader(reader(lines));
+	}
+
+	private static BookmarkRecordReader ndjson(String... lines) {
+		return new NdjsonBookmarkReader(reader(lines));
+	}
+
+	private static BufferedReader reader(String... lines) {
+		StringBuilder text = new StringBuilder();
+		for (String line : lines) {
+			text.append(line).append('\n');
+		}
+		return new BufferedReader(new StringReader(text.toString()));
+	}
+}
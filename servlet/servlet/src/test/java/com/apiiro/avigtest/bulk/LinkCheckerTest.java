@@ -0,0 +1,220 @@
+package com.apiiro.avigtest.bulk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.apiiro.avigtest.AsyncExecutors;
+import com.apiiro.avigtest.model.Bookmark;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks bookmarks pointing at a stub HTTP server on the local machine and
+ * reads back the statuses the {@link LinkChecker} writes to the in memory
+ * "pu" database.
+ *
+ */
+public class LinkCheckerTest {
+
+	private static final int TIMEOUT_MILLIS = 500;
+
+	private static EntityManagerFactory factory;
+	private static HttpServer server;
+	private static String base;
+
+	private static final AtomicInteger open = new AtomicInteger();
+	private static final AtomicInteger mostOpen = new AtomicInteger();
+
+	private Checkpoint checkpoint;
+
+	@BeforeClass
+	public static void startServer() throws Exception {
+		factory = Persistence.createEntityManagerFactory("pu");
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/", new HttpHandler() {
+
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					answer(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		// enough threads that only the checker limits the requests per host
+		server.setExecutor(Executors.newFixedThreadPool(16));
+		server.start();
+		base = "http://127.0.0.1:" + server.getAddress().getPort();
+	}
+
+	@AfterClass
+	public static void stopServer() {
+		server.stop(0);
+		factory.close();
+	}
+
+	@Before
+	public void createCheckpoint() {
+		checkpoint = new Checkpoint(factory, "links");
+	}
+
+	@After
+	public void removeBookmarks() {
+		checkpoint.clear();
+		EntityManager em = factory.createEntityManager();
+		em.getTransaction().begin();
+		em.createQuery("delete from Bookmark").executeUpdate();
+		em.getTransaction().commit();
+		em.close();
+	}
+
+	private static void answer(HttpExchange exchange) throws IOException {
+		String path = exchange.getRequestURI().getPath();
+		boolean head = exchange.getRequestMethod().equals("HEAD");
+		if (path.equals("/ok")) {
+			exchange.sendResponseHeaders(200, -1);
+		} else if (path.equals("/gone")) {
+			exchange.sendResponseHeaders(404, -1);
+		} else if (path.equals("/get-only")) {
+			exchange.sendResponseHeaders(head ? 405 : 200, -1);
+		} else if (path.equals("/slow")) {
+			pause(TIMEOUT_MILLIS * 4);
+			exchange.sendResponseHeaders(200, -1);
+		} else if (path.startsWith("/busy")) {
+			// counted until the response is sent, after which the checker may
+			// start the next request to the host
+			int now = open.incrementAndGet();
+			while (true) {
+				int most = mostOpen.get();
+				if (now <= most || mostOpen.compareAndSet(most, now)) {
+					break;
+				}
+			}
+			pause(50);
+			open.decrementAndGet();
+			exchange.sendResponseHeaders(200, -1);
+		} else {
+			exchange.sendResponseHeaders(500, -1);
+		}
+	}
+
+	private static void pause(long millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Test
+	public void statusesAreWrittenBack() throws Exception {
+		List<Long> ids = bookmarks(base + "/ok", base + "/gone", base
+				+ "/get-only", base + "/slow", "ftp://example.com/file",
+				"not a url");
+		assertEquals(6, checker(2).checkAll(checkpoint));
+
+		assertEquals(Integer.valueOf(200), find(ids.get(0)).getLinkStatus());
+		assertEquals(Integer.valueOf(404), find(ids.get(1)).getLinkStatus());
+		assertEquals(Integer.valueOf(200), find(ids.get(2)).getLinkStatus());
+		assertEquals(Integer.valueOf(LinkChecker.UNREACHABLE), find(ids.get(3))
+				.getLinkStatus());
+		assertEquals(Integer.valueOf(LinkChecker.NOT_A_WEB_LINK), find(
+				ids.get(4)).getLinkStatus());
+		assertEquals(Integer.valueOf(LinkChecker.NOT_A_WEB_LINK), find(
+				ids.get(5)).getLinkStatus());
+		assertFalse(find(ids.get(0)).isLinkDead());
+		assertTrue(find(ids.get(1)).isLinkDead());
+		assertTrue(find(ids.get(3)).isLinkDead());
+		assertNotNull(find(ids.get(0)).getLinkCheckedOn());
+		assertEquals(0, checkpoint.load());
+	}
+
+	@Test
+	public void requestsPerHostAreBounded() throws Exception {
+		String[] urls = new String[20];
+		for (int i = 0; i < urls.length; i++) {
+			urls[i] = base + "/busy/" + i;
+		}
+		bookmarks(urls);
+		mostOpen.set(0);
+		// the whole page at once, so only the per host limit holds them back
+		checker(urls.length).checkAll(checkpoint);
+		assertTrue("most open " + mostOpen.get(), mostOpen.get() <= 2);
+	}
+
+	@Test
+	public void resumesAfterTheCheckpoint() throws Exception {
+		List<Long> ids = bookmarks(base + "/ok", base + "/ok", base + "/gone",
+				base + "/ok");
+		save(checkpoint, ids.get(1));
+
+		assertEquals(2, checker(2).checkAll(checkpoint));
+		assertNull(find(ids.get(0)).getLinkStatus());
+		assertNull(find(ids.get(1)).getLinkStatus());
+		assertEquals(Integer.valueOf(404), find(ids.get(2)).getLinkStatus());
+		assertEquals(Integer.valueOf(200), find(ids.get(3)).getLinkStatus());
+	}
+
+	private static void save(Checkpoint checkpoint, long position) {
+		EntityManager em = factory.createEntityManager();
+		em.getTransaction().begin();
+		checkpoint.save(em, position);
+		em.getTransaction().commit();
+		em.close();
+	}
+
+	private static LinkChecker checker(int pageSize) {
+		return new LinkChecker(factory, pageSize, 2, TIMEOUT_MILLIS,
+				AsyncExecutors.VIRTUAL, 8);
+	}
+
+	private static List<Long> bookmarks(String... urls) {
+		EntityManager em = factory.createEntityManager();
+		em.getTransaction().begin();
+		List<Long> ids = new ArrayList<Long>();
+		for (String url : urls) {
+			Bookmark bookmark = new Bookmark();
+			bookmark.setUrl(url);
+			bookmark.setTitle("Link");
+			bookmark.setDescription("Link");
+			bookmark.setAddedOn(new Date());
+			em.persist(bookmark);
+			em.flush();
+			ids.add(bookmark.getId());
+		}
+		em.getTransaction().commit();
+		em.close();
+		return ids;
+	}
+
+	private static Bookmark find(Long id) {
+		EntityManager em = factory.createEntityManager();
+		try {
+			return em.find(Bookmark.class, id);
+		} finally {
+			em.close();
+		}
+	}
+}